@@ -26,7 +26,13 @@ public final class KBCommandsRegister {
                         .executes(KBCommands::list)));
 
         // register /kb backup [name] for performing backup. OP is required.
+        // /kb backup adaptive [name] chooses the compression of each file from its content.
         dispatcher.register(CommandManager.literal("kb").then(CommandManager.literal("backup").then(
+                        CommandManager.literal("adaptive")
+                                .then(CommandManager.argument("backupName", StringArgumentType.greedyString())
+                                        .executes(KBCommands::adaptivePrimitiveBackup))
+                                .executes(KBCommands::adaptivePrimitiveBackupWithDefaultName)
+                ).then(
                         CommandManager.argument("backupName", StringArgumentType.greedyString())
                                 .requires(source -> source.hasPermissionLevel(4))
                                 .executes(KBCommands::primitiveBackup)
@@ -60,6 +66,41 @@ public final class KBCommandsRegister {
                                 .executes(KBCommands::delete))
                         .requires(source -> source.hasPermissionLevel(4))));
 
+        // register /kb reshard <layout> for changing the layout of the incremental base. OP is required.
+        dispatcher.register(CommandManager.literal("kb")
+                .then(CommandManager.literal("reshard")
+                        .then(CommandManager.argument("layout", StringArgumentType.word())
+                                .executes(KBCommands::reshard))
+                        .requires(source -> source.hasPermissionLevel(4))));
+
+        // register /kb repack for rewriting packs of the incremental base. OP is required.
+        dispatcher.register(CommandManager.literal("kb")
+                .then(CommandManager.literal("repack")
+                        .requires(source -> source.hasPermissionLevel(4))
+                        .executes(KBCommands::repack)));
+
+        // register /kb gc [dryrun] for deleting objects of the incremental base no backup uses. OP is required.
+        dispatcher.register(CommandManager.literal("kb")
+                .then(CommandManager.literal("gc")
+                        .then(CommandManager.literal("dryrun")
+                                .executes(KBCommands::gcDryRun))
+                        .requires(source -> source.hasPermissionLevel(4))
+                        .executes(KBCommands::gc)));
+
+        // register /kb scrub [all] for checking objects of the incremental base. OP is required.
+        dispatcher.register(CommandManager.literal("kb")
+                .then(CommandManager.literal("scrub")
+                        .then(CommandManager.literal("all")
+                                .executes(KBCommands::scrubAll))
+                        .requires(source -> source.hasPermissionLevel(4))
+                        .executes(KBCommands::scrub)));
+
+        // register /kb convert for converting indexes of incremental backups into the binary format. OP is required.
+        dispatcher.register(CommandManager.literal("kb")
+                .then(CommandManager.literal("convert")
+                        .requires(source -> source.hasPermissionLevel(4))
+                        .executes(KBCommands::convert)));
+
         // register /kb confirm for confirming the execution. OP is required.
         dispatcher.register(CommandManager.literal("kb")
                 .then(CommandManager.literal("confirm")
@@ -0,0 +1,246 @@
+package com.keuin.kbackupfabric.backup.catalog;
+
+import com.keuin.kbackupfabric.backup.incremental.cache.FileFingerprintCache;
+import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupInfoSerializer;
+import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupMetadata;
+import com.keuin.kbackupfabric.backup.name.BackupFileNameEncoder;
+import com.keuin.kbackupfabric.backup.name.PrimitiveBackupFileNameEncoder;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A catalog of the backups in the backup directory, so listing them does not read every backup file.
+ * It is kept in memory and in a small file beside the directory, and updated by operations adding or removing backups.
+ * Changes made by anyone else are noticed through the modification time of the directory. Then the directory is
+ * listed again, but only files whose size or modification time has changed are read.
+ * Thread-safe.
+ */
+public final class BackupCatalog {
+
+    private static final Logger LOGGER = Logger.getLogger(BackupCatalog.class.getName());
+    private static final int MAGIC = 0x4B424354; // "KBCT"
+    private static final int VERSION = 1;
+    private static final Map<Path, BackupCatalog> instances = new HashMap<>();
+
+    private final File directory;
+    private final File catalogFile;
+    private Map<String, BackupCatalogEntry> entries; // null until loaded
+    private List<BackupCatalogEntry> sortedEntries; // null if entries have changed
+    // the catalog file is not trusted to be up to date, so the directory is always scanned once after loading
+    private long directoryLastModified = -1;
+    private long scannedMillis;
+
+    BackupCatalog(@NotNull File directory, @NotNull File catalogFile) {
+        this.directory = Objects.requireNonNull(directory);
+        this.catalogFile = Objects.requireNonNull(catalogFile);
+    }
+
+    /**
+     * Get the catalog of a backup directory. All users of the same directory share one catalog.
+     *
+     * @param directory the backup directory.
+     * @return the catalog.
+     */
+    public static BackupCatalog forDirectory(@NotNull File directory) {
+        Path key = directory.getAbsoluteFile().toPath().normalize();
+        synchronized (instances) {
+            return instances.computeIfAbsent(key, path -> new BackupCatalog(path.toFile(), getCatalogFile(path.toFile())));
+        }
+    }
+
+    /**
+     * The catalog file is stored beside the backup directory, so writing it does not change the directory.
+     */
+    static File getCatalogFile(File directory) {
+        return new File(directory.getParentFile(), directory.getName() + ".catalog");
+    }
+
+    /**
+     * Get all backups in the directory.
+     *
+     * @return the backups, newest first. Backup files which cannot be read are left out.
+     */
+    public synchronized List<BackupCatalogEntry> getEntries() {
+        refresh();
+        if (sortedEntries == null) {
+            List<BackupCatalogEntry> list = new ArrayList<>(entries.values());
+            list.sort(Comparator.comparing(BackupCatalogEntry::getCreationTime)
+                    .thenComparing(BackupCatalogEntry::getFileName).reversed());
+            sortedEntries = Collections.unmodifiableList(list);
+        }
+        return sortedEntries;
+    }
+
+    /**
+     * Record a backup file which has just been written.
+     *
+     * @param fileName name of the backup file, in the backup directory.
+     */
+    public synchronized void put(@NotNull String fileName) {
+        Objects.requireNonNull(fileName);
+        refresh();
+        File file = new File(directory, fileName);
+        // read again even if it looks unchanged, the file may have been listed while it was being written
+        BackupCatalogEntry entry = read(file, file.length(), file.lastModified(), System.currentTimeMillis());
+        if (entry == null)
+            return;
+        entries.put(fileName, entry);
+        sortedEntries = null;
+        save();
+    }
+
+    /**
+     * Forget a backup file which has just been deleted.
+     *
+     * @param fileName name of the backup file, in the backup directory.
+     */
+    public synchronized void remove(@NotNull String fileName) {
+        Objects.requireNonNull(fileName);
+        refresh();
+        if (entries.remove(fileName) != null) {
+            sortedEntries = null;
+            save();
+        }
+    }
+
+    private void refresh() {
+        load();
+        long lastModified = directory.lastModified();
+        if (lastModified != 0 && lastModified == directoryLastModified && lastModified < scannedMillis - FileFingerprintCache.RACY_WINDOW_MILLIS)
+            return;
+        scan();
+    }
+
+    private void scan() {
+        long now = System.currentTimeMillis();
+        // read before listing, so changes made while listing are noticed next time
+        long lastModified = directory.lastModified();
+        File[] files = directory.listFiles();
+        Map<String, BackupCatalogEntry> scanned = new HashMap<>();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                String lowerCaseName = fileName.toLowerCase();
+                if (!(lowerCaseName.endsWith(".zip") || lowerCaseName.endsWith(".kbi")) || !file.isFile())
+                    continue;
+                long length = file.length();
+                long fileLastModified = file.lastModified();
+                BackupCatalogEntry entry = entries.get(fileName);
+                if (entry == null || !entry.matches(length, fileLastModified))
+                    entry = read(file, length, fileLastModified, now);
+                if (entry != null)
+                    scanned.put(fileName, entry);
+            }
+        }
+        boolean changed = !scanned.equals(entries);
+        entries = scanned;
+        directoryLastModified = lastModified;
+        scannedMillis = now;
+        if (changed) {
+            sortedEntries = null;
+            save();
+        }
+    }
+
+    private static BackupCatalogEntry read(File file, long length, long lastModified, long now) {
+        String fileName = file.getName();
+        try {
+            if (fileName.toLowerCase().endsWith(".kbi")) {
+                IncBackupMetadata metadata = IncBackupInfoSerializer.metadataFromFile(file);
+                return new BackupCatalogEntry(fileName, metadata.getBackupName(),
+                        metadata.getBackupTime().withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime(),
+                        metadata.getTotalSizeBytes(), length, lastModified, now);
+            }
+            BackupFileNameEncoder.BackupBasicInformation info = PrimitiveBackupFileNameEncoder.INSTANCE.decode(fileName);
+            if (info == null) {
+                LOGGER.warning("Skipped backup file with invalid name: " + fileName);
+                return null;
+            }
+            return new BackupCatalogEntry(fileName, info.customName, info.time, length, length, lastModified, now);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warning("Skipped unreadable backup file " + fileName + ": " + e);
+            return null;
+        }
+    }
+
+    private void load() {
+        if (entries != null)
+            return;
+        entries = new HashMap<>();
+        if (!catalogFile.isFile())
+            return;
+        try {
+            byte[] data = Files.readAllBytes(catalogFile.toPath());
+            if (data.length < 12)
+                throw new IOException("Catalog is truncated");
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 4);
+            if (ByteBuffer.wrap(data, data.length - 4, 4).getInt() != (int) crc.getValue())
+                throw new IOException("Catalog checksum mismatch");
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 4));
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a backup catalog");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported catalog version " + version);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String fileName = in.readUTF();
+                String name = in.readUTF();
+                LocalDateTime creationTime = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+                BackupCatalogEntry entry = new BackupCatalogEntry(fileName, name, creationTime,
+                        in.readLong(), in.readLong(), in.readLong(), in.readLong());
+                entries.put(fileName, entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warning("Failed to load backup catalog, all backups will be read: " + e);
+            entries = new HashMap<>();
+        }
+    }
+
+    /**
+     * Write the catalog aside and rename it over the old one. Losing the catalog only costs reading the backups again.
+     */
+    private void save() {
+        File tempFile = new File(catalogFile.getPath() + ".tmp");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (BackupCatalogEntry entry : entries.values()) {
+                    out.writeUTF(entry.getFileName());
+                    out.writeUTF(entry.getName());
+                    out.writeLong(entry.getCreationTime().toEpochSecond(ZoneOffset.UTC));
+                    out.writeInt(entry.getCreationTime().getNano());
+                    out.writeLong(entry.getSizeBytes());
+                    out.writeLong(entry.getFileLength());
+                    out.writeLong(entry.getFileLastModified());
+                    out.writeLong(entry.getScannedMillis());
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+                bytes.writeTo(out);
+                out.writeInt((int) crc.getValue());
+            }
+            Files.move(tempFile.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to save backup catalog: " + e);
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.keuin.kbackupfabric.backup.catalog;
+
+import com.keuin.kbackupfabric.backup.incremental.cache.FileFingerprintCache;
+
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * What the catalog remembers about a backup file: enough to list it, and to tell whether the file has changed since.
+ */
+public final class BackupCatalogEntry {
+
+    private final String fileName;
+    private final String name;
+    private final LocalDateTime creationTime;
+    private final long sizeBytes;
+    private final long fileLength;
+    private final long fileLastModified;
+    private final long scannedMillis;
+
+    BackupCatalogEntry(String fileName, String name, LocalDateTime creationTime, long sizeBytes,
+                       long fileLength, long fileLastModified, long scannedMillis) {
+        Objects.requireNonNull(fileName);
+        Objects.requireNonNull(name);
+        Objects.requireNonNull(creationTime);
+        this.fileName = fileName;
+        this.name = name;
+        this.creationTime = creationTime;
+        this.sizeBytes = sizeBytes;
+        this.fileLength = fileLength;
+        this.fileLastModified = fileLastModified;
+        this.scannedMillis = scannedMillis;
+    }
+
+    /**
+     * Get the name of the backup file, in the backup directory.
+     *
+     * @return the file name.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Get the custom backup name.
+     *
+     * @return the backup name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public LocalDateTime getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Get the size of the saved world.
+     *
+     * @return the size in bytes, or -1 if unknown.
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public boolean isIncremental() {
+        return fileName.toLowerCase().endsWith(".kbi");
+    }
+
+    long getFileLength() {
+        return fileLength;
+    }
+
+    long getFileLastModified() {
+        return fileLastModified;
+    }
+
+    long getScannedMillis() {
+        return scannedMillis;
+    }
+
+    /**
+     * Check whether the file is still the one this entry was read from.
+     * Files modified shortly before they were read may change again without changing the mtime, they never match.
+     */
+    boolean matches(long length, long lastModified) {
+        return fileLength == length && fileLastModified == lastModified
+                && fileLastModified < scannedMillis - FileFingerprintCache.RACY_WINDOW_MILLIS;
+    }
+
+    // the scanning time is left out, it says nothing about the backup
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BackupCatalogEntry that = (BackupCatalogEntry) o;
+        return sizeBytes == that.sizeBytes &&
+                fileLength == that.fileLength &&
+                fileLastModified == that.fileLastModified &&
+                fileName.equals(that.fileName) &&
+                name.equals(that.name) &&
+                creationTime.equals(that.creationTime);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fileName, name, creationTime, sizeBytes, fileLength, fileLastModified);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s, created at %s, size: %d)", fileName, name, creationTime, sizeBytes);
+    }
+}
@@ -0,0 +1,319 @@
+package com.keuin.kbackupfabric.backup.incremental;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * A read-only {@link ObjectCollection2} packed into a few arrays, for holding many backups in memory.
+ * Names are sorted, so lookups are binary searches. Hashes of single-hash identifiers are packed into one
+ * {@code long[]} per directory, and their type is a byte shared with the {@link IdentifierType} constant.
+ * Other identifiers, e.g. chunk lists, are kept as they are.
+ * Elements and identifiers are created on access, so hold on to this instead of the elements.
+ * Immutable.
+ */
+public final class CompactObjectCollection {
+
+    private static final IdentifierType[] TYPES = IdentifierType.values();
+    // enough for the longest hash of all types
+    private static final int HASH_WORDS = (Arrays.stream(TYPES).mapToInt(IdentifierType::getHashLength).max().orElse(0) + 7) / 8;
+    private static final byte OTHER_TYPE = -1;
+    private static final String[] NO_NAMES = new String[0];
+    private static final CompactObjectCollection[] NO_SUB_COLLECTIONS = new CompactObjectCollection[0];
+
+    private final String name;
+    private final String[] elementNames;
+    private final byte[] elementTypes;
+    private final long[] hashes;
+    // null if all identifiers are single hashes
+    private final ObjectIdentifier[] otherIdentifiers;
+    private final CompactObjectCollection[] subCollections;
+
+    private CompactObjectCollection(String name, String[] elementNames, byte[] elementTypes, long[] hashes,
+                                    ObjectIdentifier[] otherIdentifiers, CompactObjectCollection[] subCollections) {
+        this.name = name;
+        this.elementNames = elementNames;
+        this.elementTypes = elementTypes;
+        this.hashes = hashes;
+        this.otherIdentifiers = otherIdentifiers;
+        this.subCollections = subCollections;
+    }
+
+    /**
+     * Pack a collection.
+     *
+     * @param collection the collection.
+     * @return the packed collection.
+     */
+    public static CompactObjectCollection of(ObjectCollection2 collection) {
+        Builder builder = new Builder(collection.getName());
+        for (ObjectElement element : collection.getElementSet())
+            builder.addElement(element.getName(), element.getIdentifier());
+        for (ObjectCollection2 subCollection : collection.getSubCollectionSet())
+            builder.addSubCollection(of(subCollection));
+        return builder.build();
+    }
+
+    /**
+     * Unpack into a regular collection.
+     *
+     * @return the collection, equal to the packed one.
+     */
+    public ObjectCollection2 toObjectCollection() {
+        Set<ObjectElement> elements = new HashSet<>(elementNames.length * 2);
+        for (int i = 0; i < elementNames.length; i++)
+            elements.add(getElement(i));
+        Map<String, ObjectCollection2> subCollectionMap = new HashMap<>(subCollections.length * 2);
+        for (CompactObjectCollection subCollection : subCollections)
+            subCollectionMap.put(subCollection.name, subCollection.toObjectCollection());
+        return new ObjectCollection2(name, elements, subCollectionMap);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getElementCount() {
+        return elementNames.length;
+    }
+
+    /**
+     * Get the name of an element.
+     *
+     * @param index index of the element, in the order of names.
+     * @return the name.
+     */
+    public String getElementName(int index) {
+        return elementNames[index];
+    }
+
+    /**
+     * Get the identifier of an element. A single-hash identifier is created on each call.
+     *
+     * @param index index of the element, in the order of names.
+     * @return the identifier.
+     */
+    public ObjectIdentifier getIdentifier(int index) {
+        byte type = elementTypes[index];
+        if (type == OTHER_TYPE)
+            return otherIdentifiers[index];
+        IdentifierType identifierType = TYPES[type];
+        byte[] hash = new byte[identifierType.getHashLength()];
+        int offset = index * HASH_WORDS;
+        for (int i = 0; i < hash.length; i++)
+            hash[i] = (byte) (hashes[offset + i / 8] >>> (56 - 8 * (i % 8)));
+        return identifierType.fromHash(hash);
+    }
+
+    public ObjectElement getElement(int index) {
+        return new ObjectElement(elementNames[index], getIdentifier(index));
+    }
+
+    /**
+     * Find an element by its name.
+     *
+     * @param name the name.
+     * @return index of the element, or a negative number if there is no such element.
+     */
+    public int indexOfElement(String name) {
+        return Arrays.binarySearch(elementNames, name);
+    }
+
+    @Nullable
+    public ObjectElement getElement(String name) {
+        int index = indexOfElement(name);
+        return index >= 0 ? getElement(index) : null;
+    }
+
+    /**
+     * Get names of all elements.
+     *
+     * @return an unmodifiable view of the sorted names, not a copy.
+     */
+    public List<String> getElementNames() {
+        return Collections.unmodifiableList(Arrays.asList(elementNames));
+    }
+
+    /**
+     * Get all elements. Each access creates the element.
+     *
+     * @return an unmodifiable view of the elements in the order of names, not a copy.
+     */
+    public List<ObjectElement> getElements() {
+        return new AbstractList<ObjectElement>() {
+            @Override
+            public ObjectElement get(int index) {
+                return getElement(index);
+            }
+
+            @Override
+            public int size() {
+                return elementNames.length;
+            }
+        };
+    }
+
+    /**
+     * Get all sub-collections.
+     *
+     * @return an unmodifiable view of the sub-collections in the order of names, not a copy.
+     */
+    public List<CompactObjectCollection> getSubCollections() {
+        return Collections.unmodifiableList(Arrays.asList(subCollections));
+    }
+
+    @Nullable
+    public CompactObjectCollection getSubCollection(String name) {
+        int low = 0, high = subCollections.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = subCollections[middle].name.compareTo(name);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return subCollections[middle];
+        }
+        return null;
+    }
+
+    /**
+     * Visit identifiers of all elements in this collection and its sub-collections.
+     *
+     * @param action the visitor.
+     */
+    public void forEachIdentifier(Consumer<ObjectIdentifier> action) {
+        for (int i = 0; i < elementNames.length; i++)
+            action.accept(getIdentifier(i));
+        for (CompactObjectCollection subCollection : subCollections)
+            subCollection.forEachIdentifier(action);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompactObjectCollection that = (CompactObjectCollection) o;
+        return name.equals(that.name) &&
+                Arrays.equals(elementNames, that.elementNames) &&
+                Arrays.equals(elementTypes, that.elementTypes) &&
+                Arrays.equals(hashes, that.hashes) &&
+                Arrays.equals(otherIdentifiers, that.otherIdentifiers) &&
+                Arrays.equals(subCollections, that.subCollections);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(name);
+        result = 31 * result + Arrays.hashCode(elementNames);
+        result = 31 * result + Arrays.hashCode(hashes);
+        result = 31 * result + Arrays.hashCode(subCollections);
+        return result;
+    }
+
+    /**
+     * Collects elements and sub-collections in any order, then packs them.
+     * Single hashes may be added from raw bytes, without creating identifiers, e.g. by a deserializer.
+     */
+    public static final class Builder {
+        private final String name;
+        private final List<String> elementNames = new ArrayList<>();
+        private byte[] elementTypes = new byte[16];
+        private long[] hashes = new long[16 * HASH_WORDS];
+        private ObjectIdentifier[] otherIdentifiers;
+        private final List<CompactObjectCollection> subCollections = new ArrayList<>();
+
+        public Builder(String name) {
+            this.name = Objects.requireNonNull(name);
+        }
+
+        public Builder addElement(String name, ObjectIdentifier identifier) {
+            if (identifier instanceof SingleHashIdentifier && ((SingleHashIdentifier) identifier).getType() != null) {
+                SingleHashIdentifier singleHash = (SingleHashIdentifier) identifier;
+                return addSingleHash(name, singleHash.getType(), singleHash.getHash());
+            }
+            int index = append(name, OTHER_TYPE);
+            if (otherIdentifiers == null)
+                otherIdentifiers = new ObjectIdentifier[elementTypes.length];
+            otherIdentifiers[index] = Objects.requireNonNull(identifier);
+            return this;
+        }
+
+        /**
+         * Add an element with a single-hash identifier.
+         *
+         * @param name the element name.
+         * @param type type of the identifier.
+         * @param hash the hash, as stored in the identifier. Not kept, so the caller may reuse it.
+         * @return this builder.
+         */
+        public Builder addSingleHash(String name, IdentifierType type, byte[] hash) {
+            if (hash.length != type.getHashLength())
+                throw new IllegalArgumentException("hash length mismatch");
+            int offset = append(name, (byte) type.ordinal()) * HASH_WORDS;
+            for (int i = 0; i < hash.length; i++)
+                hashes[offset + i / 8] |= (hash[i] & 0xFFL) << (56 - 8 * (i % 8));
+            return this;
+        }
+
+        private int append(String name, byte type) {
+            int index = elementNames.size();
+            elementNames.add(Objects.requireNonNull(name));
+            if (index == elementTypes.length) {
+                elementTypes = Arrays.copyOf(elementTypes, index * 2);
+                hashes = Arrays.copyOf(hashes, index * 2 * HASH_WORDS);
+                if (otherIdentifiers != null)
+                    otherIdentifiers = Arrays.copyOf(otherIdentifiers, index * 2);
+            }
+            elementTypes[index] = type;
+            return index;
+        }
+
+        public Builder addSubCollection(CompactObjectCollection subCollection) {
+            subCollections.add(Objects.requireNonNull(subCollection));
+            return this;
+        }
+
+        /**
+         * Pack the collection.
+         *
+         * @return the collection.
+         * @throws IllegalStateException if two elements or two sub-collections have the same name.
+         */
+        public CompactObjectCollection build() {
+            int count = elementNames.size();
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++)
+                order[i] = i;
+            Arrays.sort(order, Comparator.comparing(elementNames::get));
+            String[] sortedNames = count == 0 ? NO_NAMES : new String[count];
+            byte[] sortedTypes = new byte[count];
+            long[] sortedHashes = new long[count * HASH_WORDS];
+            ObjectIdentifier[] sortedOthers = otherIdentifiers == null ? null : new ObjectIdentifier[count];
+            for (int i = 0; i < count; i++) {
+                int index = order[i];
+                sortedNames[i] = elementNames.get(index);
+                if (i > 0 && sortedNames[i].equals(sortedNames[i - 1]))
+                    throw new IllegalStateException("elements conflict with the same name");
+                sortedTypes[i] = elementTypes[index];
+                System.arraycopy(hashes, index * HASH_WORDS, sortedHashes, i * HASH_WORDS, HASH_WORDS);
+                if (sortedOthers != null)
+                    sortedOthers[i] = otherIdentifiers[index];
+            }
+            CompactObjectCollection[] sortedSubCollections = subCollections.isEmpty() ? NO_SUB_COLLECTIONS
+                    : subCollections.toArray(new CompactObjectCollection[0]);
+            Arrays.sort(sortedSubCollections, Comparator.comparing(CompactObjectCollection::getName));
+            for (int i = 1; i < sortedSubCollections.length; i++) {
+                if (sortedSubCollections[i].name.equals(sortedSubCollections[i - 1].name))
+                    throw new IllegalStateException("sub-collections conflict with the same name");
+            }
+            return new CompactObjectCollection(name, sortedNames, sortedTypes, sortedHashes, sortedOthers,
+                    sortedSubCollections);
+        }
+    }
+}
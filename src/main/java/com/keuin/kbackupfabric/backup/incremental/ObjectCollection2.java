@@ -10,7 +10,7 @@ public class ObjectCollection2 implements Serializable {
     private final Map<String, ObjectElement> elements;
     private final Map<String, ObjectCollection2> subCollections;
 
-    ObjectCollection2(String name, Set<ObjectElement> elements, Map<String, ObjectCollection2> subCollections) {
+    public ObjectCollection2(String name, Set<ObjectElement> elements, Map<String, ObjectCollection2> subCollections) {
         this.name = Objects.requireNonNull(name);
         this.elements = new HashMap<>();
         for (ObjectElement e : elements) {
@@ -26,8 +26,13 @@ public class ObjectCollection2 implements Serializable {
         return name;
     }
 
+    /**
+     * Get all elements.
+     *
+     * @return an unmodifiable view of the elements, not a copy.
+     */
     public Set<ObjectElement> getElementSet() {
-        return new HashSet<>(elements.values());
+        return new ValueSetView<>(elements);
     }
 
     public Map<String, ObjectElement> getElementMap() {
@@ -38,8 +43,13 @@ public class ObjectCollection2 implements Serializable {
         return elements.get(name);
     }
 
+    /**
+     * Get all sub-collections.
+     *
+     * @return an unmodifiable view of the sub-collections, not a copy.
+     */
     public Set<ObjectCollection2> getSubCollectionSet() {
-        return new HashSet<>(subCollections.values());
+        return new ValueSetView<>(subCollections);
     }
 
     public Map<String, ObjectCollection2> getSubCollectionMap() {
@@ -50,6 +60,28 @@ public class ObjectCollection2 implements Serializable {
         return subCollections.get(name);
     }
 
+    /**
+     * Visit all elements in this collection and its sub-collections, depth first, without copying any collection.
+     *
+     * @param visitor the visitor. It may ask the cursor for the path of each element.
+     */
+    public void forEachElement(ObjectCollectionVisitor visitor) {
+        Objects.requireNonNull(visitor);
+        ObjectCollectionCursor cursor = new ObjectCollectionCursor(this);
+        while (cursor.next())
+            visitor.visit(cursor.getElement(), cursor);
+    }
+
+    // for traversals in this package, which do not modify the collection
+
+    Collection<ObjectElement> elements() {
+        return elements.values();
+    }
+
+    Collection<ObjectCollection2> subCollections() {
+        return subCollections.values();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -64,4 +96,32 @@ public class ObjectCollection2 implements Serializable {
     public int hashCode() {
         return Objects.hash(name, elements, subCollections);
     }
+
+    /**
+     * Values of a map keyed by their own names, which are distinct, so they form a set.
+     */
+    private static final class ValueSetView<V> extends AbstractSet<V> {
+        private final Map<String, V> map;
+
+        ValueSetView(Map<String, V> map) {
+            this.map = map;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return Collections.unmodifiableCollection(map.values()).iterator();
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            String name = o instanceof ObjectElement ? ((ObjectElement) o).getName()
+                    : o instanceof ObjectCollection2 ? ((ObjectCollection2) o).getName() : null;
+            return name != null && o.equals(map.get(name));
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package com.keuin.kbackupfabric.backup.incremental;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Walks all elements of an object collection tree, depth first.
+ * Elements of a collection come before those of its sub-collections.
+ * The path to the current collection is kept on an explicit stack, so collections are neither copied nor recursed into,
+ * and the relative path of an element is only built when asked for.
+ * Not thread-safe. The tree must not change while it is walked.
+ */
+public final class ObjectCollectionCursor {
+
+    private static final int INITIAL_DEPTH = 8;
+
+    private ObjectCollection2[] collections = new ObjectCollection2[INITIAL_DEPTH];
+    @SuppressWarnings("unchecked")
+    private Iterator<ObjectCollection2>[] subCollectionIterators = (Iterator<ObjectCollection2>[]) new Iterator<?>[INITIAL_DEPTH];
+    private int depth = 0; // index of the current collection on the stack, -1 when exhausted
+    private Iterator<ObjectElement> elements; // of the current collection, null after they are exhausted
+    private ObjectElement element;
+
+    public ObjectCollectionCursor(ObjectCollection2 root) {
+        collections[0] = Objects.requireNonNull(root);
+        elements = root.elements().iterator();
+    }
+
+    /**
+     * Move to the next element.
+     *
+     * @return false if all elements have been visited.
+     */
+    public boolean next() {
+        while (depth >= 0) {
+            if (elements != null) {
+                if (elements.hasNext()) {
+                    element = elements.next();
+                    return true;
+                }
+                elements = null;
+            }
+            Iterator<ObjectCollection2> subCollections = subCollectionIterators[depth];
+            if (subCollections == null)
+                subCollections = subCollectionIterators[depth] = collections[depth].subCollections().iterator();
+            if (subCollections.hasNext()) {
+                push(subCollections.next());
+            } else {
+                collections[depth] = null;
+                subCollectionIterators[depth] = null;
+                --depth;
+            }
+        }
+        element = null;
+        return false;
+    }
+
+    private void push(ObjectCollection2 collection) {
+        if (++depth == collections.length) {
+            collections = Arrays.copyOf(collections, depth * 2);
+            subCollectionIterators = Arrays.copyOf(subCollectionIterators, depth * 2);
+        }
+        collections[depth] = collection;
+        elements = collection.elements().iterator();
+    }
+
+    private void checkPosition() {
+        if (element == null)
+            throw new NoSuchElementException();
+    }
+
+    /**
+     * Get the current element.
+     *
+     * @return the element.
+     * @throws NoSuchElementException if the cursor is not on an element.
+     */
+    public ObjectElement getElement() {
+        checkPosition();
+        return element;
+    }
+
+    /**
+     * Get the collection containing the current element.
+     *
+     * @return the collection.
+     * @throws NoSuchElementException if the cursor is not on an element.
+     */
+    public ObjectCollection2 getCollection() {
+        checkPosition();
+        return collections[depth];
+    }
+
+    /**
+     * Get the depth of the collection containing the current element.
+     *
+     * @return 0 if the element is in the root collection.
+     * @throws NoSuchElementException if the cursor is not on an element.
+     */
+    public int getDepth() {
+        checkPosition();
+        return depth;
+    }
+
+    /**
+     * Get the path of the current element relative to the root collection, i.e. names of the collections
+     * below the root and the element, separated by '/'.
+     *
+     * @return the path.
+     * @throws NoSuchElementException if the cursor is not on an element.
+     */
+    public String getRelativePath() {
+        checkPosition();
+        StringBuilder path = new StringBuilder();
+        for (int i = 1; i <= depth; i++)
+            path.append(collections[i].getName()).append('/');
+        return path.append(element.getName()).toString();
+    }
+}
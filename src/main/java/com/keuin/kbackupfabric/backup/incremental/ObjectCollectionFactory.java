@@ -1,18 +1,21 @@
 package com.keuin.kbackupfabric.backup.incremental;
 
+import com.keuin.kbackupfabric.backup.incremental.cache.FileFingerprintCache;
 import com.keuin.kbackupfabric.backup.incremental.identifier.FileIdentifierProvider;
 import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
 import com.keuin.kbackupfabric.util.PrintUtil;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.function.Consumer;
-import java.util.function.Supplier;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Incremental backup is implemented as git-like file collection.
@@ -22,15 +25,28 @@ import java.util.function.Supplier;
  */
 public class ObjectCollectionFactory<T extends ObjectIdentifier> {
 
+    private static final Map<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
     private final FileIdentifierProvider<T> identifierFactory;
     private final int threads;
-    private Exception exception = null; // fail in async
     private final int minParallelProcessFileCountThreshold;
+    private final FileFingerprintCache fingerprintCache;
 
     public ObjectCollectionFactory(FileIdentifierProvider<T> identifierFactory, int threads, int minParallelProcessFileCountThreshold) {
+        this(identifierFactory, threads, minParallelProcessFileCountThreshold, null);
+    }
+
+    /**
+     * Create a factory which consults the given fingerprint cache before hashing a file.
+     *
+     * @param fingerprintCache the cache. If null, all files will be hashed.
+     */
+    public ObjectCollectionFactory(FileIdentifierProvider<T> identifierFactory, int threads, int minParallelProcessFileCountThreshold,
+                                   @Nullable FileFingerprintCache fingerprintCache) {
         this.identifierFactory = identifierFactory;
         this.threads = threads;
         this.minParallelProcessFileCountThreshold = minParallelProcessFileCountThreshold;
+        this.fingerprintCache = fingerprintCache;
         if (threads <= 0)
             throw new IllegalArgumentException("thread count must be positive.");
         if (minParallelProcessFileCountThreshold < 0)
@@ -38,136 +54,142 @@ public class ObjectCollectionFactory<T extends ObjectIdentifier> {
     }
 
     public ObjectCollection2 fromDirectory(File directory, Set<String> ignoredFiles) throws IOException {
-
-        final Map<String, ObjectCollection2> subCollections = new HashMap<>();
-
         if (!Objects.requireNonNull(directory).isDirectory())
             throw new IllegalArgumentException("given file is not a directory");
 
-        Set<File> files = new HashSet<>();
-        for (Iterator<Path> iter = Files.walk(directory.toPath(), 1).iterator(); iter.hasNext(); ) {
-            Path path = iter.next();
-            if (Files.isSameFile(path, directory.toPath()))
-                continue;
-            File file = path.toFile();
-            if (file.isDirectory()) {
-                subCollections.put(file.getName(), fromDirectory(file, ignoredFiles));
-            } else if (!ignoredFiles.contains(file.getName())) {
-                files.add(file); // add to the set to be processed
-            } else {
-                PrintUtil.info(String.format("Skipping file %s.", file.getName()));
-            }
-        }
-
-        final Set<ObjectElement> subFiles = ConcurrentHashMap.newKeySet(files.size());
+        // walk the whole tree first, so all files can be scheduled together
+        List<FileTask> tasks = new ArrayList<>();
+        DirectoryNode root = walk(directory, ignoredFiles, "", tasks);
 
-        // deal with all direct sub files
-        if (threads == 1 || files.size() < minParallelProcessFileCountThreshold) {
-            for (File file : files) {
-                subFiles.add(new ObjectElement(file.getName(), identifierFactory.fromFile(file)));
-            }
+        // hash the largest files first, so no thread is left with a huge file when others are done
+        tasks.sort(Comparator.comparingLong((FileTask task) -> task.attributes.size()).reversed());
+        if (threads == 1 || tasks.size() < minParallelProcessFileCountThreshold) {
+            for (FileTask task : tasks)
+                task.run();
         } else {
-            // use ParallelSupplier to process
-            ParallelSupplier<ObjectElement> parallelSupplier = new ParallelSupplier<>(subFiles::add, threads);
-            files.forEach(file -> parallelSupplier.addTask(() -> {
-                try {
-                    return new ObjectElement(file.getName(), identifierFactory.fromFile(file));
-                } catch (IOException e) {
-                    fail(e);
-                }
-                return null;
-            }));
-            parallelSupplier.process();
-        }
-
-        // check if any exception has been thrown in async workers.
-        synchronized (this) {
-            if (this.exception != null) {
-                if (exception instanceof IOException)
-                    throw (IOException) exception;
-                else
-                    throw new RuntimeException(exception);
-            }
+            hashInParallel(tasks);
         }
 
-        return new ObjectCollection2(directory.getName(), subFiles, subCollections);
+        return root.toCollection();
     }
 
     public ObjectCollection2 fromDirectory(File directory) throws IOException {
         return fromDirectory(directory, Collections.emptySet());
     }
 
-    private synchronized void fail(IOException e) {
-        this.exception = e;
+    private DirectoryNode walk(File directory, Set<String> ignoredFiles, String relativePath, List<FileTask> tasks) throws IOException {
+        DirectoryNode node = new DirectoryNode(directory.getName());
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+            for (Path path : stream) {
+                File file = path.toFile();
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isDirectory()) {
+                    node.subDirectories.add(walk(file, ignoredFiles, relativePath + file.getName() + "/", tasks));
+                } else if (!ignoredFiles.contains(file.getName())) {
+                    tasks.add(new FileTask(file, relativePath + file.getName(), attributes, node.elements));
+                } else {
+                    PrintUtil.info(String.format("Skipping file %s.", file.getName()));
+                }
+            }
+        }
+        return node;
     }
 
     /**
-     * A single-consumer, multiple-producer model.
-     *
-     * @param <Res> type of the resource to be produced and consumed.
+     * Hash all files in the shared pool. Every worker takes the next largest file until all files are taken.
      */
-    private static class ParallelSupplier<Res> {
+    private void hashInParallel(List<FileTask> tasks) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Callable<Void>> workers = new ArrayList<>(threads);
+        for (int i = 0; i < Math.min(threads, tasks.size()); i++) {
+            workers.add(() -> {
+                int index;
+                while (failure.get() == null && (index = next.getAndIncrement()) < tasks.size()) {
+                    try {
+                        tasks.get(index).run();
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+                return null;
+            });
+        }
+        for (Future<Void> future : getPool(threads).invokeAll(workers)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while hashing files", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        if (failure.get() != null)
+            throw failure.get();
+    }
 
-        private final Consumer<Res> consumer;
-        private final ConcurrentLinkedQueue<Supplier<Res>> taskList = new ConcurrentLinkedQueue<>();
-        private final int threads;
-        private final Set<ParallelWorker<Res>> workers = new HashSet<>();
+    /**
+     * Get the shared hashing pool with given parallelism. Idle workers of the pool exit after a while.
+     */
+    private static ForkJoinPool getPool(int parallelism) {
+        return pools.computeIfAbsent(parallelism, p -> new ForkJoinPool(p, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("KBackup-Hasher-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false));
+    }
 
-        public ParallelSupplier(Consumer<Res> consumer, int threads) {
-            this.consumer = consumer;
-            this.threads = threads;
+    /**
+     * Get the identifier of a file, reusing the cached one if the file has not changed.
+     */
+    private ObjectIdentifier identify(File file, String relativePath, BasicFileAttributes attributes) throws IOException {
+        if (fingerprintCache == null)
+            return identifierFactory.fromFile(file);
+        ObjectIdentifier identifier = fingerprintCache.lookup(relativePath, attributes);
+        if (identifier == null) {
+            identifier = identifierFactory.fromFile(file);
+            fingerprintCache.put(relativePath, attributes, identifier);
         }
+        return identifier;
+    }
 
-        public void addTask(Supplier<Res> valueSupplier) {
-            this.taskList.add(valueSupplier);
-        }
+    /**
+     * A directory found in the walk, its elements are filled when its files are hashed.
+     */
+    private static class DirectoryNode {
+        private final String name;
+        private final List<DirectoryNode> subDirectories = new ArrayList<>();
+        private final Set<ObjectElement> elements = ConcurrentHashMap.newKeySet();
 
-        public void process() {
-            workers.clear();
-            for (int i = 0; i < threads; i++) {
-                ParallelWorker<Res> worker = new ParallelWorker<Res>(taskList, consumer, i);
-                workers.add(worker);
-                worker.start();
-            }
-            join(); // wait for all workers to exit before returning
+        DirectoryNode(String name) {
+            this.name = name;
         }
 
-        private void join() {
-            while (true) {
-                int aliveCount = 0;
-                for (ParallelWorker<Res> worker : workers) {
-                    try {
-                        if (worker.isAlive()) {
-                            ++aliveCount;
-                            worker.join();
-                        }
-                    } catch (InterruptedException ignored) {
-                    }
-                }
-                if (aliveCount == 0)
-                    return;
-            }
+        ObjectCollection2 toCollection() {
+            Map<String, ObjectCollection2> subCollections = new HashMap<>();
+            for (DirectoryNode subDirectory : subDirectories)
+                subCollections.put(subDirectory.name, subDirectory.toCollection());
+            return new ObjectCollection2(name, elements, subCollections);
         }
+    }
 
-        private static class ParallelWorker<V> extends Thread {
-
-            private final Queue<Supplier<V>> taskProvider;
-            private final Consumer<V> consumer;
-
-            public ParallelWorker(Queue<Supplier<V>> taskProvider, Consumer<V> consumer, int workerId) {
-                super("PutterWorker#" + workerId);
-                this.taskProvider = taskProvider;
-                this.consumer = consumer;
-            }
+    private class FileTask {
+        private final File file;
+        private final String relativePath;
+        private final BasicFileAttributes attributes;
+        private final Set<ObjectElement> destination;
+
+        FileTask(File file, String relativePath, BasicFileAttributes attributes, Set<ObjectElement> destination) {
+            this.file = file;
+            this.relativePath = relativePath;
+            this.attributes = attributes;
+            this.destination = destination;
+        }
 
-            @Override
-            public void run() {
-                Supplier<V> supplier;
-                while ((supplier = taskProvider.poll()) != null) {
-                    // here we do not let the consumer accept null productions
-                    Optional.ofNullable(supplier.get()).ifPresent(consumer);
-                }
-            }
+        void run() throws IOException {
+            destination.add(new ObjectElement(file.getName(), identify(file, relativePath, attributes)));
         }
     }
 
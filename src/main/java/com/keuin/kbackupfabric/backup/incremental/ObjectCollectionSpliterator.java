@@ -0,0 +1,109 @@
+package com.keuin.kbackupfabric.backup.incremental;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A spliterator over all elements of an object collection tree, so whole-tree operations can run in parallel streams.
+ * It is split by handing over whole sub-collections. If only one is left, it is opened: its elements stay here,
+ * and its sub-collections become splittable. The size is unknown, so it is split until single directories remain.
+ * The tree must not change while it is walked.
+ */
+public final class ObjectCollectionSpliterator implements Spliterator<ObjectElement> {
+
+    // walked with all their sub-collections
+    private final ArrayDeque<ObjectCollection2> subtrees;
+    // opened by splitting, only their own elements are left
+    private final ArrayDeque<ObjectCollection2> openedCollections;
+    private ObjectCollectionCursor cursor;
+    private Iterator<ObjectElement> elements;
+
+    public ObjectCollectionSpliterator(ObjectCollection2 root) {
+        this(new ArrayDeque<>(), new ArrayDeque<>());
+        subtrees.add(Objects.requireNonNull(root));
+    }
+
+    private ObjectCollectionSpliterator(ArrayDeque<ObjectCollection2> subtrees,
+                                        ArrayDeque<ObjectCollection2> openedCollections) {
+        this.subtrees = subtrees;
+        this.openedCollections = openedCollections;
+    }
+
+    /**
+     * Stream all elements of a tree.
+     *
+     * @param root     the root collection.
+     * @param parallel whether the stream is parallel.
+     * @return the stream.
+     */
+    public static Stream<ObjectElement> stream(ObjectCollection2 root, boolean parallel) {
+        return StreamSupport.stream(new ObjectCollectionSpliterator(root), parallel);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ObjectElement> action) {
+        Objects.requireNonNull(action);
+        while (true) {
+            if (cursor != null) {
+                if (cursor.next()) {
+                    action.accept(cursor.getElement());
+                    return true;
+                }
+                cursor = null;
+            }
+            if (elements != null) {
+                if (elements.hasNext()) {
+                    action.accept(elements.next());
+                    return true;
+                }
+                elements = null;
+            }
+            if (!openedCollections.isEmpty())
+                elements = openedCollections.removeFirst().elements().iterator();
+            else if (!subtrees.isEmpty())
+                cursor = new ObjectCollectionCursor(subtrees.removeFirst());
+            else
+                return false;
+        }
+    }
+
+    @Override
+    public Spliterator<ObjectElement> trySplit() {
+        while (subtrees.size() == 1 && !subtrees.getFirst().subCollections().isEmpty()) {
+            ObjectCollection2 collection = subtrees.removeFirst();
+            if (!collection.elements().isEmpty())
+                openedCollections.add(collection);
+            subtrees.addAll(collection.subCollections());
+        }
+        if (subtrees.size() >= 2)
+            return new ObjectCollectionSpliterator(take(subtrees, subtrees.size() / 2), new ArrayDeque<>());
+        // the last subtree cannot be opened any more, so hand over the opened collections
+        int openedCount = subtrees.isEmpty() ? openedCollections.size() / 2 : openedCollections.size();
+        if (openedCount > 0)
+            return new ObjectCollectionSpliterator(new ArrayDeque<>(), take(openedCollections, openedCount));
+        return null;
+    }
+
+    private static ArrayDeque<ObjectCollection2> take(ArrayDeque<ObjectCollection2> queue, int count) {
+        ArrayDeque<ObjectCollection2> taken = new ArrayDeque<>(count);
+        for (int i = 0; i < count; i++)
+            taken.add(queue.removeLast());
+        return taken;
+    }
+
+    @Override
+    public long estimateSize() {
+        return cursor == null && elements == null && subtrees.isEmpty() && openedCollections.isEmpty()
+                ? 0 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL | IMMUTABLE;
+    }
+}
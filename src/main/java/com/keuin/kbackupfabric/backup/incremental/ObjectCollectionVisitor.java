@@ -0,0 +1,15 @@
+package com.keuin.kbackupfabric.backup.incremental;
+
+/**
+ * Visits elements of an object collection tree, see {@link ObjectCollection2#forEachElement(ObjectCollectionVisitor)}.
+ */
+@FunctionalInterface
+public interface ObjectCollectionVisitor {
+    /**
+     * Visit an element.
+     *
+     * @param element the element.
+     * @param cursor  position of the element in the tree. Only valid during this call.
+     */
+    void visit(ObjectElement element, ObjectCollectionCursor cursor);
+}
@@ -0,0 +1,159 @@
+package com.keuin.kbackupfabric.backup.incremental.cache;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A persistent cache remembering the identifier of every file hashed in the previous backup,
+ * keyed by the relative path and the fingerprint (size, modification time and file key) of the file.
+ * If the fingerprint of a file does not change, the file is considered unchanged and will not be read again.
+ * Thread-safe.
+ */
+public class FileFingerprintCache {
+
+    private static final Logger LOGGER = Logger.getLogger(FileFingerprintCache.class.getName());
+
+    /**
+     * Files modified shortly before they were read may be modified again without changing the mtime.
+     * Anything cached from such files is not trusted (same as the "racy git" problem).
+     */
+    public static final long RACY_WINDOW_MILLIS = 2000;
+
+    private final Map<String, Fingerprint> cached;
+    private final Map<String, Fingerprint> updated = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private FileFingerprintCache(Map<String, Fingerprint> cached) {
+        this.cached = cached;
+    }
+
+    /**
+     * Create an empty cache. All lookups will miss.
+     *
+     * @return the cache.
+     */
+    public static FileFingerprintCache empty() {
+        return new FileFingerprintCache(new HashMap<>());
+    }
+
+    /**
+     * Load the cache from disk. If the file does not exist or is broken, an empty cache is returned.
+     *
+     * @param cacheFile the cache file.
+     * @return the cache.
+     */
+    @SuppressWarnings("unchecked")
+    public static FileFingerprintCache load(@NotNull File cacheFile) {
+        Objects.requireNonNull(cacheFile);
+        if (!cacheFile.isFile())
+            return empty();
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            return new FileFingerprintCache((HashMap<String, Fingerprint>) ois.readObject());
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            LOGGER.warning("Failed to load fingerprint cache, all files will be hashed: " + e);
+            return empty();
+        }
+    }
+
+    /**
+     * Get the cached identifier of the file, if its fingerprint has not changed since it was hashed.
+     *
+     * @param relativePath path of the file, relative to the level directory.
+     * @param attributes   current attributes of the file.
+     * @return the identifier. If the file is not cached or has been changed, return null.
+     */
+    public @Nullable
+    ObjectIdentifier lookup(@NotNull String relativePath, @NotNull BasicFileAttributes attributes) {
+        Fingerprint fingerprint = cached.get(relativePath);
+        if (fingerprint == null || !fingerprint.matches(attributes)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        updated.put(relativePath, fingerprint);
+        return fingerprint.identifier;
+    }
+
+    /**
+     * Record the identifier of a freshly hashed file.
+     *
+     * @param relativePath path of the file, relative to the level directory.
+     * @param attributes   attributes of the file, read before hashing.
+     * @param identifier   the identifier.
+     */
+    public void put(@NotNull String relativePath, @NotNull BasicFileAttributes attributes, @NotNull ObjectIdentifier identifier) {
+        updated.put(relativePath, new Fingerprint(attributes, identifier, System.currentTimeMillis()));
+    }
+
+    /**
+     * Save all files looked up or put in this session to disk. Files not touched in this session are dropped.
+     *
+     * @param cacheFile the cache file.
+     * @throws IOException when an I/O error occurs.
+     */
+    public void save(@NotNull File cacheFile) throws IOException {
+        Objects.requireNonNull(cacheFile);
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            oos.writeObject(new HashMap<>(updated));
+        }
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Get how many files were not read thanks to the cache.
+     *
+     * @return the hit count.
+     */
+    public int getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get how many files had to be hashed.
+     *
+     * @return the miss count.
+     */
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    private static class Fingerprint implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final long size;
+        private final long modifiedNanos;
+        private final String fileKey;
+        private final ObjectIdentifier identifier;
+        private final long hashedMillis;
+
+        Fingerprint(BasicFileAttributes attributes, ObjectIdentifier identifier, long hashedMillis) {
+            this.size = attributes.size();
+            this.modifiedNanos = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            this.fileKey = Objects.toString(attributes.fileKey(), null);
+            this.identifier = Objects.requireNonNull(identifier);
+            this.hashedMillis = hashedMillis;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size()
+                    && modifiedNanos == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && Objects.equals(fileKey, Objects.toString(attributes.fileKey(), null))
+                    && TimeUnit.NANOSECONDS.toMillis(modifiedNanos) < hashedMillis - RACY_WINDOW_MILLIS;
+        }
+    }
+}
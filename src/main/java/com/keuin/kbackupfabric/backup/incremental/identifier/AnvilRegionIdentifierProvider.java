@@ -0,0 +1,113 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Split Anvil region files (`.mca`) into chunks, so that modifying a single chunk of a region
+ * only adds that chunk to the base, instead of the whole region file.
+ * The region is split into the 8 KiB header, every chunk (with its sector padding)
+ * and unused gaps between chunks, so the file can be restored byte by byte.
+ * Other files are identified by the delegated provider.
+ */
+public class AnvilRegionIdentifierProvider implements FileIdentifierProvider<ObjectIdentifier> {
+
+    private static final String marker = "RC";
+    private static final int SECTOR_BYTES = 4096;
+    private static final int HEADER_BYTES = SECTOR_BYTES * 2; // location table and timestamp table
+    private static final int CHUNKS_PER_REGION = 1024;
+
+    private final FileIdentifierProvider<? extends ObjectIdentifier> fallbackProvider;
+    private final IdentifierType chunkIdentifierType;
+
+    public AnvilRegionIdentifierProvider(FileIdentifierProvider<? extends ObjectIdentifier> fallbackProvider) {
+        this(fallbackProvider, IdentifierType.SHA256);
+    }
+
+    /**
+     * Create a provider.
+     *
+     * @param fallbackProvider    provider used for other files.
+     * @param chunkIdentifierType the hash function identifying chunks.
+     */
+    public AnvilRegionIdentifierProvider(FileIdentifierProvider<? extends ObjectIdentifier> fallbackProvider,
+                                         IdentifierType chunkIdentifierType) {
+        this.fallbackProvider = Objects.requireNonNull(fallbackProvider);
+        this.chunkIdentifierType = Objects.requireNonNull(chunkIdentifierType);
+    }
+
+    public static boolean isRegionFile(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".mca") || name.endsWith(".mcr");
+    }
+
+    @Override
+    public ObjectIdentifier fromFile(File file) throws IOException {
+        if (!isRegionFile(file))
+            return fallbackProvider.fromFile(file);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            List<long[]> segments = (fileSize >= HEADER_BYTES) ? getSegments(channel, fileSize) : null;
+            if (segments == null) // not a valid region file, store it as a whole
+                return fallbackProvider.fromFile(file);
+            List<ObjectIdentifier> chunks = new ArrayList<>(segments.size());
+            List<Long> lengths = new ArrayList<>(segments.size());
+            for (long[] segment : segments) {
+                chunks.add(chunkIdentifierType.fromFileRange(channel, segment[0], segment[1]));
+                lengths.add(segment[1]);
+            }
+            if (channel.size() != fileSize)
+                throw new IOException("Region file " + file.getName() + " was modified while hashing");
+            return new ChunkListIdentifier(marker, chunks, lengths);
+        }
+    }
+
+    /**
+     * Split the region file into consecutive segments (position, length) covering the whole file.
+     *
+     * @return the segments. If the header is malformed, return null.
+     */
+    private static List<long[]> getSegments(FileChannel channel, long fileSize) throws IOException {
+        ByteBuffer locations = ByteBuffer.allocate(SECTOR_BYTES);
+        while (locations.hasRemaining()) {
+            if (channel.read(locations, locations.position()) < 0)
+                return null;
+        }
+        locations.flip();
+
+        // (start, end) of all present chunks
+        List<long[]> chunkRanges = new ArrayList<>();
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            int location = locations.getInt();
+            long sectorOffset = location >>> 8;
+            long sectorCount = location & 0xFF;
+            if (sectorOffset == 0 && sectorCount == 0)
+                continue; // chunk is not generated
+            long start = sectorOffset * SECTOR_BYTES;
+            long end = Math.min((sectorOffset + sectorCount) * SECTOR_BYTES, fileSize);
+            if (start < HEADER_BYTES || start >= end)
+                return null;
+            chunkRanges.add(new long[]{start, end});
+        }
+        chunkRanges.sort(Comparator.comparingLong(r -> r[0]));
+
+        List<long[]> segments = new ArrayList<>(chunkRanges.size() * 2 + 2);
+        segments.add(new long[]{0, HEADER_BYTES});
+        long position = HEADER_BYTES;
+        for (long[] range : chunkRanges) {
+            if (range[0] < position)
+                return null; // overlapping chunks
+            if (range[0] > position)
+                segments.add(new long[]{position, range[0] - position}); // unused sectors
+            segments.add(new long[]{range[0], range[1] - range[0]});
+            position = range[1];
+        }
+        if (position < fileSize)
+            segments.add(new long[]{position, fileSize - position});
+        return segments;
+    }
+}
@@ -0,0 +1,33 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifier based on BLAKE3.
+ * Immutable.
+ */
+public class Blake3Identifier extends SingleHashIdentifier {
+
+    private static final long serialVersionUID = 1L;
+
+    public static Blake3Identifier fromFile(File file) throws IOException {
+        return (Blake3Identifier) IdentifierType.BLAKE3.fromFile(file);
+    }
+
+    public static FileIdentifierProvider<Blake3Identifier> getFactory() {
+        return Blake3Identifier::fromFile;
+    }
+
+    protected Blake3Identifier(byte[] hash) {
+        super(hash, IdentifierType.BLAKE3.getMarker());
+        if (hash.length != IdentifierType.BLAKE3.getHashLength()) {
+            throw new IllegalStateException(String.format("BLAKE3 must be %d bytes", IdentifierType.BLAKE3.getHashLength()));
+        }
+    }
+
+    @Override
+    protected byte[] hash(File file) throws IOException {
+        return IdentifierType.BLAKE3.hash(file);
+    }
+}
@@ -0,0 +1,135 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import com.keuin.kbackupfabric.util.BytesUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Identifier of a file which is stored in the base as an ordered list of chunks.
+ * Every chunk is a content-addressed object, so chunks shared between versions of a file are stored only once.
+ * Concatenating all chunks in order gives the original file.
+ * Immutable.
+ */
+public class ChunkListIdentifier implements ObjectIdentifier {
+
+    private static final long serialVersionUID = -2651382938496447017L;
+    private final String type;
+    private final ObjectIdentifier[] chunks;
+    private final long[] chunkLengths;
+
+    public ChunkListIdentifier(String type, List<? extends ObjectIdentifier> chunks, List<Long> chunkLengths) {
+        Objects.requireNonNull(type);
+        Objects.requireNonNull(chunks);
+        Objects.requireNonNull(chunkLengths);
+        if (chunks.size() != chunkLengths.size())
+            throw new IllegalArgumentException("chunk count and length count mismatch");
+        this.type = type;
+        this.chunks = new ObjectIdentifier[chunks.size()];
+        this.chunkLengths = new long[chunkLengths.size()];
+        for (int i = 0; i < this.chunks.length; i++) {
+            if (chunks.get(i) instanceof ChunkListIdentifier)
+                throw new IllegalArgumentException("chunk lists cannot be nested");
+            this.chunks[i] = Objects.requireNonNull(chunks.get(i));
+            this.chunkLengths[i] = chunkLengths.get(i);
+        }
+    }
+
+    /**
+     * Get the type of the chunk list, which tells how the file was split.
+     *
+     * @return the type marker.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Get all chunks, in file order.
+     *
+     * @return the chunk identifiers.
+     */
+    public List<ObjectIdentifier> getChunks() {
+        return Collections.unmodifiableList(Arrays.asList(chunks));
+    }
+
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    public ObjectIdentifier getChunk(int index) {
+        return chunks[index];
+    }
+
+    public long getChunkLength(int index) {
+        return chunkLengths[index];
+    }
+
+    /**
+     * Get the length of the original file.
+     *
+     * @return the length in bytes.
+     */
+    public long getTotalLength() {
+        long length = 0;
+        for (long chunkLength : chunkLengths)
+            length += chunkLength;
+        return length;
+    }
+
+    /**
+     * Get the objects which must be present in the base to restore the given identifier.
+     *
+     * @param identifier the identifier of a file.
+     * @return the chunks if the identifier is a chunk list, otherwise the identifier itself.
+     */
+    public static List<ObjectIdentifier> getStoredObjects(ObjectIdentifier identifier) {
+        if (identifier instanceof ChunkListIdentifier)
+            return ((ChunkListIdentifier) identifier).getChunks();
+        return Collections.singletonList(identifier);
+    }
+
+    @Override
+    public String getIdentification() {
+        // the identification is derived from the chunk list, it does not name any object in the base
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int i = 0; i < chunks.length; i++) {
+                digest.update(chunks[i].getIdentification().getBytes(StandardCharsets.UTF_8));
+                digest.update(Long.toString(chunkLengths[i]).getBytes(StandardCharsets.UTF_8));
+            }
+            return type + "-" + BytesUtil.bytesToHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ChunkListIdentifier that = (ChunkListIdentifier) o;
+        return type.equals(that.type) &&
+                Arrays.equals(chunks, that.chunks) &&
+                Arrays.equals(chunkLengths, that.chunkLengths);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(type);
+        result = 31 * result + Arrays.hashCode(chunks);
+        result = 31 * result + Arrays.hashCode(chunkLengths);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkListIdentifier{" +
+                "type='" + type + '\'' +
+                ", chunks=" + chunks.length +
+                ", length=" + getTotalLength() +
+                '}';
+    }
+}
@@ -0,0 +1,91 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import java.util.Random;
+
+/**
+ * FastCDC content-defined chunker, using a Gear rolling hash and normalized chunking.
+ * Chunk boundaries depend only on the nearby content, so inserting or removing bytes
+ * in a large file only changes the chunks around the modification.
+ * Immutable and thread-safe.
+ */
+public class ContentDefinedChunker {
+
+    // DO NOT modify the seed: chunk boundaries (thus deduplication with existing backups) depend on it.
+    private static final long GEAR_SEED = 0x4B4261636B7570L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final int minSize;
+    private final int averageSize;
+    private final int maxSize;
+    private final long strictMask; // used before reaching the average size, makes small chunks unlikely
+    private final long looseMask; // used after reaching the average size, makes large chunks unlikely
+
+    /**
+     * Create a chunker.
+     *
+     * @param averageSize the expected average chunk size. Must be a power of 2, at least 256 bytes.
+     *                    The minimal chunk size is a quarter of it, and the maximal chunk size is 8 times of it.
+     */
+    public ContentDefinedChunker(int averageSize) {
+        if (averageSize < 256 || Integer.bitCount(averageSize) != 1 || averageSize > (1 << 26))
+            throw new IllegalArgumentException("average chunk size must be a power of 2 in range [256, 64M]");
+        int bits = Integer.numberOfTrailingZeros(averageSize);
+        this.averageSize = averageSize;
+        this.minSize = averageSize / 4;
+        this.maxSize = averageSize * 8;
+        // the gear hash shifts left, so the highest bits depend on the most bytes
+        this.strictMask = highBitsMask(bits + 2);
+        this.looseMask = highBitsMask(bits - 2);
+    }
+
+    private static long highBitsMask(int bits) {
+        return ((1L << bits) - 1) << (64 - bits);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getAverageSize() {
+        return averageSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Find the end of the chunk starting at the given offset.
+     * If the data is shorter than the maximal chunk size, it must be the last piece of the file.
+     *
+     * @param data   the data.
+     * @param offset start of the chunk.
+     * @param length available bytes from the offset.
+     * @return length of the chunk.
+     */
+    public int nextChunkLength(byte[] data, int offset, int length) {
+        if (length <= minSize)
+            return length;
+        int limit = Math.min(length, maxSize);
+        int normalLimit = Math.min(limit, averageSize);
+        long fingerprint = 0;
+        int i = minSize;
+        for (; i < normalLimit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((fingerprint & strictMask) == 0)
+                return i + 1;
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((fingerprint & looseMask) == 0)
+                return i + 1;
+        }
+        return limit;
+    }
+}
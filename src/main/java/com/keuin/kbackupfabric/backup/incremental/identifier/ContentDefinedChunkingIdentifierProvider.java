@@ -0,0 +1,85 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Split large files into content-defined chunks, so small modifications to a large file
+ * only add the modified chunks to the base.
+ * Files smaller than the threshold are identified by the delegated provider.
+ */
+public class ContentDefinedChunkingIdentifierProvider implements FileIdentifierProvider<ObjectIdentifier> {
+
+    private static final String marker = "CD";
+
+    private final FileIdentifierProvider<? extends ObjectIdentifier> fallbackProvider;
+    private final ContentDefinedChunker chunker;
+    private final long minFileSize;
+    private final IdentifierType chunkIdentifierType;
+    // reused between files hashed by the same thread
+    private final ThreadLocal<byte[]> buffers;
+
+    public ContentDefinedChunkingIdentifierProvider(FileIdentifierProvider<? extends ObjectIdentifier> fallbackProvider,
+                                                    ContentDefinedChunker chunker, long minFileSize) {
+        this(fallbackProvider, chunker, minFileSize, IdentifierType.SHA256);
+    }
+
+    /**
+     * Create a provider.
+     *
+     * @param fallbackProvider    provider used for small files.
+     * @param chunker             the chunker.
+     * @param minFileSize         files smaller than this are not chunked.
+     * @param chunkIdentifierType the hash function identifying chunks.
+     */
+    public ContentDefinedChunkingIdentifierProvider(FileIdentifierProvider<? extends ObjectIdentifier> fallbackProvider,
+                                                    ContentDefinedChunker chunker, long minFileSize,
+                                                    IdentifierType chunkIdentifierType) {
+        this.fallbackProvider = Objects.requireNonNull(fallbackProvider);
+        this.chunker = Objects.requireNonNull(chunker);
+        this.minFileSize = minFileSize;
+        this.chunkIdentifierType = Objects.requireNonNull(chunkIdentifierType);
+        this.buffers = ThreadLocal.withInitial(() -> new byte[chunker.getMaxSize() * 2]);
+    }
+
+    @Override
+    public ObjectIdentifier fromFile(File file) throws IOException {
+        if (file.length() < minFileSize)
+            return fallbackProvider.fromFile(file);
+
+        List<ObjectIdentifier> chunks = new ArrayList<>();
+        List<Long> lengths = new ArrayList<>();
+        HashingEngine engine = HashingEngine.getInstance();
+
+        // the buffer always holds at least one maximal chunk, unless the file ends
+        final byte[] buffer = buffers.get();
+        int start = 0, end = 0;
+        boolean eof = false;
+        try (InputStream inputStream = new FileInputStream(file)) {
+            while (true) {
+                if (!eof && end - start < chunker.getMaxSize()) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int readLength;
+                    while (end < buffer.length && (readLength = inputStream.read(buffer, end, buffer.length - end)) >= 0)
+                        end += readLength;
+                    eof = end < buffer.length;
+                }
+                if (start == end)
+                    break;
+                int chunkLength = chunker.nextChunkLength(buffer, start, end - start);
+                byte[] digest = engine.hashBytes(chunkIdentifierType, buffer, start, chunkLength);
+                chunks.add(chunkIdentifierType.fromDigest(digest, chunkLength));
+                lengths.add((long) chunkLength);
+                start += chunkLength;
+            }
+        }
+        return new ChunkListIdentifier(marker, chunks, lengths);
+    }
+}
@@ -0,0 +1,258 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import com.keuin.kbackupfabric.util.hash.StreamingHasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hash files without producing garbage for every file.
+ * Each thread owns a reusable direct buffer and one hasher for each identifier type.
+ * Files are read through {@link FileChannel}, large files are memory-mapped.
+ * Thread-safe.
+ */
+public class HashingEngine {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    // a mapped file cannot be modified on Windows until the mapping is garbage collected, so we don't map there
+    private static final long DEFAULT_MAP_THRESHOLD =
+            System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows") ? -1 : 64L * 1024 * 1024;
+    private static final long MAP_WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private static final HashingEngine INSTANCE = new HashingEngine(DEFAULT_BUFFER_SIZE, DEFAULT_MAP_THRESHOLD);
+
+    private final int bufferSize;
+    private final long mapThreshold;
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+
+    private final LongAdder hashedFiles = new LongAdder();
+    private final LongAdder hashedBytes = new LongAdder();
+    private final LongAdder mappedFiles = new LongAdder();
+    private final LongAdder bufferAllocations = new LongAdder();
+    private final LongAdder hasherAllocations = new LongAdder();
+
+    /**
+     * Create an engine.
+     *
+     * @param bufferSize   size of the read buffer of each thread.
+     * @param mapThreshold files not smaller than this are memory-mapped. If negative, files are never mapped.
+     */
+    public HashingEngine(int bufferSize, long mapThreshold) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("buffer size must be positive");
+        this.bufferSize = bufferSize;
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * Get the engine shared by all identifiers.
+     *
+     * @return the engine.
+     */
+    public static HashingEngine getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Hash a file.
+     *
+     * @param type the hash function.
+     * @param file the file.
+     * @return the hash, as stored in the identifier.
+     * @throws IOException when an I/O error occurs.
+     */
+    public byte[] hash(IdentifierType type, File file) throws IOException {
+        Worker worker = workers.get();
+        StreamingHasher hasher = worker.getHasher(type);
+        long length;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (mapThreshold >= 0 && size >= mapThreshold) {
+                hashMapped(channel, size, hasher);
+                mappedFiles.increment();
+                length = size;
+            } else {
+                length = 0;
+                ByteBuffer buffer = worker.buffer;
+                while (true) {
+                    buffer.clear();
+                    int readLength = channel.read(buffer);
+                    if (readLength < 0)
+                        break;
+                    buffer.flip();
+                    hasher.update(buffer);
+                    length += readLength;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            hasher.reset();
+            throw e;
+        }
+        hashedFiles.increment();
+        hashedBytes.add(length);
+        return type.toIdentifierHash(hasher.digest(), length);
+    }
+
+    /**
+     * Hash a file and copy it to another file in the same pass, so the file is read only once.
+     *
+     * @param type        the hash function.
+     * @param file        the file.
+     * @param destination where the bytes are written to, from its current position.
+     * @return the hash, as stored in the identifier.
+     * @throws IOException when an I/O error occurs.
+     */
+    public byte[] hashAndCopy(IdentifierType type, File file, WritableByteChannel destination) throws IOException {
+        Worker worker = workers.get();
+        StreamingHasher hasher = worker.getHasher(type);
+        ByteBuffer buffer = worker.buffer;
+        long length = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                int readLength = channel.read(buffer);
+                if (readLength < 0)
+                    break;
+                buffer.flip();
+                hasher.update(buffer);
+                buffer.rewind();
+                while (buffer.hasRemaining())
+                    destination.write(buffer);
+                length += readLength;
+            }
+        } catch (IOException | RuntimeException e) {
+            hasher.reset();
+            throw e;
+        }
+        hashedFiles.increment();
+        hashedBytes.add(length);
+        return type.toIdentifierHash(hasher.digest(), length);
+    }
+
+    /**
+     * Hash a range of an opened file.
+     *
+     * @param type     the hash function.
+     * @param channel  the file.
+     * @param position start position of the range.
+     * @param length   length of the range.
+     * @return output of the hash function.
+     * @throws IOException when an I/O error occurs, or the file is shorter than expected.
+     */
+    public byte[] hashRange(IdentifierType type, FileChannel channel, long position, long length) throws IOException {
+        Worker worker = workers.get();
+        StreamingHasher hasher = worker.getHasher(type);
+        ByteBuffer buffer = worker.buffer;
+        long remaining = length;
+        try {
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int readLength = channel.read(buffer, position + length - remaining);
+                if (readLength < 0)
+                    throw new IOException("Unexpected end of file");
+                buffer.flip();
+                hasher.update(buffer);
+                remaining -= readLength;
+            }
+        } catch (IOException | RuntimeException e) {
+            hasher.reset();
+            throw e;
+        }
+        hashedBytes.add(length);
+        return hasher.digest();
+    }
+
+    /**
+     * Hash bytes in memory.
+     *
+     * @param type   the hash function.
+     * @param input  the bytes.
+     * @param offset start offset in the array.
+     * @param length number of bytes.
+     * @return output of the hash function.
+     */
+    public byte[] hashBytes(IdentifierType type, byte[] input, int offset, int length) {
+        StreamingHasher hasher = workers.get().getHasher(type);
+        hasher.update(input, offset, length);
+        hashedBytes.add(length);
+        return hasher.digest();
+    }
+
+    private static void hashMapped(FileChannel channel, long size, StreamingHasher hasher) throws IOException {
+        try {
+            for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_WINDOW_SIZE, size - position));
+                hasher.update(mapped);
+            }
+        } catch (InternalError e) {
+            // the JVM reports a truncated mapped file as an internal error
+            throw new IOException("File was truncated while hashing", e);
+        }
+    }
+
+    /**
+     * Get the number of files hashed by this engine.
+     */
+    public long getHashedFileCount() {
+        return hashedFiles.sum();
+    }
+
+    /**
+     * Get the number of bytes hashed by this engine, including file ranges.
+     */
+    public long getHashedBytes() {
+        return hashedBytes.sum();
+    }
+
+    /**
+     * Get the number of files hashed by mapping them into memory.
+     */
+    public long getMappedFileCount() {
+        return mappedFiles.sum();
+    }
+
+    /**
+     * Get the number of read buffers ever allocated. This equals the number of threads ever used.
+     */
+    public long getBufferAllocationCount() {
+        return bufferAllocations.sum();
+    }
+
+    /**
+     * Get the number of hashers ever allocated. This is at most one for each thread and identifier type.
+     */
+    public long getHasherAllocationCount() {
+        return hasherAllocations.sum();
+    }
+
+    private class Worker {
+        private final ByteBuffer buffer;
+        private final Map<IdentifierType, StreamingHasher> hashers = new EnumMap<>(IdentifierType.class);
+
+        Worker() {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            bufferAllocations.increment();
+        }
+
+        StreamingHasher getHasher(IdentifierType type) {
+            StreamingHasher hasher = hashers.get(type);
+            if (hasher == null) {
+                hasher = type.newHasher();
+                hasherAllocations.increment();
+                hashers.put(type, hasher);
+            }
+            return hasher;
+        }
+    }
+}
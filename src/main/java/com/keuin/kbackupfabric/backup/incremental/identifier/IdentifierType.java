@@ -0,0 +1,212 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import com.keuin.kbackupfabric.util.BytesUtil;
+import com.keuin.kbackupfabric.util.hash.Blake3Hasher;
+import com.keuin.kbackupfabric.util.hash.MessageDigestHasher;
+import com.keuin.kbackupfabric.util.hash.StreamingHasher;
+import com.keuin.kbackupfabric.util.hash.Xxh3Hasher128;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Hash functions which may be used to identify objects in a storage base.
+ * Each type has its own marker, so a base may contain objects of mixed types.
+ */
+public enum IdentifierType {
+
+    /**
+     * SHA-256. The only type supported by older versions.
+     */
+    SHA256("S2", 32) {
+        @Override
+        public StreamingHasher newHasher() {
+            return MessageDigestHasher.getInstance("SHA-256");
+        }
+
+        @Override
+        SingleHashIdentifier create(byte[] hash) {
+            return new Sha256Identifier(hash);
+        }
+    },
+
+    /**
+     * BLAKE3. A cryptographic hash function, implemented in pure Java here.
+     * It is slower than SHA-256 on JVMs which use the SHA extensions of the CPU, and only helps on CPUs without them.
+     */
+    BLAKE3("B3", 32) {
+        @Override
+        public StreamingHasher newHasher() {
+            return new Blake3Hasher();
+        }
+
+        @Override
+        SingleHashIdentifier create(byte[] hash) {
+            return new Blake3Identifier(hash);
+        }
+    },
+
+    /**
+     * 128-bit XXH3 followed by the 64-bit length. Not cryptographic, only use it if the files are trusted.
+     */
+    XXH3_128("X3", 16 + 8) {
+        @Override
+        public StreamingHasher newHasher() {
+            return new Xxh3Hasher128();
+        }
+
+        @Override
+        byte[] toIdentifierHash(byte[] digest, long length) {
+            byte[] hash = Arrays.copyOf(digest, getHashLength());
+            ByteBuffer.wrap(hash, digest.length, 8).putLong(length);
+            return hash;
+        }
+
+        @Override
+        SingleHashIdentifier create(byte[] hash) {
+            return new Xxh3Identifier(hash);
+        }
+    };
+
+    private final String marker;
+    private final int hashLength;
+
+    IdentifierType(String marker, int hashLength) {
+        this.marker = marker;
+        this.hashLength = hashLength;
+    }
+
+    /**
+     * Find the type with given marker.
+     *
+     * @param marker the marker.
+     * @return the type. If no type matches, return null.
+     */
+    public static IdentifierType fromMarker(String marker) {
+        for (IdentifierType type : values()) {
+            if (type.marker.equals(marker))
+                return type;
+        }
+        return null;
+    }
+
+    public String getMarker() {
+        return marker;
+    }
+
+    /**
+     * Get the length of the hash in identifiers of this type.
+     *
+     * @return the length in bytes.
+     */
+    public int getHashLength() {
+        return hashLength;
+    }
+
+    /**
+     * Create a new instance of the underlying hash function.
+     *
+     * @return the hasher.
+     */
+    public abstract StreamingHasher newHasher();
+
+    /**
+     * Build the hash stored in the identifier.
+     *
+     * @param digest output of the hash function.
+     * @param length length of the hashed data.
+     * @return the hash.
+     */
+    byte[] toIdentifierHash(byte[] digest, long length) {
+        return digest;
+    }
+
+    abstract SingleHashIdentifier create(byte[] hash);
+
+    /**
+     * Hash a file and copy it to another file in the same pass.
+     *
+     * @param file        the file.
+     * @param destination where the bytes are written to.
+     * @return identifier of the file.
+     * @throws IOException when an I/O error occurs.
+     */
+    public SingleHashIdentifier fromFileCopying(File file, WritableByteChannel destination) throws IOException {
+        return create(HashingEngine.getInstance().hashAndCopy(this, file, destination));
+    }
+
+    /**
+     * Create an identifier from the output of {@link #newHasher()}.
+     *
+     * @param digest output of the hash function.
+     * @param length length of the hashed data.
+     * @return the identifier.
+     */
+    public SingleHashIdentifier fromDigest(byte[] digest, long length) {
+        return create(toIdentifierHash(digest, length));
+    }
+
+    /**
+     * Create an identifier from the hash stored in it, e.g. read back from an index file.
+     *
+     * @param hash the hash, as returned by {@link SingleHashIdentifier#getHash()}.
+     * @return the identifier.
+     */
+    public SingleHashIdentifier fromHash(byte[] hash) {
+        if (hash.length != hashLength)
+            throw new IllegalArgumentException("hash length mismatch");
+        return create(hash);
+    }
+
+    /**
+     * Hash a file.
+     *
+     * @param file the file.
+     * @return the hash, as stored in the identifier.
+     * @throws IOException when an I/O error occurs.
+     */
+    byte[] hash(File file) throws IOException {
+        return HashingEngine.getInstance().hash(this, file);
+    }
+
+    public SingleHashIdentifier fromFile(File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("file is not a file");
+        }
+        return create(hash(file));
+    }
+
+    /**
+     * Hash a range of an opened file.
+     *
+     * @param channel  the file.
+     * @param position start position of the range.
+     * @param length   length of the range.
+     * @return identifier.
+     * @throws IOException when an I/O error occurs, or the file is shorter than expected.
+     */
+    public SingleHashIdentifier fromFileRange(FileChannel channel, long position, long length) throws IOException {
+        return fromDigest(HashingEngine.getInstance().hashRange(this, channel, position, length), length);
+    }
+
+    /**
+     * Load identifier from a named file in the storage base.
+     *
+     * @param fileName the file name.
+     * @return identifier. If the name is not an object of this type, return null.
+     */
+    SingleHashIdentifier fromFileName(String fileName) {
+        if (fileName.length() != marker.length() + 1 + hashLength * 2
+                || !fileName.matches(marker + "-[0-9A-Fa-f]+"))
+            return null;
+        return create(BytesUtil.hexToBytes(fileName.substring(marker.length() + 1)));
+    }
+
+    public FileIdentifierProvider<SingleHashIdentifier> getFactory() {
+        return this::fromFile;
+    }
+}
@@ -1,12 +1,7 @@
 package com.keuin.kbackupfabric.backup.incremental.identifier;
 
-import com.keuin.kbackupfabric.util.BytesUtil;
-
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Objects;
 
 /**
@@ -15,6 +10,8 @@ import java.util.Objects;
  */
 public class Sha256Identifier extends SingleHashIdentifier {
 
+    // computed from the first released version, keep it to stay compatible with existing backups
+    private static final long serialVersionUID = 7151159194172573823L;
     private static final int SHA256_LENGTH = 32;
     private static final Sha256Identifier DUMMY = new Sha256Identifier(new byte[SHA256_LENGTH]); // only for using its hash method
     private static final FileIdentifierProvider<Sha256Identifier> factory = Sha256Identifier::fromFile;
@@ -28,16 +25,13 @@ public class Sha256Identifier extends SingleHashIdentifier {
     }
 
     /**
-     * Load sha-256 from a named file. Only used in StorageObjectLoader.
+     * Load sha-256 from a named file.
      *
      * @param fileName the file name.
      * @return identifier.
      */
     static Sha256Identifier fromFileName(String fileName) {
-        if (!fileName.matches(marker + "-[0-9A-Fa-f]{32}"))
-            return null;
-        String hexString = fileName.substring(marker.length() + 1);
-        return new Sha256Identifier(BytesUtil.hexToBytes(hexString));
+        return (Sha256Identifier) IdentifierType.SHA256.fromFileName(fileName);
     }
 
     public static FileIdentifierProvider<Sha256Identifier> getFactory() {
@@ -54,35 +48,7 @@ public class Sha256Identifier extends SingleHashIdentifier {
 
     @Override
     protected byte[] hash(File file) throws IOException {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-
-            try (FileInputStream inputStream = new FileInputStream(file)) {
-                // This does not work. I don't know why
-//            FileChannel channel = inputStream.getChannel();
-//            ByteBuffer buffer = ByteBuffer.allocate(128);
-//            int readLength;
-//            while ((readLength = channel.read(buffer)) > 0)
-//                digest.update(buffer);
-
-                // This also works, without warnings
-                byte[] readBuffer = new byte[1024 * 1024];
-                int readLength;
-                while ((readLength = inputStream.read(readBuffer)) > 0)
-                    digest.update(readBuffer, 0, readLength);
-
-                // The below lines also works, but the IDE will complain about the while loop
-//            DigestInputStream digestInputStream = new DigestInputStream(inputStream, digest);
-//            while(digestInputStream.read() > 0)
-//                ;
-
-                return digest.digest();
-            }
-
-        } catch (NoSuchAlgorithmException ignored) {
-            // this shouldn't happen
-            return new byte[SHA256_LENGTH];
-        }
+        return IdentifierType.SHA256.hash(file);
     }
 
 }
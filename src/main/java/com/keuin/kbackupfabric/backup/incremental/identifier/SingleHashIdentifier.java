@@ -13,6 +13,8 @@ import java.util.Objects;
  */
 public abstract class SingleHashIdentifier implements ObjectIdentifier {
 
+    private static final long serialVersionUID = 6785117305648269815L;
+
     private final byte[] hash;
     private final String type;
 
@@ -31,6 +33,24 @@ public abstract class SingleHashIdentifier implements ObjectIdentifier {
      */
     protected abstract byte[] hash(File file) throws IOException;
 
+    /**
+     * Get the hash function.
+     *
+     * @return the type.
+     */
+    public IdentifierType getType() {
+        return IdentifierType.fromMarker(type);
+    }
+
+    /**
+     * Get the hash, as stored in the identifier.
+     *
+     * @return a copy of the hash bytes.
+     */
+    public byte[] getHash() {
+        return Arrays.copyOf(hash, hash.length);
+    }
+
     @Override
     public String getIdentification() {
         return type + "-" + BytesUtil.bytesToHex(hash);
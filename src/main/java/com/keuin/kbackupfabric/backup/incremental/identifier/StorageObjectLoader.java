@@ -1,9 +1,17 @@
 package com.keuin.kbackupfabric.backup.incremental.identifier;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Objects;
 
 public class StorageObjectLoader {
+
+    // objects may be placed in the base, or in two levels of directories named after their leading hash bytes
+    private static final int SHARD_LEVELS = 2;
+
     /**
      * Get identifier from storage file.
      *
@@ -15,9 +23,53 @@ public class StorageObjectLoader {
         String fileName = file.getName();
         ObjectIdentifier identifier;
 
-        identifier = Sha256Identifier.fromFileName(fileName);
-        return identifier;
+        for (IdentifierType type : IdentifierType.values()) {
+            identifier = type.fromFileName(fileName);
+            if (identifier != null)
+                return identifier;
+        }
+        return null;
+    }
+
+    /**
+     * Visit all objects in a storage base, either placed in the base directly or in shard directories.
+     *
+     * @param base    the base directory.
+     * @param visitor the visitor.
+     * @throws IOException when failed to list the base, or thrown by the visitor.
+     */
+    public static void forEachObject(Path base, ObjectVisitor visitor) throws IOException {
+        Objects.requireNonNull(base);
+        Objects.requireNonNull(visitor);
+        if (Files.isDirectory(base))
+            forEachObject(base, visitor, 0);
+    }
+
+    private static void forEachObject(Path directory, ObjectVisitor visitor, int level) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                ObjectIdentifier identifier = asIdentifier(path.toFile());
+                if (identifier != null) {
+                    visitor.visit(identifier, path);
+                } else if (level < SHARD_LEVELS && isShardName(path.getFileName().toString()) && Files.isDirectory(path)) {
+                    forEachObject(path, visitor, level + 1);
+                }
+            }
+        }
+    }
+
+    private static boolean isShardName(String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0;
+    }
 
-        // Add more identifiers.
+    public interface ObjectVisitor {
+        /**
+         * Visit an object.
+         *
+         * @param identifier identifier of the object.
+         * @param file       where the object is stored.
+         * @throws IOException when an I/O error occurs.
+         */
+        void visit(ObjectIdentifier identifier, Path file) throws IOException;
     }
 }
@@ -0,0 +1,34 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifier based on 128-bit XXH3 and the file length.
+ * XXH3 is not a cryptographic hash function, so this identifier must only be used on trusted files.
+ * Immutable.
+ */
+public class Xxh3Identifier extends SingleHashIdentifier {
+
+    private static final long serialVersionUID = 1L;
+
+    public static Xxh3Identifier fromFile(File file) throws IOException {
+        return (Xxh3Identifier) IdentifierType.XXH3_128.fromFile(file);
+    }
+
+    public static FileIdentifierProvider<Xxh3Identifier> getFactory() {
+        return Xxh3Identifier::fromFile;
+    }
+
+    protected Xxh3Identifier(byte[] hash) {
+        super(hash, IdentifierType.XXH3_128.getMarker());
+        if (hash.length != IdentifierType.XXH3_128.getHashLength()) {
+            throw new IllegalStateException(String.format("XXH3 identifier must be %d bytes", IdentifierType.XXH3_128.getHashLength()));
+        }
+    }
+
+    @Override
+    protected byte[] hash(File file) throws IOException {
+        return IdentifierType.XXH3_128.hash(file);
+    }
+}
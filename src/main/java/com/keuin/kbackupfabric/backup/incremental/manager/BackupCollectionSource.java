@@ -0,0 +1,94 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import com.keuin.kbackupfabric.backup.incremental.CompactObjectCollection;
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
+import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupInfoSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The backups using a storage base. Listing backups must be cheap, loading one may not be.
+ */
+public interface BackupCollectionSource {
+
+    /**
+     * Get the source of incremental backups saved in a directory.
+     *
+     * @param directory the directory containing `.kbi` files.
+     * @return the source.
+     */
+    static BackupCollectionSource fromDirectory(File directory) {
+        Objects.requireNonNull(directory);
+        return new BackupCollectionSource() {
+            @Override
+            public Set<String> getBackupNames() throws IOException {
+                String[] names = directory.list((dir, name) -> name.endsWith(".kbi"));
+                if (names == null)
+                    throw new IOException("Failed to list backups in " + directory);
+                Set<String> backupNames = new HashSet<>();
+                Collections.addAll(backupNames, names);
+                return backupNames;
+            }
+
+            @Override
+            public ObjectCollection2 getObjectCollection(String backupName) throws IOException {
+                return IncBackupInfoSerializer.fromFile(new File(directory, backupName)).getObjectCollection();
+            }
+
+            @Override
+            public CompactObjectCollection getCompactObjectCollection(String backupName) throws IOException {
+                return IncBackupInfoSerializer.compactCollectionFromFile(new File(directory, backupName));
+            }
+
+            @Override
+            public long getSize(String backupName) {
+                return new File(directory, backupName).length();
+            }
+        };
+    }
+
+    /**
+     * List all backups.
+     *
+     * @return names of the backups.
+     * @throws IOException when failed to list the backups.
+     */
+    Set<String> getBackupNames() throws IOException;
+
+    /**
+     * Load the collection of a backup.
+     *
+     * @param backupName name of the backup.
+     * @return the collection.
+     * @throws IOException when failed to load the backup.
+     */
+    ObjectCollection2 getObjectCollection(String backupName) throws IOException;
+
+    /**
+     * Load the collection of a backup in compact form, which takes much less memory when only identifiers are needed.
+     * By default, the collection is loaded and then packed.
+     *
+     * @param backupName name of the backup.
+     * @return the collection.
+     * @throws IOException when failed to load the backup.
+     */
+    default CompactObjectCollection getCompactObjectCollection(String backupName) throws IOException {
+        return CompactObjectCollection.of(getObjectCollection(backupName));
+    }
+
+    /**
+     * Get the number of bytes read when loading a backup, so the loading can be throttled.
+     *
+     * @param backupName name of the backup.
+     * @return the size in bytes, or 0 if unknown.
+     * @throws IOException when failed to get the size.
+     */
+    default long getSize(String backupName) throws IOException {
+        return 0;
+    }
+}
@@ -0,0 +1,100 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import java.util.Objects;
+
+/**
+ * Returned by `collectGarbage` in IncrementalBackupStorageManager.
+ * Immutable.
+ */
+public class GarbageCollectionResult {
+
+    private final int reachableObjects;
+    private final int unreachableObjects;
+    private final int failedObjects;
+    private final long reclaimedBytes;
+    private final long packedBytes;
+
+    public GarbageCollectionResult(int reachableObjects, int unreachableObjects, int failedObjects,
+                                   long reclaimedBytes, long packedBytes) {
+        this.reachableObjects = reachableObjects;
+        this.unreachableObjects = unreachableObjects;
+        this.failedObjects = failedObjects;
+        this.reclaimedBytes = reclaimedBytes;
+        this.packedBytes = packedBytes;
+    }
+
+    /**
+     * Get distinct objects used by the backups.
+     *
+     * @return object count.
+     */
+    public int getReachableObjects() {
+        return reachableObjects;
+    }
+
+    /**
+     * Get objects in the base not used by any backup, loose or packed.
+     * In a dry run, they are counted but not deleted.
+     *
+     * @return object count.
+     */
+    public int getUnreachableObjects() {
+        return unreachableObjects;
+    }
+
+    /**
+     * Get unreachable objects which could not be deleted.
+     *
+     * @return object count.
+     */
+    public int getFailedObjects() {
+        return failedObjects;
+    }
+
+    /**
+     * Get bytes freed by deleting unreachable loose objects and temporary files left by interrupted backups.
+     * In a dry run, the bytes which would be freed.
+     *
+     * @return bytes.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    /**
+     * Get bytes of unreachable objects in packs. They are marked as deleted, and freed by the next repack.
+     *
+     * @return bytes.
+     */
+    public long getPackedBytes() {
+        return packedBytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GarbageCollectionResult that = (GarbageCollectionResult) o;
+        return reachableObjects == that.reachableObjects &&
+                unreachableObjects == that.unreachableObjects &&
+                failedObjects == that.failedObjects &&
+                reclaimedBytes == that.reclaimedBytes &&
+                packedBytes == that.packedBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(reachableObjects, unreachableObjects, failedObjects, reclaimedBytes, packedBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "GarbageCollectionResult{" +
+                "reachableObjects=" + reachableObjects +
+                ", unreachableObjects=" + unreachableObjects +
+                ", failedObjects=" + failedObjects +
+                ", reclaimedBytes=" + reclaimedBytes +
+                ", packedBytes=" + packedBytes +
+                '}';
+    }
+}
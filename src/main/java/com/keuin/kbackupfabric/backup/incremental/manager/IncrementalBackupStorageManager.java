@@ -1,37 +1,781 @@
 package com.keuin.kbackupfabric.backup.incremental.manager;
 
+import com.keuin.kbackupfabric.backup.incremental.CompactObjectCollection;
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
-import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionIterator;
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionCursor;
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionSpliterator;
 import com.keuin.kbackupfabric.backup.incremental.ObjectElement;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ChunkListIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.FileIdentifierProvider;
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
 import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
-import com.keuin.kbackupfabric.util.FilesystemUtil;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.StorageObjectLoader;
 import com.keuin.kbackupfabric.util.PrintUtil;
+import com.keuin.kbackupfabric.util.RateLimiter;
+import com.keuin.kbackupfabric.util.hash.StreamingHasher;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.apache.commons.io.FileUtils.sizeOfDirectory;
 
 /**
  * Managing the base storing all collection objects.
  */
 public class IncrementalBackupStorageManager {
 
+    // objects being written are kept here until they are complete, so the base never has partial objects
+    private static final String TEMPORARY_DIRECTORY = "incoming";
+    private static final String PACK_DIRECTORY = "packs";
+    // corrupted objects found by scrubbing are moved here, they are never read again
+    private static final String QUARANTINE_DIRECTORY = "quarantine";
+    private static final int DEFAULT_MAX_BYTES_IN_FLIGHT = 64 * 1024 * 1024;
+    // bytes charged for listing an object without reading it, about one disk block for its directory entry and inode
+    private static final int LISTED_OBJECT_BYTES = 4096;
+
     private final Logger logger = Logger.getLogger(IncrementalBackupStorageManager.class.getName());
     private final Path backupStorageBase;
     private final Logger LOGGER = Logger.getLogger(IncrementalBackupStorageManager.class.getName());
+    // objects added by the storing identifier provider, not counted by addObjectCollection yet
+    private final Set<ObjectIdentifier> objectsStoredInAdvance = ConcurrentHashMap.newKeySet();
+    // loaded on first use, then updated by this manager
+    private ObjectIndex objectIndex;
+    private boolean objectIndexUnavailable;
+    // settings of the base, loaded on first use
+    private volatile StorageBaseProperties cachedProperties;
+    private final Set<Path> createdShardDirectories = ConcurrentHashMap.newKeySet();
+    // small objects are appended to this pack until the collection is added. Guarded by packLock
+    private final Object packLock = new Object();
+    private PackWriter packWriter;
+    // finished packs, loaded on first use
+    private volatile List<ObjectPack> packs;
+    // loaded on first use
+    private ReferenceIndex referenceIndex;
 
     public IncrementalBackupStorageManager(Path backupStorageBase) {
         this.backupStorageBase = backupStorageBase;
     }
 
+    /**
+     * Get the settings of the base.
+     *
+     * @return the settings.
+     * @throws IOException when failed to read the settings.
+     */
+    public StorageBaseProperties getProperties() throws IOException {
+        return StorageBaseProperties.load(backupStorageBase);
+    }
+
+    /**
+     * Update the settings of the base. The base is created if it does not exist.
+     *
+     * @param properties the new settings.
+     * @throws IOException when failed to save the settings.
+     */
+    public void setProperties(@NotNull StorageBaseProperties properties) throws IOException {
+        Objects.requireNonNull(properties);
+        Files.createDirectories(backupStorageBase);
+        properties.save(backupStorageBase);
+        cachedProperties = properties;
+    }
+
+    /**
+     * Save the settings of new bases into the base if it is empty and has no settings yet.
+     * Bases with objects but without settings were created by older versions, they keep the default settings.
+     *
+     * @return whether the settings were saved.
+     * @throws IOException when failed to list the base or to save the settings.
+     */
+    public boolean initializeProperties() throws IOException {
+        if (Files.exists(backupStorageBase.resolve(StorageBaseProperties.FILE_NAME)))
+            return false;
+        if (Files.isDirectory(backupStorageBase)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(backupStorageBase)) {
+                if (children.iterator().hasNext())
+                    return false;
+            }
+        }
+        setProperties(StorageBaseProperties.NEW_BASE);
+        return true;
+    }
+
+    private StorageBaseProperties getCachedProperties() throws IOException {
+        StorageBaseProperties properties = cachedProperties;
+        if (properties == null)
+            cachedProperties = properties = getProperties();
+        return properties;
+    }
+
+    /**
+     * Move all objects into the given layout, which is used for new objects from now on.
+     * Objects are renamed, not copied. If interrupted, the base is still readable in any layout,
+     * and this can be called again to finish the migration.
+     *
+     * @param layout the new layout.
+     * @return objects moved.
+     * @throws IOException when failed to move an object.
+     */
+    public int reshard(@NotNull StorageLayout layout) throws IOException {
+        Objects.requireNonNull(layout);
+        setProperties(getProperties().withLayout(layout));
+        int[] moveCount = new int[]{0};
+        StorageObjectLoader.forEachObject(backupStorageBase, (identifier, file) -> {
+            Path target = getObjectPath(identifier);
+            if (target.equals(file))
+                return;
+            if (Files.exists(target)) {
+                Files.delete(file); // the same object in both layouts
+            } else {
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                ++moveCount[0];
+            }
+        });
+        deleteEmptyShardDirectories();
+        return moveCount[0];
+    }
+
+    /**
+     * Rewrite all packs into one, dropping objects not used by any of the given backups,
+     * and move small loose objects used by them into the new pack.
+     * Backups are loaded one by one in compact form, so only their identifiers are kept in memory.
+     * Old packs and loose objects are deleted only after the new pack is finished, so nothing is lost if interrupted.
+     * Unused loose objects are left as they are.
+     *
+     * @param backups all backups in this base.
+     * @return the result.
+     * @throws IOException when an I/O error occurs.
+     */
+    public RepackResult repack(@NotNull BackupCollectionSource backups) throws IOException {
+        Objects.requireNonNull(backups);
+        Set<ObjectIdentifier> usedObjects = new HashSet<>();
+        for (String backupName : backups.getBackupNames())
+            usedObjects.addAll(getStoredObjects(backups.getCompactObjectCollection(backupName)));
+        finishPack();
+        int packLimit = getCachedProperties().getPackLimit();
+        List<ObjectPack> oldPacks = ObjectPack.openAll(getPackDirectory());
+        List<Path> packedLooseObjects = new ArrayList<>();
+        long oldBytes = 0;
+
+        PackWriter writer = new PackWriter(getTemporaryDirectory());
+        ObjectPack newPack;
+        try {
+            for (ObjectPack pack : oldPacks) {
+                oldBytes += pack.getPackLength();
+                pack.forEachObject((identifier, channel, position, length) -> {
+                    if (usedObjects.contains(identifier))
+                        writer.append(identifier, channel, position, length);
+                });
+            }
+            if (packLimit > 0) {
+                StorageObjectLoader.forEachObject(backupStorageBase, (identifier, file) -> {
+                    if (identifier instanceof SingleHashIdentifier && usedObjects.contains(identifier)
+                            && Files.size(file) <= packLimit) {
+                        writer.append((SingleHashIdentifier) identifier, file);
+                        packedLooseObjects.add(file);
+                    }
+                });
+            }
+            newPack = writer.finish(getPackDirectory());
+        } catch (IOException | RuntimeException e) {
+            writer.abandon();
+            throw e;
+        }
+
+        // the new pack is complete, remove the old copies
+        synchronized (packLock) {
+            packs = null;
+        }
+        for (Path file : packedLooseObjects) {
+            oldBytes += Files.size(file);
+            Files.delete(file);
+        }
+        for (ObjectPack pack : oldPacks) {
+            for (Path file : pack.getFiles()) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to delete old pack file " + file.getFileName() + ": " + e);
+                }
+            }
+        }
+        deleteEmptyShardDirectories();
+        invalidateObjectIndex();
+        long newBytes = (newPack != null) ? newPack.getPackLength() : 0;
+        return new RepackResult(writer.size(), packedLooseObjects.size(), oldBytes - newBytes);
+    }
+
+    /**
+     * Delete objects not used by any backup, e.g. leaked by a crash during a backup or by a failed deletion.
+     * All backups are loaded one at a time in compact form to mark the objects they use, then the base is listed in parallel,
+     * deleting loose objects not marked and marking packed ones as deleted. Temporary files are deleted as well.
+     * No backup may be made at the same time.
+     *
+     * @param backups  all backups using this base.
+     * @param dryRun   only count the objects, do not delete anything.
+     * @param threads  max number of directories listed at the same time.
+     * @param limiter  limits bytes read per second: the backups loaded, and a block for each object listed.
+     *                 Packed objects are listed from their indexes in memory and not counted.
+     * @return the result.
+     * @throws IOException when failed to load a backup, then nothing is deleted, or when failed to list the base.
+     */
+    public GarbageCollectionResult collectGarbage(@NotNull BackupCollectionSource backups, boolean dryRun,
+                                                  int threads, @NotNull RateLimiter limiter) throws IOException {
+        Objects.requireNonNull(backups);
+        Objects.requireNonNull(limiter);
+        if (threads <= 0)
+            throw new IllegalArgumentException("thread count must be positive.");
+
+        // mark
+        ObjectIndex reachable = new ObjectIndex();
+        for (String backupName : backups.getBackupNames()) {
+            limiter.acquire(backups.getSize(backupName));
+            backups.getCompactObjectCollection(backupName).forEachIdentifier(elementIdentifier -> {
+                for (ObjectIdentifier identifier : ChunkListIdentifier.getStoredObjects(elementIdentifier)) {
+                    if (identifier instanceof SingleHashIdentifier)
+                        reachable.add((SingleHashIdentifier) identifier);
+                }
+            });
+        }
+        if (!dryRun)
+            finishPack();
+
+        // sweep loose objects
+        AtomicInteger unreachableObjects = new AtomicInteger();
+        AtomicInteger failedObjects = new AtomicInteger();
+        LongAdder reclaimedBytes = new LongAdder();
+        StorageObjectLoader.ObjectVisitor sweeper = (identifier, file) -> {
+            limiter.acquire(LISTED_OBJECT_BYTES);
+            if (!(identifier instanceof SingleHashIdentifier) || reachable.contains((SingleHashIdentifier) identifier))
+                return;
+            long size = Files.size(file);
+            if (!dryRun) {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to delete unreachable object " + file.getFileName() + ": " + e);
+                    failedObjects.incrementAndGet();
+                    return;
+                }
+            }
+            unreachableObjects.incrementAndGet();
+            reclaimedBytes.add(size);
+        };
+        List<Path> shards = new ArrayList<>();
+        List<Path> flatObjects = new ArrayList<>();
+        if (Files.isDirectory(backupStorageBase)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(backupStorageBase)) {
+                for (Path path : stream) {
+                    if (StorageObjectLoader.asIdentifier(path.toFile()) != null)
+                        flatObjects.add(path);
+                    else if (path.getFileName().toString().length() == 2 && Files.isDirectory(path))
+                        shards.add(path);
+                }
+            }
+        }
+        ParallelTaskRunner.forEach(flatObjects, threads,
+                file -> sweeper.visit(StorageObjectLoader.asIdentifier(file.toFile()), file));
+        ParallelTaskRunner.forEach(shards, threads, shard -> StorageObjectLoader.forEachObject(shard, sweeper));
+
+        // sweep packed objects
+        long[] packedBytes = new long[]{0};
+        for (ObjectPack pack : getPacks()) {
+            List<SingleHashIdentifier> unreachablePacked = new ArrayList<>();
+            pack.forEachObject((identifier, channel, position, length) -> {
+                if (!reachable.contains(identifier)) {
+                    unreachablePacked.add(identifier);
+                    packedBytes[0] += length;
+                }
+            });
+            for (SingleHashIdentifier identifier : unreachablePacked) {
+                try {
+                    if (!dryRun)
+                        pack.delete(identifier);
+                    unreachableObjects.incrementAndGet();
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to delete unreachable object " + identifier.getIdentification() + " from pack " + pack + ": " + e);
+                    failedObjects.incrementAndGet();
+                }
+            }
+        }
+
+        // temporary files of interrupted backups
+        File temporaryDirectory = new File(backupStorageBase.toFile(), TEMPORARY_DIRECTORY);
+        if (temporaryDirectory.exists()) {
+            reclaimedBytes.add(sizeOfDirectory(temporaryDirectory));
+            if (!dryRun)
+                deleteTemporaryFiles();
+        }
+
+        if (!dryRun) {
+            deleteEmptyShardDirectories();
+            invalidateObjectIndex();
+        }
+        return new GarbageCollectionResult(reachable.size(), unreachableObjects.get(), failedObjects.get(),
+                reclaimedBytes.sum(), packedBytes[0]);
+    }
+
+    /**
+     * Check that objects still match their identifiers, by decoding and hashing them again.
+     * Corrupted objects are moved into the quarantine directory, so the next backup stores them again
+     * if the world still has the same files. Objects are split into parts by their leading hash byte,
+     * so a large base can be checked a part at a time.
+     *
+     * @param part    the part to check, from 0 to parts - 1.
+     * @param parts   number of parts. If 1, all objects are checked.
+     * @param backups all backups using this base, loaded only if an object is corrupted.
+     * @param threads max number of objects being checked at the same time.
+     * @param limiter limits bytes hashed per second.
+     * @return the result.
+     * @throws IOException when failed to list the base, or when interrupted.
+     */
+    public ScrubResult scrub(int part, int parts, @NotNull BackupCollectionSource backups,
+                             int threads, @NotNull RateLimiter limiter) throws IOException {
+        Objects.requireNonNull(backups);
+        Objects.requireNonNull(limiter);
+        if (parts <= 0 || part < 0 || part >= parts)
+            throw new IllegalArgumentException("invalid part " + part + " of " + parts);
+        if (threads <= 0)
+            throw new IllegalArgumentException("thread count must be positive.");
+        finishPack();
+
+        List<ScrubTask> tasks = new ArrayList<>();
+        StorageObjectLoader.forEachObject(backupStorageBase, (identifier, file) -> {
+            if (identifier instanceof SingleHashIdentifier && isInPart((SingleHashIdentifier) identifier, part, parts))
+                tasks.add(new ScrubTask((SingleHashIdentifier) identifier, file, null));
+        });
+        for (ObjectPack pack : getPacks()) {
+            pack.forEachObject((identifier, channel, position, length) -> {
+                if (isInPart(identifier, part, parts))
+                    tasks.add(new ScrubTask(identifier, null, pack));
+            });
+        }
+
+        AtomicInteger checkedObjects = new AtomicInteger();
+        LongAdder checkedBytes = new LongAdder();
+        Queue<ScrubTask> corruptedTasks = new ConcurrentLinkedQueue<>();
+        ParallelTaskRunner.forEach(tasks, threads, task -> {
+            HashingChannel channel = new HashingChannel(task.identifier.getType().newHasher(), limiter);
+            long length;
+            try {
+                length = (task.pack != null) ? task.pack.copy(task.identifier, channel) : ObjectReader.copy(task.file, channel);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                LOGGER.warning("Failed to read object " + task.identifier.getIdentification() + ": " + e);
+                checkedObjects.incrementAndGet();
+                corruptedTasks.add(task);
+                return;
+            }
+            if (length < 0)
+                return; // deleted from the pack meanwhile
+            checkedObjects.incrementAndGet();
+            checkedBytes.add(length);
+            if (!task.identifier.getType().fromDigest(channel.digest(), length).equals(task.identifier)) {
+                LOGGER.warning("Object " + task.identifier.getIdentification() + " does not match its identifier.");
+                corruptedTasks.add(task);
+            }
+        });
+        if (corruptedTasks.isEmpty())
+            return new ScrubResult(checkedObjects.get(), checkedBytes.sum(), Collections.emptyMap());
+
+        Map<ObjectIdentifier, Set<String>> corruptedObjects = new HashMap<>();
+        for (ScrubTask task : corruptedTasks) {
+            corruptedObjects.put(task.identifier, new HashSet<>());
+            quarantine(task);
+        }
+        invalidateObjectIndex();
+        for (String backupName : backups.getBackupNames()) {
+            CompactObjectCollection collection;
+            try {
+                collection = backups.getCompactObjectCollection(backupName);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to load backup " + backupName + " to find users of corrupted objects: " + e);
+                continue;
+            }
+            for (ObjectIdentifier identifier : getStoredObjects(collection)) {
+                Set<String> users = corruptedObjects.get(identifier);
+                if (users != null)
+                    users.add(backupName);
+            }
+        }
+        return new ScrubResult(checkedObjects.get(), checkedBytes.sum(), corruptedObjects);
+    }
+
+    private static boolean isInPart(SingleHashIdentifier identifier, int part, int parts) {
+        byte[] hash = identifier.getHash();
+        return hash.length == 0 || (hash[0] & 0xFF) % parts == part;
+    }
+
+    /**
+     * Move a corrupted object out of the base. A packed object is copied out and marked as deleted.
+     * Failures are logged only, the object is still reported.
+     */
+    private void quarantine(ScrubTask task) {
+        String identification = task.identifier.getIdentification();
+        try {
+            Path quarantine = backupStorageBase.resolve(QUARANTINE_DIRECTORY);
+            Files.createDirectories(quarantine);
+            if (task.pack != null) {
+                try (FileChannel destination = FileChannel.open(quarantine.resolve(identification + ".packed"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    task.pack.copyStored(task.identifier, destination);
+                }
+                task.pack.delete(task.identifier);
+            } else {
+                Files.move(task.file, quarantine.resolve(identification), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Failed to quarantine corrupted object " + identification + ": " + e);
+        }
+    }
+
+    private void deleteEmptyShardDirectories() {
+        File[] shards = backupStorageBase.toFile().listFiles(File::isDirectory);
+        if (shards == null)
+            return;
+        for (File shard : shards) {
+            File[] subShards = shard.listFiles(File::isDirectory);
+            if (subShards == null || shard.getName().length() != 2)
+                continue; // not a shard
+            for (File subShard : subShards) {
+                String[] children = subShard.list();
+                if (children != null && children.length == 0 && subShard.delete())
+                    createdShardDirectories.remove(subShard.toPath());
+            }
+            String[] children = shard.list();
+            if (children != null && children.length == 0 && shard.delete())
+                createdShardDirectories.remove(shard.toPath());
+        }
+    }
+
+    /**
+     * Get where an object is placed in the current layout. The parent directory is created if it does not exist.
+     */
+    private Path getObjectPath(ObjectIdentifier identifier) throws IOException {
+        Path path = getCachedProperties().getLayout().resolve(backupStorageBase, identifier.getIdentification());
+        Path parent = path.getParent();
+        if (!parent.equals(backupStorageBase) && !createdShardDirectories.contains(parent)) {
+            Files.createDirectories(parent);
+            createdShardDirectories.add(parent);
+        }
+        return path;
+    }
+
+    /**
+     * Find an object in any layout.
+     *
+     * @return the path. If the object does not exist, return null.
+     */
+    private @Nullable Path locateObject(ObjectIdentifier identifier) {
+        for (StorageLayout layout : StorageLayout.values()) {
+            Path path = layout.resolve(backupStorageBase, identifier.getIdentification());
+            if (Files.isRegularFile(path))
+                return path;
+        }
+        return null;
+    }
+
+    /**
+     * Get a provider which stores files into the base while identifying them, so each file is read only once.
+     * A file is written to a temporary object, which is renamed to its identification if the base does not
+     * contain it yet, or discarded otherwise.
+     * The objects stored are counted as copied by the next {@link #addObjectCollection(ObjectCollection2, File)}.
+     * If the backup is aborted before that, they should be removed by {@link #discardObjectsStoredInAdvance()}.
+     *
+     * @param type the hash function.
+     * @return the provider.
+     */
+    public FileIdentifierProvider<SingleHashIdentifier> getStoringIdentifierProvider(@NotNull IdentifierType type) {
+        Objects.requireNonNull(type);
+        return file -> storeAndIdentify(type, file);
+    }
+
+    private SingleHashIdentifier storeAndIdentify(IdentifierType type, File file) throws IOException {
+        Path temporaryFile = newTemporaryFile();
+        try {
+            SingleHashIdentifier identifier;
+            try (FileChannel destination = FileChannel.open(temporaryFile,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                 ObjectWriter writer = new ObjectWriter(destination, getCachedProperties().getCodec())) {
+                identifier = type.fromFileCopying(file, writer);
+            }
+            if (!contains(identifier)) {
+                // if another thread stores the same object at the same time, the content is the same anyway
+                commitObject(temporaryFile, identifier);
+                objectsStoredInAdvance.add(identifier);
+            }
+            return identifier;
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Get a path to write a new object to. The object becomes visible in the base after committed.
+     */
+    private Path newTemporaryFile() throws IOException {
+        return getTemporaryDirectory().resolve(UUID.randomUUID().toString());
+    }
+
+    private Path getTemporaryDirectory() throws IOException {
+        Path temporaryDirectory = backupStorageBase.resolve(TEMPORARY_DIRECTORY);
+        Files.createDirectories(temporaryDirectory);
+        return temporaryDirectory;
+    }
+
+    private void commitObject(Path temporaryFile, ObjectIdentifier identifier) throws IOException {
+        int packLimit = getCachedProperties().getPackLimit();
+        if (packLimit > 0 && identifier instanceof SingleHashIdentifier && Files.size(temporaryFile) <= packLimit) {
+            // small objects share a pack instead of taking a file each
+            getPackWriter().append((SingleHashIdentifier) identifier, temporaryFile);
+        } else {
+            Files.move(temporaryFile, getObjectPath(identifier), StandardCopyOption.ATOMIC_MOVE);
+        }
+        ObjectIndex index = getObjectIndex();
+        if (index != null && identifier instanceof SingleHashIdentifier)
+            index.add((SingleHashIdentifier) identifier);
+    }
+
+    private PackWriter getPackWriter() throws IOException {
+        synchronized (packLock) {
+            if (packWriter == null)
+                packWriter = new PackWriter(getTemporaryDirectory());
+            return packWriter;
+        }
+    }
+
+    private @Nullable PackWriter getOpenPackWriter() {
+        synchronized (packLock) {
+            return packWriter;
+        }
+    }
+
+    private Path getPackDirectory() {
+        return backupStorageBase.resolve(PACK_DIRECTORY);
+    }
+
+    /**
+     * Get the finished packs in the base, loading them if not loaded yet.
+     *
+     * @return the packs. If failed to list them, the list is empty.
+     */
+    private List<ObjectPack> getPacks() {
+        List<ObjectPack> loadedPacks = packs;
+        if (loadedPacks != null)
+            return loadedPacks;
+        synchronized (packLock) {
+            if (packs == null) {
+                try {
+                    packs = ObjectPack.openAll(getPackDirectory());
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to list packs in the base: " + e);
+                    packs = Collections.emptyList();
+                }
+            }
+            return packs;
+        }
+    }
+
+    /**
+     * Finish the pack being written, so its objects survive this manager.
+     *
+     * @throws IOException when failed to write the pack.
+     */
+    private void finishPack() throws IOException {
+        try {
+            synchronized (packLock) {
+                if (packWriter == null)
+                    return;
+                ObjectPack pack = packWriter.finish(getPackDirectory());
+                packWriter = null;
+                if (pack != null) {
+                    List<ObjectPack> newPacks = new ArrayList<>(getPacks());
+                    newPacks.add(pack);
+                    packs = Collections.unmodifiableList(newPacks);
+                }
+            }
+        } catch (IOException e) {
+            // objects of the pack are lost
+            synchronized (packLock) {
+                packWriter = null;
+            }
+            invalidateObjectIndex();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the index of objects in the base, loading it if not loaded yet.
+     *
+     * @return the index. If failed to load it, return null, and the filesystem will be checked instead.
+     */
+    private synchronized @Nullable ObjectIndex getObjectIndex() {
+        if (objectIndex == null && !objectIndexUnavailable) {
+            try {
+                ObjectIndex index = ObjectIndex.load(backupStorageBase);
+                for (ObjectPack pack : getPacks())
+                    pack.forEachObject((identifier, channel, position, length) -> index.add(identifier));
+                PackWriter writer = getOpenPackWriter();
+                if (writer != null)
+                    writer.getIdentifiers().forEach(index::add);
+                objectIndex = index;
+                LOGGER.fine(String.format("Loaded %d object(s) in the base.", objectIndex.size()));
+            } catch (IOException e) {
+                LOGGER.warning("Failed to list objects in the base: " + e);
+                objectIndexUnavailable = true;
+            }
+        }
+        return objectIndex;
+    }
+
+    /**
+     * Drop the index of objects, so it is loaded again on next use.
+     */
+    private synchronized void invalidateObjectIndex() {
+        objectIndex = null;
+        objectIndexUnavailable = false;
+    }
+
+    /**
+     * Check whether a pack, finished or not, contains an object.
+     */
+    private boolean isPacked(SingleHashIdentifier identifier) {
+        PackWriter writer = getOpenPackWriter();
+        if (writer != null && writer.contains(identifier))
+            return true;
+        for (ObjectPack pack : getPacks()) {
+            if (pack.contains(identifier))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decode an object, looking in packs first, then in all layouts.
+     *
+     * @param identifier  the object.
+     * @param destination where the decoded data is written to.
+     * @return length of the decoded data. If the object does not exist, return -1.
+     * @throws IOException when an I/O error occurs, or the object is corrupted.
+     */
+    private long readObject(ObjectIdentifier identifier, WritableByteChannel destination) throws IOException {
+        if (identifier instanceof SingleHashIdentifier) {
+            SingleHashIdentifier packedIdentifier = (SingleHashIdentifier) identifier;
+            PackWriter writer = getOpenPackWriter();
+            long length = (writer != null) ? writer.copy(packedIdentifier, destination) : -1;
+            for (Iterator<ObjectPack> iterator = getPacks().iterator(); length < 0 && iterator.hasNext(); )
+                length = iterator.next().copy(packedIdentifier, destination);
+            if (length >= 0)
+                return length;
+        }
+        Path path = locateObject(identifier);
+        return (path == null) ? -1 : ObjectReader.copy(path, destination);
+    }
+
+    /**
+     * Delete an object from the base.
+     *
+     * @return whether the object has been deleted. If it does not exist, return false.
+     */
+    private boolean deleteObject(ObjectIdentifier identifier) {
+        boolean deleted = false;
+        Path path = locateObject(identifier);
+        if (path != null) {
+            File file = path.toFile();
+            if (!file.delete()) {
+                LOGGER.warning("Failed to delete unused file " + file.getName());
+                return false;
+            }
+            deleted = true;
+        }
+        if (identifier instanceof SingleHashIdentifier) {
+            SingleHashIdentifier packedIdentifier = (SingleHashIdentifier) identifier;
+            PackWriter writer = getOpenPackWriter();
+            if (writer != null && writer.remove(packedIdentifier))
+                deleted = true;
+            for (ObjectPack pack : getPacks()) {
+                try {
+                    if (pack.delete(packedIdentifier))
+                        deleted = true;
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to delete unused object " + identifier.getIdentification() + " from pack " + pack + ": " + e);
+                    return false;
+                }
+            }
+        }
+        if (!deleted)
+            return false;
+        ObjectIndex index = getObjectIndex();
+        if (index != null && identifier instanceof SingleHashIdentifier)
+            index.remove((SingleHashIdentifier) identifier);
+        return true;
+    }
+
+    /**
+     * Delete objects added by the storing identifier provider which have not been counted by
+     * {@link #addObjectCollection(ObjectCollection2, File)}. They are not used by any backup.
+     *
+     * @return objects deleted.
+     */
+    public int discardObjectsStoredInAdvance() {
+        int deleteCount = 0;
+        for (Iterator<ObjectIdentifier> iterator = objectsStoredInAdvance.iterator(); iterator.hasNext(); ) {
+            ObjectIdentifier identifier = iterator.next();
+            iterator.remove();
+            if (deleteObject(identifier))
+                ++deleteCount;
+        }
+        return deleteCount;
+    }
+
+    /**
+     * Delete temporary objects left by an interrupted backup.
+     *
+     * @throws IOException when failed to delete them.
+     */
+    public void deleteTemporaryFiles() throws IOException {
+        PackWriter writer;
+        synchronized (packLock) {
+            writer = packWriter;
+            packWriter = null;
+        }
+        if (writer != null) {
+            // the pack has not been finished, so no collection uses its objects
+            ObjectIndex index = getObjectIndex();
+            for (SingleHashIdentifier identifier : writer.getIdentifiers()) {
+                objectsStoredInAdvance.remove(identifier);
+                if (index != null)
+                    index.remove(identifier);
+            }
+            writer.abandon();
+        }
+        File temporaryDirectory = new File(backupStorageBase.toFile(), TEMPORARY_DIRECTORY);
+        if (temporaryDirectory.exists())
+            forceDelete(temporaryDirectory);
+    }
+
     /**
      * Check whether the storage contains a copy of file with given identifier.
      *
@@ -40,7 +784,19 @@ public class IncrementalBackupStorageManager {
      */
     public boolean contains(@NotNull ObjectIdentifier identifier) {
         Objects.requireNonNull(identifier);
-        return new File(backupStorageBase.toFile(), identifier.getIdentification()).isFile();
+        if (identifier instanceof ChunkListIdentifier) {
+            // a chunked file is present only if all of its chunks are present
+            for (ObjectIdentifier chunk : ((ChunkListIdentifier) identifier).getChunks()) {
+                if (!contains(chunk))
+                    return false;
+            }
+            return true;
+        }
+        ObjectIndex index = getObjectIndex();
+        if (index != null && identifier instanceof SingleHashIdentifier)
+            return index.contains((SingleHashIdentifier) identifier);
+        return locateObject(identifier) != null
+                || (identifier instanceof SingleHashIdentifier && isPacked((SingleHashIdentifier) identifier));
     }
 
     /**
@@ -51,9 +807,8 @@ public class IncrementalBackupStorageManager {
      */
     public boolean contains(@NotNull ObjectCollection2 collection) {
         Objects.requireNonNull(collection);
-        for (ObjectCollectionIterator it = new ObjectCollectionIterator(collection); it.hasNext(); ) {
-            ObjectElement ele = it.next();
-            if (!contains(ele.getIdentifier()))
+        for (ObjectCollectionCursor cursor = new ObjectCollectionCursor(collection); cursor.next(); ) {
+            if (!contains(cursor.getElement().getIdentifier()))
                 return false;
         }
         return true;
@@ -68,38 +823,116 @@ public class IncrementalBackupStorageManager {
      */
     public @Nullable
     IncCopyResult addObjectCollection(ObjectCollection2 collection, File collectionBasePath) throws IOException {
+        return addObjectCollection(collection, collectionBasePath, 1, DEFAULT_MAX_BYTES_IN_FLIGHT);
+    }
+
+    /**
+     * Add a object collection to storage base and copy files to the storage, running several copies at the same time.
+     * Every object is written to a temporary file first, so the base never contains partial objects.
+     *
+     * @param collection       the collection.
+     * @param copyThreads      max number of objects being copied at the same time.
+     * @param maxBytesInFlight max total size of objects being copied at the same time. Larger objects are copied alone.
+     * @return objects copied to the base.
+     * @throws IOException I/O error.
+     */
+    public @Nullable
+    IncCopyResult addObjectCollection(ObjectCollection2 collection, File collectionBasePath,
+                                      int copyThreads, int maxBytesInFlight) throws IOException {
         if (!backupStorageBase.toFile().isDirectory()) {
             if (!backupStorageBase.toFile().mkdirs())
                 throw new IOException("Backup storage base directory does not exist, and failed to create it.");
         }
         Objects.requireNonNull(collection);
         Objects.requireNonNull(collectionBasePath);
+        if (maxBytesInFlight <= 0)
+            throw new IllegalArgumentException("max bytes in flight must be positive");
 
-        IncCopyResult copyCount = IncCopyResult.ZERO;
+        List<CopyTask> tasks = new ArrayList<>();
+        addCopyTasks(collection, collectionBasePath, tasks);
+        CopyState state = new CopyState(maxBytesInFlight);
+        ParallelTaskRunner.forEach(tasks, copyThreads, task -> addElement(task.identifier, task.sourceFile, state));
+        finishPack();
+        return state.getResult();
+    }
 
-        // copy sub files
-        for (Map.Entry<String, ObjectElement> entry : collection.getElementMap().entrySet()) {
-            File copyDestination = new File(backupStorageBase.toFile(), entry.getValue().getIdentifier().getIdentification());
-            File copySourceFile = new File(collectionBasePath.getAbsolutePath(), entry.getKey());
-            final long fileBytes = FilesystemUtil.getFileSizeBytes(copySourceFile.getAbsolutePath());
-            if (!contains(entry.getValue())) {
-                // element does not exist. copy.
-                logger.fine("Copy new file `" + copySourceFile.getName() + "`.");
-                Files.copy(copySourceFile.toPath(), copyDestination.toPath());
-                copyCount = copyCount.addWith(new IncCopyResult(1, 1, fileBytes, fileBytes));
-            } else {
-                // element exists (file reused). Just update the stat info
-                copyCount = copyCount.addWith(new IncCopyResult(1, 0, 0, fileBytes));
+    private static void addCopyTasks(ObjectCollection2 collection, File collectionBasePath, List<CopyTask> tasks) {
+        for (Map.Entry<String, ObjectElement> entry : collection.getElementMap().entrySet())
+            tasks.add(new CopyTask(entry.getValue().getIdentifier(), new File(collectionBasePath, entry.getKey())));
+        for (Map.Entry<String, ObjectCollection2> entry : collection.getSubCollectionMap().entrySet())
+            addCopyTasks(entry.getValue(), new File(collectionBasePath, entry.getKey()), tasks);
+    }
+
+    private void addElement(ObjectIdentifier identifier, File sourceFile, CopyState state) throws IOException {
+        if (identifier instanceof ChunkListIdentifier) {
+            // only copy new chunks
+            ChunkListIdentifier chunks = (ChunkListIdentifier) identifier;
+            long chunkBytes = addChunks(chunks, sourceFile, state);
+            state.add((chunkBytes > 0) ? 1 : 0, chunkBytes, chunks.getTotalLength());
+            return;
+        }
+        final long fileBytes = sourceFile.length();
+        if (objectsStoredInAdvance.remove(identifier)) {
+            // element has been stored while hashing
+            state.add(1, fileBytes, fileBytes);
+        } else if (!contains(identifier) && state.claim(identifier)) {
+            // element does not exist, and no other thread is copying it. copy.
+            logger.fine("Copy new file `" + sourceFile.getName() + "`.");
+            state.acquire(fileBytes);
+            try (FileChannel source = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ)) {
+                storeObject(source, 0, source.size(), identifier);
+            } finally {
+                state.release(fileBytes);
             }
+            state.add(1, fileBytes, fileBytes);
+        } else {
+            // element exists (file reused). Just update the stat info
+            state.add(0, 0, fileBytes);
         }
+    }
 
-        //copy sub dirs recursively
-        for (Map.Entry<String, ObjectCollection2> entry : collection.getSubCollectionMap().entrySet()) {
-            File newBase = new File(collectionBasePath, entry.getKey());
-            copyCount = copyCount.addWith(addObjectCollection(entry.getValue(), newBase));
+    /**
+     * Copy chunks of a file which are not in the base.
+     *
+     * @return bytes copied.
+     */
+    private long addChunks(ChunkListIdentifier identifier, File sourceFile, CopyState state) throws IOException {
+        long copiedBytes = 0;
+        long position = 0;
+        try (FileChannel source = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < identifier.getChunkCount(); i++) {
+                ObjectIdentifier chunk = identifier.getChunk(i);
+                long length = identifier.getChunkLength(i);
+                if (!contains(chunk) && state.claim(chunk)) {
+                    state.acquire(length);
+                    try {
+                        storeObject(source, position, length, chunk);
+                    } finally {
+                        state.release(length);
+                    }
+                    copiedBytes += length;
+                }
+                position += length;
+            }
         }
+        return copiedBytes;
+    }
 
-        return copyCount;
+    /**
+     * Encode a range of a file as a new object in the base.
+     */
+    private void storeObject(FileChannel source, long position, long length, ObjectIdentifier identifier) throws IOException {
+        Path temporaryFile = newTemporaryFile();
+        try {
+            try (FileChannel destination = FileChannel.open(temporaryFile,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                 ObjectWriter writer = new ObjectWriter(destination, getCachedProperties().getCodec())) {
+                writer.transferFrom(source, position, length);
+            }
+            commitObject(temporaryFile, identifier);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
     }
 
     /**
@@ -121,26 +954,91 @@ public class IncrementalBackupStorageManager {
      */
     public int deleteObjectCollection(ObjectCollection2 collection,
                                       Iterable<ObjectCollection2> otherExistingCollections) {
-        // TODO: test this
-        Iterator<ObjectElement> iter = new ObjectCollectionIterator(collection);
-        Set<ObjectIdentifier> identifierSet = new HashSet<>();
-        iter.forEachRemaining(ele -> identifierSet.add(ele.getIdentifier()));
-        otherExistingCollections.forEach(col -> new ObjectCollectionIterator(col)
-                .forEachRemaining(ele -> identifierSet.remove(ele.getIdentifier())));
+        Set<ObjectIdentifier> identifierSet = getStoredObjects(collection);
+        for (ObjectCollection2 col : otherExistingCollections)
+            identifierSet.removeAll(getStoredObjects(col));
         int deleteCount = 0;
         for (ObjectIdentifier id : identifierSet) {
             Objects.requireNonNull(id);
-            File file = new File(backupStorageBase.toFile(), id.getIdentification());
-            if (file.exists()) {
-                if (file.delete())
-                    ++deleteCount;
-                else
-                    LOGGER.warning("Failed to delete unused file " + file.getName());
-            }
+            if (deleteObject(id))
+                ++deleteCount;
+        }
+        return deleteCount;
+    }
+
+    /**
+     * Delete a backup from the storage base, using the reference index to find objects no other backup uses.
+     * Only the objects of the deleted backup are checked, other backups are loaded only if the index is out of date.
+     * Also used to clean up a backup which failed before it was saved.
+     *
+     * @param backupName name of the backup, which must not be listed by the source any more.
+     * @param collection the collection of the backup.
+     * @param backups    all remaining backups.
+     * @return objects deleted.
+     * @throws IOException when failed to update the reference index. No object is deleted then.
+     */
+    public int deleteObjectCollection(@NotNull String backupName, @NotNull ObjectCollection2 collection,
+                                      @NotNull BackupCollectionSource backups) throws IOException {
+        Objects.requireNonNull(backupName);
+        Objects.requireNonNull(collection);
+        Objects.requireNonNull(backups);
+        Set<ObjectIdentifier> storedObjects = getStoredObjects(collection);
+        ReferenceIndex references = getReferenceIndex();
+        references.remove(backupName, storedObjects);
+        references.synchronize(backups);
+        int deleteCount = 0;
+        for (ObjectIdentifier identifier : storedObjects) {
+            if (references.getCount(identifier) == 0 && deleteObject(identifier))
+                ++deleteCount;
         }
         return deleteCount;
     }
 
+    /**
+     * Record that a saved backup uses the objects of its collection. If the reference index has not been built yet,
+     * nothing is recorded, and the backup is counted when the index is built.
+     *
+     * @param backupName name of the backup.
+     * @param collection the collection of the backup.
+     * @throws IOException when failed to update the reference index.
+     */
+    public void addBackupReferences(@NotNull String backupName, @NotNull ObjectCollection2 collection) throws IOException {
+        Objects.requireNonNull(backupName);
+        Objects.requireNonNull(collection);
+        getReferenceIndex().add(backupName, getStoredObjects(collection));
+    }
+
+    private synchronized ReferenceIndex getReferenceIndex() throws IOException {
+        if (referenceIndex == null)
+            referenceIndex = ReferenceIndex.load(backupStorageBase);
+        return referenceIndex;
+    }
+
+    /**
+     * Get the objects stored in the base for a collection, i.e. single files and chunks of chunked files.
+     * The tree is walked in parallel, since a world may have hundreds of thousands of elements.
+     *
+     * @param collection the collection.
+     * @return distinct objects, in a mutable set.
+     */
+    static Set<ObjectIdentifier> getStoredObjects(ObjectCollection2 collection) {
+        return ObjectCollectionSpliterator.stream(collection, true)
+                .flatMap(ele -> ChunkListIdentifier.getStoredObjects(ele.getIdentifier()).stream())
+                .collect(Collectors.toCollection(HashSet::new));
+    }
+
+    /**
+     * Get the objects stored in the base for a compact collection.
+     *
+     * @param collection the collection.
+     * @return distinct objects.
+     */
+    static Set<ObjectIdentifier> getStoredObjects(CompactObjectCollection collection) {
+        Set<ObjectIdentifier> storedObjects = new HashSet<>();
+        collection.forEachIdentifier(identifier -> storedObjects.addAll(ChunkListIdentifier.getStoredObjects(identifier)));
+        return storedObjects;
+    }
+
     /**
      * Restore an object collection from the storage base. i.e., restore the save from backup storage.
      *
@@ -172,11 +1070,11 @@ public class IncrementalBackupStorageManager {
 
         // copy sub files
         for (Map.Entry<String, ObjectElement> entry : collection.getElementMap().entrySet()) {
-            File copySource = new File(backupStorageBase.toFile(), entry.getValue().getIdentifier().getIdentification());
+            String identification = entry.getValue().getIdentifier().getIdentification();
             File copyTarget = new File(collectionBasePath.getAbsolutePath(), entry.getKey());
 
             if (!contains(entry.getValue())) {
-                throw new IOException(String.format("File %s is missing in the backup storage. Cannot restore.", copySource.getName()));
+                throw new IOException(String.format("File %s is missing in the backup storage. Cannot restore.", identification));
             }
             if (copyTarget.exists()) {
                 boolean successDeleting = false;
@@ -198,7 +1096,15 @@ public class IncrementalBackupStorageManager {
                 }
             }
 
-            Files.copy(copySource.toPath(), copyTarget.toPath());
+            if (entry.getValue().getIdentifier() instanceof ChunkListIdentifier) {
+                restoreChunks((ChunkListIdentifier) entry.getValue().getIdentifier(), copyTarget);
+            } else {
+                try (FileChannel destination = FileChannel.open(copyTarget.toPath(),
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                    if (readObject(entry.getValue().getIdentifier(), destination) < 0)
+                        throw new IOException(String.format("File %s is missing in the backup storage. Cannot restore.", identification));
+                }
+            }
             ++copyCount;
         }
 
@@ -211,6 +1117,23 @@ public class IncrementalBackupStorageManager {
         return copyCount;
     }
 
+    /**
+     * Reassemble a chunked file by concatenating its chunks.
+     */
+    private void restoreChunks(ChunkListIdentifier identifier, File target) throws IOException {
+        try (FileChannel destination = FileChannel.open(target.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            for (int i = 0; i < identifier.getChunkCount(); i++) {
+                String identification = identifier.getChunk(i).getIdentification();
+                long length = readObject(identifier.getChunk(i), destination);
+                if (length < 0)
+                    throw new IOException(String.format("Chunk %s is missing in the backup storage. Cannot restore.", identification));
+                if (length != identifier.getChunkLength(i))
+                    throw new IOException(String.format("Chunk %s has an unexpected size. Cannot restore.", identification));
+            }
+        }
+    }
+
     /**
      * Check if the backup base contains given element.
      *
@@ -223,4 +1146,113 @@ public class IncrementalBackupStorageManager {
         return contains(objectElement.getIdentifier());
     }
 
+    private static class CopyTask {
+        private final ObjectIdentifier identifier;
+        private final File sourceFile;
+
+        CopyTask(ObjectIdentifier identifier, File sourceFile) {
+            this.identifier = identifier;
+            this.sourceFile = sourceFile;
+        }
+    }
+
+    /**
+     * An object to be checked by scrubbing, either a loose file or in a pack.
+     */
+    private static class ScrubTask {
+        private final SingleHashIdentifier identifier;
+        private final Path file;
+        private final ObjectPack pack;
+
+        ScrubTask(SingleHashIdentifier identifier, @Nullable Path file, @Nullable ObjectPack pack) {
+            this.identifier = identifier;
+            this.file = file;
+            this.pack = pack;
+        }
+    }
+
+    /**
+     * Hash the decoded data of an object, waiting for the rate limit.
+     */
+    private static class HashingChannel implements WritableByteChannel {
+        private final StreamingHasher hasher;
+        private final RateLimiter limiter;
+
+        HashingChannel(StreamingHasher hasher, RateLimiter limiter) {
+            this.hasher = hasher;
+            this.limiter = limiter;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            limiter.acquire(length);
+            hasher.update(src);
+            return length;
+        }
+
+        byte[] digest() {
+            return hasher.digest();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Statistics and limits shared by all copy threads of one collection.
+     */
+    private static class CopyState {
+        private final int maxBytesInFlight;
+        private final Semaphore bytesInFlight;
+        // objects being copied, so files with the same content are copied only once
+        private final Set<ObjectIdentifier> claimedObjects = ConcurrentHashMap.newKeySet();
+        private final LongAdder totalFiles = new LongAdder();
+        private final LongAdder copiedFiles = new LongAdder();
+        private final LongAdder copiedBytes = new LongAdder();
+        private final LongAdder totalBytes = new LongAdder();
+
+        CopyState(int maxBytesInFlight) {
+            this.maxBytesInFlight = maxBytesInFlight;
+            this.bytesInFlight = new Semaphore(maxBytesInFlight);
+        }
+
+        boolean claim(ObjectIdentifier identifier) {
+            return claimedObjects.add(identifier);
+        }
+
+        void acquire(long bytes) throws IOException {
+            try {
+                bytesInFlight.acquire(getPermits(bytes));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while copying files", e);
+            }
+        }
+
+        void release(long bytes) {
+            bytesInFlight.release(getPermits(bytes));
+        }
+
+        private int getPermits(long bytes) {
+            return (int) Math.min(bytes, maxBytesInFlight);
+        }
+
+        void add(int copiedFiles, long copiedBytes, long totalBytes) {
+            this.totalFiles.increment();
+            this.copiedFiles.add(copiedFiles);
+            this.copiedBytes.add(copiedBytes);
+            this.totalBytes.add(totalBytes);
+        }
+
+        IncCopyResult getResult() {
+            return new IncCopyResult(totalFiles.intValue(), copiedFiles.intValue(), copiedBytes.sum(), totalBytes.sum());
+        }
+    }
 }
@@ -0,0 +1,128 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * How new objects are encoded in a storage base.
+ * Each encoded object starts with a header naming its codec, so objects of different codecs can be mixed in a base.
+ * Objects stored without compression have no header and are plain copies of the file, like objects of older versions.
+ */
+public enum ObjectCodec {
+    /**
+     * Store objects as they are.
+     */
+    RAW("raw", 0, Deflater.NO_COMPRESSION),
+    /**
+     * Compress objects with fast deflate. Data which does not compress well is stored as it is.
+     */
+    DEFLATE("deflate", 1, Deflater.BEST_SPEED),
+    /**
+     * Compress objects with the strongest deflate, which is several times slower.
+     */
+    DEFLATE_BEST("deflate-best", 2, Deflater.BEST_COMPRESSION);
+
+    // encoded objects start with the magic and the codec id
+    private static final byte[] MAGIC = {(byte) 0x89, 'K', 'B', 'O', 'B', 'J', '\r', '\n'};
+    static final int HEADER_LENGTH = MAGIC.length + 1;
+
+    private final String name;
+    private final int id;
+    private final int level;
+
+    ObjectCodec(String name, int id, int level) {
+        this.name = name;
+        this.id = id;
+        this.level = level;
+    }
+
+    /**
+     * Get the codec by its name in the properties file.
+     *
+     * @param name the name.
+     * @return the codec. If no codec has such name, return null.
+     */
+    public static ObjectCodec fromName(String name) {
+        for (ObjectCodec codec : values()) {
+            if (codec.name.equalsIgnoreCase(name))
+                return codec;
+        }
+        return null;
+    }
+
+    /**
+     * Get the codec by its id in object headers.
+     *
+     * @param id the id.
+     * @return the codec. If no codec has such id, return null.
+     */
+    private static ObjectCodec fromId(int id) {
+        for (ObjectCodec codec : values()) {
+            if (codec.id == id)
+                return codec;
+        }
+        return null;
+    }
+
+    /**
+     * Check whether data starts with the magic of encoded objects.
+     *
+     * @param data   the data.
+     * @param length length of the data.
+     * @return whether the data starts with the magic.
+     */
+    static boolean startsWithMagic(byte[] data, int length) {
+        if (length < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the header of objects encoded with this codec.
+     */
+    byte[] getHeader() {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = (byte) id;
+        return header;
+    }
+
+    /**
+     * Get the codec of an encoded object from its header.
+     *
+     * @param header the first bytes of the object.
+     * @param length number of bytes read.
+     * @return the codec. If the object is not encoded, return null.
+     * @throws IOException when the codec is unknown.
+     */
+    static ObjectCodec fromHeader(byte[] header, int length) throws IOException {
+        if (length < HEADER_LENGTH || !startsWithMagic(header, length))
+            return null;
+        ObjectCodec codec = fromId(header[MAGIC.length] & 0xff);
+        if (codec == null)
+            throw new IOException("Unsupported object codec " + (header[MAGIC.length] & 0xff));
+        return codec;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the deflate level. Only meaningful for deflate codecs.
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Whether objects of this codec are deflate streams.
+     */
+    boolean isDeflate() {
+        return this != RAW;
+    }
+}
@@ -0,0 +1,161 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.StorageObjectLoader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Identifiers of all objects in a storage base, so membership checks do not touch the filesystem.
+ * Digests are stored in open-addressing tables, without an object for each entry.
+ * Thread-safe.
+ */
+final class ObjectIndex {
+
+    private final Map<IdentifierType, DigestSet> sets = new EnumMap<>(IdentifierType.class);
+
+    /**
+     * Load the index by listing the storage base once, in all layouts.
+     *
+     * @param backupStorageBase the base.
+     * @return the index. If the base does not exist, the index is empty.
+     * @throws IOException when failed to list the base.
+     */
+    static ObjectIndex load(Path backupStorageBase) throws IOException {
+        ObjectIndex index = new ObjectIndex();
+        StorageObjectLoader.forEachObject(backupStorageBase, (identifier, file) -> {
+            if (identifier instanceof SingleHashIdentifier)
+                index.add((SingleHashIdentifier) identifier);
+        });
+        return index;
+    }
+
+    synchronized boolean add(SingleHashIdentifier identifier) {
+        return sets.computeIfAbsent(identifier.getType(), type -> new DigestSet(type.getHashLength()))
+                .add(identifier.getHash());
+    }
+
+    synchronized boolean contains(SingleHashIdentifier identifier) {
+        DigestSet set = sets.get(identifier.getType());
+        return set != null && set.contains(identifier.getHash());
+    }
+
+    synchronized boolean remove(SingleHashIdentifier identifier) {
+        DigestSet set = sets.get(identifier.getType());
+        return set != null && set.remove(identifier.getHash());
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (DigestSet set : sets.values())
+            size += set.size;
+        return size;
+    }
+
+    /**
+     * A set of fixed-length digests with linear probing. Digests are uniformly distributed,
+     * so their leading bytes are used as hash codes directly.
+     */
+    private static final class DigestSet {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final int width;
+        private byte[] digests;
+        private boolean[] used;
+        private int mask;
+        private int size;
+
+        DigestSet(int width) {
+            this.width = width;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            digests = new byte[capacity * width];
+            used = new boolean[capacity];
+            mask = capacity - 1;
+        }
+
+        boolean contains(byte[] digest) {
+            return find(digest) >= 0;
+        }
+
+        boolean add(byte[] digest) {
+            if (find(digest) >= 0)
+                return false;
+            if ((size + 1) * 4L > used.length * 3L)
+                grow();
+            int slot = ~find(digest);
+            used[slot] = true;
+            System.arraycopy(digest, 0, digests, slot * width, width);
+            ++size;
+            return true;
+        }
+
+        boolean remove(byte[] digest) {
+            int hole = find(digest);
+            if (hole < 0)
+                return false;
+            // shift following entries back, so no lookup stops early at the hole
+            for (int slot = (hole + 1) & mask; used[slot]; slot = (slot + 1) & mask) {
+                int home = homeOf(digests, slot * width);
+                boolean movable = (slot > hole) ? (home <= hole || home > slot) : (home <= hole && home > slot);
+                if (movable) {
+                    System.arraycopy(digests, slot * width, digests, hole * width, width);
+                    hole = slot;
+                }
+            }
+            used[hole] = false;
+            --size;
+            return true;
+        }
+
+        /**
+         * @return the slot of the digest, or the bitwise complement of the free slot where it should be inserted.
+         */
+        private int find(byte[] digest) {
+            if (digest.length != width)
+                throw new IllegalArgumentException("digest length mismatch");
+            for (int slot = homeOf(digest, 0); ; slot = (slot + 1) & mask) {
+                if (!used[slot])
+                    return ~slot;
+                if (equalsAt(slot, digest))
+                    return slot;
+            }
+        }
+
+        private boolean equalsAt(int slot, byte[] digest) {
+            int offset = slot * width;
+            for (int i = 0; i < width; i++) {
+                if (digests[offset + i] != digest[i])
+                    return false;
+            }
+            return true;
+        }
+
+        private int homeOf(byte[] array, int offset) {
+            int hash = ((array[offset] & 0xff) << 24) | ((array[offset + 1] & 0xff) << 16)
+                    | ((array[offset + 2] & 0xff) << 8) | (array[offset + 3] & 0xff);
+            return hash & mask;
+        }
+
+        private void grow() {
+            byte[] oldDigests = digests;
+            boolean[] oldUsed = used;
+            allocate(oldUsed.length * 2);
+            byte[] digest = new byte[width];
+            for (int slot = 0; slot < oldUsed.length; slot++) {
+                if (!oldUsed[slot])
+                    continue;
+                System.arraycopy(oldDigests, slot * width, digest, 0, width);
+                int target = ~find(digest);
+                used[target] = true;
+                System.arraycopy(digest, 0, digests, target * width, width);
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+import com.keuin.kbackupfabric.util.BytesUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A finished pack of small objects. The pack file holds encoded objects back to back,
+ * and its index file holds their identifiers, sorted, with the range of each object.
+ * The index is memory-mapped and searched in place, so opening a pack costs no heap for its entries.
+ * Packs are never modified. Deleted objects are appended to a tombstone file and skipped,
+ * until the space is reclaimed by repacking. Thread-safe.
+ */
+final class ObjectPack {
+
+    static final String PACK_SUFFIX = ".pack";
+    static final String INDEX_SUFFIX = ".idx";
+    static final String TOMBSTONE_SUFFIX = ".deleted";
+
+    static final byte[] PACK_MAGIC = {'K', 'B', 'P', 'A', 'C', 'K', '\r', '\n'};
+    static final byte[] INDEX_MAGIC = {'K', 'B', 'P', 'I', 'D', 'X', '\r', '\n'};
+    static final int VERSION = 1;
+    // pack magic and version
+    static final int PACK_HEADER_LENGTH = PACK_MAGIC.length + 4;
+    // index magic, version, entry count and length of the pack
+    static final int INDEX_HEADER_LENGTH = INDEX_MAGIC.length + 4 + 4 + 8;
+    // entries are sorted by key: the marker, then the hash padded with zeros
+    static final int MARKER_LENGTH = 2;
+    static final int MAX_HASH_LENGTH = 32;
+    static final int KEY_LENGTH = MARKER_LENGTH + MAX_HASH_LENGTH;
+    // key, position and length
+    static final int ENTRY_LENGTH = KEY_LENGTH + 8 + 8;
+
+    private static final Logger LOGGER = Logger.getLogger(ObjectPack.class.getName());
+
+    private final Path packFile;
+    private final Path tombstoneFile;
+    private final MappedByteBuffer index;
+    private final int size;
+    private final Set<SingleHashIdentifier> deletedObjects = new HashSet<>();
+
+    private ObjectPack(Path packFile, Path tombstoneFile, MappedByteBuffer index, int size) {
+        this.packFile = packFile;
+        this.tombstoneFile = tombstoneFile;
+        this.index = index;
+        this.size = size;
+    }
+
+    /**
+     * Open a pack by its index file.
+     *
+     * @param indexFile the index file.
+     * @return the pack.
+     * @throws IOException when an I/O error occurs, or the pack is corrupted.
+     */
+    static ObjectPack open(Path indexFile) throws IOException {
+        String name = indexFile.getFileName().toString();
+        if (!name.endsWith(INDEX_SUFFIX))
+            throw new IllegalArgumentException("not an index file");
+        String baseName = name.substring(0, name.length() - INDEX_SUFFIX.length());
+        Path packFile = indexFile.resolveSibling(baseName + PACK_SUFFIX);
+        MappedByteBuffer index;
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() < INDEX_HEADER_LENGTH)
+                throw new IOException("Truncated pack index " + name);
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        byte[] magic = new byte[INDEX_MAGIC.length];
+        index.get(magic);
+        if (!Arrays.equals(magic, INDEX_MAGIC))
+            throw new IOException("Bad pack index " + name);
+        int version = index.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported pack index version " + version);
+        int size = index.getInt();
+        long packLength = index.getLong();
+        if (size < 0 || index.capacity() != INDEX_HEADER_LENGTH + (long) size * ENTRY_LENGTH)
+            throw new IOException("Truncated pack index " + name);
+        if (!Files.isRegularFile(packFile) || Files.size(packFile) != packLength)
+            throw new IOException("Missing or truncated pack " + packFile.getFileName());
+        ObjectPack pack = new ObjectPack(packFile, indexFile.resolveSibling(baseName + TOMBSTONE_SUFFIX), index, size);
+        pack.loadTombstones();
+        return pack;
+    }
+
+    /**
+     * Open all packs in a directory. Packs which cannot be opened are skipped with a warning.
+     * Pack files without an index, e.g. left by a crash, are ignored.
+     *
+     * @param directory the directory.
+     * @return the packs. If the directory does not exist, the list is empty.
+     * @throws IOException when failed to list the directory.
+     */
+    static List<ObjectPack> openAll(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return Collections.emptyList();
+        List<ObjectPack> packs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + INDEX_SUFFIX)) {
+            for (Path indexFile : stream) {
+                String name = indexFile.getFileName().toString();
+                Path packFile = indexFile.resolveSibling(name.substring(0, name.length() - INDEX_SUFFIX.length()) + PACK_SUFFIX);
+                if (!Files.exists(packFile)) {
+                    // left by a repack which failed to delete it, e.g. because it was still mapped
+                    Files.deleteIfExists(indexFile);
+                    continue;
+                }
+                try {
+                    packs.add(open(indexFile));
+                } catch (IOException e) {
+                    LOGGER.warning("Skipped pack " + indexFile.getFileName() + ": " + e);
+                }
+            }
+        }
+        return Collections.unmodifiableList(packs);
+    }
+
+    private void loadTombstones() throws IOException {
+        if (!Files.isRegularFile(tombstoneFile))
+            return;
+        try (BufferedReader reader = Files.newBufferedReader(tombstoneFile, StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                SingleHashIdentifier identifier = parseIdentification(line);
+                if (identifier != null)
+                    deletedObjects.add(identifier);
+            }
+        }
+    }
+
+    private static SingleHashIdentifier parseIdentification(String identification) {
+        int separator = identification.indexOf('-');
+        IdentifierType type = (separator > 0) ? IdentifierType.fromMarker(identification.substring(0, separator)) : null;
+        if (type == null || identification.length() != separator + 1 + type.getHashLength() * 2)
+            return null; // a partial line written by a crash
+        return type.fromHash(BytesUtil.hexToBytes(identification.substring(separator + 1)));
+    }
+
+    /**
+     * Build the key of an identifier in the index.
+     */
+    static byte[] toKey(SingleHashIdentifier identifier) {
+        String marker = identifier.getType().getMarker();
+        byte[] hash = identifier.getHash();
+        if (marker.length() != MARKER_LENGTH || hash.length > MAX_HASH_LENGTH)
+            throw new IllegalArgumentException("identifier cannot be packed: " + identifier.getIdentification());
+        byte[] key = new byte[KEY_LENGTH];
+        System.arraycopy(marker.getBytes(StandardCharsets.US_ASCII), 0, key, 0, MARKER_LENGTH);
+        System.arraycopy(hash, 0, key, MARKER_LENGTH, hash.length);
+        return key;
+    }
+
+    static int compareKeys(byte[] a, byte[] b) {
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0)
+                return difference;
+        }
+        return 0;
+    }
+
+    private int compareKeyAt(int entry, byte[] key) {
+        int offset = INDEX_HEADER_LENGTH + entry * ENTRY_LENGTH;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            int difference = (index.get(offset + i) & 0xff) - (key[i] & 0xff);
+            if (difference != 0)
+                return difference;
+        }
+        return 0;
+    }
+
+    /**
+     * Find an entry by binary search.
+     *
+     * @return the entry number. If the pack does not contain the object, return -1.
+     */
+    private int find(SingleHashIdentifier identifier) {
+        byte[] key = toKey(identifier);
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareKeyAt(middle, key);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    private long getPosition(int entry) {
+        return index.getLong(INDEX_HEADER_LENGTH + entry * ENTRY_LENGTH + KEY_LENGTH);
+    }
+
+    private long getLength(int entry) {
+        return index.getLong(INDEX_HEADER_LENGTH + entry * ENTRY_LENGTH + KEY_LENGTH + 8);
+    }
+
+    private SingleHashIdentifier getIdentifier(int entry) {
+        int offset = INDEX_HEADER_LENGTH + entry * ENTRY_LENGTH;
+        String marker = new String(new byte[]{index.get(offset), index.get(offset + 1)}, StandardCharsets.US_ASCII);
+        IdentifierType type = IdentifierType.fromMarker(marker);
+        if (type == null)
+            return null; // written by a newer version
+        byte[] hash = new byte[type.getHashLength()];
+        for (int i = 0; i < hash.length; i++)
+            hash[i] = index.get(offset + MARKER_LENGTH + i);
+        return type.fromHash(hash);
+    }
+
+    synchronized boolean contains(SingleHashIdentifier identifier) {
+        return find(identifier) >= 0 && !deletedObjects.contains(identifier);
+    }
+
+    /**
+     * Decode an object in this pack.
+     *
+     * @param identifier  the object.
+     * @param destination where the decoded data is written to.
+     * @return length of the decoded data. If the pack does not contain the object, return -1.
+     * @throws IOException when an I/O error occurs, or the object is corrupted.
+     */
+    long copy(SingleHashIdentifier identifier, WritableByteChannel destination) throws IOException {
+        int entry;
+        synchronized (this) {
+            entry = find(identifier);
+            if (entry < 0 || deletedObjects.contains(identifier))
+                return -1;
+        }
+        try (FileChannel channel = FileChannel.open(packFile, StandardOpenOption.READ)) {
+            return ObjectReader.copy(channel, getPosition(entry), getLength(entry), destination);
+        }
+    }
+
+    /**
+     * Copy an object in this pack as it is stored, without decoding it.
+     *
+     * @param identifier  the object.
+     * @param destination where the stored data is written to.
+     * @return length of the stored data. If the pack does not contain the object, return -1.
+     * @throws IOException when an I/O error occurs.
+     */
+    long copyStored(SingleHashIdentifier identifier, WritableByteChannel destination) throws IOException {
+        int entry;
+        synchronized (this) {
+            entry = find(identifier);
+            if (entry < 0 || deletedObjects.contains(identifier))
+                return -1;
+        }
+        try (FileChannel channel = FileChannel.open(packFile, StandardOpenOption.READ)) {
+            ObjectWriter.transferFully(channel, getPosition(entry), getLength(entry), destination);
+            return getLength(entry);
+        }
+    }
+
+    /**
+     * Delete an object from this pack. The space is reclaimed by repacking.
+     *
+     * @param identifier the object.
+     * @return whether the object has been deleted. If the pack does not contain it, return false.
+     * @throws IOException when failed to record the deletion.
+     */
+    synchronized boolean delete(SingleHashIdentifier identifier) throws IOException {
+        if (!contains(identifier))
+            return false;
+        try (Writer writer = Files.newBufferedWriter(tombstoneFile, StandardCharsets.US_ASCII,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writer.write(identifier.getIdentification());
+            writer.write('\n');
+        }
+        deletedObjects.add(identifier);
+        return true;
+    }
+
+    /**
+     * Visit all objects in this pack which are not deleted, in the order of their keys.
+     * The pack file is kept open during the visit.
+     *
+     * @param visitor the visitor.
+     * @throws IOException when an I/O error occurs, or thrown by the visitor.
+     */
+    void forEachObject(EntryVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(packFile, StandardOpenOption.READ)) {
+            for (int entry = 0; entry < size; entry++) {
+                SingleHashIdentifier identifier = getIdentifier(entry);
+                boolean deleted;
+                synchronized (this) {
+                    deleted = identifier == null || deletedObjects.contains(identifier);
+                }
+                if (!deleted)
+                    visitor.visit(identifier, channel, getPosition(entry), getLength(entry));
+            }
+        }
+    }
+
+    /**
+     * Get all files of this pack, including the tombstone file if it exists.
+     */
+    List<Path> getFiles() {
+        String packName = packFile.getFileName().toString();
+        String baseName = packName.substring(0, packName.length() - PACK_SUFFIX.length());
+        return Arrays.asList(packFile, packFile.resolveSibling(baseName + INDEX_SUFFIX), tombstoneFile);
+    }
+
+    /**
+     * Get the size of the pack file.
+     */
+    long getPackLength() {
+        return index.getLong(INDEX_MAGIC.length + 4 + 4);
+    }
+
+    static void writeIndexEntry(ByteBuffer buffer, byte[] key, long position, long length) {
+        buffer.put(key).putLong(position).putLong(length);
+    }
+
+    @Override
+    public String toString() {
+        return packFile.getFileName().toString();
+    }
+
+    interface EntryVisitor {
+        /**
+         * Visit an object in a pack.
+         *
+         * @param identifier identifier of the object.
+         * @param pack       the opened pack file.
+         * @param position   start position of the encoded object.
+         * @param length     length of the encoded object.
+         * @throws IOException when an I/O error occurs.
+         */
+        void visit(SingleHashIdentifier identifier, FileChannel pack, long position, long length) throws IOException;
+    }
+}
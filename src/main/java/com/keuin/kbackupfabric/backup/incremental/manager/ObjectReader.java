@@ -0,0 +1,112 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decode objects in the base, streaming them into the destination.
+ * Objects without a header are plain copies and are transferred without passing through memory.
+ */
+final class ObjectReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // decompressors hold native memory, so they are reused by each thread
+    private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    private ObjectReader() {
+    }
+
+    /**
+     * Decode an object.
+     *
+     * @param object      the object file.
+     * @param destination where the decoded data is written to.
+     * @return length of the decoded data.
+     * @throws IOException when an I/O error occurs, or the object is corrupted.
+     */
+    static long copy(Path object, WritableByteChannel destination) throws IOException {
+        try (FileChannel source = FileChannel.open(object, StandardOpenOption.READ)) {
+            return copy(source, 0, source.size(), destination);
+        }
+    }
+
+    /**
+     * Decode an object stored in a range of a file.
+     *
+     * @param source      the file.
+     * @param position    start position of the object.
+     * @param length      length of the stored object.
+     * @param destination where the decoded data is written to.
+     * @return length of the decoded data.
+     * @throws IOException when an I/O error occurs, or the object is corrupted.
+     */
+    static long copy(FileChannel source, long position, long length, WritableByteChannel destination) throws IOException {
+        Buffers localBuffers = buffers.get();
+        ByteBuffer header = ByteBuffer.wrap(localBuffers.input, 0, (int) Math.min(ObjectCodec.HEADER_LENGTH, length));
+        while (header.hasRemaining()) {
+            if (source.read(header, position + header.position()) < 0)
+                throw new IOException("Unexpected end of object");
+        }
+        ObjectCodec codec = ObjectCodec.fromHeader(localBuffers.input, header.position());
+        if (codec == null) {
+            ObjectWriter.transferFully(source, position, length, destination);
+            return length;
+        }
+        long dataPosition = position + ObjectCodec.HEADER_LENGTH;
+        long dataLength = length - ObjectCodec.HEADER_LENGTH;
+        if (!codec.isDeflate()) {
+            ObjectWriter.transferFully(source, dataPosition, dataLength, destination);
+            return dataLength;
+        }
+        return inflate(source, dataPosition, dataLength, destination, localBuffers);
+    }
+
+    private static long inflate(FileChannel source, long position, long length, WritableByteChannel destination,
+                                Buffers localBuffers) throws IOException {
+        Inflater inflater = localBuffers.inflater;
+        inflater.reset();
+        byte[] input = localBuffers.input;
+        byte[] output = localBuffers.output;
+        long remaining = length;
+        long decodedLength = 0;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (remaining <= 0)
+                        throw new IOException("Unexpected end of object");
+                    ByteBuffer buffer = ByteBuffer.wrap(input, 0, (int) Math.min(input.length, remaining));
+                    int readLength = source.read(buffer, position + length - remaining);
+                    if (readLength < 0)
+                        throw new IOException("Unexpected end of file");
+                    inflater.setInput(input, 0, readLength);
+                    remaining -= readLength;
+                }
+                int n = inflater.inflate(output);
+                if (n == 0 && inflater.needsDictionary())
+                    throw new IOException("Corrupted object: unexpected dictionary");
+                ByteBuffer buffer = ByteBuffer.wrap(output, 0, n);
+                while (buffer.hasRemaining())
+                    destination.write(buffer);
+                decodedLength += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted object: " + e.getMessage(), e);
+        }
+        if (remaining + inflater.getRemaining() > 0)
+            throw new IOException("Corrupted object: unexpected data after the end");
+        return decodedLength;
+    }
+
+    private static class Buffers {
+        private final byte[] input = new byte[BUFFER_SIZE];
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private final Inflater inflater = new Inflater();
+    }
+}
@@ -0,0 +1,208 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Encode an object while it is written to the base.
+ * The first bytes are kept as a probe. If the probe does not compress well, e.g. it is already compressed,
+ * the object is stored as it is. Otherwise it is stored with the configured codec.
+ * Closing the writer finishes the object, but does not close the destination. Not thread-safe.
+ */
+final class ObjectWriter implements WritableByteChannel {
+
+    static final int PROBE_SIZE = 64 * 1024;
+    // the probe must shrink at least to this ratio, or the object is not compressed
+    private static final double MAX_COMPRESSION_RATIO = 0.9;
+
+    // compressors hold native memory, so they are reused by each thread
+    private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    private final WritableByteChannel destination;
+    private final ObjectCodec codec;
+    private final Buffers localBuffers = buffers.get();
+    private int probeLength = 0;
+    private boolean decided = false;
+    private Deflater deflater; // null if the object is stored as it is
+    private boolean open = true;
+
+    /**
+     * Create a writer.
+     *
+     * @param destination where the encoded object is written to.
+     * @param codec       the preferred codec.
+     */
+    ObjectWriter(WritableByteChannel destination, ObjectCodec codec) {
+        this.destination = destination;
+        this.codec = codec;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        if (!open)
+            throw new IOException("Object writer is closed");
+        int length = source.remaining();
+        if (!decided) {
+            int probed = Math.min(length, PROBE_SIZE - probeLength);
+            source.get(localBuffers.probe, probeLength, probed);
+            probeLength += probed;
+            if (probeLength < PROBE_SIZE)
+                return length;
+            decide(false);
+        }
+        if (deflater == null) {
+            while (source.hasRemaining())
+                destination.write(source);
+        } else {
+            // the probe has been consumed, so it is free to hold the input
+            byte[] input = localBuffers.probe;
+            while (source.hasRemaining()) {
+                int n = Math.min(source.remaining(), input.length);
+                source.get(input, 0, n);
+                deflate(input, n);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Write a range of a file. Objects stored as they are do not pass through memory.
+     *
+     * @param source   the file.
+     * @param position start position of the range.
+     * @param length   length of the range.
+     * @throws IOException when an I/O error occurs, or the file is shorter than expected.
+     */
+    void transferFrom(FileChannel source, long position, long length) throws IOException {
+        if (!decided && probeLength == 0 && codec == ObjectCodec.RAW && length >= ObjectCodec.HEADER_LENGTH) {
+            ByteBuffer head = ByteBuffer.wrap(localBuffers.probe, 0, ObjectCodec.HEADER_LENGTH);
+            while (head.hasRemaining()) {
+                if (source.read(head, position + head.position()) < 0)
+                    throw new IOException("Unexpected end of file");
+            }
+            if (!ObjectCodec.startsWithMagic(localBuffers.probe, ObjectCodec.HEADER_LENGTH)) {
+                decided = true;
+                transferFully(source, position, length, destination);
+                return;
+            }
+        }
+        ByteBuffer buffer = localBuffers.transfer;
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            int readLength = source.read(buffer, position + length - remaining);
+            if (readLength < 0)
+                throw new IOException("Unexpected end of file");
+            buffer.flip();
+            write(buffer);
+            remaining -= readLength;
+        }
+    }
+
+    static void transferFully(FileChannel source, long position, long length, WritableByteChannel destination) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            long count = source.transferTo(position + transferred, length - transferred, destination);
+            if (count <= 0)
+                throw new IOException("Unexpected end of file");
+            transferred += count;
+        }
+    }
+
+    /**
+     * Choose how the object is stored by compressing the probe, then write the probe.
+     *
+     * @param complete whether the probe is the whole object.
+     */
+    private void decide(boolean complete) throws IOException {
+        decided = true;
+        byte[] probe = localBuffers.probe;
+        if (codec.isDeflate()) {
+            Deflater probeDeflater = localBuffers.getDeflater(codec);
+            byte[] output = localBuffers.output;
+            int limit = (int) (probeLength * MAX_COMPRESSION_RATIO);
+            int outputLength = 0;
+            probeDeflater.reset(); // a previous object may have failed halfway
+            probeDeflater.setInput(probe, 0, probeLength);
+            probeDeflater.finish();
+            while (!probeDeflater.finished() && outputLength < limit)
+                outputLength += probeDeflater.deflate(output, outputLength, limit - outputLength);
+            boolean compressible = probeDeflater.finished() && outputLength < limit;
+            probeDeflater.reset();
+            if (compressible) {
+                writeFully(codec.getHeader(), codec.getHeader().length);
+                if (complete) {
+                    // the compressed probe is the whole object
+                    writeFully(output, outputLength);
+                } else {
+                    deflater = probeDeflater;
+                    deflate(probe, probeLength);
+                }
+                return;
+            }
+        }
+        if (ObjectCodec.startsWithMagic(probe, probeLength)) {
+            // must not be mistaken for an encoded object
+            byte[] header = ObjectCodec.RAW.getHeader();
+            writeFully(header, header.length);
+        }
+        writeFully(probe, probeLength);
+    }
+
+    private void deflate(byte[] input, int length) throws IOException {
+        byte[] output = localBuffers.output;
+        deflater.setInput(input, 0, length);
+        while (!deflater.needsInput())
+            writeFully(output, deflater.deflate(output));
+    }
+
+    private void writeFully(byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining())
+            destination.write(buffer);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Finish the object.
+     *
+     * @throws IOException when an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        if (!decided) {
+            decide(true);
+        } else if (deflater != null) {
+            byte[] output = localBuffers.output;
+            deflater.finish();
+            while (!deflater.finished())
+                writeFully(output, deflater.deflate(output));
+            deflater.reset();
+        }
+    }
+
+    private static class Buffers {
+        private final byte[] probe = new byte[PROBE_SIZE];
+        private final byte[] output = new byte[PROBE_SIZE];
+        private final ByteBuffer transfer = ByteBuffer.allocate(PROBE_SIZE);
+        private final Deflater[] deflaters = new Deflater[ObjectCodec.values().length];
+
+        Deflater getDeflater(ObjectCodec codec) {
+            Deflater deflater = deflaters[codec.ordinal()];
+            if (deflater == null)
+                deflaters[codec.ordinal()] = deflater = new Deflater(codec.getLevel());
+            return deflater;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A pack being written. Encoded objects are appended to a pack file in the temporary directory,
+ * and their ranges are kept in memory. Finishing the pack writes the sorted index, then moves both files
+ * into the pack directory, so readers never see a partial pack. Thread-safe.
+ */
+final class PackWriter {
+
+    private final Path packFile;
+    private final Path indexFile;
+    private final FileChannel channel;
+    // position and length of each object
+    private final Map<SingleHashIdentifier, long[]> entries = new LinkedHashMap<>();
+    private boolean open = true;
+
+    /**
+     * Create an empty pack.
+     *
+     * @param temporaryDirectory where the pack is kept until finished.
+     * @throws IOException when failed to create the pack file.
+     */
+    PackWriter(Path temporaryDirectory) throws IOException {
+        String baseName = "pack-" + UUID.randomUUID().toString();
+        this.packFile = temporaryDirectory.resolve(baseName + ObjectPack.PACK_SUFFIX);
+        this.indexFile = temporaryDirectory.resolve(baseName + ObjectPack.INDEX_SUFFIX);
+        this.channel = FileChannel.open(packFile, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE_NEW);
+        ByteBuffer header = ByteBuffer.allocate(ObjectPack.PACK_HEADER_LENGTH);
+        header.put(ObjectPack.PACK_MAGIC).putInt(ObjectPack.VERSION).flip();
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    /**
+     * Append an encoded object stored in a file.
+     *
+     * @param identifier the object.
+     * @param object     the encoded object.
+     * @return whether the object has been appended. If the pack already contains it, return false.
+     * @throws IOException when an I/O error occurs.
+     */
+    boolean append(SingleHashIdentifier identifier, Path object) throws IOException {
+        try (FileChannel source = FileChannel.open(object, StandardOpenOption.READ)) {
+            return append(identifier, source, 0, source.size());
+        }
+    }
+
+    /**
+     * Append an encoded object stored in a range of a file, e.g. another pack.
+     *
+     * @param identifier the object.
+     * @param source     the file.
+     * @param position   start position of the object.
+     * @param length     length of the object.
+     * @return whether the object has been appended. If the pack already contains it, return false.
+     * @throws IOException when an I/O error occurs.
+     */
+    synchronized boolean append(SingleHashIdentifier identifier, FileChannel source, long position, long length) throws IOException {
+        if (!open)
+            throw new IOException("Pack writer is closed");
+        ObjectPack.toKey(identifier); // fail before writing if the identifier cannot be packed
+        if (entries.containsKey(identifier))
+            return false;
+        long start = channel.position();
+        try {
+            ObjectWriter.transferFully(source, position, length, channel);
+        } catch (IOException e) {
+            // drop the partial object, so the next one is appended at the right position
+            channel.truncate(start);
+            channel.position(start);
+            throw e;
+        }
+        entries.put(identifier, new long[]{start, length});
+        return true;
+    }
+
+    synchronized boolean contains(SingleHashIdentifier identifier) {
+        return entries.containsKey(identifier);
+    }
+
+    /**
+     * Remove an object. The bytes stay in the pack file, but the object is not written to the index.
+     *
+     * @return whether the object has been removed. If the pack does not contain it, return false.
+     */
+    synchronized boolean remove(SingleHashIdentifier identifier) {
+        return entries.remove(identifier) != null;
+    }
+
+    synchronized Collection<SingleHashIdentifier> getIdentifiers() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Decode an object in this pack.
+     *
+     * @return length of the decoded data. If the pack does not contain the object, return -1.
+     * @throws IOException when an I/O error occurs, or the object is corrupted.
+     */
+    long copy(SingleHashIdentifier identifier, WritableByteChannel destination) throws IOException {
+        long[] range;
+        synchronized (this) {
+            range = entries.get(identifier);
+        }
+        if (range == null)
+            return -1;
+        // positional reads do not disturb appending
+        return ObjectReader.copy(channel, range[0], range[1], destination);
+    }
+
+    /**
+     * Write the index and move the pack into the pack directory.
+     *
+     * @param packDirectory the pack directory, which is created if it does not exist.
+     * @return the finished pack. If the pack is empty, it is discarded and null is returned.
+     * @throws IOException when an I/O error occurs.
+     */
+    synchronized ObjectPack finish(Path packDirectory) throws IOException {
+        if (!open)
+            throw new IOException("Pack writer is closed");
+        if (entries.isEmpty()) {
+            abandon();
+            return null;
+        }
+        open = false;
+        long packLength;
+        try {
+            channel.force(true);
+            packLength = channel.size();
+        } finally {
+            channel.close();
+        }
+
+        List<Map.Entry<byte[], long[]>> sortedEntries = new ArrayList<>(entries.size());
+        for (Map.Entry<SingleHashIdentifier, long[]> entry : entries.entrySet())
+            sortedEntries.add(new AbstractMap.SimpleImmutableEntry<>(ObjectPack.toKey(entry.getKey()), entry.getValue()));
+        sortedEntries.sort((a, b) -> ObjectPack.compareKeys(a.getKey(), b.getKey()));
+        ByteBuffer index = ByteBuffer.allocate(ObjectPack.INDEX_HEADER_LENGTH + sortedEntries.size() * ObjectPack.ENTRY_LENGTH);
+        index.put(ObjectPack.INDEX_MAGIC).putInt(ObjectPack.VERSION).putInt(sortedEntries.size()).putLong(packLength);
+        for (Map.Entry<byte[], long[]> entry : sortedEntries)
+            ObjectPack.writeIndexEntry(index, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        index.flip();
+        try (FileChannel indexChannel = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            while (index.hasRemaining())
+                indexChannel.write(index);
+            indexChannel.force(true);
+        }
+
+        // the index is moved last, packs without an index are ignored
+        Files.createDirectories(packDirectory);
+        Path packTarget = packDirectory.resolve(packFile.getFileName());
+        Path indexTarget = packDirectory.resolve(indexFile.getFileName());
+        Files.move(packFile, packTarget, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(indexFile, indexTarget, StandardCopyOption.ATOMIC_MOVE);
+        return ObjectPack.open(indexTarget);
+    }
+
+    /**
+     * Discard the pack and all objects in it.
+     *
+     * @throws IOException when failed to delete the pack file.
+     */
+    synchronized void abandon() throws IOException {
+        if (open) {
+            open = false;
+            channel.close();
+        }
+        entries.clear();
+        Files.deleteIfExists(packFile);
+        Files.deleteIfExists(indexFile);
+    }
+}
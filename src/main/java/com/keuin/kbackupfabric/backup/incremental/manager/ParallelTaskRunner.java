@@ -0,0 +1,84 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Run an I/O task for each item of a list in a shared pool of threads, e.g. copying objects or listing directories.
+ * Every worker takes the next item until all items are taken. The first failure stops all workers and is rethrown.
+ */
+final class ParallelTaskRunner {
+
+    private static final Map<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    private ParallelTaskRunner() {
+    }
+
+    interface Task<T> {
+        void run(T item) throws IOException;
+    }
+
+    /**
+     * Run the task for each item.
+     *
+     * @param items   the items.
+     * @param threads max number of tasks running at the same time. If 1, tasks run in the calling thread.
+     * @param task    the task.
+     * @throws IOException the first failure of the tasks.
+     */
+    static <T> void forEach(List<T> items, int threads, Task<? super T> task) throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("thread count must be positive.");
+        if (threads == 1 || items.size() <= 1) {
+            for (T item : items)
+                task.run(item);
+            return;
+        }
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Callable<Void>> workers = new ArrayList<>(threads);
+        for (int i = 0; i < Math.min(threads, items.size()); i++) {
+            workers.add(() -> {
+                int index;
+                while (failure.get() == null && (index = next.getAndIncrement()) < items.size()) {
+                    try {
+                        task.run(items.get(index));
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+                return null;
+            });
+        }
+        for (Future<Void> future : getPool(threads).invokeAll(workers)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while running tasks", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    /**
+     * Get the shared pool with given parallelism. Idle workers of the pool exit after a while.
+     */
+    private static ForkJoinPool getPool(int parallelism) {
+        return pools.computeIfAbsent(parallelism, p -> new ForkJoinPool(p, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("KBackup-Worker-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false));
+    }
+}
@@ -0,0 +1,378 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * How many backups use each object in a storage base, so deleting a backup does not load all other backups.
+ * Saved as a snapshot and an append-only log of added and removed backups. When the log grows larger than
+ * the snapshot, the log is compacted into a new snapshot. Both carry a generation number, so a log
+ * which has been compacted is never replayed again, even if the compaction was interrupted.
+ * The names of counted backups are saved too, so the index can be checked against the backups which exist.
+ * Thread-safe.
+ */
+final class ReferenceIndex {
+
+    static final String SNAPSHOT_FILE_NAME = "kbackup_refs.snapshot";
+    static final String LOG_FILE_NAME = "kbackup_refs.log";
+
+    private static final byte[] SNAPSHOT_MAGIC = {'K', 'B', 'R', 'E', 'F', 'S', '\r', '\n'};
+    private static final byte[] LOG_MAGIC = {'K', 'B', 'R', 'L', 'O', 'G', '\r', '\n'};
+    private static final int VERSION = 1;
+    private static final int LOG_HEADER_LENGTH = LOG_MAGIC.length + 4 + 8;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    // small logs are not worth compacting
+    private static final long MIN_COMPACTION_LOG_LENGTH = 1024 * 1024;
+
+    private static final Logger LOGGER = Logger.getLogger(ReferenceIndex.class.getName());
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Set<String> backupNames = new HashSet<>();
+    private final Map<ObjectIdentifier, Integer> referenceCounts = new HashMap<>();
+    private long generation = 0;
+    private long snapshotLength = 0;
+    private long logLength = 0;
+    // false if there is no valid snapshot, then the index must be rebuilt from all backups
+    private boolean built = false;
+
+    private ReferenceIndex(Path backupStorageBase) {
+        this.snapshotFile = backupStorageBase.resolve(SNAPSHOT_FILE_NAME);
+        this.logFile = backupStorageBase.resolve(LOG_FILE_NAME);
+    }
+
+    /**
+     * Load the index of a base. A missing or corrupted snapshot is not an error,
+     * the index will be rebuilt by the next {@link #synchronize(BackupCollectionSource)}.
+     *
+     * @param backupStorageBase the base.
+     * @return the index.
+     * @throws IOException when an I/O error occurs.
+     */
+    static ReferenceIndex load(Path backupStorageBase) throws IOException {
+        ReferenceIndex index = new ReferenceIndex(backupStorageBase);
+        if (!Files.isRegularFile(index.snapshotFile))
+            return index;
+        try {
+            index.readSnapshot();
+            index.built = true;
+            index.replayLog();
+        } catch (IOException e) {
+            LOGGER.warning("Reference index is corrupted and will be rebuilt: " + e);
+            index.clear();
+        }
+        return index;
+    }
+
+    private void clear() {
+        backupNames.clear();
+        referenceCounts.clear();
+        built = false;
+    }
+
+    private void readSnapshot() throws IOException {
+        CRC32 checksum = new CRC32();
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(snapshotFile));
+             DataInputStream input = new DataInputStream(new CheckedInputStream(inputStream, checksum))) {
+            byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, SNAPSHOT_MAGIC))
+                throw new IOException("Bad snapshot");
+            int version = input.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version);
+            generation = input.readLong();
+            int backupCount = input.readInt();
+            for (int i = 0; i < backupCount; i++)
+                backupNames.add(input.readUTF());
+            int objectCount = input.readInt();
+            for (int i = 0; i < objectCount; i++)
+                referenceCounts.put(readIdentifier(input), input.readInt());
+            // the checksum itself is read around the checked stream
+            long expectedChecksum = checksum.getValue();
+            long storedChecksum = new DataInputStream(inputStream).readInt() & 0xffffffffL;
+            if (inputStream.read() >= 0)
+                throw new IOException("Unexpected data after the end");
+            if (storedChecksum != expectedChecksum)
+                throw new IOException("Checksum mismatch");
+        } catch (EOFException e) {
+            throw new IOException("Truncated snapshot", e);
+        }
+        snapshotLength = Files.size(snapshotFile);
+    }
+
+    private void replayLog() throws IOException {
+        if (!Files.isRegularFile(logFile))
+            return;
+        long goodLength = LOG_HEADER_LENGTH;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            byte[] magic = new byte[LOG_MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, LOG_MAGIC) || input.readInt() != VERSION || input.readLong() != generation) {
+                // compacted into the snapshot, or not written by this version
+                logLength = 0;
+                return;
+            }
+            while (true) {
+                byte[] record;
+                long storedChecksum;
+                try {
+                    int length = input.readInt();
+                    storedChecksum = input.readInt() & 0xffffffffL;
+                    if (length < 0 || length > Files.size(logFile))
+                        break;
+                    record = new byte[length];
+                    input.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 checksum = new CRC32();
+                checksum.update(record);
+                if (checksum.getValue() != storedChecksum)
+                    break;
+                applyRecord(new DataInputStream(new ByteArrayInputStream(record)));
+                goodLength += 8 + record.length;
+            }
+        } catch (EOFException e) {
+            logLength = 0; // truncated header
+            return;
+        }
+        if (goodLength < Files.size(logFile)) {
+            // the last record was interrupted, so the backup it records will be found by synchronizing
+            LOGGER.warning("Dropped a partial record in the reference log.");
+            try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                channel.truncate(goodLength);
+            }
+        }
+        logLength = goodLength;
+    }
+
+    private void applyRecord(DataInput input) throws IOException {
+        byte type = input.readByte();
+        String backupName = input.readUTF();
+        int objectCount = input.readInt();
+        List<ObjectIdentifier> objects = new ArrayList<>(objectCount);
+        for (int i = 0; i < objectCount; i++)
+            objects.add(readIdentifier(input));
+        if (type == RECORD_ADD)
+            apply(backupName, objects, true);
+        else if (type == RECORD_REMOVE)
+            apply(backupName, objects, false);
+        else
+            throw new IOException("Unknown record type " + type);
+    }
+
+    private boolean apply(String backupName, Collection<ObjectIdentifier> objects, boolean add) {
+        if (add ? !backupNames.add(backupName) : !backupNames.remove(backupName))
+            return false;
+        int delta = add ? 1 : -1;
+        for (ObjectIdentifier identifier : objects)
+            referenceCounts.compute(identifier, (key, count) -> {
+                int newCount = ((count != null) ? count : 0) + delta;
+                return (newCount > 0) ? newCount : null;
+            });
+        return true;
+    }
+
+    private static void writeIdentifier(DataOutput output, ObjectIdentifier identifier) throws IOException {
+        if (!(identifier instanceof SingleHashIdentifier))
+            throw new IllegalArgumentException("not a stored object: " + identifier.getIdentification());
+        SingleHashIdentifier singleHashIdentifier = (SingleHashIdentifier) identifier;
+        output.write(singleHashIdentifier.getType().getMarker().getBytes(StandardCharsets.US_ASCII));
+        output.write(singleHashIdentifier.getHash());
+    }
+
+    private static ObjectIdentifier readIdentifier(DataInput input) throws IOException {
+        byte[] marker = new byte[2];
+        input.readFully(marker);
+        IdentifierType type = IdentifierType.fromMarker(new String(marker, StandardCharsets.US_ASCII));
+        if (type == null)
+            throw new IOException("Unknown identifier type " + new String(marker, StandardCharsets.US_ASCII));
+        byte[] hash = new byte[type.getHashLength()];
+        input.readFully(hash);
+        return type.fromHash(hash);
+    }
+
+    /**
+     * Whether the index counts a backup.
+     */
+    synchronized boolean contains(String backupName) {
+        return backupNames.contains(backupName);
+    }
+
+    /**
+     * Get how many backups use an object.
+     */
+    synchronized int getCount(ObjectIdentifier identifier) {
+        return referenceCounts.getOrDefault(identifier, 0);
+    }
+
+    /**
+     * Count a backup.
+     *
+     * @param backupName name of the backup.
+     * @param objects    distinct objects stored for the backup.
+     * @return whether the backup has been added. If it was counted already, return false.
+     * @throws IOException when failed to save the change.
+     */
+    synchronized boolean add(String backupName, Collection<ObjectIdentifier> objects) throws IOException {
+        return record(RECORD_ADD, backupName, objects);
+    }
+
+    /**
+     * Stop counting a backup.
+     *
+     * @param backupName name of the backup.
+     * @param objects    distinct objects stored for the backup, the same as when it was added.
+     * @return whether the backup has been removed. If it was not counted, return false.
+     * @throws IOException when failed to save the change.
+     */
+    synchronized boolean remove(String backupName, Collection<ObjectIdentifier> objects) throws IOException {
+        return record(RECORD_REMOVE, backupName, objects);
+    }
+
+    private boolean record(byte type, String backupName, Collection<ObjectIdentifier> objects) throws IOException {
+        if (!built || (type == RECORD_ADD) == backupNames.contains(backupName))
+            return false; // an unbuilt index is rebuilt from all backups anyway
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+        output.writeByte(type);
+        output.writeUTF(backupName);
+        output.writeInt(objects.size());
+        for (ObjectIdentifier identifier : objects)
+            writeIdentifier(output, identifier);
+        output.flush();
+        appendLog(buffer.toByteArray());
+        apply(backupName, objects, type == RECORD_ADD);
+        if (logLength > Math.max(MIN_COMPACTION_LOG_LENGTH, snapshotLength))
+            compact();
+        return true;
+    }
+
+    private void appendLog(byte[] record) throws IOException {
+        if (logLength == 0)
+            writeEmptyLog();
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + record.length);
+        buffer.putInt(record.length).putInt((int) checksum.getValue()).put(record).flip();
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+            channel.position(logLength);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        }
+        logLength += 8 + record.length;
+    }
+
+    private void writeEmptyLog() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_LENGTH);
+        header.put(LOG_MAGIC).putInt(VERSION).putLong(generation).flip();
+        Path temporaryFile = logFile.resolveSibling(LOG_FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining())
+                channel.write(header);
+            channel.force(false);
+        }
+        Files.move(temporaryFile, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logLength = LOG_HEADER_LENGTH;
+    }
+
+    /**
+     * Write all counts into a new snapshot and start an empty log.
+     *
+     * @throws IOException when failed to write the snapshot.
+     */
+    synchronized void compact() throws IOException {
+        long newGeneration = generation + 1;
+        Path temporaryFile = snapshotFile.resolveSibling(SNAPSHOT_FILE_NAME + ".tmp");
+        Files.createDirectories(snapshotFile.getParent());
+        CRC32 checksum = new CRC32();
+        try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(temporaryFile))) {
+            DataOutputStream output = new DataOutputStream(new CheckedOutputStream(outputStream, checksum));
+            output.write(SNAPSHOT_MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(newGeneration);
+            output.writeInt(backupNames.size());
+            for (String backupName : backupNames)
+                output.writeUTF(backupName);
+            output.writeInt(referenceCounts.size());
+            for (Map.Entry<ObjectIdentifier, Integer> entry : referenceCounts.entrySet()) {
+                writeIdentifier(output, entry.getKey());
+                output.writeInt(entry.getValue());
+            }
+            output.flush();
+            new DataOutputStream(outputStream).writeInt((int) checksum.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // from now on, the old log is ignored because of its generation
+        generation = newGeneration;
+        snapshotLength = Files.size(snapshotFile);
+        built = true;
+        writeEmptyLog();
+    }
+
+    /**
+     * Make the index count exactly the given backups. Backups missing in the index are loaded and added.
+     * If the index counts a backup which does not exist any more, or has never been built,
+     * it is rebuilt by loading all backups one by one.
+     *
+     * @param backups the backups.
+     * @throws IOException when failed to load a backup, or to save the index.
+     */
+    synchronized void synchronize(BackupCollectionSource backups) throws IOException {
+        Set<String> existingBackups = backups.getBackupNames();
+        if (!built || !existingBackups.containsAll(backupNames)) {
+            LOGGER.info(String.format("Rebuilding reference index from %d backup(s).", existingBackups.size()));
+            clear();
+            for (String backupName : existingBackups)
+                apply(backupName, IncrementalBackupStorageManager.getStoredObjects(backups.getCompactObjectCollection(backupName)), true);
+            compact();
+            return;
+        }
+        for (String backupName : existingBackups) {
+            if (!backupNames.contains(backupName)) {
+                LOGGER.info("Adding backup " + backupName + " to reference index.");
+                add(backupName, IncrementalBackupStorageManager.getStoredObjects(backups.getCompactObjectCollection(backupName)));
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import java.util.Objects;
+
+/**
+ * Returned by `repack` in IncrementalBackupStorageManager.
+ * Immutable.
+ */
+public class RepackResult {
+
+    private final int packedObjects;
+    private final int looseObjects;
+    private final long reclaimedBytes;
+
+    public RepackResult(int packedObjects, int looseObjects, long reclaimedBytes) {
+        this.packedObjects = packedObjects;
+        this.looseObjects = looseObjects;
+        this.reclaimedBytes = reclaimedBytes;
+    }
+
+    /**
+     * Get objects in the new pack.
+     *
+     * @return object count.
+     */
+    public int getPackedObjects() {
+        return packedObjects;
+    }
+
+    /**
+     * Get loose objects moved into the new pack.
+     *
+     * @return object count.
+     */
+    public int getLooseObjects() {
+        return looseObjects;
+    }
+
+    /**
+     * Get bytes freed by dropping objects of deleted backups from packs, and by packing loose objects.
+     * The space saved on block boundaries of loose objects is not counted.
+     *
+     * @return bytes.
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RepackResult that = (RepackResult) o;
+        return packedObjects == that.packedObjects &&
+                looseObjects == that.looseObjects &&
+                reclaimedBytes == that.reclaimedBytes;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(packedObjects, looseObjects, reclaimedBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "RepackResult{" +
+                "packedObjects=" + packedObjects +
+                ", looseObjects=" + looseObjects +
+                ", reclaimedBytes=" + reclaimedBytes +
+                '}';
+    }
+}
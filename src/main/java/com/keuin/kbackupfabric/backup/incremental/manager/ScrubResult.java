@@ -0,0 +1,88 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+
+import java.util.*;
+
+/**
+ * Returned by `scrub` in IncrementalBackupStorageManager.
+ * Immutable.
+ */
+public class ScrubResult {
+
+    private final int checkedObjects;
+    private final long checkedBytes;
+    private final Map<ObjectIdentifier, Set<String>> corruptedObjects;
+
+    public ScrubResult(int checkedObjects, long checkedBytes, Map<ObjectIdentifier, Set<String>> corruptedObjects) {
+        this.checkedObjects = checkedObjects;
+        this.checkedBytes = checkedBytes;
+        Map<ObjectIdentifier, Set<String>> map = new LinkedHashMap<>();
+        corruptedObjects.forEach((identifier, backups) ->
+                map.put(identifier, Collections.unmodifiableSet(new TreeSet<>(backups))));
+        this.corruptedObjects = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Get objects read and hashed.
+     *
+     * @return object count.
+     */
+    public int getCheckedObjects() {
+        return checkedObjects;
+    }
+
+    /**
+     * Get bytes hashed, after decoding.
+     *
+     * @return bytes.
+     */
+    public long getCheckedBytes() {
+        return checkedBytes;
+    }
+
+    /**
+     * Get objects whose data does not match their identifiers, or which cannot be decoded,
+     * with the names of backups using each of them.
+     *
+     * @return the objects. If nothing is corrupted, the map is empty.
+     */
+    public Map<ObjectIdentifier, Set<String>> getCorruptedObjects() {
+        return corruptedObjects;
+    }
+
+    /**
+     * Get backups using any corrupted object. They cannot be restored completely.
+     *
+     * @return names of the backups, sorted.
+     */
+    public Set<String> getAffectedBackups() {
+        Set<String> backups = new TreeSet<>();
+        corruptedObjects.values().forEach(backups::addAll);
+        return backups;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ScrubResult that = (ScrubResult) o;
+        return checkedObjects == that.checkedObjects &&
+                checkedBytes == that.checkedBytes &&
+                corruptedObjects.equals(that.corruptedObjects);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(checkedObjects, checkedBytes, corruptedObjects);
+    }
+
+    @Override
+    public String toString() {
+        return "ScrubResult{" +
+                "checkedObjects=" + checkedObjects +
+                ", checkedBytes=" + checkedBytes +
+                ", corruptedObjects=" + corruptedObjects +
+                '}';
+    }
+}
@@ -0,0 +1,420 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Settings of a storage base, saved as a properties file in the base.
+ * Bases created by older versions have no such file, they get the default settings, which keep writing objects
+ * the way those versions did. New bases start with {@link #NEW_BASE} instead.
+ * Immutable.
+ */
+public class StorageBaseProperties {
+
+    public static final String FILE_NAME = "kbackup_base.properties";
+    public static final StorageBaseProperties DEFAULT = new StorageBaseProperties(IdentifierType.SHA256, StorageLayout.FLAT, ObjectCodec.RAW,
+            0, 0, false, -1, 64 * 1024, 1, false, true, 4, 64 * 1024 * 1024);
+    /**
+     * Settings saved into bases created by this version, where no older version has written objects.
+     */
+    public static final StorageBaseProperties NEW_BASE = DEFAULT.withCodec(ObjectCodec.DEFLATE).withPackLimit(32 * 1024);
+
+    private static final String KEY_IDENTIFIER = "identifier";
+    private static final String KEY_LAYOUT = "layout";
+    private static final String KEY_CODEC = "codec";
+    private static final String KEY_PACK_LIMIT = "packLimit";
+    private static final String KEY_SCRUB_PART = "scrubPart";
+    private static final String KEY_REGION_CHUNKING = "regionChunking";
+    private static final String KEY_CHUNKING_MIN_FILE_SIZE = "chunkingMinFileSize";
+    private static final String KEY_CHUNKING_AVERAGE_SIZE = "chunkingAverageSize";
+    private static final String KEY_INDEX_CHECKPOINT_INTERVAL = "indexCheckpointInterval";
+    private static final String KEY_PARANOID_HASHING = "paranoidHashing";
+    private static final String KEY_SINGLE_PASS_COPY = "singlePassCopy";
+    private static final String KEY_COPY_THREADS = "copyThreads";
+    private static final String KEY_COPY_BYTES_IN_FLIGHT = "copyBytesInFlight";
+
+    private final IdentifierType identifierType;
+    private final StorageLayout layout;
+    private final ObjectCodec codec;
+    private final int packLimit;
+    private final int scrubPart;
+    private final boolean regionChunking;
+    private final long chunkingMinFileSize;
+    private final int chunkingAverageSize;
+    private final int indexCheckpointInterval;
+    private final boolean paranoidHashing;
+    private final boolean singlePassCopy;
+    private final int copyThreads;
+    private final int copyBytesInFlight;
+
+    private StorageBaseProperties(IdentifierType identifierType, StorageLayout layout, ObjectCodec codec, int packLimit,
+                                  int scrubPart, boolean regionChunking, long chunkingMinFileSize, int chunkingAverageSize,
+                                  int indexCheckpointInterval, boolean paranoidHashing,
+                                  boolean singlePassCopy, int copyThreads, int copyBytesInFlight) {
+        this.identifierType = Objects.requireNonNull(identifierType);
+        this.layout = Objects.requireNonNull(layout);
+        this.codec = Objects.requireNonNull(codec);
+        if (packLimit < 0)
+            throw new IllegalArgumentException("pack limit must not be negative");
+        this.packLimit = packLimit;
+        if (scrubPart < 0)
+            throw new IllegalArgumentException("scrub part must not be negative");
+        this.scrubPart = scrubPart;
+        this.regionChunking = regionChunking;
+        this.chunkingMinFileSize = chunkingMinFileSize;
+        if (chunkingAverageSize < 256 || Integer.bitCount(chunkingAverageSize) != 1 || chunkingAverageSize > (1 << 26))
+            throw new IllegalArgumentException("average chunk size must be a power of 2 in range [256, 64M]");
+        this.chunkingAverageSize = chunkingAverageSize;
+        if (indexCheckpointInterval <= 0)
+            throw new IllegalArgumentException("checkpoint interval must be positive");
+        this.indexCheckpointInterval = indexCheckpointInterval;
+        this.paranoidHashing = paranoidHashing;
+        this.singlePassCopy = singlePassCopy;
+        if (copyThreads <= 0 || copyBytesInFlight <= 0)
+            throw new IllegalArgumentException("copy threads and bytes in flight must be positive");
+        this.copyThreads = copyThreads;
+        this.copyBytesInFlight = copyBytesInFlight;
+    }
+
+    /**
+     * Load the properties of a base.
+     *
+     * @param base the base directory.
+     * @return the properties. If the base has no properties file, return the default.
+     * @throws IOException when an I/O error occurs, or the file is malformed.
+     */
+    public static StorageBaseProperties load(Path base) throws IOException {
+        Path file = base.resolve(FILE_NAME);
+        if (!Files.isRegularFile(file))
+            return DEFAULT;
+        Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            properties.load(inputStream);
+        }
+        String marker = properties.getProperty(KEY_IDENTIFIER, DEFAULT.identifierType.getMarker());
+        IdentifierType identifierType = IdentifierType.fromMarker(marker);
+        if (identifierType == null)
+            throw new IOException("Unsupported identifier type in " + FILE_NAME + ": " + marker);
+        String layoutName = properties.getProperty(KEY_LAYOUT, DEFAULT.layout.getName());
+        StorageLayout layout = StorageLayout.fromName(layoutName);
+        if (layout == null)
+            throw new IOException("Unsupported layout in " + FILE_NAME + ": " + layoutName);
+        String codecName = properties.getProperty(KEY_CODEC, DEFAULT.codec.getName());
+        ObjectCodec codec = ObjectCodec.fromName(codecName);
+        if (codec == null)
+            throw new IOException("Unsupported codec in " + FILE_NAME + ": " + codecName);
+        int packLimit = (int) getNumber(properties, KEY_PACK_LIMIT, DEFAULT.packLimit, 0, Integer.MAX_VALUE, "pack limit");
+        int scrubPart = (int) getNumber(properties, KEY_SCRUB_PART, DEFAULT.scrubPart, 0, Integer.MAX_VALUE, "scrub part");
+        boolean regionChunking = getSwitch(properties, KEY_REGION_CHUNKING, DEFAULT.regionChunking, "region chunking switch");
+        long chunkingMinFileSize = getNumber(properties, KEY_CHUNKING_MIN_FILE_SIZE, DEFAULT.chunkingMinFileSize,
+                -1, Long.MAX_VALUE, "chunking min file size");
+        int chunkingAverageSize = (int) getNumber(properties, KEY_CHUNKING_AVERAGE_SIZE, DEFAULT.chunkingAverageSize,
+                256, 1 << 26, "chunking average size");
+        if (Integer.bitCount(chunkingAverageSize) != 1)
+            throw new IOException("Chunking average size in " + FILE_NAME + " is not a power of 2: " + chunkingAverageSize);
+        int indexCheckpointInterval = (int) getNumber(properties, KEY_INDEX_CHECKPOINT_INTERVAL,
+                DEFAULT.indexCheckpointInterval, 1, Integer.MAX_VALUE, "index checkpoint interval");
+        boolean paranoidHashing = getSwitch(properties, KEY_PARANOID_HASHING, DEFAULT.paranoidHashing, "paranoid hashing switch");
+        boolean singlePassCopy = getSwitch(properties, KEY_SINGLE_PASS_COPY, DEFAULT.singlePassCopy, "single-pass copy switch");
+        int copyThreads = (int) getNumber(properties, KEY_COPY_THREADS, DEFAULT.copyThreads, 1, Integer.MAX_VALUE, "copy threads");
+        int copyBytesInFlight = (int) getNumber(properties, KEY_COPY_BYTES_IN_FLIGHT, DEFAULT.copyBytesInFlight,
+                1, Integer.MAX_VALUE, "copy bytes in flight");
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    private static boolean getSwitch(Properties properties, String key, boolean defaultValue,
+                                     String description) throws IOException {
+        String value = properties.getProperty(key, String.valueOf(defaultValue)).trim();
+        if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+            throw new IOException("Invalid " + description + " in " + FILE_NAME + ": " + value);
+        return Boolean.parseBoolean(value);
+    }
+
+    private static long getNumber(Properties properties, String key, long defaultValue, long min, long max,
+                                  String description) throws IOException {
+        String value = properties.getProperty(key, String.valueOf(defaultValue));
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number >= min && number <= max)
+                return number;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IOException("Invalid " + description + " in " + FILE_NAME + ": " + value);
+    }
+
+    /**
+     * Save the properties to a base. The base directory must exist.
+     *
+     * @param base the base directory.
+     * @throws IOException when an I/O error occurs.
+     */
+    public void save(Path base) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_IDENTIFIER, identifierType.getMarker());
+        properties.setProperty(KEY_LAYOUT, layout.getName());
+        properties.setProperty(KEY_CODEC, codec.getName());
+        properties.setProperty(KEY_PACK_LIMIT, String.valueOf(packLimit));
+        properties.setProperty(KEY_SCRUB_PART, String.valueOf(scrubPart));
+        properties.setProperty(KEY_REGION_CHUNKING, String.valueOf(regionChunking));
+        properties.setProperty(KEY_CHUNKING_MIN_FILE_SIZE, String.valueOf(chunkingMinFileSize));
+        properties.setProperty(KEY_CHUNKING_AVERAGE_SIZE, String.valueOf(chunkingAverageSize));
+        properties.setProperty(KEY_INDEX_CHECKPOINT_INTERVAL, String.valueOf(indexCheckpointInterval));
+        properties.setProperty(KEY_PARANOID_HASHING, String.valueOf(paranoidHashing));
+        properties.setProperty(KEY_SINGLE_PASS_COPY, String.valueOf(singlePassCopy));
+        properties.setProperty(KEY_COPY_THREADS, String.valueOf(copyThreads));
+        properties.setProperty(KEY_COPY_BYTES_IN_FLIGHT, String.valueOf(copyBytesInFlight));
+        Path file = base.resolve(FILE_NAME);
+        Path tempFile = base.resolve(FILE_NAME + ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(tempFile)) {
+            properties.store(outputStream, "KBackup storage base");
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Get the type of identifiers used for new objects.
+     * Objects of other types may still exist in the base.
+     *
+     * @return the type.
+     */
+    public IdentifierType getIdentifierType() {
+        return identifierType;
+    }
+
+    /**
+     * Get where new objects are placed. Objects placed in other layouts are still found.
+     *
+     * @return the layout.
+     */
+    public StorageLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Get how new objects are encoded. Objects encoded with other codecs are still readable.
+     *
+     * @return the codec.
+     */
+    public ObjectCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Get the max size of encoded objects which are written into packs instead of files of their own.
+     * Packed objects are never unpacked and older versions cannot read them, so only new bases pack by default.
+     *
+     * @return the size in bytes. If 0, new objects are never packed.
+     */
+    public int getPackLimit() {
+        return packLimit;
+    }
+
+    /**
+     * Get the part of the base checked by the next partial scrub, so each run checks another part.
+     *
+     * @return the part number, to be taken modulo the number of parts.
+     */
+    public int getScrubPart() {
+        return scrubPart;
+    }
+
+    /**
+     * Whether new backups store region files chunk by chunk, so unchanged chunks are shared between backups.
+     * Off unless enabled in the properties file, since older versions cannot restore such backups.
+     *
+     * @return whether region chunking is enabled.
+     */
+    public boolean isRegionChunking() {
+        return regionChunking;
+    }
+
+    /**
+     * Get the size from which files other than region files are split into content-defined chunks by new backups.
+     * Disabled unless set in the properties file, since older versions cannot restore such backups.
+     *
+     * @return the size in bytes. If negative, content-defined chunking is disabled.
+     */
+    public long getChunkingMinFileSize() {
+        return chunkingMinFileSize;
+    }
+
+    /**
+     * Get the expected average size of content-defined chunks.
+     *
+     * @return the size in bytes, a power of 2.
+     */
+    public int getChunkingAverageSize() {
+        return chunkingAverageSize;
+    }
+
+    /**
+     * Get how often new backups save a full index. Indexes in between only store the differences to the previous backup.
+     * Older versions cannot read such indexes, so every index is full unless set in the properties file.
+     *
+     * @return max number of indexes in a chain, including the full one at its start. If 1, every index is full.
+     */
+    public int getIndexCheckpointInterval() {
+        return indexCheckpointInterval;
+    }
+
+    /**
+     * Whether new backups ignore the fingerprint cache and hash every file, instead of trusting files
+     * whose size and modification time did not change since the previous backup.
+     *
+     * @return whether paranoid hashing is enabled.
+     */
+    public boolean isParanoidHashing() {
+        return paranoidHashing;
+    }
+
+    /**
+     * Whether new backups copy files into the base while hashing them, instead of hashing all files first.
+     * Turning it off reads changed files twice, but no temporary object is written for files already in the base.
+     *
+     * @return whether single-pass copying is enabled.
+     */
+    public boolean isSinglePassCopy() {
+        return singlePassCopy;
+    }
+
+    /**
+     * Get the max number of objects copied into the base at the same time by new backups.
+     * Solid-state storage is faster with more copies in flight, spinning disks may prefer 1.
+     *
+     * @return the thread count.
+     */
+    public int getCopyThreads() {
+        return copyThreads;
+    }
+
+    /**
+     * Get the max total size of objects copied into the base at the same time by new backups.
+     *
+     * @return the size in bytes.
+     */
+    public int getCopyBytesInFlight() {
+        return copyBytesInFlight;
+    }
+
+    public StorageBaseProperties withIdentifierType(IdentifierType identifierType) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withLayout(StorageLayout layout) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withCodec(ObjectCodec codec) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withPackLimit(int packLimit) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withScrubPart(int scrubPart) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withRegionChunking(boolean regionChunking) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withContentDefinedChunking(long minFileSize, int averageSize) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                minFileSize, averageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withIndexCheckpointInterval(int indexCheckpointInterval) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withParanoidHashing(boolean paranoidHashing) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withSinglePassCopy(boolean singlePassCopy) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    public StorageBaseProperties withParallelCopy(int copyThreads, int copyBytesInFlight) {
+        return new StorageBaseProperties(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        StorageBaseProperties that = (StorageBaseProperties) o;
+        return identifierType == that.identifierType &&
+                layout == that.layout &&
+                codec == that.codec &&
+                packLimit == that.packLimit &&
+                scrubPart == that.scrubPart &&
+                regionChunking == that.regionChunking &&
+                chunkingMinFileSize == that.chunkingMinFileSize &&
+                chunkingAverageSize == that.chunkingAverageSize &&
+                indexCheckpointInterval == that.indexCheckpointInterval &&
+                paranoidHashing == that.paranoidHashing &&
+                singlePassCopy == that.singlePassCopy &&
+                copyThreads == that.copyThreads &&
+                copyBytesInFlight == that.copyBytesInFlight;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(identifierType, layout, codec, packLimit, scrubPart, regionChunking,
+                chunkingMinFileSize, chunkingAverageSize, indexCheckpointInterval, paranoidHashing, singlePassCopy,
+                copyThreads, copyBytesInFlight);
+    }
+
+    @Override
+    public String toString() {
+        return "StorageBaseProperties{" +
+                "identifierType=" + identifierType +
+                ", layout=" + layout +
+                ", codec=" + codec +
+                ", packLimit=" + packLimit +
+                ", scrubPart=" + scrubPart +
+                ", regionChunking=" + regionChunking +
+                ", chunkingMinFileSize=" + chunkingMinFileSize +
+                ", chunkingAverageSize=" + chunkingAverageSize +
+                ", indexCheckpointInterval=" + indexCheckpointInterval +
+                ", paranoidHashing=" + paranoidHashing +
+                ", singlePassCopy=" + singlePassCopy +
+                ", copyThreads=" + copyThreads +
+                ", copyBytesInFlight=" + copyBytesInFlight +
+                '}';
+    }
+}
@@ -0,0 +1,57 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Where objects are placed in a storage base.
+ */
+public enum StorageLayout {
+    /**
+     * All objects are placed in the base directory. Readable by all versions.
+     */
+    FLAT,
+    /**
+     * Objects are placed in two levels of directories named after the leading bytes of their hash,
+     * e.g. `AB/CD/S2-ABCD...`, so no directory holds too many files.
+     */
+    SHARDED;
+
+    private static final int SHARD_NAME_LENGTH = 2;
+
+    /**
+     * Get the layout by its name in the properties file.
+     *
+     * @param name the name.
+     * @return the layout. If no layout has such name, return null.
+     */
+    public static StorageLayout fromName(String name) {
+        for (StorageLayout layout : values()) {
+            if (layout.getName().equalsIgnoreCase(name))
+                return layout;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Get the path of an object in this layout.
+     *
+     * @param base           the base directory.
+     * @param identification identification of the object, i.e. its file name.
+     * @return the path.
+     */
+    public Path resolve(Path base, String identification) {
+        if (this == FLAT)
+            return base.resolve(identification);
+        int hashStart = identification.indexOf('-') + 1;
+        if (hashStart <= 0 || identification.length() < hashStart + SHARD_NAME_LENGTH * 2)
+            return base.resolve(identification); // not a hash, never sharded
+        return base.resolve(identification.substring(hashStart, hashStart + SHARD_NAME_LENGTH))
+                .resolve(identification.substring(hashStart + SHARD_NAME_LENGTH, hashStart + SHARD_NAME_LENGTH * 2))
+                .resolve(identification);
+    }
+}
@@ -0,0 +1,727 @@
+package com.keuin.kbackupfabric.backup.incremental.serializer;
+
+import com.keuin.kbackupfabric.backup.incremental.CompactObjectCollection;
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
+import com.keuin.kbackupfabric.backup.incremental.ObjectElement;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ChunkListIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * The binary format of incremental backup index files, replacing Java serialization.
+ * <p>
+ * Layout, all integers big-endian:
+ * <pre>
+ * magic "KBINDEX" 0x1A, int version, int flags, int header length, header, int header CRC32, body, int CRC32
+ * header: UTF backup name, long epoch second, int nano, UTF zone, long total size, long increased size,
+ *         int files added, int total files
+ * body:   varint string count, strings (varint length, UTF-8 bytes), root collection
+ * collection: varint name, varint element count, elements (varint name, identifier),
+ *             varint sub-collection count, sub-collections
+ * identifier: byte 1, varint type, hash; or byte 2, varint type, varint chunk count,
+ *             chunks (varint type, hash, varint length)
+ * </pre>
+ * Names and identifier types are indices into the string table. Hashes are raw bytes, their length is given by the type.
+ * If flag {@link #FLAG_DEFLATE} is set, the body and the checksum are deflated.
+ * The header checksum covers the header, so it can be read alone by {@link #readMetadata(InputStream)}.
+ * The last checksum covers the header and the uncompressed body.
+ * Version 1 has no header checksum.
+ * <p>
+ * Since version 3, flag {@link #FLAG_DELTA} marks a delta index, which stores only the differences to a parent index:
+ * <pre>
+ * header: as above, then UTF parent file name, int chain length
+ * body:   varint string count, strings, varint root name, root delta
+ * delta:  varint removed element count, names, varint changed element count, elements,
+ *         varint removed sub-collection count, names, varint added sub-collection count, sub-collections,
+ *         varint changed sub-collection count, changed sub-collections (varint name, delta)
+ * </pre>
+ * Unchanged sub-collections are not written. Full indexes are still written in version 2.
+ */
+public final class IncBackupIndexFormat {
+
+    static final byte[] MAGIC = {'K', 'B', 'I', 'N', 'D', 'E', 'X', 0x1A};
+    static final int VERSION = 2;
+    static final int DELTA_VERSION = 3;
+    private static final int MIN_VERSION = 1;
+    static final int FLAG_DEFLATE = 1;
+    static final int FLAG_DELTA = 2;
+
+    private static final int TAG_SINGLE_HASH = 1;
+    private static final int TAG_CHUNK_LIST = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_STRING_LENGTH = 64 * 1024;
+
+    private IncBackupIndexFormat() {
+    }
+
+    /**
+     * Check whether a file starts with the magic of this format.
+     *
+     * @param head leading bytes of the file.
+     * @param length number of valid bytes in head.
+     * @return whether the file is in this format.
+     */
+    static boolean isIndex(byte[] head, int length) {
+        if (length < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head[i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write a backup. The collection tree is walked twice, the output is written as it is walked.
+     *
+     * @param outputStream where the index is written to. Not closed.
+     * @param backup       the backup.
+     * @param deflate      whether to compress the body.
+     * @throws IOException when an I/O error occurs.
+     */
+    public static void write(OutputStream outputStream, SavedIncrementalBackup backup, boolean deflate) throws IOException {
+        Objects.requireNonNull(outputStream);
+        Objects.requireNonNull(backup);
+        write(outputStream, backup, null, 0, null, deflate);
+    }
+
+    /**
+     * Write a backup as the differences to its parent.
+     *
+     * @param outputStream     where the index is written to. Not closed.
+     * @param backup           the backup.
+     * @param parentFileName   file name of the parent index, in the same directory as this one.
+     * @param chainLength      number of delta indexes to read before reaching a full index, including this one.
+     * @param parentCollection the object collection of the parent.
+     * @param deflate          whether to compress the body.
+     * @throws IOException when an I/O error occurs.
+     */
+    public static void writeDelta(OutputStream outputStream, SavedIncrementalBackup backup, String parentFileName,
+                                  int chainLength, ObjectCollection2 parentCollection, boolean deflate) throws IOException {
+        Objects.requireNonNull(outputStream);
+        Objects.requireNonNull(backup);
+        Objects.requireNonNull(parentCollection);
+        if (!isValidParentFileName(parentFileName))
+            throw new IllegalArgumentException("Invalid parent file name " + parentFileName);
+        if (chainLength <= 0)
+            throw new IllegalArgumentException("chain length must be positive");
+        write(outputStream, backup, parentFileName, chainLength, parentCollection, deflate);
+    }
+
+    private static void write(OutputStream outputStream, SavedIncrementalBackup backup, String parentFileName,
+                              int chainLength, ObjectCollection2 parentCollection, boolean deflate) throws IOException {
+        boolean delta = parentCollection != null;
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        try (DataOutputStream header = new DataOutputStream(headerBytes)) {
+            ZonedDateTime time = backup.getBackupTime();
+            header.writeUTF(backup.getBackupName());
+            header.writeLong(time.toEpochSecond());
+            header.writeInt(time.getNano());
+            header.writeUTF(time.getZone().getId());
+            header.writeLong(backup.getTotalSizeBytes());
+            header.writeLong(backup.getIncreasedSizeBytes());
+            header.writeInt(backup.getFilesAdded());
+            header.writeInt(backup.getTotalFiles());
+            if (delta) {
+                header.writeUTF(parentFileName);
+                header.writeInt(chainLength);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(headerBytes.toByteArray());
+
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.write(MAGIC);
+        out.writeInt(delta ? DELTA_VERSION : VERSION);
+        out.writeInt((deflate ? FLAG_DEFLATE : 0) | (delta ? FLAG_DELTA : 0));
+        out.writeInt(headerBytes.size());
+        headerBytes.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Deflater deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        try {
+            OutputStream bodyStream = new BufferedOutputStream(deflate
+                    ? new DeflaterOutputStream(new NonClosingOutputStream(outputStream), deflater, BUFFER_SIZE)
+                    : new NonClosingOutputStream(outputStream), BUFFER_SIZE);
+            try (DataOutputStream body = new DataOutputStream(new CheckedOutputStream(bodyStream, crc))) {
+                ObjectCollection2 root = backup.getObjectCollection();
+                CollectionDelta rootDelta = delta ? CollectionDelta.between(parentCollection, root) : null;
+                Map<String, Integer> strings = new LinkedHashMap<>();
+                if (delta) {
+                    addString(root.getName(), strings);
+                    rootDelta.collectStrings(strings);
+                } else {
+                    collectStrings(root, strings);
+                }
+                writeVarInt(body, strings.size());
+                for (String string : strings.keySet()) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    writeVarInt(body, bytes.length);
+                    body.write(bytes);
+                }
+                if (delta) {
+                    writeVarInt(body, strings.get(root.getName()));
+                    rootDelta.write(body, strings);
+                } else {
+                    writeCollection(body, root, strings);
+                }
+                body.flush();
+                // the checksum itself is not checksummed
+                new DataOutputStream(bodyStream).writeInt((int) crc.getValue());
+            }
+        } finally {
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * Read a full backup index.
+     *
+     * @param inputStream the index, positioned at the magic. Not closed.
+     * @return the backup.
+     * @throws IOException when an I/O error occurs, or the index is malformed or corrupted, or it is a delta index.
+     */
+    public static SavedIncrementalBackup read(InputStream inputStream) throws IOException {
+        return read(inputStream, null);
+    }
+
+    /**
+     * Read a backup index. If it is a delta index, its parent is resolved and the full collection is returned.
+     *
+     * @param inputStream the index, positioned at the magic. Not closed.
+     * @param resolver    where collections of parents come from. If null, delta indexes cannot be read.
+     * @return the backup.
+     * @throws IOException when an I/O error occurs, or the index is malformed or corrupted,
+     *                     or the parent cannot be resolved or does not match.
+     */
+    public static SavedIncrementalBackup read(InputStream inputStream, @Nullable ParentResolver resolver) throws IOException {
+        return read(inputStream, resolver, (body, strings, header, parentCollection) -> new SavedIncBackupV1(
+                parentCollection == null ? readCollection(body, strings)
+                        : readDelta(body, strings, readString(body, strings), parentCollection),
+                header.getBackupName(), header.getBackupTime(), header.getTotalSizeBytes(),
+                header.getIncreasedSizeBytes(), header.getFilesAdded(), header.getTotalFiles()));
+    }
+
+    /**
+     * Read the collection of a backup index into a {@link CompactObjectCollection}.
+     * A full index is packed as it is read, without creating elements. A delta index is applied to its parent first.
+     *
+     * @param inputStream the index, positioned at the magic. Not closed.
+     * @param resolver    where collections of parents come from. If null, delta indexes cannot be read.
+     * @return the collection.
+     * @throws IOException when an I/O error occurs, or the index is malformed or corrupted,
+     *                     or the parent cannot be resolved or does not match.
+     */
+    public static CompactObjectCollection readCompact(InputStream inputStream, @Nullable ParentResolver resolver) throws IOException {
+        return read(inputStream, resolver, (body, strings, header, parentCollection) -> parentCollection == null
+                ? readCompactCollection(body, strings, new byte[IdentifierType.SHA256.getHashLength()])
+                : CompactObjectCollection.of(readDelta(body, strings, readString(body, strings), parentCollection)));
+    }
+
+    private static <T> T read(InputStream inputStream, @Nullable ParentResolver resolver,
+                              BodyReader<T> bodyReader) throws IOException {
+        Objects.requireNonNull(inputStream);
+        DataInputStream in = new DataInputStream(inputStream);
+        int version = readVersion(in);
+        int flags = readFlags(in, version);
+        byte[] headerBytes = readHeaderBytes(in, version);
+        CRC32 crc = new CRC32();
+        crc.update(headerBytes);
+        IncBackupMetadata header = parseHeader(headerBytes, version, flags);
+        ObjectCollection2 parentCollection = null;
+        if (header.isDelta()) {
+            if (resolver == null)
+                throw new IOException("Delta index cannot be read without its parent " + header.getParentFileName());
+            parentCollection = resolver.resolve(header.getParentFileName(), header.getChainLength());
+        }
+
+        boolean deflate = (flags & FLAG_DEFLATE) != 0;
+        Inflater inflater = deflate ? new Inflater() : null;
+        try {
+            InputStream bodyStream = deflate
+                    ? new InflaterInputStream(inputStream, inflater, BUFFER_SIZE)
+                    : new BufferedInputStream(inputStream, BUFFER_SIZE);
+            DataInputStream body = new DataInputStream(new CheckedInputStream(bodyStream, crc));
+            int stringCount = readVarInt(body);
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                int length = readVarInt(body);
+                if (length > MAX_STRING_LENGTH)
+                    throw new IOException("String too long in index");
+                byte[] bytes = new byte[length];
+                body.readFully(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            T result = bodyReader.read(body, strings, header, parentCollection);
+            int expectedCrc = new DataInputStream(bodyStream).readInt();
+            if (expectedCrc != (int) crc.getValue())
+                throw new IOException("Index checksum mismatch");
+            if (deflate && (bodyStream.read() >= 0 || !inflater.finished()))
+                throw new IOException("Index has trailing data");
+            return result;
+        } catch (EOFException | ZipException e) {
+            throw new IOException("Index is truncated or corrupted", e);
+        } finally {
+            if (inflater != null)
+                inflater.end();
+        }
+    }
+
+    /**
+     * Read the metadata of a backup, leaving the collection tree unread.
+     * Only the first few hundred bytes are consumed, so a small buffer in front of the stream
+     * makes this a single read from the disk.
+     *
+     * @param inputStream the index, positioned at the magic. Not closed.
+     * @return the metadata.
+     * @throws IOException when an I/O error occurs, or the header is malformed or corrupted.
+     */
+    public static IncBackupMetadata readMetadata(InputStream inputStream) throws IOException {
+        Objects.requireNonNull(inputStream);
+        DataInputStream in = new DataInputStream(inputStream);
+        try {
+            int version = readVersion(in);
+            int flags = readFlags(in, version);
+            return parseHeader(readHeaderBytes(in, version), version, flags);
+        } catch (EOFException e) {
+            throw new IOException("Index is truncated", e);
+        }
+    }
+
+    private static int readVersion(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!isIndex(magic, magic.length))
+            throw new IOException("Not an incremental backup index");
+        int version = in.readInt();
+        if (version < MIN_VERSION || version > DELTA_VERSION)
+            throw new IOException("Unsupported index version " + version);
+        return version;
+    }
+
+    private static int readFlags(DataInputStream in, int version) throws IOException {
+        int flags = in.readInt();
+        if ((flags & FLAG_DELTA) != 0 && version < DELTA_VERSION)
+            throw new IOException("Delta flag in index version " + version);
+        return flags;
+    }
+
+    /**
+     * Parent indexes are looked up beside the child, so the name must not lead anywhere else.
+     */
+    static boolean isValidParentFileName(String fileName) {
+        return fileName != null && !fileName.isEmpty() && fileName.indexOf('/') < 0 && fileName.indexOf('\\') < 0
+                && !fileName.equals(".") && !fileName.equals("..");
+    }
+
+    private static byte[] readHeaderBytes(DataInputStream in, int version) throws IOException {
+        int headerLength = in.readInt();
+        if (headerLength < 0 || headerLength > 1024 * 1024)
+            throw new IOException("Invalid index header length " + headerLength);
+        byte[] headerBytes = new byte[headerLength];
+        in.readFully(headerBytes);
+        if (version >= 2) {
+            CRC32 crc = new CRC32();
+            crc.update(headerBytes);
+            if (in.readInt() != (int) crc.getValue())
+                throw new IOException("Index header checksum mismatch");
+        }
+        return headerBytes;
+    }
+
+    private static IncBackupMetadata parseHeader(byte[] headerBytes, int version, int flags) throws IOException {
+        try (DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes))) {
+            String backupName = header.readUTF();
+            long epochSecond = header.readLong();
+            int nano = header.readInt();
+            String zone = header.readUTF();
+            ZonedDateTime backupTime;
+            try {
+                backupTime = ZonedDateTime.ofInstant(Instant.ofEpochSecond(epochSecond, nano), ZoneId.of(zone));
+            } catch (DateTimeException e) {
+                throw new IOException("Invalid backup time in index", e);
+            }
+            long totalSizeBytes = header.readLong();
+            long increasedSizeBytes = header.readLong();
+            int filesAdded = header.readInt();
+            int totalFiles = header.readInt();
+            String parentFileName = null;
+            int chainLength = 0;
+            if ((flags & FLAG_DELTA) != 0) {
+                parentFileName = header.readUTF();
+                chainLength = header.readInt();
+                if (!isValidParentFileName(parentFileName) || chainLength <= 0)
+                    throw new IOException("Invalid parent in index header");
+            }
+            return new IncBackupMetadata(backupName, backupTime, totalSizeBytes, increasedSizeBytes,
+                    filesAdded, totalFiles, version, parentFileName, chainLength);
+        } catch (EOFException | UTFDataFormatException e) {
+            throw new IOException("Malformed index header", e);
+        }
+    }
+
+    private static void collectStrings(ObjectCollection2 collection, Map<String, Integer> strings) {
+        addString(collection.getName(), strings);
+        for (ObjectElement element : collection.getElementMap().values())
+            collectStrings(element, strings);
+        for (ObjectCollection2 subCollection : collection.getSubCollectionMap().values())
+            collectStrings(subCollection, strings);
+    }
+
+    private static void collectStrings(ObjectElement element, Map<String, Integer> strings) {
+        addString(element.getName(), strings);
+        ObjectIdentifier identifier = element.getIdentifier();
+        if (identifier instanceof ChunkListIdentifier) {
+            ChunkListIdentifier chunkList = (ChunkListIdentifier) identifier;
+            addString(chunkList.getType(), strings);
+            for (ObjectIdentifier chunk : chunkList.getChunks())
+                addString(toSingleHash(chunk).getType().getMarker(), strings);
+        } else {
+            addString(toSingleHash(identifier).getType().getMarker(), strings);
+        }
+    }
+
+    private static void addString(String string, Map<String, Integer> strings) {
+        strings.putIfAbsent(string, strings.size());
+    }
+
+    private static void writeCollection(DataOutputStream out, ObjectCollection2 collection,
+                                        Map<String, Integer> strings) throws IOException {
+        writeVarInt(out, strings.get(collection.getName()));
+        Map<String, ObjectElement> elements = collection.getElementMap();
+        writeVarInt(out, elements.size());
+        for (ObjectElement element : elements.values())
+            writeElement(out, element, strings);
+        Map<String, ObjectCollection2> subCollections = collection.getSubCollectionMap();
+        writeVarInt(out, subCollections.size());
+        for (ObjectCollection2 subCollection : subCollections.values())
+            writeCollection(out, subCollection, strings);
+    }
+
+    private static void writeElement(DataOutputStream out, ObjectElement element, Map<String, Integer> strings) throws IOException {
+        writeVarInt(out, strings.get(element.getName()));
+        ObjectIdentifier identifier = element.getIdentifier();
+        if (identifier instanceof ChunkListIdentifier) {
+            ChunkListIdentifier chunkList = (ChunkListIdentifier) identifier;
+            out.writeByte(TAG_CHUNK_LIST);
+            writeVarInt(out, strings.get(chunkList.getType()));
+            writeVarInt(out, chunkList.getChunkCount());
+            for (int i = 0; i < chunkList.getChunkCount(); i++) {
+                writeSingleHash(out, toSingleHash(chunkList.getChunk(i)), strings);
+                writeVarLong(out, chunkList.getChunkLength(i));
+            }
+        } else {
+            out.writeByte(TAG_SINGLE_HASH);
+            writeSingleHash(out, toSingleHash(identifier), strings);
+        }
+    }
+
+    private static void writeSingleHash(DataOutputStream out, SingleHashIdentifier identifier,
+                                        Map<String, Integer> strings) throws IOException {
+        writeVarInt(out, strings.get(identifier.getType().getMarker()));
+        out.write(identifier.getHash());
+    }
+
+    private static SingleHashIdentifier toSingleHash(ObjectIdentifier identifier) {
+        if (!(identifier instanceof SingleHashIdentifier) || ((SingleHashIdentifier) identifier).getType() == null)
+            throw new IllegalArgumentException("Unsupported identifier " + identifier.getClass().getName());
+        return (SingleHashIdentifier) identifier;
+    }
+
+    private static ObjectCollection2 readCollection(DataInputStream in, String[] strings) throws IOException {
+        String name = readString(in, strings);
+        int elementCount = readVarInt(in);
+        Set<ObjectElement> elements = new HashSet<>();
+        for (int i = 0; i < elementCount; i++)
+            elements.add(readElement(in, strings));
+        int subCollectionCount = readVarInt(in);
+        Map<String, ObjectCollection2> subCollections = new HashMap<>();
+        for (int i = 0; i < subCollectionCount; i++) {
+            ObjectCollection2 subCollection = readCollection(in, strings);
+            subCollections.put(subCollection.getName(), subCollection);
+        }
+        try {
+            return new ObjectCollection2(name, elements, subCollections);
+        } catch (IllegalStateException e) {
+            throw new IOException("Malformed collection " + name, e);
+        }
+    }
+
+    private static ObjectElement readElement(DataInputStream in, String[] strings) throws IOException {
+        String elementName = readString(in, strings);
+        return new ObjectElement(elementName, readIdentifier(in, strings, in.readUnsignedByte()));
+    }
+
+    private static ObjectIdentifier readIdentifier(DataInputStream in, String[] strings, int tag) throws IOException {
+        if (tag == TAG_SINGLE_HASH) {
+            return readSingleHash(in, strings);
+        } else if (tag == TAG_CHUNK_LIST) {
+            String type = readString(in, strings);
+            int chunkCount = readVarInt(in);
+            List<SingleHashIdentifier> chunks = new ArrayList<>();
+            List<Long> chunkLengths = new ArrayList<>();
+            for (int j = 0; j < chunkCount; j++) {
+                chunks.add(readSingleHash(in, strings));
+                chunkLengths.add(readVarLong(in));
+            }
+            return new ChunkListIdentifier(type, chunks, chunkLengths);
+        } else {
+            throw new IOException("Unknown identifier tag " + tag);
+        }
+    }
+
+    /**
+     * Same as {@link #readCollection(DataInputStream, String[])}, but single hashes are packed from a reused buffer.
+     */
+    private static CompactObjectCollection readCompactCollection(DataInputStream in, String[] strings,
+                                                                 byte[] hashBuffer) throws IOException {
+        CompactObjectCollection.Builder builder = new CompactObjectCollection.Builder(readString(in, strings));
+        int elementCount = readVarInt(in);
+        for (int i = 0; i < elementCount; i++) {
+            String elementName = readString(in, strings);
+            int tag = in.readUnsignedByte();
+            if (tag == TAG_SINGLE_HASH) {
+                IdentifierType type = readIdentifierType(in, strings);
+                byte[] hash = hashBuffer.length == type.getHashLength() ? hashBuffer : new byte[type.getHashLength()];
+                in.readFully(hash);
+                builder.addSingleHash(elementName, type, hash);
+            } else {
+                builder.addElement(elementName, readIdentifier(in, strings, tag));
+            }
+        }
+        int subCollectionCount = readVarInt(in);
+        for (int i = 0; i < subCollectionCount; i++)
+            builder.addSubCollection(readCompactCollection(in, strings, hashBuffer));
+        try {
+            return builder.build();
+        } catch (IllegalStateException e) {
+            throw new IOException("Malformed collection", e);
+        }
+    }
+
+    /**
+     * Apply a delta to the collection of the parent. Unchanged sub-collections are shared with the parent.
+     */
+    private static ObjectCollection2 readDelta(DataInputStream in, String[] strings, String name,
+                                               ObjectCollection2 parent) throws IOException {
+        Map<String, ObjectElement> elements = new HashMap<>(parent.getElementMap());
+        int removedElementCount = readVarInt(in);
+        for (int i = 0; i < removedElementCount; i++) {
+            if (elements.remove(readString(in, strings)) == null)
+                throw new IOException("Delta does not match its parent in collection " + name);
+        }
+        int changedElementCount = readVarInt(in);
+        for (int i = 0; i < changedElementCount; i++) {
+            ObjectElement element = readElement(in, strings);
+            elements.put(element.getName(), element);
+        }
+        Map<String, ObjectCollection2> subCollections = new HashMap<>(parent.getSubCollectionMap());
+        int removedSubCollectionCount = readVarInt(in);
+        for (int i = 0; i < removedSubCollectionCount; i++) {
+            if (subCollections.remove(readString(in, strings)) == null)
+                throw new IOException("Delta does not match its parent in collection " + name);
+        }
+        int addedSubCollectionCount = readVarInt(in);
+        for (int i = 0; i < addedSubCollectionCount; i++) {
+            ObjectCollection2 subCollection = readCollection(in, strings);
+            if (subCollections.put(subCollection.getName(), subCollection) != null)
+                throw new IOException("Delta does not match its parent in collection " + name);
+        }
+        int changedSubCollectionCount = readVarInt(in);
+        for (int i = 0; i < changedSubCollectionCount; i++) {
+            String subCollectionName = readString(in, strings);
+            ObjectCollection2 parentSubCollection = subCollections.get(subCollectionName);
+            if (parentSubCollection == null)
+                throw new IOException("Delta does not match its parent in collection " + name);
+            subCollections.put(subCollectionName, readDelta(in, strings, subCollectionName, parentSubCollection));
+        }
+        return new ObjectCollection2(name, new HashSet<>(elements.values()), subCollections);
+    }
+
+    private static SingleHashIdentifier readSingleHash(DataInputStream in, String[] strings) throws IOException {
+        IdentifierType type = readIdentifierType(in, strings);
+        byte[] hash = new byte[type.getHashLength()];
+        in.readFully(hash);
+        return type.fromHash(hash);
+    }
+
+    private static IdentifierType readIdentifierType(DataInputStream in, String[] strings) throws IOException {
+        String marker = readString(in, strings);
+        IdentifierType type = IdentifierType.fromMarker(marker);
+        if (type == null)
+            throw new IOException("Unsupported identifier type " + marker);
+        return type;
+    }
+
+    private static String readString(DataInputStream in, String[] strings) throws IOException {
+        int index = readVarInt(in);
+        if (index >= strings.length)
+            throw new IOException("String index out of range");
+        return strings[index];
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value");
+        writeVarLong(out, value);
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value");
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE)
+            throw new IOException("Integer out of range");
+        return (int) value;
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    /**
+     * Where collections of parent indexes come from, when reading delta indexes.
+     */
+    public interface ParentResolver {
+        /**
+         * Get the object collection of a parent index.
+         * The parent must have a shorter chain than its child, otherwise a broken chain could be a loop.
+         *
+         * @param parentFileName   file name of the parent index, in the same directory as the child.
+         * @param childChainLength chain length of the child.
+         * @return the collection.
+         * @throws IOException when the parent cannot be read, or its chain is not shorter.
+         */
+        ObjectCollection2 resolve(String parentFileName, int childChainLength) throws IOException;
+    }
+
+    /**
+     * Reads the body of an index, after the string table.
+     */
+    private interface BodyReader<T> {
+        T read(DataInputStream body, String[] strings, IncBackupMetadata header,
+               @Nullable ObjectCollection2 parentCollection) throws IOException;
+    }
+
+    /**
+     * Differences between the collection of a parent and the one of its child.
+     */
+    private static class CollectionDelta {
+        private final List<String> removedElements = new ArrayList<>();
+        private final List<ObjectElement> changedElements = new ArrayList<>();
+        private final List<String> removedSubCollections = new ArrayList<>();
+        private final List<ObjectCollection2> addedSubCollections = new ArrayList<>();
+        private final Map<String, CollectionDelta> changedSubCollections = new LinkedHashMap<>();
+
+        static CollectionDelta between(ObjectCollection2 parent, ObjectCollection2 child) {
+            CollectionDelta delta = new CollectionDelta();
+            Map<String, ObjectElement> parentElements = parent.getElementMap();
+            for (String name : parentElements.keySet()) {
+                if (child.getElement(name) == null)
+                    delta.removedElements.add(name);
+            }
+            for (ObjectElement element : child.getElementMap().values()) {
+                if (!element.equals(parentElements.get(element.getName())))
+                    delta.changedElements.add(element);
+            }
+            for (String name : parent.getSubCollectionMap().keySet()) {
+                if (child.getSubCollection(name) == null)
+                    delta.removedSubCollections.add(name);
+            }
+            for (ObjectCollection2 subCollection : child.getSubCollectionMap().values()) {
+                ObjectCollection2 parentSubCollection = parent.getSubCollection(subCollection.getName());
+                if (parentSubCollection == null) {
+                    delta.addedSubCollections.add(subCollection);
+                } else if (parentSubCollection != subCollection) {
+                    CollectionDelta subDelta = between(parentSubCollection, subCollection);
+                    if (!subDelta.isEmpty())
+                        delta.changedSubCollections.put(subCollection.getName(), subDelta);
+                }
+            }
+            return delta;
+        }
+
+        boolean isEmpty() {
+            return removedElements.isEmpty() && changedElements.isEmpty() && removedSubCollections.isEmpty()
+                    && addedSubCollections.isEmpty() && changedSubCollections.isEmpty();
+        }
+
+        void collectStrings(Map<String, Integer> strings) {
+            removedElements.forEach(name -> addString(name, strings));
+            changedElements.forEach(element -> IncBackupIndexFormat.collectStrings(element, strings));
+            removedSubCollections.forEach(name -> addString(name, strings));
+            addedSubCollections.forEach(collection -> IncBackupIndexFormat.collectStrings(collection, strings));
+            for (Map.Entry<String, CollectionDelta> entry : changedSubCollections.entrySet()) {
+                addString(entry.getKey(), strings);
+                entry.getValue().collectStrings(strings);
+            }
+        }
+
+        void write(DataOutputStream out, Map<String, Integer> strings) throws IOException {
+            writeVarInt(out, removedElements.size());
+            for (String name : removedElements)
+                writeVarInt(out, strings.get(name));
+            writeVarInt(out, changedElements.size());
+            for (ObjectElement element : changedElements)
+                writeElement(out, element, strings);
+            writeVarInt(out, removedSubCollections.size());
+            for (String name : removedSubCollections)
+                writeVarInt(out, strings.get(name));
+            writeVarInt(out, addedSubCollections.size());
+            for (ObjectCollection2 collection : addedSubCollections)
+                writeCollection(out, collection, strings);
+            writeVarInt(out, changedSubCollections.size());
+            for (Map.Entry<String, CollectionDelta> entry : changedSubCollections.entrySet()) {
+                writeVarInt(out, strings.get(entry.getKey()));
+                entry.getValue().write(out, strings);
+            }
+        }
+    }
+
+    /**
+     * Keep the underlying stream open when the body stream is closed.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -1,22 +1,37 @@
 package com.keuin.kbackupfabric.backup.incremental.serializer;
 
+import com.keuin.kbackupfabric.backup.incremental.CompactObjectCollection;
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionConverter;
 import com.keuin.kbackupfabric.backup.name.BackupFileNameEncoder;
 import com.keuin.kbackupfabric.backup.name.IncrementalBackupFileNameEncoder;
 import com.keuin.kbackupfabric.util.backup.incremental.ObjectCollection;
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.logging.Logger;
 
 public class IncBackupInfoSerializer {
+
+    private static final Logger LOGGER = Logger.getLogger(IncBackupInfoSerializer.class.getName());
+    // digests do not compress, so deflating saves little and doubles the reading time
+    private static final boolean DEFLATE_INDEX = false;
+    // large enough for the header of any sane backup name, so the disk is read once
+    private static final int METADATA_BUFFER_SIZE = 4096;
+    // enough for the parent of the next backup and a few chains being resolved
+    private static final IndexTreeCache treeCache = new IndexTreeCache(8);
+
     /**
      * Load incremental backup index file into object, no matter what version it is.
+     * If it is a delta index, its parents are read from the same directory, and the full collection is returned.
      *
      * @param file a valid incremental backup file. (with a valid file name)
      * @return the object. Not null.
@@ -24,8 +39,17 @@ public class IncBackupInfoSerializer {
      */
     public static SavedIncrementalBackup fromFile(File file) throws IOException {
         Objects.requireNonNull(file);
-        try (FileInputStream fileInputStream = new FileInputStream(file)) {
-            try (ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream)) {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            inputStream.mark(IncBackupIndexFormat.MAGIC.length);
+            byte[] head = new byte[IncBackupIndexFormat.MAGIC.length];
+            int headLength = IOUtils.read(inputStream, head);
+            inputStream.reset();
+            if (IncBackupIndexFormat.isIndex(head, headLength)) {
+                SavedIncrementalBackup backup = IncBackupIndexFormat.read(inputStream, parentResolver(file));
+                treeCache.put(file, backup.getObjectCollection());
+                return backup;
+            }
+            try (ObjectInputStream objectInputStream = new ObjectInputStream(inputStream)) {
                 Object o = objectInputStream.readObject();
                 if (o instanceof SavedIncrementalBackup) {
                     return (SavedIncrementalBackup) o;
@@ -56,13 +80,135 @@ public class IncBackupInfoSerializer {
     }
 
     /**
-     * Save incremental backup index and metadata into file.
+     * Load the object collection of an incremental backup index file into a {@link CompactObjectCollection},
+     * which is several times smaller than {@link ObjectCollection2} in memory.
+     * A full binary index is packed as it is read. Other indexes are loaded and packed afterwards.
+     *
+     * @param file a valid incremental backup file. (with a valid file name)
+     * @return the collection. Not null.
+     * @throws IOException when failed due to an I/O error.
+     */
+    public static CompactObjectCollection compactCollectionFromFile(File file) throws IOException {
+        Objects.requireNonNull(file);
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            inputStream.mark(IncBackupIndexFormat.MAGIC.length);
+            byte[] head = new byte[IncBackupIndexFormat.MAGIC.length];
+            int headLength = IOUtils.read(inputStream, head);
+            inputStream.reset();
+            if (IncBackupIndexFormat.isIndex(head, headLength))
+                return IncBackupIndexFormat.readCompact(inputStream, parentResolver(file));
+        }
+        return CompactObjectCollection.of(fromFile(file).getObjectCollection());
+    }
+
+    /**
+     * Load the metadata of an incremental backup index file, without its object collection.
+     * For a binary index only the header is read. Indexes in legacy formats are loaded entirely,
+     * they become as cheap as binary ones after being converted.
+     *
+     * @param file a valid incremental backup file. (with a valid file name)
+     * @return the metadata. Not null.
+     * @throws IOException when failed due to an I/O error.
+     */
+    public static IncBackupMetadata metadataFromFile(File file) throws IOException {
+        Objects.requireNonNull(file);
+        IncBackupMetadata metadata = binaryMetadataFromFile(file);
+        return metadata != null ? metadata : IncBackupMetadata.of(fromFile(file), IncBackupMetadata.LEGACY_FORMAT_VERSION);
+    }
+
+    @Nullable
+    private static IncBackupMetadata binaryMetadataFromFile(File file) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file), METADATA_BUFFER_SIZE)) {
+            inputStream.mark(IncBackupIndexFormat.MAGIC.length);
+            byte[] head = new byte[IncBackupIndexFormat.MAGIC.length];
+            int headLength = IOUtils.read(inputStream, head);
+            inputStream.reset();
+            return IncBackupIndexFormat.isIndex(head, headLength) ? IncBackupIndexFormat.readMetadata(inputStream) : null;
+        }
+    }
+
+    private static IncBackupIndexFormat.ParentResolver parentResolver(File file) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        return (parentFileName, childChainLength) -> {
+            File parentFile = new File(directory, parentFileName);
+            ObjectCollection2 collection = treeCache.get(parentFile);
+            if (collection != null)
+                return collection;
+            if (!parentFile.isFile())
+                throw new FileNotFoundException("Parent index " + parentFileName + " is missing");
+            if (metadataFromFile(parentFile).getChainLength() >= childChainLength)
+                throw new IOException("Broken chain of delta indexes at " + parentFileName);
+            return fromFile(parentFile).getObjectCollection();
+        };
+    }
+
+    /**
+     * Save incremental backup index and metadata into file, in the binary index format.
      *
      * @param file   the file.
      * @param backup the backup.
      * @throws IOException when failed due to an I/O error.
      */
     public static void toFile(File file, SavedIncrementalBackup backup) throws IOException {
+        toFile(file, backup, null, 1);
+    }
+
+    /**
+     * Save incremental backup index and metadata into file, as the differences to a parent index if possible.
+     * A full index is saved instead if the chain of delta indexes would reach the checkpoint interval,
+     * or if the parent cannot be read.
+     *
+     * @param file               the file.
+     * @param backup             the backup.
+     * @param parentFile         index of the previous backup, in the same directory. If null, a full index is saved.
+     * @param checkpointInterval max number of indexes in a chain, including the full one at its start.
+     *                           If 1, every index is full.
+     * @return whether a delta index has been saved.
+     * @throws IOException when failed due to an I/O error.
+     */
+    public static boolean toFile(File file, SavedIncrementalBackup backup, @Nullable File parentFile,
+                                 int checkpointInterval) throws IOException {
+        Objects.requireNonNull(file);
+        Objects.requireNonNull(backup);
+        if (checkpointInterval <= 0)
+            throw new IllegalArgumentException("checkpoint interval must be positive");
+        ObjectCollection2 parentCollection = null;
+        int chainLength = 0;
+        if (parentFile != null && checkpointInterval > 1) {
+            if (!parentFile.getAbsoluteFile().getParentFile().equals(file.getAbsoluteFile().getParentFile()))
+                throw new IllegalArgumentException("parent index must be in the same directory");
+            try {
+                chainLength = metadataFromFile(parentFile).getChainLength() + 1;
+                if (chainLength < checkpointInterval) {
+                    parentCollection = treeCache.get(parentFile);
+                    if (parentCollection == null)
+                        parentCollection = fromFile(parentFile).getObjectCollection();
+                }
+            } catch (IOException e) {
+                LOGGER.warning("Failed to read parent index " + parentFile.getName() + ", saving a full index: " + e);
+            }
+        }
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            if (parentCollection != null)
+                IncBackupIndexFormat.writeDelta(outputStream, backup, parentFile.getName(), chainLength,
+                        parentCollection, DEFLATE_INDEX);
+            else
+                IncBackupIndexFormat.write(outputStream, backup, DEFLATE_INDEX);
+        }
+        // likely the parent of the next backup
+        treeCache.put(file, backup.getObjectCollection());
+        return parentCollection != null;
+    }
+
+    /**
+     * Save incremental backup index and metadata with Java serialization, which older versions can read.
+     * Only used for testing backward-compatibility.
+     *
+     * @param file   the file.
+     * @param backup the backup.
+     * @throws IOException when failed due to an I/O error.
+     */
+    public static void toLegacyFile(File file, SavedIncrementalBackup backup) throws IOException {
         Objects.requireNonNull(file);
         Objects.requireNonNull(backup);
         try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
@@ -72,6 +218,78 @@ public class IncBackupInfoSerializer {
         }
     }
 
+    /**
+     * Rewrite an index file in a legacy format into the binary index format.
+     * The new file is written aside and renamed over the old one, so the index is never lost.
+     * Indexes of the oldest versions, which have no metadata but the file name, are kept as they are.
+     *
+     * @param file the index file.
+     * @return whether the file has been converted. If it is already binary or has no metadata, return false.
+     * @throws IOException when failed to read or write the index.
+     */
+    public static boolean convertToLatest(File file) throws IOException {
+        Objects.requireNonNull(file);
+        byte[] head = new byte[IncBackupIndexFormat.MAGIC.length];
+        int headLength;
+        try (InputStream inputStream = new FileInputStream(file)) {
+            headLength = IOUtils.read(inputStream, head);
+        }
+        if (IncBackupIndexFormat.isIndex(head, headLength))
+            return false;
+        SavedIncrementalBackup backup = fromFile(file);
+        if (!(backup instanceof SavedIncBackupV1))
+            return false;
+        replaceWithFullIndex(file, backup);
+        return true;
+    }
+
+    /**
+     * Rewrite delta indexes whose parent is the given index as full indexes, so the parent can be deleted.
+     * Their own children stay valid, since the collections do not change.
+     *
+     * @param file the parent index.
+     * @return how many indexes have been rewritten.
+     * @throws IOException when failed to read or rewrite a child. The parent must not be deleted then.
+     */
+    public static int detachChildren(File file) throws IOException {
+        Objects.requireNonNull(file);
+        String fileName = file.getName();
+        File[] indexFiles = file.getAbsoluteFile().getParentFile().listFiles(
+                (dir, name) -> name.endsWith(".kbi") && !name.equals(fileName));
+        if (indexFiles == null)
+            throw new IOException("Failed to list index files beside " + fileName);
+        int detached = 0;
+        for (File indexFile : indexFiles) {
+            IncBackupMetadata metadata;
+            try {
+                metadata = binaryMetadataFromFile(indexFile);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to read index " + indexFile.getName() + ", it may depend on " + fileName + ": " + e);
+                continue;
+            }
+            if (metadata == null || !fileName.equals(metadata.getParentFileName()))
+                continue;
+            replaceWithFullIndex(indexFile, fromFile(indexFile));
+            ++detached;
+        }
+        return detached;
+    }
+
+    /**
+     * The new file is written aside and renamed over the old one, so the index is never lost.
+     */
+    private static void replaceWithFullIndex(File file, SavedIncrementalBackup backup) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        toFile(tempFile, backup);
+        if (!backup.equals(fromFile(tempFile))) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw new IOException("Rewritten index of " + file.getName() + " does not match the original");
+        }
+        treeCache.remove(tempFile);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        treeCache.put(file, backup.getObjectCollection());
+    }
+
     public static Iterable<SavedIncrementalBackup> fromDirectory(File directory) throws IOException {
         if (!directory.isDirectory()) {
             throw new IllegalArgumentException("Given directory is invalid.");
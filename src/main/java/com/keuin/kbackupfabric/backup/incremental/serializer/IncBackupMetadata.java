@@ -0,0 +1,166 @@
+package com.keuin.kbackupfabric.backup.incremental.serializer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.ZonedDateTime;
+import java.util.Objects;
+
+/**
+ * Metadata of an incremental backup, without its object collection.
+ * Reading it only costs the header of a binary index, so listing backups does not load their trees.
+ */
+public final class IncBackupMetadata {
+
+    /**
+     * Format version of indexes written with Java serialization.
+     */
+    public static final int LEGACY_FORMAT_VERSION = 0;
+
+    private final String backupName;
+    private final ZonedDateTime backupTime;
+    private final long totalSizeBytes;
+    private final long increasedSizeBytes;
+    private final int filesAdded;
+    private final int totalFiles;
+    private final int formatVersion;
+    private final String parentFileName;
+    private final int chainLength;
+
+    public IncBackupMetadata(String backupName, ZonedDateTime backupTime, long totalSizeBytes,
+                             long increasedSizeBytes, int filesAdded, int totalFiles, int formatVersion) {
+        this(backupName, backupTime, totalSizeBytes, increasedSizeBytes, filesAdded, totalFiles, formatVersion, null, 0);
+    }
+
+    public IncBackupMetadata(String backupName, ZonedDateTime backupTime, long totalSizeBytes,
+                             long increasedSizeBytes, int filesAdded, int totalFiles, int formatVersion,
+                             @Nullable String parentFileName, int chainLength) {
+        Objects.requireNonNull(backupName);
+        Objects.requireNonNull(backupTime);
+        this.backupName = backupName;
+        this.backupTime = backupTime;
+        this.totalSizeBytes = totalSizeBytes;
+        this.increasedSizeBytes = increasedSizeBytes;
+        this.filesAdded = filesAdded;
+        this.totalFiles = totalFiles;
+        this.formatVersion = formatVersion;
+        this.parentFileName = parentFileName;
+        this.chainLength = chainLength;
+    }
+
+    /**
+     * Get the metadata of a loaded backup.
+     *
+     * @param backup        the backup.
+     * @param formatVersion version of the index format it was read from.
+     * @return the metadata.
+     */
+    public static IncBackupMetadata of(SavedIncrementalBackup backup, int formatVersion) {
+        return new IncBackupMetadata(backup.getBackupName(), backup.getBackupTime(), backup.getTotalSizeBytes(),
+                backup.getIncreasedSizeBytes(), backup.getFilesAdded(), backup.getTotalFiles(), formatVersion);
+    }
+
+    public String getBackupName() {
+        return backupName;
+    }
+
+    public ZonedDateTime getBackupTime() {
+        return backupTime;
+    }
+
+    /**
+     * Get the total size of the saved world.
+     *
+     * @return the size in bytes, or -1 if unknown.
+     */
+    public long getTotalSizeBytes() {
+        return totalSizeBytes;
+    }
+
+    /**
+     * Get the size we cost to add this backup into the base.
+     *
+     * @return the increased size in bytes, or -1 if unknown.
+     */
+    public long getIncreasedSizeBytes() {
+        return increasedSizeBytes;
+    }
+
+    /**
+     * Get new files added to the base.
+     *
+     * @return file count, or -1 if unknown.
+     */
+    public int getFilesAdded() {
+        return filesAdded;
+    }
+
+    /**
+     * Get files in the saved world.
+     *
+     * @return file count, or -1 if unknown.
+     */
+    public int getTotalFiles() {
+        return totalFiles;
+    }
+
+    /**
+     * Get the version of the index format.
+     *
+     * @return the binary index version, or {@link #LEGACY_FORMAT_VERSION} for serialized indexes.
+     */
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    /**
+     * Get the index this one stores its differences to.
+     *
+     * @return file name of the parent index, in the same directory. If this is a full index, return null.
+     */
+    @Nullable
+    public String getParentFileName() {
+        return parentFileName;
+    }
+
+    /**
+     * Get the number of delta indexes to read before reaching a full index, including this one.
+     *
+     * @return the chain length. If this is a full index, return 0.
+     */
+    public int getChainLength() {
+        return chainLength;
+    }
+
+    public boolean isDelta() {
+        return parentFileName != null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        IncBackupMetadata that = (IncBackupMetadata) o;
+        return totalSizeBytes == that.totalSizeBytes &&
+                increasedSizeBytes == that.increasedSizeBytes &&
+                filesAdded == that.filesAdded &&
+                totalFiles == that.totalFiles &&
+                formatVersion == that.formatVersion &&
+                chainLength == that.chainLength &&
+                Objects.equals(parentFileName, that.parentFileName) &&
+                backupName.equals(that.backupName) &&
+                backupTime.equals(that.backupTime);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(backupName, backupTime, totalSizeBytes, increasedSizeBytes, filesAdded, totalFiles, formatVersion,
+                parentFileName, chainLength);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, created at %s, files: %d, total size: %d, increased size: %d, files added: %d, format: %d%s",
+                backupName, backupTime, totalFiles, totalSizeBytes, increasedSizeBytes, filesAdded, formatVersion,
+                isDelta() ? String.format(", delta to %s (chain length %d)", parentFileName, chainLength) : "");
+    }
+}
@@ -0,0 +1,68 @@
+package com.keuin.kbackupfabric.backup.incremental.serializer;
+
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Object collections of recently read or written index files, so resolving a chain of delta indexes
+ * does not read the same parents again and again. An entry is dropped if its file has changed.
+ * Collections are softly referenced, so a large world does not pin memory. Thread-safe.
+ */
+final class IndexTreeCache {
+
+    private final int capacity;
+    private final Map<String, CachedTree> entries;
+
+    IndexTreeCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, CachedTree>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedTree> eldest) {
+                return size() > IndexTreeCache.this.capacity;
+            }
+        };
+    }
+
+    @Nullable
+    synchronized ObjectCollection2 get(File file) {
+        String key = file.getAbsolutePath();
+        CachedTree entry = entries.get(key);
+        if (entry == null)
+            return null;
+        ObjectCollection2 collection = entry.collection.get();
+        if (collection == null || entry.length != file.length() || entry.lastModified != file.lastModified()) {
+            entries.remove(key);
+            return null;
+        }
+        return collection;
+    }
+
+    synchronized void put(File file, ObjectCollection2 collection) {
+        Objects.requireNonNull(collection);
+        entries.put(file.getAbsolutePath(), new CachedTree(file.length(), file.lastModified(), collection));
+    }
+
+    synchronized void remove(File file) {
+        entries.remove(file.getAbsolutePath());
+    }
+
+    private static class CachedTree {
+        private final long length;
+        private final long lastModified;
+        private final SoftReference<ObjectCollection2> collection;
+
+        CachedTree(long length, long lastModified, ObjectCollection2 collection) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.collection = new SoftReference<>(collection);
+        }
+    }
+}
@@ -47,6 +47,11 @@ public class SavedIncBackupV0 implements SavedIncrementalBackup {
         return -1; // missing info
     }
 
+    @Override
+    public int getTotalFiles() {
+        return -1; // missing info
+    }
+
     @Override
     public long getTotalSizeBytes() {
         return -1; // missing info
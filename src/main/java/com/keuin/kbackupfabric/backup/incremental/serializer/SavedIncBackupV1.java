@@ -65,6 +65,7 @@ public class SavedIncBackupV1 implements SavedIncrementalBackup, Serializable {
         return increasedSizeBytes;
     }
 
+    @Override
     public int getTotalFiles() {
         return totalFiles;
     }
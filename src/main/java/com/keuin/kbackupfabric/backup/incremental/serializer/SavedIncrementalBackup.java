@@ -46,6 +46,13 @@ public interface SavedIncrementalBackup extends Serializable {
      */
     int getFilesAdded();
 
+    /**
+     * Get files in the saved world.
+     *
+     * @return file count.
+     */
+    int getTotalFiles();
+
     /**
      * Get the total size of the saved world.
      *
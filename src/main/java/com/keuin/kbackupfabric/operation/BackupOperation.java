@@ -1,5 +1,6 @@
 package com.keuin.kbackupfabric.operation;
 
+import com.keuin.kbackupfabric.backup.catalog.BackupCatalog;
 import com.keuin.kbackupfabric.operation.abstracts.InvokableAsyncBlockingOperation;
 import com.keuin.kbackupfabric.operation.backup.feedback.BackupFeedback;
 import com.keuin.kbackupfabric.operation.backup.method.ConfiguredBackupMethod;
@@ -13,6 +14,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.getBackupSaveDirectory;
 import static com.keuin.kbackupfabric.util.PrintUtil.msgInfo;
 
 public class BackupOperation extends InvokableAsyncBlockingOperation {
@@ -47,6 +49,9 @@ public class BackupOperation extends InvokableAsyncBlockingOperation {
             BackupFeedback result = configuredBackupMethod.backup();
             success = result.isSuccess();
             if (success) {
+                // Record the new backup, so it is listed without scanning
+                BackupCatalog.forDirectory(getBackupSaveDirectory(server)).put(configuredBackupMethod.getBackupFileName());
+
                 // Restore previous auto-save switch stat
                 server.getWorlds().forEach(world -> world.savingDisabled = oldWorldsSavingDisabled.getOrDefault(world, true));
 
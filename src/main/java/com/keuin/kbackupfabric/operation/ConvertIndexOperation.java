@@ -0,0 +1,68 @@
+package com.keuin.kbackupfabric.operation;
+
+import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupInfoSerializer;
+import com.keuin.kbackupfabric.operation.abstracts.InvokableAsyncBlockingOperation;
+import com.keuin.kbackupfabric.util.PrintUtil;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.getBackupSaveDirectory;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgErr;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgInfo;
+
+/**
+ * Rewrite index files of incremental backups saved by older versions into the binary index format.
+ * Each file is replaced only after its new copy has been read back, so an interruption loses nothing.
+ */
+public class ConvertIndexOperation extends InvokableAsyncBlockingOperation {
+
+    private static final Logger LOGGER = Logger.getLogger(ConvertIndexOperation.class.getName());
+    private final CommandContext<ServerCommandSource> context;
+
+    public ConvertIndexOperation(CommandContext<ServerCommandSource> context) {
+        super("BackupIndexConvertingWorker");
+        this.context = context;
+    }
+
+    @Override
+    public String toString() {
+        return "index conversion";
+    }
+
+    @Override
+    protected void async() {
+        MinecraftServer server = context.getSource().getMinecraftServer();
+        File[] indexFiles = getBackupSaveDirectory(server).listFiles((dir, name) -> name.endsWith(".kbi"));
+        if (indexFiles == null) {
+            msgErr(context, "无法列出备份目录.");
+            return;
+        }
+        PrintUtil.info("正在转换 " + indexFiles.length + " 个增量备份索引...");
+        long oldBytes = 0, newBytes = 0;
+        int converted = 0, failed = 0;
+        for (File indexFile : indexFiles) {
+            long length = indexFile.length();
+            try {
+                if (IncBackupInfoSerializer.convertToLatest(indexFile)) {
+                    ++converted;
+                    oldBytes += length;
+                    newBytes += indexFile.length();
+                }
+            } catch (IOException e) {
+                ++failed;
+                LOGGER.severe("Failed to convert index " + indexFile.getName() + ": " + e);
+            }
+        }
+        PrintUtil.info(String.format("已转换 %d 个索引, 失败 %d 个, 大小 %.2fMB -> %.2fMB.",
+                converted, failed, oldBytes / 1024.0 / 1024.0, newBytes / 1024.0 / 1024.0));
+        msgInfo(context, String.format("转换完成: %d 个索引, 大小 %.2fMB -> %.2fMB.",
+                converted, oldBytes / 1024.0 / 1024.0, newBytes / 1024.0 / 1024.0));
+        if (failed > 0)
+            msgErr(context, String.format("%d 个索引转换失败, 它们保持原样, 仍可使用. 详见日志.", failed));
+    }
+}
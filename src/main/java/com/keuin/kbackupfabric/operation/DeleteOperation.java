@@ -1,8 +1,7 @@
 package com.keuin.kbackupfabric.operation;
 
-import com.keuin.kbackupfabric.backup.BackupFilesystemUtil;
-import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
-import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionSerializer;
+import com.keuin.kbackupfabric.backup.catalog.BackupCatalog;
+import com.keuin.kbackupfabric.backup.incremental.manager.BackupCollectionSource;
 import com.keuin.kbackupfabric.backup.incremental.manager.IncrementalBackupStorageManager;
 import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupInfoSerializer;
 import com.keuin.kbackupfabric.backup.incremental.serializer.SavedIncrementalBackup;
@@ -54,6 +53,10 @@ public class DeleteOperation extends InvokableAsyncBlockingOperation {
             SavedIncrementalBackup incrementalBackup = null;
             if (backupFile.getName().endsWith(".kbi")) {
                 incrementalBackup = IncBackupInfoSerializer.fromFile(backupFile);
+                // delta indexes based on this one would be lost with it
+                int detached = IncBackupInfoSerializer.detachChildren(backupFile);
+                if (detached > 0)
+                    PrintUtil.info("已将 " + detached + " 个依赖此节点的增量索引改写为完整索引.");
             }
 
             // remove .zip or .kbi file
@@ -73,6 +76,7 @@ public class DeleteOperation extends InvokableAsyncBlockingOperation {
                 }
                 ++tryCounter;
             } while (backupFile.exists());
+            BackupCatalog.forDirectory(getBackupSaveDirectory(server)).remove(backupFileName);
 
 
             // If it is an incremental backup, do clean-up
@@ -80,10 +84,9 @@ public class DeleteOperation extends InvokableAsyncBlockingOperation {
                 PrintUtil.info("清理中 ...");
                 IncrementalBackupStorageManager manager =
                         new IncrementalBackupStorageManager(getIncrementalBackupBaseDirectory(server).toPath());
-                Iterable<ObjectCollection2> backups = ObjectCollectionSerializer
-                        .fromDirectory(BackupFilesystemUtil
-                                .getBackupSaveDirectory(context.getSource().getMinecraftServer()));
-                int deleted = manager.deleteObjectCollection(incrementalBackup.getObjectCollection(), backups);
+                // only objects of this backup are checked against the reference index
+                int deleted = manager.deleteObjectCollection(backupFileName, incrementalBackup.getObjectCollection(),
+                        BackupCollectionSource.fromDirectory(getBackupSaveDirectory(server)));
                 PrintUtil.info("已移除 " + deleted + " 无用文件.");
             }
 
@@ -91,6 +94,7 @@ public class DeleteOperation extends InvokableAsyncBlockingOperation {
             msgInfo(context, "成功删除时间节点文件 " + this.backupFileName);
         } catch (IOException e) {
             LOGGER.severe("移除时间节点文件失败: " + e);
+            msgErr(context, "移除时间节点文件失败: " + e);
         }
     }
 }
@@ -0,0 +1,72 @@
+package com.keuin.kbackupfabric.operation;
+
+import com.keuin.kbackupfabric.backup.incremental.manager.BackupCollectionSource;
+import com.keuin.kbackupfabric.backup.incremental.manager.GarbageCollectionResult;
+import com.keuin.kbackupfabric.backup.incremental.manager.IncrementalBackupStorageManager;
+import com.keuin.kbackupfabric.operation.abstracts.InvokableAsyncBlockingOperation;
+import com.keuin.kbackupfabric.util.PrintUtil;
+import com.keuin.kbackupfabric.util.RateLimiter;
+import com.keuin.kbackupfabric.util.ThreadingUtil;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.getBackupSaveDirectory;
+import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.getIncrementalBackupBaseDirectory;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgErr;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgInfo;
+
+/**
+ * Delete objects of the incremental base which no backup uses, or only count them in a dry run.
+ * Backups cannot run at the same time.
+ */
+public class GarbageCollectionOperation extends InvokableAsyncBlockingOperation {
+
+    private static final Logger LOGGER = Logger.getLogger(GarbageCollectionOperation.class.getName());
+    private final CommandContext<ServerCommandSource> context;
+    private final boolean dryRun;
+
+    public GarbageCollectionOperation(CommandContext<ServerCommandSource> context, boolean dryRun) {
+        super("BackupGarbageCollectingWorker");
+        this.context = context;
+        this.dryRun = dryRun;
+    }
+
+    @Override
+    public String toString() {
+        return dryRun ? "garbage collection (dry run)" : "garbage collection";
+    }
+
+    @Override
+    protected void async() {
+        try {
+            MinecraftServer server = context.getSource().getMinecraftServer();
+            PrintUtil.info(dryRun ? "正在统计增量备份存储中未被使用的文件..." : "正在清理增量备份存储中未被使用的文件...");
+            IncrementalBackupStorageManager manager =
+                    new IncrementalBackupStorageManager(getIncrementalBackupBaseDirectory(server).toPath());
+            GarbageCollectionResult result = manager.collectGarbage(
+                    BackupCollectionSource.fromDirectory(getBackupSaveDirectory(server)), dryRun,
+                    ThreadingUtil.getRecommendedThreadCount(), new RateLimiter(RateLimiter.MAINTENANCE_BYTES_PER_SECOND));
+            PrintUtil.info(String.format("已使用 %d 个文件, 未使用 %d 个文件 (删除失败 %d 个), 释放 %.2fMB, 打包文件中 %.2fMB.",
+                    result.getReachableObjects(), result.getUnreachableObjects(), result.getFailedObjects(),
+                    result.getReclaimedBytes() / 1024.0 / 1024.0, result.getPackedBytes() / 1024.0 / 1024.0));
+            if (dryRun) {
+                msgInfo(context, String.format("共有 %d 个未被使用的文件, 清理可释放 %.2fMB 空间, 另有打包文件中的 %.2fMB 可在清理后由 /kb repack 释放. 使用 /kb gc 进行清理.",
+                        result.getUnreachableObjects(), result.getReclaimedBytes() / 1024.0 / 1024.0,
+                        result.getPackedBytes() / 1024.0 / 1024.0));
+            } else {
+                msgInfo(context, String.format("清理完成: 删除 %d 个未被使用的文件, 释放 %.2fMB 空间. 打包文件中的 %.2fMB 可由 /kb repack 释放.",
+                        result.getUnreachableObjects(), result.getReclaimedBytes() / 1024.0 / 1024.0,
+                        result.getPackedBytes() / 1024.0 / 1024.0));
+                if (result.getFailedObjects() > 0)
+                    msgErr(context, String.format("%d 个文件删除失败, 详见日志.", result.getFailedObjects()));
+            }
+        } catch (IOException e) {
+            LOGGER.severe("清理增量备份存储失败: " + e);
+            msgErr(context, "清理增量备份存储失败, 未删除被备份使用的文件: " + e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.keuin.kbackupfabric.operation;
+
+import com.keuin.kbackupfabric.backup.incremental.manager.BackupCollectionSource;
+import com.keuin.kbackupfabric.backup.incremental.manager.IncrementalBackupStorageManager;
+import com.keuin.kbackupfabric.backup.incremental.manager.RepackResult;
+import com.keuin.kbackupfabric.operation.abstracts.InvokableAsyncBlockingOperation;
+import com.keuin.kbackupfabric.util.PrintUtil;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.getBackupSaveDirectory;
+import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.getIncrementalBackupBaseDirectory;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgErr;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgInfo;
+
+/**
+ * Rewrite the packs of the incremental base into one, dropping objects of deleted backups,
+ * and pack small loose objects. Backups cannot run at the same time.
+ */
+public class RepackOperation extends InvokableAsyncBlockingOperation {
+
+    private static final Logger LOGGER = Logger.getLogger(RepackOperation.class.getName());
+    private final CommandContext<ServerCommandSource> context;
+
+    public RepackOperation(CommandContext<ServerCommandSource> context) {
+        super("BackupRepackingWorker");
+        this.context = context;
+    }
+
+    @Override
+    public String toString() {
+        return "repacking";
+    }
+
+    @Override
+    protected void async() {
+        try {
+            MinecraftServer server = context.getSource().getMinecraftServer();
+            PrintUtil.info("正在整理增量备份存储的打包文件...");
+            IncrementalBackupStorageManager manager =
+                    new IncrementalBackupStorageManager(getIncrementalBackupBaseDirectory(server).toPath());
+            RepackResult result = manager.repack(BackupCollectionSource.fromDirectory(getBackupSaveDirectory(server)));
+            PrintUtil.info(String.format("已打包 %d 个文件 (其中 %d 个原为单独文件), 释放 %.2fMB.",
+                    result.getPackedObjects(), result.getLooseObjects(), result.getReclaimedBytes() / 1024.0 / 1024.0));
+            msgInfo(context, String.format("整理完成: 打包 %d 个文件, 释放 %.2fMB 空间.",
+                    result.getPackedObjects(), result.getReclaimedBytes() / 1024.0 / 1024.0));
+        } catch (IOException e) {
+            LOGGER.severe("整理打包文件失败: " + e);
+            msgErr(context, "整理打包文件失败, 已有备份不受影响: " + e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.keuin.kbackupfabric.operation;
+
+import com.keuin.kbackupfabric.backup.incremental.manager.IncrementalBackupStorageManager;
+import com.keuin.kbackupfabric.backup.incremental.manager.StorageLayout;
+import com.keuin.kbackupfabric.operation.abstracts.InvokableAsyncBlockingOperation;
+import com.keuin.kbackupfabric.util.PrintUtil;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.getIncrementalBackupBaseDirectory;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgErr;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgInfo;
+
+/**
+ * Move all objects of the incremental base into another layout.
+ * Objects are renamed in place, so no extra space is needed. Backups cannot run at the same time.
+ */
+public class ReshardOperation extends InvokableAsyncBlockingOperation {
+
+    private static final Logger LOGGER = Logger.getLogger(ReshardOperation.class.getName());
+    private final CommandContext<ServerCommandSource> context;
+    private final StorageLayout layout;
+
+    public ReshardOperation(CommandContext<ServerCommandSource> context, StorageLayout layout) {
+        super("BackupReshardingWorker");
+        this.context = context;
+        this.layout = layout;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("resharding to %s", layout.getName());
+    }
+
+    @Override
+    protected void async() {
+        try {
+            MinecraftServer server = context.getSource().getMinecraftServer();
+            PrintUtil.info("正在整理增量备份存储为 " + layout.getName() + " 布局...");
+            IncrementalBackupStorageManager manager =
+                    new IncrementalBackupStorageManager(getIncrementalBackupBaseDirectory(server).toPath());
+            int moved = manager.reshard(layout);
+            PrintUtil.info("已移动 " + moved + " 个文件.");
+            msgInfo(context, String.format("增量备份存储已切换为 %s 布局, 移动了 %d 个文件.", layout.getName(), moved));
+        } catch (IOException e) {
+            LOGGER.severe("整理增量备份存储失败: " + e);
+            msgErr(context, "整理增量备份存储失败, 可以重新执行此命令以继续: " + e);
+        }
+    }
+}
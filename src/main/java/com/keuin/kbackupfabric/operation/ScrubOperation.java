@@ -0,0 +1,87 @@
+package com.keuin.kbackupfabric.operation;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.manager.BackupCollectionSource;
+import com.keuin.kbackupfabric.backup.incremental.manager.IncrementalBackupStorageManager;
+import com.keuin.kbackupfabric.backup.incremental.manager.ScrubResult;
+import com.keuin.kbackupfabric.backup.incremental.manager.StorageBaseProperties;
+import com.keuin.kbackupfabric.operation.abstracts.InvokableAsyncBlockingOperation;
+import com.keuin.kbackupfabric.util.PrintUtil;
+import com.keuin.kbackupfabric.util.RateLimiter;
+import com.keuin.kbackupfabric.util.ThreadingUtil;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.command.ServerCommandSource;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.getBackupSaveDirectory;
+import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.getIncrementalBackupBaseDirectory;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgErr;
+import static com.keuin.kbackupfabric.util.PrintUtil.msgInfo;
+
+/**
+ * Check objects of the incremental base against their identifiers, and quarantine corrupted ones.
+ * A partial scrub checks the next eighth of the base, so eight runs cover all objects.
+ * Backups cannot run at the same time.
+ */
+public class ScrubOperation extends InvokableAsyncBlockingOperation {
+
+    private static final int PARTS = 8;
+
+    private static final Logger LOGGER = Logger.getLogger(ScrubOperation.class.getName());
+    private final CommandContext<ServerCommandSource> context;
+    private final boolean full;
+
+    public ScrubOperation(CommandContext<ServerCommandSource> context, boolean full) {
+        super("BackupScrubbingWorker");
+        this.context = context;
+        this.full = full;
+    }
+
+    @Override
+    public String toString() {
+        return full ? "full scrubbing" : "scrubbing";
+    }
+
+    @Override
+    protected void async() {
+        try {
+            MinecraftServer server = context.getSource().getMinecraftServer();
+            IncrementalBackupStorageManager manager =
+                    new IncrementalBackupStorageManager(getIncrementalBackupBaseDirectory(server).toPath());
+            StorageBaseProperties properties = manager.getProperties();
+            int part = full ? 0 : properties.getScrubPart() % PARTS;
+            int parts = full ? 1 : PARTS;
+            PrintUtil.info(full ? "正在校验增量备份存储中的所有文件..."
+                    : String.format("正在校验增量备份存储中的第 %d/%d 部分文件...", part + 1, parts));
+            ScrubResult result = manager.scrub(part, parts,
+                    BackupCollectionSource.fromDirectory(getBackupSaveDirectory(server)),
+                    ThreadingUtil.getRecommendedThreadCount(), new RateLimiter(RateLimiter.MAINTENANCE_BYTES_PER_SECOND));
+            if (!full)
+                manager.setProperties(manager.getProperties().withScrubPart((part + 1) % PARTS));
+
+            PrintUtil.info(String.format("已校验 %d 个文件 (%.2fMB), 损坏 %d 个.", result.getCheckedObjects(),
+                    result.getCheckedBytes() / 1024.0 / 1024.0, result.getCorruptedObjects().size()));
+            if (result.getCorruptedObjects().isEmpty()) {
+                msgInfo(context, String.format("校验完成: %d 个文件 (%.2fMB) 均完好.",
+                        result.getCheckedObjects(), result.getCheckedBytes() / 1024.0 / 1024.0));
+                return;
+            }
+            for (Map.Entry<ObjectIdentifier, Set<String>> entry : result.getCorruptedObjects().entrySet()) {
+                LOGGER.severe(String.format("Corrupted object %s is used by: %s",
+                        entry.getKey().getIdentification(), entry.getValue()));
+            }
+            msgErr(context, String.format("校验完成: %d 个文件中有 %d 个已损坏, 已移入隔离目录. 如果世界中仍有相同文件, 下次增量备份会重新保存.",
+                    result.getCheckedObjects(), result.getCorruptedObjects().size()));
+            if (!result.getAffectedBackups().isEmpty())
+                msgErr(context, "以下备份无法完整恢复: " + String.join(", ", result.getAffectedBackups()));
+        } catch (IOException e) {
+            LOGGER.severe("校验增量备份存储失败: " + e);
+            msgErr(context, "校验增量备份存储失败: " + e);
+        }
+    }
+}
@@ -8,13 +8,27 @@ import java.util.Objects;
 public class IncrementalBackupFeedback implements BackupFeedback {
     private final boolean success;
     private final IncCopyResult copyResult;
+    private final int hashCacheHits;
+    private final int hashCacheMisses;
     // if the backup failed because of an exception, set this.
     // Otherwise, this should be null.
     private final Throwable throwable;
 
     public IncrementalBackupFeedback(boolean success, @Nullable IncCopyResult copyResult) {
+        this(success, copyResult, 0, 0);
+    }
+
+    /**
+     * Create a backup feedback with fingerprint cache statistics.
+     *
+     * @param hashCacheHits   files whose identifiers were reused from the fingerprint cache.
+     * @param hashCacheMisses files which were actually read and hashed.
+     */
+    public IncrementalBackupFeedback(boolean success, @Nullable IncCopyResult copyResult, int hashCacheHits, int hashCacheMisses) {
         this.success = success;
         this.copyResult = copyResult;
+        this.hashCacheHits = hashCacheHits;
+        this.hashCacheMisses = hashCacheMisses;
         this.throwable = null;
     }
 
@@ -27,6 +41,8 @@ public class IncrementalBackupFeedback implements BackupFeedback {
         Objects.requireNonNull(t);
         this.success = false;
         this.copyResult = null;
+        this.hashCacheHits = 0;
+        this.hashCacheMisses = 0;
         this.throwable = t;
     }
 
@@ -39,10 +55,18 @@ public class IncrementalBackupFeedback implements BackupFeedback {
         return copyResult;
     }
 
+    public int getHashCacheHits() {
+        return hashCacheHits;
+    }
+
+    public int getHashCacheMisses() {
+        return hashCacheMisses;
+    }
+
     @Override
     public String getFeedback() {
         if (success && copyResult != null)
-            return copyResult.toString();
+            return copyResult.toString() + String.format(" Hash cache: %d hit(s), %d miss(es).", hashCacheHits, hashCacheMisses);
         else
             return (throwable == null) ? "No further information." : (throwable.getLocalizedMessage());
     }
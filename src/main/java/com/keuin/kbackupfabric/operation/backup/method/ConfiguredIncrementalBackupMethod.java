@@ -1,11 +1,21 @@
 package com.keuin.kbackupfabric.operation.backup.method;
 
+import com.keuin.kbackupfabric.backup.catalog.BackupCatalog;
+import com.keuin.kbackupfabric.backup.catalog.BackupCatalogEntry;
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionFactory;
-import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionSerializer;
-import com.keuin.kbackupfabric.backup.incremental.identifier.Sha256Identifier;
+import com.keuin.kbackupfabric.backup.incremental.cache.FileFingerprintCache;
+import com.keuin.kbackupfabric.backup.incremental.identifier.AnvilRegionIdentifierProvider;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ContentDefinedChunker;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ContentDefinedChunkingIdentifierProvider;
+import com.keuin.kbackupfabric.backup.incremental.identifier.FileIdentifierProvider;
+import com.keuin.kbackupfabric.backup.incremental.identifier.HashingEngine;
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.manager.BackupCollectionSource;
 import com.keuin.kbackupfabric.backup.incremental.manager.IncCopyResult;
 import com.keuin.kbackupfabric.backup.incremental.manager.IncrementalBackupStorageManager;
+import com.keuin.kbackupfabric.backup.incremental.manager.StorageBaseProperties;
 import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupInfoSerializer;
 import com.keuin.kbackupfabric.backup.incremental.serializer.SavedIncrementalBackup;
 import com.keuin.kbackupfabric.backup.name.BackupFileNameEncoder;
@@ -15,6 +25,7 @@ import com.keuin.kbackupfabric.operation.backup.feedback.IncrementalBackupFeedba
 import com.keuin.kbackupfabric.util.FilesystemUtil;
 import com.keuin.kbackupfabric.util.PrintUtil;
 import com.keuin.kbackupfabric.util.ThreadingUtil;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -33,14 +44,28 @@ public class ConfiguredIncrementalBackupMethod implements ConfiguredBackupMethod
     private final String levelPath;
     private final String backupIndexFileSaveDirectory;
     private final String backupBaseDirectory;
+    private final IncrementalBackupOptions options; // null if taken from the base
 
     private static final Logger LOGGER = Logger.getLogger(ConfiguredIncrementalBackupMethod.class.getName());
 
+    /**
+     * Back up with the options configured in the properties of the base.
+     */
     public ConfiguredIncrementalBackupMethod(String backupIndexFileName, String levelPath, String backupIndexFileSaveDirectory, String backupBaseDirectory) {
+        this(backupIndexFileName, levelPath, backupIndexFileSaveDirectory, backupBaseDirectory, null);
+    }
+
+    /**
+     * Back up with the given options.
+     *
+     * @param options the options. If null, use the ones configured in the properties of the base.
+     */
+    public ConfiguredIncrementalBackupMethod(String backupIndexFileName, String levelPath, String backupIndexFileSaveDirectory, String backupBaseDirectory, @Nullable IncrementalBackupOptions options) {
         this.backupIndexFileName = backupIndexFileName;
         this.levelPath = levelPath;
         this.backupIndexFileSaveDirectory = backupIndexFileSaveDirectory;
         this.backupBaseDirectory = backupBaseDirectory;
+        this.options = options;
     }
 
     @Override
@@ -54,19 +79,39 @@ public class ConfiguredIncrementalBackupMethod implements ConfiguredBackupMethod
         IncrementalBackupStorageManager storageManager = null;
 
         ObjectCollection2 collection = null; // this backup's collection
+        File fingerprintCacheFile = getFingerprintCacheFile();
         try {
+            storageManager = new IncrementalBackupStorageManager(Paths.get(backupBaseDirectory));
+            if (storageManager.initializeProperties())
+                LOGGER.info("Initialized settings of the new incremental base.");
+            IncrementalBackupOptions options = getOptions(storageManager);
+            IdentifierType identifierType = getIdentifierType(storageManager, options);
+            storageManager.deleteTemporaryFiles(); // left by an interrupted backup
+
+            // files not changed since the previous backup are not hashed again, unless we are paranoid
+            FileFingerprintCache fingerprintCache = options.isParanoidHashing() ?
+                    FileFingerprintCache.empty() : FileFingerprintCache.load(fingerprintCacheFile);
+
             // construct incremental backup index
             PrintUtil.info("Hashing files...");
-            collection = new ObjectCollectionFactory<>(Sha256Identifier.getFactory(), hashFactoryThreads, 16)
+            HashingEngine hashingEngine = HashingEngine.getInstance();
+            long bufferAllocations = hashingEngine.getBufferAllocationCount();
+            long hasherAllocations = hashingEngine.getHasherAllocationCount();
+            collection = new ObjectCollectionFactory<>(getIdentifierProvider(identifierType, storageManager, options), hashFactoryThreads, 16, fingerprintCache)
                     .fromDirectory(levelPathFile, new HashSet<>(Arrays.asList("session.lock", "kbackup_metadata")));
+            PrintUtil.info(String.format("Hashed %d file(s), %d file(s) unchanged.",
+                    fingerprintCache.getMissCount(), fingerprintCache.getHitCount()));
+            LOGGER.info(String.format("Hashing engine allocated %d buffer(s) and %d hasher(s).",
+                    hashingEngine.getBufferAllocationCount() - bufferAllocations,
+                    hashingEngine.getHasherAllocationCount() - hasherAllocations));
 
             // update storage
             PrintUtil.info("Copying files...");
-            storageManager = new IncrementalBackupStorageManager(Paths.get(backupBaseDirectory));
-            IncCopyResult copyResult = storageManager.addObjectCollection(collection, levelPathFile);
+            IncCopyResult copyResult = storageManager.addObjectCollection(collection, levelPathFile,
+                    options.getCopyThreads(), options.getCopyBytesInFlight());
             if (copyResult == null) {
                 PrintUtil.info("Failed to backup. No further information.");
-                return new IncrementalBackupFeedback(false, null);
+                return new IncrementalBackupFeedback(false, null, fingerprintCache.getHitCount(), fingerprintCache.getMissCount());
             }
 
             // save index file
@@ -85,7 +130,7 @@ public class ConfiguredIncrementalBackupMethod implements ConfiguredBackupMethod
             // newer saved info (with metadata)
             File indexFile = new File(backupIndexFileSaveDirectory, backupIndexFileName);
             BackupFileNameEncoder.BackupBasicInformation info = IncrementalBackupFileNameEncoder.INSTANCE.decode(backupIndexFileName);
-            IncBackupInfoSerializer.toFile(indexFile, SavedIncrementalBackup.newLatest(
+            boolean delta = IncBackupInfoSerializer.toFile(indexFile, SavedIncrementalBackup.newLatest(
                     collection,
                     info.customName,
                     info.time.atZone(ZoneId.systemDefault()),
@@ -93,11 +138,26 @@ public class ConfiguredIncrementalBackupMethod implements ConfiguredBackupMethod
                     copyResult.getCopiedBytes(),
                     copyResult.getCopiedFiles(),
                     copyResult.getTotalFiles()
-            ));
+            ), getParentIndexFile(indexDirectoryFile, options), options.getIndexCheckpointInterval());
+            LOGGER.info(String.format("Saved %s index (%d bytes).", delta ? "delta" : "full", indexFile.length()));
+
+            // count the objects used by this backup. This is not fatal, the reference index catches up when used
+            try {
+                storageManager.addBackupReferences(backupIndexFileName, collection);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to update reference index: " + e);
+            }
+
+            // update fingerprint cache. This is not fatal, the next backup will just be slower
+            try {
+                fingerprintCache.save(fingerprintCacheFile);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to save fingerprint cache: " + e);
+            }
 
             // return result
             PrintUtil.info("Incremental backup finished.");
-            feedback = new IncrementalBackupFeedback(true, copyResult);
+            feedback = new IncrementalBackupFeedback(true, copyResult, fingerprintCache.getHitCount(), fingerprintCache.getMissCount());
         } catch (IOException e) {
 //            e.printStackTrace(); // stack trace has been passed to backup feedback. No need to print here.
             feedback = new IncrementalBackupFeedback(e);
@@ -116,14 +176,21 @@ public class ConfiguredIncrementalBackupMethod implements ConfiguredBackupMethod
                 }
             }
 
+            // remove objects stored while hashing. They did not exist before, so no other backup uses them
+            if (storageManager != null) {
+                int discardCount = storageManager.discardObjectsStoredInAdvance();
+                if (discardCount > 0)
+                    LOGGER.info(String.format("Discarded %d object(s) stored while hashing.", discardCount));
+            }
+
             // remove unused object files in the base
             if (collection != null) {
                 try {
                     // collection may have been copied (partially) to the base, but we may not need them
                     // so we perform a clean here
                     // perform a clean-up
-                    Iterable<ObjectCollection2> backups = ObjectCollectionSerializer.fromDirectory(new File(backupIndexFileSaveDirectory));
-                    storageManager.deleteObjectCollection(collection, backups);
+                    storageManager.deleteObjectCollection(backupIndexFileName, collection,
+                            BackupCollectionSource.fromDirectory(new File(backupIndexFileSaveDirectory)));
                 } catch (IOException e) {
                     LOGGER.warning("An exception occurred while cleaning up: " + e);
                 }
@@ -175,6 +242,72 @@ public class ConfiguredIncrementalBackupMethod implements ConfiguredBackupMethod
         return true;
     }
 
+    /**
+     * Get the options given to the constructor, or the ones configured in the base if none were given.
+     */
+    private IncrementalBackupOptions getOptions(IncrementalBackupStorageManager storageManager) throws IOException {
+        if (options != null)
+            return options;
+        StorageBaseProperties properties = storageManager.getProperties();
+        return IncrementalBackupOptions.DEFAULT
+                .withRegionChunking(properties.isRegionChunking())
+                .withContentDefinedChunking(properties.getChunkingMinFileSize(), properties.getChunkingAverageSize())
+                .withDeltaIndexes(properties.getIndexCheckpointInterval())
+                .withParanoidHashing(properties.isParanoidHashing())
+                .withSinglePassCopy(properties.isSinglePassCopy())
+                .withParallelCopy(properties.getCopyThreads(), properties.getCopyBytesInFlight());
+    }
+
+    /**
+     * Get the hash function configured in the base, switching the base to the one in options if specified.
+     */
+    private IdentifierType getIdentifierType(IncrementalBackupStorageManager storageManager,
+                                             IncrementalBackupOptions options) throws IOException {
+        StorageBaseProperties properties = storageManager.getProperties();
+        IdentifierType identifierType = options.getIdentifierType();
+        if (identifierType == null)
+            return properties.getIdentifierType();
+        if (identifierType != properties.getIdentifierType()) {
+            LOGGER.info(String.format("Switching identifier of the base from %s to %s.", properties.getIdentifierType(), identifierType));
+            storageManager.setProperties(properties.withIdentifierType(identifierType));
+        }
+        return identifierType;
+    }
+
+    private FileIdentifierProvider<? extends ObjectIdentifier> getIdentifierProvider(
+            IdentifierType identifierType, IncrementalBackupStorageManager storageManager, IncrementalBackupOptions options) {
+        // chunked files are still copied by the storage manager, chunk by chunk
+        FileIdentifierProvider<? extends ObjectIdentifier> provider = options.isSinglePassCopy() ?
+                storageManager.getStoringIdentifierProvider(identifierType) : identifierType.getFactory();
+        if (options.getChunkingMinFileSize() >= 0)
+            provider = new ContentDefinedChunkingIdentifierProvider(provider,
+                    new ContentDefinedChunker(options.getChunkingAverageSize()), options.getChunkingMinFileSize(), identifierType);
+        if (options.isRegionChunking())
+            provider = new AnvilRegionIdentifierProvider(provider, identifierType);
+        return provider;
+    }
+
+    /**
+     * The parent of a delta index is the newest incremental backup before this one.
+     */
+    private File getParentIndexFile(File indexDirectoryFile, IncrementalBackupOptions options) {
+        if (options.getIndexCheckpointInterval() <= 1)
+            return null;
+        for (BackupCatalogEntry entry : BackupCatalog.forDirectory(indexDirectoryFile).getEntries()) {
+            if (entry.isIncremental() && !entry.getFileName().equals(backupIndexFileName))
+                return new File(indexDirectoryFile, entry.getFileName());
+        }
+        return null;
+    }
+
+    /**
+     * The fingerprint cache is stored beside the incremental base.
+     */
+    private File getFingerprintCacheFile() {
+        File baseDirectoryFile = new File(backupBaseDirectory).getAbsoluteFile();
+        return new File(baseDirectoryFile.getParentFile(), baseDirectoryFile.getName() + ".fingerprints");
+    }
+
     @Override
     public boolean touch() {
         File baseDirectoryFile = new File(backupBaseDirectory);
@@ -7,7 +7,11 @@ import com.keuin.kbackupfabric.exception.ZipUtilException;
 import com.keuin.kbackupfabric.metadata.BackupMetadata;
 import com.keuin.kbackupfabric.operation.backup.feedback.PrimitiveBackupFeedback;
 import com.keuin.kbackupfabric.util.FilesystemUtil;
+import com.keuin.kbackupfabric.util.ParallelZipExtractor;
 import com.keuin.kbackupfabric.util.PrintUtil;
+import com.keuin.kbackupfabric.util.ThreadingUtil;
+import com.keuin.kbackupfabric.util.ZipCompressionPolicy;
+import com.keuin.kbackupfabric.util.ZipCompressionReport;
 import com.keuin.kbackupfabric.util.ZipUtil;
 
 import java.io.File;
@@ -15,20 +19,37 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.Objects;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 public class ConfiguredPrimitiveBackupMethod implements ConfiguredBackupMethod {
 
     private final String backupFileName;
     private final String levelPath;
     private final String backupSavePath;
+    private final ZipCompressionPolicy compressionPolicy;
 
     private final Logger LOGGER = Logger.getLogger(ConfiguredPrimitiveBackupMethod.class.getName());
 
+    /**
+     * Back up with every file compressed at the fastest level.
+     */
     public ConfiguredPrimitiveBackupMethod(String backupFileName, String levelPath, String backupSavePath) {
+        this(backupFileName, levelPath, backupSavePath, ZipCompressionPolicy.fixed(Deflater.BEST_SPEED));
+    }
+
+    /**
+     * Back up with the compression of each file chosen by a policy.
+     *
+     * @param compressionPolicy the policy, e.g. {@link com.keuin.kbackupfabric.util.AdaptiveZipCompressionPolicy#INSTANCE}.
+     */
+    public ConfiguredPrimitiveBackupMethod(String backupFileName, String levelPath, String backupSavePath,
+                                           ZipCompressionPolicy compressionPolicy) {
         this.backupFileName = backupFileName;
         this.levelPath = levelPath;
         this.backupSavePath = backupSavePath;
+        this.compressionPolicy = Objects.requireNonNull(compressionPolicy);
     }
 
     @Deprecated
@@ -47,7 +68,9 @@ public class ConfiguredPrimitiveBackupMethod implements ConfiguredBackupMethod {
             BackupMetadata backupMetadata = new BackupMetadata(System.currentTimeMillis(), customBackupName);
             PrintUtil.info(String.format("zip(srcPath=%s, destPath=%s)", levelPath, backupSavePath));
             PrintUtil.info("Compressing level ...");
-            ZipUtil.makeBackupZip(levelPath, backupSavePath, backupFileName, backupMetadata);
+            ZipCompressionReport report = ZipUtil.makeBackupZip(levelPath, backupSavePath, backupFileName, backupMetadata,
+                    compressionPolicy, ThreadingUtil.getRecommendedThreadCount());
+            PrintUtil.info("Compression report: " + report);
             feedback = PrimitiveBackupFeedback.createSuccessFeedback(
                     FilesystemUtil.getFileSizeBytes(backupSavePath, backupFileName));
         } catch (ZipUtilException exception) {
@@ -76,8 +99,21 @@ public class ConfiguredPrimitiveBackupMethod implements ConfiguredBackupMethod {
 
     @Override
     public boolean restore() throws IOException {
+        String zipFilePath = Paths.get(backupSavePath, backupFileName).toString();
+
+        // Only extract files which differ from the old level
+        PrintUtil.info("Server stopped. Restoring changed files of the level ...");
+        try {
+            ParallelZipExtractor.Result result = ZipUtil.unzipDifferential(zipFilePath, levelPath);
+            PrintUtil.info(result.toString());
+            return true;
+        } catch (IOException e) {
+            // e.g. a file is still locked, which is retried by deleting the whole level
+            LOGGER.warning("Differential restore failed, falling back to full restore: " + e.getMessage());
+        }
+
         // Delete old level
-        PrintUtil.info("Server stopped. Deleting old level ...");
+        PrintUtil.info("Deleting old level ...");
         if (!FilesystemUtil.forceDeleteDirectory(new File(levelPath))) {
             PrintUtil.info("Failed to delete old level!");
             return false;
@@ -85,7 +121,8 @@ public class ConfiguredPrimitiveBackupMethod implements ConfiguredBackupMethod {
 
         // Decompress archive
         PrintUtil.info("Decompressing archived level ...");
-        ZipUtil.unzip(Paths.get(backupSavePath, backupFileName).toString(), levelPath, false);
+        ParallelZipExtractor.Result result = ZipUtil.unzip(zipFilePath, levelPath, false);
+        PrintUtil.info(result.toString());
 
         return true;
     }
@@ -0,0 +1,165 @@
+package com.keuin.kbackupfabric.operation.backup.method;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tunable options of incremental backups.
+ * Immutable.
+ */
+public class IncrementalBackupOptions {
+
+    public static final IncrementalBackupOptions DEFAULT = new IncrementalBackupOptions(false, false, -1, 64 * 1024, null, true,
+            4, 64 * 1024 * 1024, 1);
+
+    private final boolean paranoidHashing;
+    private final boolean regionChunking;
+    private final long chunkingMinFileSize;
+    private final int chunkingAverageSize;
+    private final IdentifierType identifierType;
+    private final boolean singlePassCopy;
+    private final int copyThreads;
+    private final int copyBytesInFlight;
+    private final int indexCheckpointInterval;
+
+    private IncrementalBackupOptions(boolean paranoidHashing, boolean regionChunking, long chunkingMinFileSize, int chunkingAverageSize,
+                                     @Nullable IdentifierType identifierType, boolean singlePassCopy,
+                                     int copyThreads, int copyBytesInFlight, int indexCheckpointInterval) {
+        this.paranoidHashing = paranoidHashing;
+        this.regionChunking = regionChunking;
+        this.chunkingMinFileSize = chunkingMinFileSize;
+        this.chunkingAverageSize = chunkingAverageSize;
+        this.identifierType = identifierType;
+        this.singlePassCopy = singlePassCopy;
+        this.copyThreads = copyThreads;
+        this.copyBytesInFlight = copyBytesInFlight;
+        this.indexCheckpointInterval = indexCheckpointInterval;
+    }
+
+    /**
+     * If enabled, the fingerprint cache is ignored and every file in the level is read and hashed.
+     *
+     * @return whether paranoid hashing is enabled.
+     */
+    public boolean isParanoidHashing() {
+        return paranoidHashing;
+    }
+
+    /**
+     * If enabled, Anvil region files are stored chunk by chunk, so unchanged chunks are shared between backups.
+     * Backups made in this mode cannot be read by older versions.
+     *
+     * @return whether region chunking is enabled.
+     */
+    public boolean isRegionChunking() {
+        return regionChunking;
+    }
+
+    /**
+     * Other files not smaller than this size are split into content-defined chunks.
+     * Backups made in this mode cannot be read by older versions.
+     *
+     * @return the size in bytes. If negative, content-defined chunking is disabled.
+     */
+    public long getChunkingMinFileSize() {
+        return chunkingMinFileSize;
+    }
+
+    /**
+     * Get the expected average size of content-defined chunks.
+     *
+     * @return the size in bytes, a power of 2.
+     */
+    public int getChunkingAverageSize() {
+        return chunkingAverageSize;
+    }
+
+    /**
+     * Get the hash function identifying new objects. If it differs from the one configured in the base,
+     * the base is switched to it. Objects stored with the previous one are still valid.
+     *
+     * @return the type. If null, the one configured in the base is used.
+     */
+    @Nullable
+    public IdentifierType getIdentifierType() {
+        return identifierType;
+    }
+
+    /**
+     * If enabled, files are copied into the base while being hashed, so changed files are read only once.
+     * Files already in the base are still written to a temporary object, which is discarded after hashing.
+     *
+     * @return whether single-pass copying is enabled.
+     */
+    public boolean isSinglePassCopy() {
+        return singlePassCopy;
+    }
+
+    /**
+     * Get the max number of objects copied into the base at the same time.
+     * Solid-state storage is faster with more copies in flight.
+     *
+     * @return the thread count.
+     */
+    public int getCopyThreads() {
+        return copyThreads;
+    }
+
+    /**
+     * Get the max total size of objects copied into the base at the same time. Larger objects are copied alone.
+     *
+     * @return the size in bytes.
+     */
+    public int getCopyBytesInFlight() {
+        return copyBytesInFlight;
+    }
+
+    /**
+     * Get how often a full index is saved. Indexes in between only store the differences to the previous backup.
+     * Backups made in this mode cannot be read by older versions.
+     *
+     * @return max number of indexes in a chain, including the full one at its start. If 1, every index is full.
+     */
+    public int getIndexCheckpointInterval() {
+        return indexCheckpointInterval;
+    }
+
+    public IncrementalBackupOptions withParanoidHashing(boolean paranoidHashing) {
+        return new IncrementalBackupOptions(paranoidHashing, regionChunking, chunkingMinFileSize, chunkingAverageSize, identifierType, singlePassCopy,
+                copyThreads, copyBytesInFlight, indexCheckpointInterval);
+    }
+
+    public IncrementalBackupOptions withRegionChunking(boolean regionChunking) {
+        return new IncrementalBackupOptions(paranoidHashing, regionChunking, chunkingMinFileSize, chunkingAverageSize, identifierType, singlePassCopy,
+                copyThreads, copyBytesInFlight, indexCheckpointInterval);
+    }
+
+    public IncrementalBackupOptions withContentDefinedChunking(long minFileSize, int averageSize) {
+        return new IncrementalBackupOptions(paranoidHashing, regionChunking, minFileSize, averageSize, identifierType, singlePassCopy,
+                copyThreads, copyBytesInFlight, indexCheckpointInterval);
+    }
+
+    public IncrementalBackupOptions withIdentifierType(@Nullable IdentifierType identifierType) {
+        return new IncrementalBackupOptions(paranoidHashing, regionChunking, chunkingMinFileSize, chunkingAverageSize, identifierType, singlePassCopy,
+                copyThreads, copyBytesInFlight, indexCheckpointInterval);
+    }
+
+    public IncrementalBackupOptions withSinglePassCopy(boolean singlePassCopy) {
+        return new IncrementalBackupOptions(paranoidHashing, regionChunking, chunkingMinFileSize, chunkingAverageSize, identifierType, singlePassCopy,
+                copyThreads, copyBytesInFlight, indexCheckpointInterval);
+    }
+
+    public IncrementalBackupOptions withParallelCopy(int copyThreads, int copyBytesInFlight) {
+        if (copyThreads <= 0 || copyBytesInFlight <= 0)
+            throw new IllegalArgumentException("copy threads and bytes in flight must be positive");
+        return new IncrementalBackupOptions(paranoidHashing, regionChunking, chunkingMinFileSize, chunkingAverageSize, identifierType, singlePassCopy,
+                copyThreads, copyBytesInFlight, indexCheckpointInterval);
+    }
+
+    public IncrementalBackupOptions withDeltaIndexes(int checkpointInterval) {
+        if (checkpointInterval <= 0)
+            throw new IllegalArgumentException("checkpoint interval must be positive");
+        return new IncrementalBackupOptions(paranoidHashing, regionChunking, chunkingMinFileSize, chunkingAverageSize, identifierType, singlePassCopy,
+                copyThreads, copyBytesInFlight, checkpointInterval);
+    }
+}
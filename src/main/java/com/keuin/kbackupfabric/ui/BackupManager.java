@@ -1,10 +1,10 @@
 package com.keuin.kbackupfabric.ui;
 
+import com.keuin.kbackupfabric.backup.catalog.BackupCatalog;
+import com.keuin.kbackupfabric.backup.catalog.BackupCatalogEntry;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.io.IOException;
-import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -23,9 +23,9 @@ public class BackupManager {
     }
 
     /**
-     * Get available backups in the disk.
+     * Get available backups in the disk, from the backup catalog. Backup files are only read if they have changed.
      *
-     * @return all backups.
+     * @return all backups, newest first.
      */
     public Iterable<BackupInfo> getAllBackups() {
         return new Iterable<BackupInfo>() {
@@ -41,35 +41,21 @@ public class BackupManager {
                         throw new RuntimeException("Backup directory does not exist and cannot be created.");
                     }
                 }
-                File[] backupFiles = backupStorageDirectory.listFiles();
-                if (backupFiles == null) {
-                    throw new RuntimeException("Cannot list files in backup directory.");
-                }
 
                 return new Iterator<BackupInfo>() {
-                    private final Iterator<File> fileIterator = Arrays.stream(backupFiles).filter(file -> {
-                        String name = file.getName().toLowerCase();
-                        return name.endsWith(".zip") || name.endsWith(".kbi");
-                    }).iterator();
+                    private final Iterator<BackupCatalogEntry> entryIterator =
+                            BackupCatalog.forDirectory(backupStorageDirectory).getEntries().iterator();
 
                     @Override
                     public boolean hasNext() {
-                        return fileIterator.hasNext();
+                        return entryIterator.hasNext();
                     }
 
                     @Override
                     public BackupInfo next() {
-                        try {
-                            File backupFile = fileIterator.next();
-                            String fileName = backupFile.getName().toLowerCase();
-                            if (fileName.endsWith(".zip"))
-                                return PrimitiveBackupInfo.fromFile(backupFile);
-                            if (fileName.endsWith(".kbi"))
-                                return IncrementalBackupInfo.fromFile(backupFile);
-                            throw new RuntimeException("Invalid backup file extname");
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
+                        BackupCatalogEntry entry = entryIterator.next();
+                        return entry.isIncremental() ? IncrementalBackupInfo.fromCatalogEntry(entry)
+                                : PrimitiveBackupInfo.fromCatalogEntry(entry);
                     }
                 };
             }
@@ -1,7 +1,8 @@
 package com.keuin.kbackupfabric.ui;
 
+import com.keuin.kbackupfabric.backup.catalog.BackupCatalogEntry;
 import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupInfoSerializer;
-import com.keuin.kbackupfabric.backup.incremental.serializer.SavedIncrementalBackup;
+import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupMetadata;
 import com.keuin.kbackupfabric.operation.backup.method.ConfiguredBackupMethod;
 import net.minecraft.server.MinecraftServer;
 
@@ -27,7 +28,7 @@ public class IncrementalBackupInfo implements BackupInfo {
     }
 
     public static IncrementalBackupInfo fromFile(File indexFile) throws IOException {
-        SavedIncrementalBackup info = IncBackupInfoSerializer.fromFile(indexFile);
+        IncBackupMetadata info = IncBackupInfoSerializer.metadataFromFile(indexFile);
         return new IncrementalBackupInfo(
                 info.getBackupName(),
                 info.getBackupTime().withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime(),
@@ -36,6 +37,10 @@ public class IncrementalBackupInfo implements BackupInfo {
         );
     }
 
+    public static IncrementalBackupInfo fromCatalogEntry(BackupCatalogEntry entry) {
+        return new IncrementalBackupInfo(entry.getName(), entry.getCreationTime(), entry.getSizeBytes(), entry.getFileName());
+    }
+
     @Override
     public String getName() {
         return name;
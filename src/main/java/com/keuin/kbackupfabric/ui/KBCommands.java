@@ -1,19 +1,27 @@
 package com.keuin.kbackupfabric.ui;
 
 import com.keuin.kbackupfabric.backup.BackupFilesystemUtil;
+import com.keuin.kbackupfabric.backup.incremental.manager.StorageLayout;
 import com.keuin.kbackupfabric.backup.name.IncrementalBackupFileNameEncoder;
 import com.keuin.kbackupfabric.backup.name.PrimitiveBackupFileNameEncoder;
 import com.keuin.kbackupfabric.backup.suggestion.BackupNameSuggestionProvider;
 import com.keuin.kbackupfabric.metadata.MetadataHolder;
 import com.keuin.kbackupfabric.operation.BackupOperation;
+import com.keuin.kbackupfabric.operation.ConvertIndexOperation;
 import com.keuin.kbackupfabric.operation.DeleteOperation;
+import com.keuin.kbackupfabric.operation.GarbageCollectionOperation;
+import com.keuin.kbackupfabric.operation.RepackOperation;
+import com.keuin.kbackupfabric.operation.ReshardOperation;
 import com.keuin.kbackupfabric.operation.RestoreOperation;
+import com.keuin.kbackupfabric.operation.ScrubOperation;
 import com.keuin.kbackupfabric.operation.abstracts.i.Invokable;
 import com.keuin.kbackupfabric.operation.backup.method.ConfiguredBackupMethod;
 import com.keuin.kbackupfabric.operation.backup.method.ConfiguredIncrementalBackupMethod;
 import com.keuin.kbackupfabric.operation.backup.method.ConfiguredPrimitiveBackupMethod;
+import com.keuin.kbackupfabric.util.AdaptiveZipCompressionPolicy;
 import com.keuin.kbackupfabric.util.DateUtil;
 import com.keuin.kbackupfabric.util.PrintUtil;
+import com.keuin.kbackupfabric.util.ZipCompressionPolicy;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.context.CommandContext;
 import net.minecraft.server.MinecraftServer;
@@ -24,6 +32,7 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import static com.keuin.kbackupfabric.backup.BackupFilesystemUtil.*;
 import static com.keuin.kbackupfabric.util.PrintUtil.*;
@@ -76,9 +85,15 @@ public final class KBCommands {
         msgInfo(context, "/kb , /kb help - 显示帮助菜单.");
         msgInfo(context, "/kb list - 列出所有存档.");
         msgInfo(context, "/kb backup [incremental(增量)/zip(压缩)] [文件名] - 备份当前信息至文件. 名字默认为当前系统时间.");
+        msgInfo(context, "/kb backup adaptive [文件名] - 压缩备份, 按文件内容选择压缩方式: 已压缩的文件直接存储, 易压缩的文件压缩得更小.");
         msgInfo(context, "/kb restore <文件名> - 时光回溯至选取的时间点.");
         msgInfo(context, "/kb confirm - 确认并且开始时光回溯.");
         msgInfo(context, "/kb cancel - 取消时光回溯命令.");
+        msgInfo(context, "/kb reshard <flat/sharded> - 切换增量备份存储的目录布局.");
+        msgInfo(context, "/kb repack - 整理增量备份存储中的小文件, 释放已删除备份占用的空间.");
+        msgInfo(context, "/kb gc [dryrun] - 删除增量备份存储中未被任何备份使用的文件. dryrun 只统计不删除.");
+        msgInfo(context, "/kb scrub [all] - 校验增量备份存储中的一部分文件 (all: 全部), 隔离已损坏的文件.");
+        msgInfo(context, "/kb convert - 将旧版本保存的增量备份索引转换为更小, 读取更快的格式. 转换后旧版本无法读取.");
         msgInfo(context, "=================================");
         return SUCCESS;
     }
@@ -203,7 +218,7 @@ public final class KBCommands {
             customBackupName = String.format("a%s", customBackupName);
             msgWarn(context, String.format("不支持使用纯数字名称. 已自动修改为 %s", customBackupName));
         }
-        return doBackup(context, customBackupName, false);
+        return doBackup(context, customBackupName, false, false);
     }
 
     /**
@@ -213,7 +228,33 @@ public final class KBCommands {
      * @return stat code.
      */
     public static int primitiveBackupWithDefaultName(CommandContext<ServerCommandSource> context) {
-        return doBackup(context, DEFAULT_BACKUP_NAME, false);
+        return doBackup(context, DEFAULT_BACKUP_NAME, false, false);
+    }
+
+    /**
+     * Backup into a ZIP file, choosing the compression of each file from its content.
+     *
+     * @param context the context.
+     * @return stat code.
+     */
+    public static int adaptivePrimitiveBackup(CommandContext<ServerCommandSource> context) {
+        String customBackupName = StringArgumentType.getString(context, "backupName");
+        if (customBackupName.matches("[0-9]*")) {
+            // Numeric param is not allowed
+            customBackupName = String.format("a%s", customBackupName);
+            msgWarn(context, String.format("不支持使用纯数字名称. 已自动修改为 %s", customBackupName));
+        }
+        return doBackup(context, customBackupName, false, true);
+    }
+
+    /**
+     * Backup into a ZIP file with default name, choosing the compression of each file from its content.
+     *
+     * @param context the context.
+     * @return stat code.
+     */
+    public static int adaptivePrimitiveBackupWithDefaultName(CommandContext<ServerCommandSource> context) {
+        return doBackup(context, DEFAULT_BACKUP_NAME, false, true);
     }
 
     public static int incrementalBackup(CommandContext<ServerCommandSource> context) {
@@ -223,11 +264,11 @@ public final class KBCommands {
             customBackupName = String.format("a%s", customBackupName);
             msgWarn(context, String.format("不支持使用纯数字名称. 已自动修改为 %s", customBackupName));
         }
-        return doBackup(context, customBackupName, true);
+        return doBackup(context, customBackupName, true, false);
     }
 
     public static int incrementalBackupWithDefaultName(CommandContext<ServerCommandSource> context) {
-        return doBackup(context, DEFAULT_BACKUP_NAME, true);
+        return doBackup(context, DEFAULT_BACKUP_NAME, true, false);
     }
 
 
@@ -277,6 +318,123 @@ public final class KBCommands {
     }
 
 
+    /**
+     * Move objects of the incremental base into the layout given by context parameter layout.
+     * Simply set the pending operation, for the second confirmation.
+     *
+     * @param context the context.
+     * @return stat code.
+     */
+    public static int reshard(CommandContext<ServerCommandSource> context) {
+        String layoutName = StringArgumentType.getString(context, "layout");
+        StorageLayout layout = StorageLayout.fromName(layoutName);
+        if (layout == null) {
+            msgErr(context, String.format("无效的布局 %s, 可用: flat, sharded.", layoutName));
+            return FAILED;
+        }
+
+        pendingOperation = new ReshardOperation(context, layout);
+
+        msgWarn(context, String.format("将增量备份存储切换为 %s 布局, 期间无法备份. 旧版本无法读取 sharded 布局. 请使用/kb cancel 终止 或 /kb confirm 确认请求.", layout.getName()), true);
+        return SUCCESS;
+    }
+
+    /**
+     * Rewrite packs of the incremental base, dropping objects of deleted backups.
+     *
+     * @param context the context.
+     * @return stat code.
+     */
+    public static int repack(CommandContext<ServerCommandSource> context) {
+        RepackOperation operation = new RepackOperation(context);
+        if (operation.invoke()) {
+            msgInfo(context, "开始整理增量备份存储, 期间无法备份.");
+            return SUCCESS;
+        } else if (operation.isBlocked()) {
+            msgWarn(context, "其他任务正在进行, 请稍后再试.");
+        }
+        return FAILED;
+    }
+
+    /**
+     * Delete objects of the incremental base not used by any backup.
+     * Simply set the pending operation, for the second confirmation.
+     *
+     * @param context the context.
+     * @return stat code.
+     */
+    public static int gc(CommandContext<ServerCommandSource> context) {
+        pendingOperation = new GarbageCollectionOperation(context, false);
+
+        msgWarn(context, "将删除增量备份存储中未被任何备份使用的文件, 期间无法备份. 可先使用 /kb gc dryrun 查看. 请使用/kb cancel 终止 或 /kb confirm 确认请求.", true);
+        return SUCCESS;
+    }
+
+    /**
+     * Count objects of the incremental base not used by any backup, without deleting them.
+     *
+     * @param context the context.
+     * @return stat code.
+     */
+    public static int gcDryRun(CommandContext<ServerCommandSource> context) {
+        GarbageCollectionOperation operation = new GarbageCollectionOperation(context, true);
+        if (operation.invoke()) {
+            msgInfo(context, "开始统计增量备份存储中未被使用的文件.");
+            return SUCCESS;
+        } else if (operation.isBlocked()) {
+            msgWarn(context, "其他任务正在进行, 请稍后再试.");
+        }
+        return FAILED;
+    }
+
+    /**
+     * Check the next part of the incremental base for corrupted objects.
+     *
+     * @param context the context.
+     * @return stat code.
+     */
+    public static int scrub(CommandContext<ServerCommandSource> context) {
+        return doScrub(context, false);
+    }
+
+    /**
+     * Check all objects of the incremental base for corrupted objects.
+     *
+     * @param context the context.
+     * @return stat code.
+     */
+    public static int scrubAll(CommandContext<ServerCommandSource> context) {
+        return doScrub(context, true);
+    }
+
+    private static int doScrub(CommandContext<ServerCommandSource> context, boolean full) {
+        ScrubOperation operation = new ScrubOperation(context, full);
+        if (operation.invoke()) {
+            msgInfo(context, "开始校验增量备份存储, 期间无法备份.");
+            return SUCCESS;
+        } else if (operation.isBlocked()) {
+            msgWarn(context, "其他任务正在进行, 请稍后再试.");
+        }
+        return FAILED;
+    }
+
+    /**
+     * Convert index files of incremental backups into the binary index format.
+     *
+     * @param context the context.
+     * @return stat code.
+     */
+    public static int convert(CommandContext<ServerCommandSource> context) {
+        ConvertIndexOperation operation = new ConvertIndexOperation(context);
+        if (operation.invoke()) {
+            msgInfo(context, "开始转换增量备份索引, 期间无法备份.");
+            return SUCCESS;
+        } else if (operation.isBlocked()) {
+            msgWarn(context, "其他任务正在进行, 请稍后再试.");
+        }
+        return FAILED;
+    }
+
     /**
      * Restore with context parameter backupName.
      * Simply set the pending backupName to given backupName, for the second confirmation.
@@ -327,7 +485,8 @@ public final class KBCommands {
         return FAILED;
     }
 
-    private static int doBackup(CommandContext<ServerCommandSource> context, String customBackupName, boolean incremental) {
+    private static int doBackup(CommandContext<ServerCommandSource> context, String customBackupName, boolean incremental,
+                                boolean adaptiveCompression) {
         try {
             // Real backup name (compatible with legacy backup): date_name, such as 2020-04-23_21-03-00_test
             //KBMain.backup("name")
@@ -346,10 +505,13 @@ public final class KBCommands {
 
             // configure backup method
             MinecraftServer server = context.getSource().getMinecraftServer();
+            ZipCompressionPolicy compressionPolicy = adaptiveCompression ?
+                    AdaptiveZipCompressionPolicy.INSTANCE : ZipCompressionPolicy.fixed(Deflater.BEST_SPEED);
             ConfiguredBackupMethod method = !incremental ? new ConfiguredPrimitiveBackupMethod(
                     PrimitiveBackupFileNameEncoder.INSTANCE.encode(customBackupName, LocalDateTime.now()),
                     getLevelPath(server),
-                    getBackupSaveDirectory(server).getCanonicalPath()
+                    getBackupSaveDirectory(server).getCanonicalPath(),
+                    compressionPolicy
             ) : new ConfiguredIncrementalBackupMethod(
                     IncrementalBackupFileNameEncoder.INSTANCE.encode(customBackupName, LocalDateTime.now()),
                     getLevelPath(server),
@@ -505,6 +667,9 @@ public final class KBCommands {
                 // treat numeric input as backup index number in list
                 int index = Integer.parseInt(backupName) - 1;
                 synchronized (backupList) {
+                    // not listed since startup. Listing is cheap with the catalog
+                    if (backupList.isEmpty())
+                        updateBackupList();
                     return backupList.get(index).getBackupFileName(); // Replace input number with real backup file name.
                 }
             }
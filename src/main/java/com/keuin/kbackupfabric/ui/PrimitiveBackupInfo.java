@@ -1,5 +1,6 @@
 package com.keuin.kbackupfabric.ui;
 
+import com.keuin.kbackupfabric.backup.catalog.BackupCatalogEntry;
 import com.keuin.kbackupfabric.backup.name.BackupFileNameEncoder;
 import com.keuin.kbackupfabric.backup.name.PrimitiveBackupFileNameEncoder;
 import com.keuin.kbackupfabric.operation.backup.method.ConfiguredBackupMethod;
@@ -46,6 +47,10 @@ public class PrimitiveBackupInfo implements BackupInfo {
         return new PrimitiveBackupInfo(zipFile.getName(), FilesystemUtil.getFileSizeBytes(zipFile));
     }
 
+    public static PrimitiveBackupInfo fromCatalogEntry(BackupCatalogEntry entry) {
+        return new PrimitiveBackupInfo(entry.getFileName(), entry.getSizeBytes());
+    }
+
     @Override
     public String getName() {
         return name;
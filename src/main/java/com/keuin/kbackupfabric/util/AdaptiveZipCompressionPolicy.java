@@ -0,0 +1,80 @@
+package com.keuin.kbackupfabric.util;
+
+import java.util.zip.Deflater;
+
+/**
+ * Chooses the compression of each entry from its content.
+ * Files which are compressed already (gzip NBT, PNG, ZIP) are recognized by their magic and stored.
+ * Others are sampled: a slice from the middle of the head is deflated at the fast level. Entries which hardly shrink
+ * (e.g. region files full of zlib-compressed chunks) are stored, ones which shrink a lot (uncompressed NBT, JSON, logs)
+ * get the strong level, where it pays off, and the rest (region files with sector padding) the fast level.
+ */
+public final class AdaptiveZipCompressionPolicy implements ZipCompressionPolicy {
+
+    public static final int FAST_LEVEL = Deflater.BEST_SPEED;
+    public static final int STRONG_LEVEL = 6;
+
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    // compressed / original size of the sample
+    private static final double STORE_RATIO = 0.95;
+    private static final double STRONG_RATIO = 0.5;
+
+    private static final byte[][] COMPRESSED_MAGICS = {
+            {(byte) 0x1F, (byte) 0x8B}, // gzip, e.g. level.dat and player data
+            {'P', 'K', 3, 4}, // ZIP, JAR
+            {(byte) 0x89, 'P', 'N', 'G'},
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, // JPEG
+            {'7', 'z', (byte) 0xBC, (byte) 0xAF},
+            {(byte) 0x28, (byte) 0xB5, (byte) 0x2F, (byte) 0xFD}, // zstd
+    };
+
+    public static final AdaptiveZipCompressionPolicy INSTANCE = new AdaptiveZipCompressionPolicy();
+
+    private AdaptiveZipCompressionPolicy() {
+    }
+
+    @Override
+    public int chooseLevel(String name, byte[] head, int length) {
+        if (length == 0)
+            return Deflater.NO_COMPRESSION;
+        for (byte[] magic : COMPRESSED_MAGICS) {
+            if (startsWith(head, length, magic))
+                return Deflater.NO_COMPRESSION;
+        }
+        double ratio = sampleRatio(head, length);
+        if (ratio >= STORE_RATIO)
+            return Deflater.NO_COMPRESSION;
+        return ratio <= STRONG_RATIO ? STRONG_LEVEL : FAST_LEVEL;
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] magic) {
+        if (length < magic.length)
+            return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (head[i] != magic[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Deflate a slice from the middle of the head, skipping headers such as the location table of region files.
+     */
+    private static double sampleRatio(byte[] head, int length) {
+        int sampleLength = Math.min(SAMPLE_SIZE, length);
+        int offset = (length - sampleLength) / 2;
+        Deflater deflater = new Deflater(FAST_LEVEL, true);
+        try {
+            deflater.setInput(head, offset, sampleLength);
+            deflater.finish();
+            byte[] output = new byte[sampleLength];
+            int compressedLength = 0;
+            // stop when it does not shrink at all
+            while (!deflater.finished() && compressedLength < output.length)
+                compressedLength += deflater.deflate(output, compressedLength, output.length - compressedLength);
+            return (double) compressedLength / sampleLength;
+        } finally {
+            deflater.end();
+        }
+    }
+}
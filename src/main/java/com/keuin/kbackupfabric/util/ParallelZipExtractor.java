@@ -0,0 +1,354 @@
+package com.keuin.kbackupfabric.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts a ZIP archive on a pool of threads.
+ * The archive is opened once. All directories are created first, then the files are handed out to the workers,
+ * largest first, so a few big region files do not end up on one thread at last.
+ * Each worker inflates its entries through its own buffer straight into a file channel.
+ * Existing files are overwritten.
+ * <p>
+ * A differential extraction makes the destination equal to the archive while writing only what differs:
+ * files absent from the archive are deleted, and an entry is skipped if the existing file has the size and CRC-32
+ * recorded in the central directory. The CRC is only computed if the size matches.
+ */
+public final class ParallelZipExtractor {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final File zipFile;
+    private final int threads;
+
+    /**
+     * @param zipFile the archive.
+     * @param threads number of extracting threads. If 1, entries are extracted on the caller thread.
+     */
+    public ParallelZipExtractor(File zipFile, int threads) {
+        this.zipFile = Objects.requireNonNull(zipFile);
+        if (threads <= 0)
+            throw new IllegalArgumentException("thread count must be positive");
+        this.threads = threads;
+    }
+
+    /**
+     * Extract all entries.
+     *
+     * @param destination the directory to extract into. Created if it does not exist.
+     * @return what was extracted.
+     * @throws IOException when failed to read the archive or to write a file, or an entry points outside the destination.
+     */
+    public Result extractTo(File destination) throws IOException {
+        return extract(destination, false);
+    }
+
+    /**
+     * Make a directory equal to the archive, extracting only entries which differ from the existing files,
+     * and deleting files and directories which are not in the archive.
+     *
+     * @param destination the directory. Created if it does not exist.
+     * @return what was extracted, kept and deleted.
+     * @throws IOException when failed to read the archive, to write or delete a file, or an entry points outside the
+     *                     destination. The directory may be partly restored then.
+     */
+    public Result extractDifferentialTo(File destination) throws IOException {
+        return extract(destination, true);
+    }
+
+    private Result extract(File destination, boolean differential) throws IOException {
+        long start = System.nanoTime();
+        Path root = destination.toPath().toAbsolutePath().normalize();
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            List<ZipEntry> files = new ArrayList<>();
+            Set<Path> filePaths = new HashSet<>();
+            Set<Path> directories = new TreeSet<>(); // parents come before their children
+            directories.add(root);
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                Path path = resolve(root, entry);
+                if (entry.isDirectory()) {
+                    directories.add(path);
+                } else {
+                    files.add(entry);
+                    filePaths.add(path);
+                    directories.add(path.getParent());
+                }
+            }
+            int deletedFiles = differential && Files.isDirectory(root) ? deleteOthers(root, filePaths, directories) : 0;
+            for (Path directory : directories)
+                Files.createDirectories(directory);
+
+            // largest first, unknown sizes (-1) last
+            files.sort(Comparator.comparingLong(ZipEntry::getSize).reversed());
+            Job job = new Job(zip, root, files, differential);
+            long bytes = extractFiles(job);
+            int unchangedFiles = job.unchangedFiles.get();
+            return new Result(files.size() - unchangedFiles, directories.size() - 1, bytes, unchangedFiles,
+                    deletedFiles, System.nanoTime() - start);
+        }
+    }
+
+    private static Path resolve(Path root, ZipEntry entry) throws IOException {
+        Path path = root.resolve(entry.getName()).normalize();
+        if (!path.startsWith(root))
+            throw new IOException(String.format("Entry %s is outside of the destination", entry.getName()));
+        return path;
+    }
+
+    /**
+     * Delete files which are not in the archive, and directories which contain none of its entries.
+     * A directory standing where the archive has a file is deleted with all its content.
+     *
+     * @return number of deleted files.
+     */
+    private static int deleteOthers(Path root, Set<Path> filePaths, Set<Path> directories) throws IOException {
+        Set<Path> keptDirectories = new HashSet<>();
+        for (Path directory : directories) {
+            for (Path path = directory; path != null && keptDirectories.add(path) && !path.equals(root); )
+                path = path.getParent();
+        }
+        int[] deletedFiles = {0};
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (!filePaths.contains(file) || !attributes.isRegularFile()) {
+                    Files.delete(file);
+                    ++deletedFiles[0];
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException exception) throws IOException {
+                if (exception != null)
+                    throw exception;
+                if (!keptDirectories.contains(directory))
+                    Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deletedFiles[0];
+    }
+
+    private long extractFiles(Job job) throws IOException {
+        if (threads == 1)
+            return job.run();
+
+        int workerCount = Math.min(threads, Math.max(1, job.files.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "KBackup unzip");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Long>> workers = new ArrayList<>(workerCount);
+            for (int i = 0; i < workerCount; i++)
+                workers.add(executor.submit(job::run));
+            long bytes = 0;
+            for (Future<Long> worker : workers) {
+                try {
+                    bytes += worker.get();
+                } catch (ExecutionException e) {
+                    job.stop();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    throw new IOException("Failed to extract archive", cause);
+                }
+            }
+            return bytes;
+        } catch (InterruptedException e) {
+            job.stop();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting", e);
+        } finally {
+            executor.shutdownNow();
+            try {
+                // the archive is closed after this, so let the workers stop first
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Files to extract, shared by the workers.
+     */
+    private static final class Job {
+        final ZipFile zip;
+        final Path root;
+        final List<ZipEntry> files;
+        final boolean differential;
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final AtomicInteger unchangedFiles = new AtomicInteger();
+
+        Job(ZipFile zip, Path root, List<ZipEntry> files, boolean differential) {
+            this.zip = zip;
+            this.root = root;
+            this.files = files;
+            this.differential = differential;
+        }
+
+        /**
+         * Let the workers stop after their current entry.
+         */
+        void stop() {
+            nextIndex.set(files.size());
+        }
+
+        /**
+         * Take entries until none is left.
+         *
+         * @return bytes written.
+         */
+        long run() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long bytes = 0;
+            int index;
+            while ((index = nextIndex.getAndIncrement()) < files.size()) {
+                ZipEntry entry = files.get(index);
+                Path path = resolve(root, entry);
+                if (differential && isUnchanged(path, entry, buffer)) {
+                    unchangedFiles.incrementAndGet();
+                    continue;
+                }
+                try (InputStream inputStream = zip.getInputStream(entry);
+                     FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                             StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    int count;
+                    while ((count = inputStream.read(buffer)) != -1) {
+                        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+                        while (byteBuffer.hasRemaining())
+                            channel.write(byteBuffer);
+                        bytes += count;
+                    }
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * Check the existing file against the size and CRC-32 in the central directory.
+         */
+        private static boolean isUnchanged(Path path, ZipEntry entry, byte[] buffer) throws IOException {
+            if (entry.getSize() < 0 || entry.getCrc() < 0)
+                return false;
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            if (!attributes.isRegularFile() || attributes.size() != entry.getSize())
+                return false;
+            CRC32 crc = new CRC32();
+            try (InputStream inputStream = Files.newInputStream(path)) {
+                int count;
+                while ((count = inputStream.read(buffer)) != -1)
+                    crc.update(buffer, 0, count);
+            }
+            return crc.getValue() == entry.getCrc();
+        }
+    }
+
+    /**
+     * What was extracted, and how fast.
+     * Immutable.
+     */
+    public static final class Result {
+        private final int files;
+        private final int directories;
+        private final long bytes;
+        private final int unchangedFiles;
+        private final int deletedFiles;
+        private final long elapsedNanos;
+
+        Result(int files, int directories, long bytes, int unchangedFiles, int deletedFiles, long elapsedNanos) {
+            this.files = files;
+            this.directories = directories;
+            this.bytes = bytes;
+            this.unchangedFiles = unchangedFiles;
+            this.deletedFiles = deletedFiles;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Get the number of extracted files, not counting unchanged ones.
+         *
+         * @return file count.
+         */
+        public int getFiles() {
+            return files;
+        }
+
+        public int getDirectories() {
+            return directories;
+        }
+
+        /**
+         * Get the number of files which were equal to their entries and kept, in a differential extraction.
+         *
+         * @return file count.
+         */
+        public int getUnchangedFiles() {
+            return unchangedFiles;
+        }
+
+        /**
+         * Get the number of files which were not in the archive and deleted, in a differential extraction.
+         *
+         * @return file count.
+         */
+        public int getDeletedFiles() {
+            return deletedFiles;
+        }
+
+        /**
+         * Get the total size of extracted files.
+         *
+         * @return bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Get the extraction throughput, in uncompressed bytes.
+         *
+         * @return bytes per second.
+         */
+        public double getBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            String result = String.format("Extracted %d file(s) in %d director(ies), %.2fMB in %.2fs (%.2fMB/s).",
+                    files, directories, bytes / 1024.0 / 1024, elapsedNanos / 1e9, getBytesPerSecond() / 1024 / 1024);
+            if (unchangedFiles > 0 || deletedFiles > 0)
+                result += String.format(" %d file(s) unchanged, %d deleted.", unchangedFiles, deletedFiles);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package com.keuin.kbackupfabric.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a ZIP archive, compressing entries on a pool of threads.
+ * Large entries are split into blocks which are compressed independently, each primed with the end of the previous
+ * block as dictionary (like pigz), so a single large file keeps all threads busy too. Every block but the last ends
+ * with a sync flush, so the blocks of an entry form one ordinary deflate stream.
+ * Blocks are written in order. Sizes and CRC of an entry are patched into its local header after its data,
+ * so no data descriptors are needed. ZIP64 records are written where sizes, offsets or the entry count need them.
+ * A {@link ZipCompressionPolicy} chooses the level of each entry from its head, entries at level 0 are stored.
+ * Not thread-safe.
+ */
+public final class ParallelZipWriter implements Closeable {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    // deflate expands incompressible data slightly, so entries close to 4 GiB get ZIP64 local headers as well
+    private static final long ZIP64_ENTRY_THRESHOLD = 0xF0000000L;
+    // blocks read or being compressed per thread, bounds the memory used
+    private static final int PENDING_BLOCKS_PER_THREAD = 4;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_COUNT_MAGIC = 0xFFFF;
+    private static final short VERSION = 20;
+    private static final short ZIP64_VERSION = 45;
+    private static final short FLAG_UTF8 = 0x0800;
+    private static final short METHOD_STORED = 0;
+    private static final short METHOD_DEFLATED = 8;
+    private static final int DEFAULT_LEVEL = 6;
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final FileChannel channel;
+    private final ZipCompressionPolicy policy;
+    private final long zip64EntryThreshold;
+    private final ExecutorService executor; // null if blocks are compressed on the caller thread
+    private final int maxPendingBlocks;
+    private final Deque<Block> pendingBlocks = new ArrayDeque<>();
+    private final List<Queue<Deflater>> idleDeflaters = new ArrayList<>(ZipCompressionReport.LEVELS); // by level
+    private final List<Entry> entries = new ArrayList<>();
+    private final long[] entryCounts = new long[ZipCompressionReport.LEVELS];
+    private final long[] inputBytes = new long[ZipCompressionReport.LEVELS];
+    private final long[] outputBytes = new long[ZipCompressionReport.LEVELS];
+    private final long[] cpuNanos = new long[ZipCompressionReport.LEVELS];
+    private long samplingCpuNanos = 0;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(64 * 1024 + 128).order(ByteOrder.LITTLE_ENDIAN);
+    private long position = 0;
+    private boolean failed = false;
+    private boolean closed = false;
+
+    /**
+     * Create a new archive.
+     *
+     * @param file    the archive file. Overwritten if it exists.
+     * @param level   compression level, see {@link Deflater}.
+     * @param threads number of compressing threads. If 1, blocks are compressed on the caller thread.
+     * @throws IOException when failed to create the file.
+     */
+    public ParallelZipWriter(File file, int level, int threads) throws IOException {
+        this(file, ZipCompressionPolicy.fixed(level), threads);
+    }
+
+    /**
+     * Create a new archive.
+     *
+     * @param file    the archive file. Overwritten if it exists.
+     * @param policy  chooses the compression level of each entry.
+     * @param threads number of compressing threads. If 1, blocks are compressed on the caller thread.
+     * @throws IOException when failed to create the file.
+     */
+    public ParallelZipWriter(File file, ZipCompressionPolicy policy, int threads) throws IOException {
+        this(file, policy, threads, ZIP64_ENTRY_THRESHOLD);
+    }
+
+    ParallelZipWriter(File file, ZipCompressionPolicy policy, int threads, long zip64EntryThreshold) throws IOException {
+        Objects.requireNonNull(file);
+        if (threads <= 0)
+            throw new IllegalArgumentException("thread count must be positive");
+        this.policy = Objects.requireNonNull(policy);
+        for (int i = 0; i < ZipCompressionReport.LEVELS; i++)
+            idleDeflaters.add(new ConcurrentLinkedQueue<>());
+        this.zip64EntryThreshold = zip64EntryThreshold;
+        this.maxPendingBlocks = threads * PENDING_BLOCKS_PER_THREAD;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.executor = threads == 1 ? null : Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "KBackup zip");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add a file. It is read on the caller thread, and compressed in the background.
+     *
+     * @param name name of the entry, with '/' as separator.
+     * @param file the file.
+     * @throws IOException when failed to read the file, or to write compressed data.
+     */
+    public void putFile(String name, File file) throws IOException {
+        Objects.requireNonNull(file);
+        long length = file.length();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            put(name, file.lastModified(), length, inputStream);
+        }
+    }
+
+    /**
+     * Add an entry with given content.
+     *
+     * @param name         name of the entry, with '/' as separator.
+     * @param lastModified modification time of the entry.
+     * @param data         the content. Must not be modified until the archive is closed.
+     * @throws IOException when failed to write compressed data.
+     */
+    public void putBytes(String name, long lastModified, byte[] data) throws IOException {
+        Objects.requireNonNull(data);
+        checkOpen();
+        Entry entry = newEntry(name, lastModified, data.length, data, data.length);
+        int offset = 0;
+        byte[] previous = null;
+        do {
+            int length = Math.min(BLOCK_SIZE, data.length - offset);
+            byte[] input = offset == 0 && length == data.length ? data : Arrays.copyOfRange(data, offset, offset + length);
+            offset += length;
+            submit(new Block(entry, input, length, previous, previous == null, offset == data.length));
+            previous = input;
+        } while (offset < data.length);
+    }
+
+    /**
+     * Add an entry read from a stream. If reading fails in the middle, the archive is broken and cannot be finished.
+     */
+    void put(String name, long lastModified, long expectedLength, InputStream inputStream) throws IOException {
+        checkOpen();
+        Entry entry = null;
+        byte[] previous = null;
+        long read = 0;
+        try {
+            while (true) {
+                // one byte more than expected, so the end is found without reading another block
+                byte[] input = new byte[(int) Math.min(BLOCK_SIZE, Math.max(0, expectedLength - read) + 1)];
+                int length = IOUtils.read(inputStream, input);
+                read += length;
+                boolean last = length < input.length;
+                if (entry == null)
+                    entry = newEntry(name, lastModified, expectedLength, input, length);
+                submit(new Block(entry, input, length, previous, previous == null, last));
+                if (last)
+                    return;
+                previous = input;
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IllegalStateException("archive is closed");
+        if (failed)
+            throw new IOException("archive is broken by an earlier failure");
+    }
+
+    private Entry newEntry(String name, long lastModified, long expectedLength, byte[] head, int headLength) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF)
+            throw new IllegalArgumentException("entry name is too long");
+        long samplingStart = cpuTimeNanos();
+        int level = policy.chooseLevel(name, head, headLength);
+        samplingCpuNanos += cpuTimeNanos() - samplingStart;
+        if (level == Deflater.DEFAULT_COMPRESSION)
+            level = DEFAULT_LEVEL;
+        if (level < 0 || level >= ZipCompressionReport.LEVELS)
+            throw new IllegalArgumentException("invalid compression level " + level);
+        Entry entry = new Entry(nameBytes, toDosTime(lastModified), expectedLength >= zip64EntryThreshold, level);
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * CPU time of the current thread, if the JVM measures it.
+     */
+    private static long cpuTimeNanos() {
+        return threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()
+                ? threadMXBean.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private void submit(Block block) throws IOException {
+        try {
+            while (pendingBlocks.size() >= maxPendingBlocks)
+                writeNextBlock();
+            pendingBlocks.add(block);
+            if (block.entry.isStored())
+                return;
+            FutureTask<byte[]> task = new FutureTask<>(() -> compress(block));
+            block.compressed = task;
+            if (executor == null)
+                task.run();
+            else
+                executor.execute(task);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Compress a block into a raw deflate stream, which continues the stream of the previous blocks.
+     * The first 4 bytes of the result are its length.
+     */
+    private byte[] compress(Block block) {
+        long start = cpuTimeNanos();
+        Queue<Deflater> idle = idleDeflaters.get(block.entry.level);
+        Deflater deflater = idle.poll();
+        if (deflater == null)
+            deflater = new Deflater(block.entry.level, true);
+        try {
+            if (block.previous != null) {
+                int dictionaryLength = Math.min(DICTIONARY_SIZE, block.previous.length);
+                deflater.setDictionary(block.previous, block.previous.length - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(block.input, 0, block.length);
+            if (block.last)
+                deflater.finish();
+            byte[] output = new byte[4 + block.length + (block.length >> 10) + 64];
+            int length = 4;
+            while (true) {
+                length += deflater.deflate(output, length, output.length - length,
+                        block.last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                // a sync flush is complete if the output is not full
+                if (block.last ? deflater.finished() : length < output.length)
+                    break;
+                if (length == output.length)
+                    output = Arrays.copyOf(output, output.length * 2);
+            }
+            ByteBuffer.wrap(output).putInt(length - 4);
+            return output;
+        } finally {
+            deflater.reset();
+            idle.add(deflater);
+            block.cpuNanos = cpuTimeNanos() - start;
+        }
+    }
+
+    private void writeNextBlock() throws IOException {
+        Block block = pendingBlocks.poll();
+        byte[] compressed = null;
+        if (block.compressed != null) {
+            try {
+                compressed = block.compressed.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to compress an entry", e.getCause());
+            }
+        }
+        Entry entry = block.entry;
+        if (block.first) {
+            entry.offset = position;
+            writeLocalHeader(entry);
+        }
+        int compressedLength;
+        if (compressed == null) {
+            compressedLength = block.length;
+            write(ByteBuffer.wrap(block.input, 0, block.length));
+        } else {
+            compressedLength = ByteBuffer.wrap(compressed).getInt();
+            write(ByteBuffer.wrap(compressed, 4, compressedLength));
+        }
+        cpuNanos[entry.level] += block.cpuNanos;
+        entry.crc.update(block.input, 0, block.length);
+        entry.size += block.length;
+        entry.compressedSize += compressedLength;
+        if (block.last)
+            finishEntry(entry);
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        ByteBuffer buffer = headerBuffer;
+        buffer.clear();
+        buffer.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort(entry.zip64 ? ZIP64_VERSION : VERSION)
+                .putShort(FLAG_UTF8)
+                .putShort(entry.getMethod())
+                .putInt(entry.dosTime)
+                .putInt(0) // CRC, sizes and the ZIP64 sizes are patched later
+                .putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0)
+                .putInt(entry.zip64 ? (int) ZIP64_MAGIC : 0)
+                .putShort((short) entry.name.length)
+                .putShort((short) (entry.zip64 ? 20 : 0))
+                .put(entry.name);
+        if (entry.zip64)
+            buffer.putShort(ZIP64_EXTRA_ID).putShort((short) 16).putLong(0).putLong(0);
+        buffer.flip();
+        write(buffer);
+    }
+
+    private void finishEntry(Entry entry) throws IOException {
+        ++entryCounts[entry.level];
+        inputBytes[entry.level] += entry.size;
+        outputBytes[entry.level] += entry.compressedSize;
+        ByteBuffer buffer = headerBuffer;
+        buffer.clear();
+        if (entry.zip64) {
+            buffer.putInt((int) entry.crc.getValue()).flip();
+            writeAt(buffer, entry.offset + 14);
+            buffer.clear();
+            buffer.putLong(entry.size).putLong(entry.compressedSize).flip();
+            writeAt(buffer, entry.offset + LOCAL_HEADER_LENGTH + entry.name.length + 4);
+        } else {
+            if (entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC)
+                throw new IOException("File grew beyond 4 GiB while being compressed");
+            buffer.putInt((int) entry.crc.getValue()).putInt((int) entry.compressedSize).putInt((int) entry.size).flip();
+            writeAt(buffer, entry.offset + 14);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = position;
+        for (Entry entry : entries) {
+            boolean zip64Sizes = entry.zip64;
+            boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0);
+            short version = zip64Sizes || zip64Offset ? ZIP64_VERSION : VERSION;
+            ByteBuffer buffer = headerBuffer;
+            buffer.clear();
+            buffer.putInt(CENTRAL_HEADER_SIGNATURE)
+                    .putShort(version)
+                    .putShort(version)
+                    .putShort(FLAG_UTF8)
+                    .putShort(entry.getMethod())
+                    .putInt(entry.dosTime)
+                    .putInt((int) entry.crc.getValue())
+                    .putInt((int) (zip64Sizes ? ZIP64_MAGIC : entry.compressedSize))
+                    .putInt((int) (zip64Sizes ? ZIP64_MAGIC : entry.size))
+                    .putShort((short) entry.name.length)
+                    .putShort((short) (extraLength == 0 ? 0 : 4 + extraLength))
+                    .putShort((short) 0) // comment length
+                    .putShort((short) 0) // disk number
+                    .putShort((short) 0) // internal attributes
+                    .putInt(0) // external attributes
+                    .putInt((int) (zip64Offset ? ZIP64_MAGIC : entry.offset))
+                    .put(entry.name);
+            if (extraLength > 0) {
+                buffer.putShort(ZIP64_EXTRA_ID).putShort((short) extraLength);
+                if (zip64Sizes)
+                    buffer.putLong(entry.size).putLong(entry.compressedSize);
+                if (zip64Offset)
+                    buffer.putLong(entry.offset);
+            }
+            buffer.flip();
+            write(buffer);
+        }
+        long centralDirectoryLength = position - centralDirectoryOffset;
+
+        ByteBuffer buffer = headerBuffer;
+        buffer.clear();
+        boolean zip64 = entries.size() >= ZIP64_COUNT_MAGIC || centralDirectoryOffset >= ZIP64_MAGIC
+                || centralDirectoryLength >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = position;
+            buffer.putInt(ZIP64_END_SIGNATURE)
+                    .putLong(44) // length of the rest of the record
+                    .putShort(ZIP64_VERSION)
+                    .putShort(ZIP64_VERSION)
+                    .putInt(0) // disk number
+                    .putInt(0) // disk of the central directory
+                    .putLong(entries.size())
+                    .putLong(entries.size())
+                    .putLong(centralDirectoryLength)
+                    .putLong(centralDirectoryOffset);
+            buffer.putInt(ZIP64_LOCATOR_SIGNATURE)
+                    .putInt(0) // disk of the ZIP64 end record
+                    .putLong(zip64EndOffset)
+                    .putInt(1); // total disks
+        }
+        buffer.putInt(END_SIGNATURE)
+                .putShort((short) 0) // disk number
+                .putShort((short) 0) // disk of the central directory
+                .putShort((short) (zip64 ? ZIP64_COUNT_MAGIC : entries.size()))
+                .putShort((short) (zip64 ? ZIP64_COUNT_MAGIC : entries.size()))
+                .putInt((int) (zip64 ? ZIP64_MAGIC : centralDirectoryLength))
+                .putInt((int) (zip64 ? ZIP64_MAGIC : centralDirectoryOffset))
+                .putShort((short) 0); // comment length
+        buffer.flip();
+        write(buffer);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer);
+    }
+
+    private void writeAt(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining())
+            offset += channel.write(buffer, offset);
+    }
+
+    /**
+     * Write all pending entries and the central directory, and close the file.
+     * If an entry failed before, the archive is left incomplete.
+     *
+     * @throws IOException when failed to write the archive.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (!failed) {
+                while (!pendingBlocks.isEmpty())
+                    writeNextBlock();
+                writeCentralDirectory();
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            pendingBlocks.clear();
+            if (executor != null) {
+                executor.shutdownNow();
+                try {
+                    // blocks are small, running ones finish soon and give back their deflaters
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (Queue<Deflater> idle : idleDeflaters) {
+                Deflater deflater;
+                while ((deflater = idle.poll()) != null)
+                    deflater.end();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Get the compression statistics of the entries written so far. All entries are written when the archive is closed.
+     *
+     * @return the report.
+     */
+    public ZipCompressionReport getReport() {
+        return new ZipCompressionReport(entryCounts, inputBytes, outputBytes, cpuNanos, samplingCpuNanos);
+    }
+
+    /**
+     * Convert to MS-DOS date and time, in the local time zone, with 2 second precision.
+     */
+    static int toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980)
+            return (1 << 21) | (1 << 16); // 1980-01-01 00:00:00
+        if (time.getYear() > 2107)
+            time = LocalDateTime.of(2107, 12, 31, 23, 59, 58);
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static final class Entry {
+        final byte[] name;
+        final int dosTime;
+        final boolean zip64;
+        final int level; // 0 if stored
+        final CRC32 crc = new CRC32();
+        long offset;
+        long size;
+        long compressedSize;
+
+        Entry(byte[] name, int dosTime, boolean zip64, int level) {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.zip64 = zip64;
+            this.level = level;
+        }
+
+        boolean isStored() {
+            return level == Deflater.NO_COMPRESSION;
+        }
+
+        short getMethod() {
+            return isStored() ? METHOD_STORED : METHOD_DEFLATED;
+        }
+    }
+
+    private static final class Block {
+        final Entry entry;
+        final byte[] input;
+        final int length;
+        final byte[] previous; // input of the previous block of the entry, for the dictionary
+        final boolean first;
+        final boolean last;
+        Future<byte[]> compressed; // null if the entry is stored
+        long cpuNanos; // spent on compressing, set with the result
+
+        Block(Entry entry, byte[] input, int length, byte[] previous, boolean first, boolean last) {
+            this.entry = entry;
+            this.input = input;
+            this.length = length;
+            this.previous = previous;
+            this.first = first;
+            this.last = last;
+        }
+    }
+}
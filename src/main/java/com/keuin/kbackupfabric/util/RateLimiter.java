@@ -0,0 +1,84 @@
+package com.keuin.kbackupfabric.util;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limit the rate of some work, e.g. bytes read or files visited.
+ * Permits are added continuously, up to a burst of one second. Thread-safe.
+ */
+public class RateLimiter {
+
+    /**
+     * Bytes read per second by maintenance tasks such as garbage collection and scrubbing,
+     * so they do not starve the game server of disk time.
+     */
+    public static final long MAINTENANCE_BYTES_PER_SECOND = 32 * 1024 * 1024;
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long permitsPerSecond;
+    private long availablePermits;
+    private long lastRefillNanos;
+
+    /**
+     * Create a limiter.
+     *
+     * @param permitsPerSecond permits allowed in a second. If not positive, the rate is not limited.
+     */
+    public RateLimiter(long permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.availablePermits = permitsPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Get a limiter which never waits.
+     */
+    public static RateLimiter unlimited() {
+        return new RateLimiter(0);
+    }
+
+    public long getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Take some permits, waiting until they are available.
+     * Taking more permits than the burst is allowed, the next callers wait longer then.
+     *
+     * @param permits permits to take.
+     * @throws InterruptedIOException when interrupted while waiting.
+     */
+    public void acquire(long permits) throws InterruptedIOException {
+        if (permits < 0)
+            throw new IllegalArgumentException("negative permits");
+        if (permitsPerSecond <= 0 || permits == 0)
+            return;
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long elapsed = now - lastRefillNanos;
+            if (elapsed >= NANOS_PER_SECOND) {
+                availablePermits = Math.min(permitsPerSecond, availablePermits + permitsPerSecond);
+                lastRefillNanos = now;
+            } else {
+                long refilled = elapsed * permitsPerSecond / NANOS_PER_SECOND;
+                if (refilled > 0) {
+                    // keep the fraction of a permit not added yet
+                    availablePermits = Math.min(permitsPerSecond, availablePermits + refilled);
+                    lastRefillNanos += refilled * NANOS_PER_SECOND / permitsPerSecond;
+                }
+            }
+            availablePermits -= permits;
+            waitNanos = (availablePermits >= 0) ? 0 : -availablePermits * NANOS_PER_SECOND / permitsPerSecond;
+        }
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for I/O budget");
+            }
+        }
+    }
+}
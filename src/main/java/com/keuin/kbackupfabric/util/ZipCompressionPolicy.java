@@ -0,0 +1,34 @@
+package com.keuin.kbackupfabric.util;
+
+import java.util.zip.Deflater;
+
+/**
+ * Chooses how each entry of a ZIP archive is compressed.
+ * Called on the thread adding entries, before any data of the entry is compressed.
+ */
+@FunctionalInterface
+public interface ZipCompressionPolicy {
+
+    /**
+     * Choose the compression level of an entry.
+     *
+     * @param name   name of the entry.
+     * @param head   beginning of the content.
+     * @param length valid bytes in head. The whole content if it is not longer than the head.
+     * @return deflate level, {@link Deflater#DEFAULT_COMPRESSION}, or {@link Deflater#NO_COMPRESSION} to store the
+     * entry without compression.
+     */
+    int chooseLevel(String name, byte[] head, int length);
+
+    /**
+     * Use the same level for every entry.
+     *
+     * @param level deflate level, see {@link Deflater}. {@link Deflater#NO_COMPRESSION} stores entries.
+     * @return the policy.
+     */
+    static ZipCompressionPolicy fixed(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9))
+            throw new IllegalArgumentException("invalid compression level");
+        return (name, head, length) -> level;
+    }
+}
@@ -0,0 +1,120 @@
+package com.keuin.kbackupfabric.util;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Bytes saved and CPU time spent by each compression level of a ZIP archive, to compare compression policies.
+ * Level {@link Deflater#NO_COMPRESSION} counts stored entries.
+ * CPU time is measured per thread where the JVM supports it, wall time otherwise.
+ * Immutable.
+ */
+public final class ZipCompressionReport {
+
+    static final int LEVELS = 10;
+
+    private final long[] entryCounts;
+    private final long[] inputBytes;
+    private final long[] outputBytes;
+    private final long[] cpuNanos;
+    private final long samplingCpuNanos;
+
+    ZipCompressionReport(long[] entryCounts, long[] inputBytes, long[] outputBytes, long[] cpuNanos, long samplingCpuNanos) {
+        this.entryCounts = entryCounts.clone();
+        this.inputBytes = inputBytes.clone();
+        this.outputBytes = outputBytes.clone();
+        this.cpuNanos = cpuNanos.clone();
+        this.samplingCpuNanos = samplingCpuNanos;
+    }
+
+    /**
+     * Get the number of entries compressed at a level.
+     *
+     * @param level compression level, 0 for stored entries.
+     * @return entry count.
+     */
+    public long getEntryCount(int level) {
+        return entryCounts[level];
+    }
+
+    /**
+     * Get the original size of entries compressed at a level.
+     *
+     * @param level compression level, 0 for stored entries.
+     * @return bytes.
+     */
+    public long getInputBytes(int level) {
+        return inputBytes[level];
+    }
+
+    /**
+     * Get the compressed size of entries compressed at a level.
+     *
+     * @param level compression level, 0 for stored entries.
+     * @return bytes.
+     */
+    public long getOutputBytes(int level) {
+        return outputBytes[level];
+    }
+
+    /**
+     * Get the CPU time spent on compressing entries at a level.
+     *
+     * @param level compression level, 0 for stored entries.
+     * @return nanoseconds.
+     */
+    public long getCpuNanos(int level) {
+        return cpuNanos[level];
+    }
+
+    /**
+     * Get the CPU time spent on choosing the compression of entries.
+     *
+     * @return nanoseconds.
+     */
+    public long getSamplingCpuNanos() {
+        return samplingCpuNanos;
+    }
+
+    public long getTotalInputBytes() {
+        return Arrays.stream(inputBytes).sum();
+    }
+
+    public long getTotalOutputBytes() {
+        return Arrays.stream(outputBytes).sum();
+    }
+
+    /**
+     * Get the CPU time spent on compressing and sampling.
+     *
+     * @return nanoseconds.
+     */
+    public long getTotalCpuNanos() {
+        return Arrays.stream(cpuNanos).sum() + samplingCpuNanos;
+    }
+
+    private static String sizeString(long bytes) {
+        return String.format("%.2fMB", bytes / 1024.0 / 1024);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int level = 0; level < LEVELS; level++) {
+            if (entryCounts[level] == 0)
+                continue;
+            long saved = inputBytes[level] - outputBytes[level];
+            double cpuSeconds = cpuNanos[level] / 1e9;
+            builder.append(level == Deflater.NO_COMPRESSION ? "Stored" : "Level " + level)
+                    .append(String.format(": %d file(s), %s -> %s, %s saved in %.2fs CPU",
+                            entryCounts[level], sizeString(inputBytes[level]), sizeString(outputBytes[level]),
+                            sizeString(saved), cpuSeconds));
+            if (level != Deflater.NO_COMPRESSION && cpuSeconds > 0)
+                builder.append(String.format(" (%s per CPU second)", sizeString((long) (saved / cpuSeconds))));
+            builder.append(". ");
+        }
+        return builder.append(String.format("Total: %s -> %s in %.2fs CPU, %.2fs of it for sampling.",
+                sizeString(getTotalInputBytes()), sizeString(getTotalOutputBytes()),
+                getTotalCpuNanos() / 1e9, samplingCpuNanos / 1e9)).toString();
+    }
+}
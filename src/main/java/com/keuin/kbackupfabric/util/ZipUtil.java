@@ -5,23 +5,20 @@ import com.keuin.kbackupfabric.metadata.BackupMetadata;
 
 import java.io.*;
 import java.util.*;
-import java.util.zip.*;
+import java.util.zip.Deflater;
 
 public final class ZipUtil {
 
-    private static final int unzipBufferSize = 1024 * 1024 * 8; // 8MB
-    private static final int zipBufferSize = 1024 * 1024 * 8; // 8MB
-
     /**
      * 递归压缩文件夹
      *
      * @param srcRootDir      压缩文件夹根目录的子路径
      * @param file            当前递归压缩的文件或目录对象
-     * @param zipOutputStream 压缩文件存储对象
+     * @param zipWriter       压缩文件存储对象
      * @param filesSkipping   被忽略的文件
      * @throws IOException IO Error
      */
-    private static void zip(String srcRootDir, File file, ZipOutputStream zipOutputStream, Set<String> filesSkipping, final byte[] buffer) throws IOException {
+    private static void zip(String srcRootDir, File file, ParallelZipWriter zipWriter, Set<String> filesSkipping) throws IOException {
         if (file == null) {
             return;
         }
@@ -33,8 +30,6 @@ public final class ZipUtil {
 
         // 如果是文件，则直接压缩该文件
         if (file.isFile()) {
-            int count;
-
             // 获取文件相对于压缩文件夹根目录的子路径
             String subPath = file.getAbsolutePath();
             int index = subPath.indexOf(srcRootDir);
@@ -42,24 +37,15 @@ public final class ZipUtil {
                 subPath = subPath.substring(srcRootDir.length() + File.separator.length());
             }
 
-            // 写入压缩包
-            ZipEntry entry = new ZipEntry(subPath);
-            zipOutputStream.putNextEntry(entry);
-//            BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(file));
-            try (InputStream inputStream = new FileInputStream(file)) {
-                while ((count = inputStream.read(buffer, 0, zipBufferSize)) != -1) {
-                    zipOutputStream.write(buffer, 0, count);
-                }
-            } finally {
-                zipOutputStream.closeEntry();
-            }
+            // 写入压缩包, 条目名称统一使用'/'分隔
+            zipWriter.putFile(subPath.replace(File.separatorChar, '/'), file);
         } else {
             // 如果是目录，则压缩整个目录
             // 压缩目录中的文件或子目录
             File[] childFileList = file.listFiles();
             if (childFileList != null) {
                 for (File value : childFileList)
-                    zip(srcRootDir, value, zipOutputStream, filesSkipping, buffer);
+                    zip(srcRootDir, value, zipWriter, filesSkipping);
             }
         }
     }
@@ -70,10 +56,13 @@ public final class ZipUtil {
      * @param srcPath     要压缩的源文件路径。如果是目录，则将递归压缩这个目录及其所有子文件、子目录树。
      * @param zipPath     压缩文件保存的路径。注意：zipPath不能是srcPath路径下的子文件夹
      * @param zipFileName 压缩文件名
+     * @param policy      为每个文件选择压缩级别，如固定级别或 {@link AdaptiveZipCompressionPolicy#INSTANCE}
+     * @param threads     压缩线程数
+     * @return 各压缩级别节省的空间和耗费的CPU时间
      * @throws IOException      IO Error
      * @throws ZipUtilException General exception, such as loop recursion.
      */
-    public static void makeBackupZip(String srcPath, String zipPath, String zipFileName, BackupMetadata backupMetadata, int zipLevel) throws IOException, ZipUtilException {
+    public static ZipCompressionReport makeBackupZip(String srcPath, String zipPath, String zipFileName, BackupMetadata backupMetadata, ZipCompressionPolicy policy, int threads) throws IOException, ZipUtilException {
         Objects.requireNonNull(srcPath);
         Objects.requireNonNull(zipPath);
         Objects.requireNonNull(zipFileName);
@@ -114,21 +103,14 @@ public final class ZipUtil {
             }
         }
 
-        try (FileOutputStream fileOutputStream = new FileOutputStream(zipFile);
-             CheckedOutputStream checkedOutputStream = new CheckedOutputStream(fileOutputStream, new CRC32());
-             ZipOutputStream zipOutputStream = new ZipOutputStream(checkedOutputStream)) {
-            zipOutputStream.setLevel(zipLevel);
-
+        ParallelZipWriter finishedWriter;
+        try (ParallelZipWriter zipWriter = new ParallelZipWriter(zipFile, policy, threads)) {
             // If with backup metadata, we serialize it and write it into file "kbackup_metadata"
-            ZipEntry metadataEntry = new ZipEntry(BackupMetadata.metadataFileName);
-
-            zipOutputStream.putNextEntry(metadataEntry);
             try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
                  ObjectOutputStream oos = new ObjectOutputStream(baos)) {
                 oos.writeObject(backupMetadata);
-                zipOutputStream.write(baos.toByteArray());
-            } finally {
-                zipOutputStream.closeEntry();
+                oos.flush();
+                zipWriter.putBytes(BackupMetadata.metadataFileName, System.currentTimeMillis(), baos.toByteArray());
             }
 
             //如果只是压缩一个文件，则需要截取该文件的父目录
@@ -141,13 +123,23 @@ public final class ZipUtil {
             }
 
             //调用递归压缩方法进行目录或文件压缩
-            zip(srcRootDir, srcFile, zipOutputStream, Collections.singleton("session.lock"), new byte[zipBufferSize]);
-            zipOutputStream.flush();
+            zip(srcRootDir, srcFile, zipWriter, Collections.singleton("session.lock"));
+            finishedWriter = zipWriter;
         }
+        // 关闭后才能得到完整的统计
+        return finishedWriter.getReport();
     }
 
-    public static void makeBackupZip(String srcPath, String zipPath, String zipFileName, BackupMetadata backupMetadata) throws IOException, ZipUtilException {
-        makeBackupZip(srcPath, zipPath, zipFileName, backupMetadata, Deflater.BEST_SPEED);
+    public static ZipCompressionReport makeBackupZip(String srcPath, String zipPath, String zipFileName, BackupMetadata backupMetadata, int zipLevel, int threads) throws IOException, ZipUtilException {
+        return makeBackupZip(srcPath, zipPath, zipFileName, backupMetadata, ZipCompressionPolicy.fixed(zipLevel), threads);
+    }
+
+    public static ZipCompressionReport makeBackupZip(String srcPath, String zipPath, String zipFileName, BackupMetadata backupMetadata, int zipLevel) throws IOException, ZipUtilException {
+        return makeBackupZip(srcPath, zipPath, zipFileName, backupMetadata, zipLevel, 1);
+    }
+
+    public static ZipCompressionReport makeBackupZip(String srcPath, String zipPath, String zipFileName, BackupMetadata backupMetadata) throws IOException, ZipUtilException {
+        return makeBackupZip(srcPath, zipPath, zipFileName, backupMetadata, Deflater.BEST_SPEED, ThreadingUtil.getRecommendedThreadCount());
     }
 
     /**
@@ -156,9 +148,10 @@ public final class ZipUtil {
      * @param zipFilePath        zip文件的全路径
      * @param unzipFilePath      解压后的文件保存的路径
      * @param includeZipFileName 解压后的文件保存的路径是否包含压缩文件的文件名。true-包含；false-不包含
+     * @param threads            解压线程数
+     * @return 解压的文件数、字节数和速度
      */
-    public static void unzip(String zipFilePath, String unzipFilePath, boolean includeZipFileName) throws IOException {
-        final byte[] buffer = new byte[unzipBufferSize];
+    public static ParallelZipExtractor.Result unzip(String zipFilePath, String unzipFilePath, boolean includeZipFileName, int threads) throws IOException {
         if (zipFilePath.isEmpty() || unzipFilePath.isEmpty()) {
             throw new IllegalArgumentException("Parameter for unzip() contains null.");
         }
@@ -171,66 +164,27 @@ public final class ZipUtil {
             }
             unzipFilePath = unzipFilePath + File.separator + fileName;
         }
-        // 创建解压缩文件保存的路径
-        File unzipFileDir = new File(unzipFilePath);
-        if (!unzipFileDir.exists() || !unzipFileDir.isDirectory()) {
-            if (!unzipFileDir.mkdirs())
-                throw new IOException(String.format("Failed to make directory tree %s", unzipFileDir.toString()));
-        }
+        // 先一次性创建所有目录, 再由多个线程解压文件, 已存在的文件将被覆盖
+        return new ParallelZipExtractor(zipFile, threads).extractTo(new File(unzipFilePath));
+    }
 
-        // 开始解压
-        ZipEntry entry;
-        String entryFilePath, entryDirPath;
-        File entryFile, entryDir;
-        int index, count;
-        try (ZipFile zip = new ZipFile(zipFile)) {
-            Enumeration<? extends ZipEntry> entries = zip.entries();
-            // 循环对压缩包里的每一个文件进行解压
-            while (entries.hasMoreElements()) {
-                entry = entries.nextElement();
-                // 构建压缩包中一个文件解压后保存的文件全路径
-                entryFilePath = unzipFilePath + File.separator + entry.getName();
-
-                // 构建解压后保存的文件夹路径
-                index = entryFilePath.lastIndexOf(File.separator);
-                if (index != -1) {
-                    entryDirPath = entryFilePath.substring(0, index);
-                } else {
-                    entryDirPath = "";
-                }
-                entryDir = new File(entryDirPath);
-                // 如果文件夹路径不存在，则创建文件夹
-                if (!entryDir.exists() || !entryDir.isDirectory()) {
-                    if (!entryDir.mkdirs())
-                        throw new IOException(String.format("Failed to make directory tree %s", entryDir.toString()));
-                }
+    public static ParallelZipExtractor.Result unzip(String zipFilePath, String unzipFilePath, boolean includeZipFileName) throws IOException {
+        return unzip(zipFilePath, unzipFilePath, includeZipFileName, ThreadingUtil.getRecommendedThreadCount());
+    }
 
-                // 创建解压文件
-                entryFile = new File(entryFilePath);
-                if (entryFile.exists()) {
-                    // 检测文件是否允许删除，如果不允许删除，将会抛出SecurityException
-                    SecurityManager securityManager = new SecurityManager();
-                    securityManager.checkDelete(entryFilePath);
-                    // 删除已存在的目标文件
-                    if (!entryFile.delete())
-                        throw new IOException(String.format("Failed to delete existing file %s", entryFile.toString()));
-                }
-                if (entry.isDirectory()) {
-                    // If the entry is a directory, we make its corresponding directory.
-                    if (!entryFile.mkdir())
-                        throw new IOException(String.format("Failed to create directory %s", entryFile.toString()));
-                } else {
-                    // Is a file, we write the data
-                    // 写入文件
-                    try (OutputStream outputStream = new FileOutputStream(entryFile);
-                         InputStream inputStream = zip.getInputStream(entry)) {
-                        while ((count = inputStream.read(buffer, 0, unzipBufferSize)) != -1) {
-                            outputStream.write(buffer, 0, count);
-                        }
-                        outputStream.flush();
-                    }
-                }
-            }
+    /**
+     * 差异解压: 使目录与zip包一致, 只解压与现有文件不同的条目, 并删除zip包中没有的文件。
+     * 先比较大小, 大小相同时再将文件的CRC-32与中央目录中记录的比较。
+     *
+     * @param zipFilePath   zip文件的全路径
+     * @param unzipFilePath 解压的目标目录
+     * @return 解压、未改变和删除的文件数及速度
+     */
+    public static ParallelZipExtractor.Result unzipDifferential(String zipFilePath, String unzipFilePath) throws IOException {
+        if (zipFilePath.isEmpty() || unzipFilePath.isEmpty()) {
+            throw new IllegalArgumentException("Parameter for unzipDifferential() contains null.");
         }
+        return new ParallelZipExtractor(new File(zipFilePath), ThreadingUtil.getRecommendedThreadCount())
+                .extractDifferentialTo(new File(unzipFilePath));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,678 @@
+package com.keuin.kbackupfabric.util.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of the BLAKE3 hash function (unkeyed mode, 256-bit output).
+ * It is a port of the reference implementation, with a fast path that compresses whole blocks
+ * from the input array without copying.
+ * Not thread-safe.
+ */
+public class Blake3Hasher implements StreamingHasher {
+
+    private static final int OUT_LEN = 32;
+    private static final int BLOCK_LEN = 64;
+    private static final int CHUNK_LEN = 1024;
+
+    private static final int CHUNK_START = 1;
+    private static final int CHUNK_END = 1 << 1;
+    private static final int PARENT = 1 << 2;
+    private static final int ROOT = 1 << 3;
+
+    private static final int[] IV = {
+            0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    };
+
+    // state of the current chunk
+    private final int[] chunkCv = new int[8];
+    private final byte[] block = new byte[BLOCK_LEN];
+    private final ByteBuffer blockBuffer = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+    private int blockLength;
+    private int blocksCompressed;
+    private long chunkCounter;
+
+    // chaining values of completed subtrees, at most one for each level
+    private final int[][] cvStack = new int[54][8];
+    private int cvStackLength;
+
+    private final int[] blockWords = new int[16];
+    private final int[] chunkOutputCv = new int[8];
+    private final int[] state = new int[16];
+
+    public Blake3Hasher() {
+        reset();
+    }
+
+    @Override
+    public void update(byte[] input, int offset, int length) {
+        update(ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN), offset, length);
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        // read the buffer in place, this is zero-copy for direct and mapped buffers
+        int length = buffer.remaining();
+        update(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), buffer.position(), length);
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Feed bytes with absolute indices in a little-endian buffer.
+     */
+    private void update(ByteBuffer input, int offset, int length) {
+        while (length > 0) {
+            if (blocksCompressed * BLOCK_LEN + blockLength == CHUNK_LEN) {
+                // the chunk is complete and more input arrives, so it is not the root
+                chunkOutput(chunkOutputCv);
+                addChunkChainingValue(chunkOutputCv, ++chunkCounter);
+                resetChunk();
+            }
+            if (blockLength == BLOCK_LEN) {
+                // the block is complete and more input arrives, so it is not the last block of this chunk
+                compressBlock(blockBuffer, 0);
+                Arrays.fill(block, (byte) 0);
+                blockLength = 0;
+            }
+            if (blockLength == 0 && length > BLOCK_LEN && blocksCompressed < CHUNK_LEN / BLOCK_LEN - 1) {
+                // fast path: compress directly from the input
+                compressBlock(input, offset);
+                offset += BLOCK_LEN;
+                length -= BLOCK_LEN;
+                continue;
+            }
+            int take = Math.min(BLOCK_LEN - blockLength, length);
+            if (input.hasArray()) {
+                System.arraycopy(input.array(), input.arrayOffset() + offset, block, blockLength, take);
+            } else {
+                for (int i = 0; i < take; i++)
+                    block[blockLength + i] = input.get(offset + i);
+            }
+            blockLength += take;
+            offset += take;
+            length -= take;
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        // the output of the current chunk, folded with the stacked subtrees from right to left
+        int[] cv = new int[8];
+        int[] words = new int[16];
+        loadWords(block, 0, words);
+        int outputLength = blockLength;
+        int outputFlags = startFlag() | CHUNK_END;
+        System.arraycopy(chunkCv, 0, cv, 0, 8);
+        long outputCounter = chunkCounter;
+        for (int i = cvStackLength - 1; i >= 0; i--) {
+            compress(cv, words, outputCounter, outputLength, outputFlags, state);
+            System.arraycopy(cvStack[i], 0, words, 0, 8);
+            System.arraycopy(state, 0, words, 8, 8);
+            System.arraycopy(IV, 0, cv, 0, 8);
+            outputCounter = 0;
+            outputLength = BLOCK_LEN;
+            outputFlags = PARENT;
+        }
+        compress(cv, words, outputCounter, outputLength, outputFlags | ROOT, state);
+        byte[] hash = new byte[OUT_LEN];
+        for (int i = 0; i < 8; i++) {
+            int word = state[i];
+            hash[i * 4] = (byte) word;
+            hash[i * 4 + 1] = (byte) (word >>> 8);
+            hash[i * 4 + 2] = (byte) (word >>> 16);
+            hash[i * 4 + 3] = (byte) (word >>> 24);
+        }
+        reset();
+        return hash;
+    }
+
+    @Override
+    public void reset() {
+        chunkCounter = 0;
+        cvStackLength = 0;
+        resetChunk();
+    }
+
+    @Override
+    public int getDigestLength() {
+        return OUT_LEN;
+    }
+
+    private void resetChunk() {
+        System.arraycopy(IV, 0, chunkCv, 0, 8);
+        Arrays.fill(block, (byte) 0);
+        blockLength = 0;
+        blocksCompressed = 0;
+    }
+
+    private int startFlag() {
+        return blocksCompressed == 0 ? CHUNK_START : 0;
+    }
+
+    private void compressBlock(ByteBuffer input, int offset) {
+        loadWords(input, offset, blockWords);
+        compress(chunkCv, blockWords, chunkCounter, BLOCK_LEN, startFlag(), state);
+        System.arraycopy(state, 0, chunkCv, 0, 8);
+        blocksCompressed++;
+    }
+
+    private void chunkOutput(int[] cv) {
+        loadWords(block, 0, blockWords);
+        compress(chunkCv, blockWords, chunkCounter, blockLength, startFlag() | CHUNK_END, state);
+        System.arraycopy(state, 0, cv, 0, 8);
+    }
+
+    private void addChunkChainingValue(int[] cv, long totalChunks) {
+        // merge completed subtrees, the number of trailing zero bits is the number of merges
+        while ((totalChunks & 1) == 0) {
+            int[] left = cvStack[--cvStackLength];
+            System.arraycopy(left, 0, blockWords, 0, 8);
+            System.arraycopy(cv, 0, blockWords, 8, 8);
+            compress(IV, blockWords, 0, BLOCK_LEN, PARENT, state);
+            System.arraycopy(state, 0, cv, 0, 8);
+            totalChunks >>= 1;
+        }
+        System.arraycopy(cv, 0, cvStack[cvStackLength++], 0, 8);
+    }
+
+    private static void loadWords(byte[] input, int offset, int[] words) {
+        loadWords(ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN), offset, words);
+    }
+
+    private static void loadWords(ByteBuffer input, int offset, int[] words) {
+        for (int i = 0; i < 16; i++, offset += 4)
+            words[i] = input.getInt(offset);
+    }
+
+    /**
+     * The compression function. The full 16-word output is written to {@code out}.
+     * The 7 rounds are unrolled, with the message permutation applied to the word indices.
+     */
+    private static void compress(int[] cv, int[] m, long counter, int blockLength, int flags, int[] out) {
+        final int m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3], m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+        final int m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11], m12 = m[12], m13 = m[13], m14 = m[14], m15 = m[15];
+        int s0 = cv[0], s1 = cv[1], s2 = cv[2], s3 = cv[3], s4 = cv[4], s5 = cv[5], s6 = cv[6], s7 = cv[7];
+        int s8 = IV[0], s9 = IV[1], s10 = IV[2], s11 = IV[3];
+        int s12 = (int) counter, s13 = (int) (counter >>> 32), s14 = blockLength, s15 = flags;
+
+        // round 1
+        s0 += s4 + m0;
+        s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m1;
+        s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m2;
+        s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m3;
+        s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m4;
+        s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m5;
+        s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m6;
+        s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m7;
+        s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m8;
+        s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m9;
+        s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m10;
+        s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m11;
+        s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m12;
+        s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m13;
+        s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m14;
+        s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m15;
+        s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // round 2
+        s0 += s4 + m2;
+        s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m6;
+        s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m3;
+        s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m10;
+        s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m7;
+        s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m0;
+        s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m4;
+        s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m13;
+        s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m1;
+        s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m11;
+        s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m12;
+        s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m5;
+        s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m9;
+        s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m14;
+        s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m15;
+        s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m8;
+        s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // round 3
+        s0 += s4 + m3;
+        s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m4;
+        s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m10;
+        s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m12;
+        s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m13;
+        s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m2;
+        s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m7;
+        s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m14;
+        s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m6;
+        s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m5;
+        s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m9;
+        s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m0;
+        s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m11;
+        s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m15;
+        s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m8;
+        s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m1;
+        s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // round 4
+        s0 += s4 + m10;
+        s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m7;
+        s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m12;
+        s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m9;
+        s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m14;
+        s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m3;
+        s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m13;
+        s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m15;
+        s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m4;
+        s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m0;
+        s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m11;
+        s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m2;
+        s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m5;
+        s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m8;
+        s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m1;
+        s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m6;
+        s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // round 5
+        s0 += s4 + m12;
+        s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m13;
+        s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m9;
+        s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m11;
+        s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m15;
+        s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m10;
+        s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m14;
+        s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m8;
+        s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m7;
+        s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m2;
+        s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m5;
+        s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m3;
+        s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m0;
+        s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m1;
+        s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m6;
+        s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m4;
+        s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // round 6
+        s0 += s4 + m9;
+        s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m14;
+        s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m11;
+        s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m5;
+        s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m8;
+        s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m12;
+        s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m15;
+        s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m1;
+        s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m13;
+        s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m3;
+        s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m0;
+        s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m10;
+        s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m2;
+        s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m6;
+        s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m4;
+        s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m7;
+        s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        // round 7
+        s0 += s4 + m11;
+        s12 = Integer.rotateRight(s12 ^ s0, 16);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 12);
+        s0 += s4 + m15;
+        s12 = Integer.rotateRight(s12 ^ s0, 8);
+        s8 += s12;
+        s4 = Integer.rotateRight(s4 ^ s8, 7);
+        s1 += s5 + m5;
+        s13 = Integer.rotateRight(s13 ^ s1, 16);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 12);
+        s1 += s5 + m0;
+        s13 = Integer.rotateRight(s13 ^ s1, 8);
+        s9 += s13;
+        s5 = Integer.rotateRight(s5 ^ s9, 7);
+        s2 += s6 + m1;
+        s14 = Integer.rotateRight(s14 ^ s2, 16);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 12);
+        s2 += s6 + m9;
+        s14 = Integer.rotateRight(s14 ^ s2, 8);
+        s10 += s14;
+        s6 = Integer.rotateRight(s6 ^ s10, 7);
+        s3 += s7 + m8;
+        s15 = Integer.rotateRight(s15 ^ s3, 16);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 12);
+        s3 += s7 + m6;
+        s15 = Integer.rotateRight(s15 ^ s3, 8);
+        s11 += s15;
+        s7 = Integer.rotateRight(s7 ^ s11, 7);
+        s0 += s5 + m14;
+        s15 = Integer.rotateRight(s15 ^ s0, 16);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 12);
+        s0 += s5 + m10;
+        s15 = Integer.rotateRight(s15 ^ s0, 8);
+        s10 += s15;
+        s5 = Integer.rotateRight(s5 ^ s10, 7);
+        s1 += s6 + m2;
+        s12 = Integer.rotateRight(s12 ^ s1, 16);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 12);
+        s1 += s6 + m12;
+        s12 = Integer.rotateRight(s12 ^ s1, 8);
+        s11 += s12;
+        s6 = Integer.rotateRight(s6 ^ s11, 7);
+        s2 += s7 + m3;
+        s13 = Integer.rotateRight(s13 ^ s2, 16);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 12);
+        s2 += s7 + m4;
+        s13 = Integer.rotateRight(s13 ^ s2, 8);
+        s8 += s13;
+        s7 = Integer.rotateRight(s7 ^ s8, 7);
+        s3 += s4 + m7;
+        s14 = Integer.rotateRight(s14 ^ s3, 16);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 12);
+        s3 += s4 + m13;
+        s14 = Integer.rotateRight(s14 ^ s3, 8);
+        s9 += s14;
+        s4 = Integer.rotateRight(s4 ^ s9, 7);
+
+        out[0] = s0 ^ s8;
+        out[1] = s1 ^ s9;
+        out[2] = s2 ^ s10;
+        out[3] = s3 ^ s11;
+        out[4] = s4 ^ s12;
+        out[5] = s5 ^ s13;
+        out[6] = s6 ^ s14;
+        out[7] = s7 ^ s15;
+        out[8] = s8 ^ cv[0];
+        out[9] = s9 ^ cv[1];
+        out[10] = s10 ^ cv[2];
+        out[11] = s11 ^ cv[3];
+        out[12] = s12 ^ cv[4];
+        out[13] = s13 ^ cv[5];
+        out[14] = s14 ^ cv[6];
+        out[15] = s15 ^ cv[7];
+    }
+}
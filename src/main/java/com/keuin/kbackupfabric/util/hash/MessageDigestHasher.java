@@ -0,0 +1,72 @@
+package com.keuin.kbackupfabric.util.hash;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adapts a JDK {@link MessageDigest} to {@link StreamingHasher}.
+ */
+public class MessageDigestHasher implements StreamingHasher {
+
+    // looking up a provider is slow, so new instances are cloned from these
+    private static final Map<String, MessageDigest> prototypes = new ConcurrentHashMap<>();
+
+    private final MessageDigest digest;
+
+    public MessageDigestHasher(MessageDigest digest) {
+        this.digest = Objects.requireNonNull(digest);
+    }
+
+    /**
+     * Create a hasher with a JDK algorithm which must be available on every Java platform, such as SHA-256.
+     *
+     * @param algorithm the standard algorithm name.
+     * @return the hasher.
+     */
+    public static MessageDigestHasher getInstance(String algorithm) {
+        try {
+            MessageDigest prototype = prototypes.get(algorithm);
+            if (prototype == null) {
+                prototype = MessageDigest.getInstance(algorithm);
+                prototypes.putIfAbsent(algorithm, prototype);
+            }
+            try {
+                return new MessageDigestHasher((MessageDigest) prototype.clone());
+            } catch (CloneNotSupportedException e) {
+                return new MessageDigestHasher(MessageDigest.getInstance(algorithm));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            // this shouldn't happen
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void update(byte[] input, int offset, int length) {
+        digest.update(input, offset, length);
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        digest.update(buffer);
+    }
+
+    @Override
+    public byte[] digest() {
+        return digest.digest();
+    }
+
+    @Override
+    public void reset() {
+        digest.reset();
+    }
+
+    @Override
+    public int getDigestLength() {
+        return digest.getDigestLength();
+    }
+}
@@ -0,0 +1,58 @@
+package com.keuin.kbackupfabric.util.hash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An incremental hash function.
+ * Not thread-safe.
+ */
+public interface StreamingHasher {
+
+    /**
+     * Feed bytes to the hash function.
+     *
+     * @param input  the bytes.
+     * @param offset start offset in the array.
+     * @param length number of bytes.
+     */
+    void update(byte[] input, int offset, int length);
+
+    /**
+     * Feed the remaining bytes of a buffer to the hash function.
+     * The position of the buffer is moved to its limit.
+     *
+     * @param buffer the buffer.
+     */
+    default void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        byte[] bytes = new byte[Math.min(buffer.remaining(), 8192)];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), bytes.length);
+            buffer.get(bytes, 0, length);
+            update(bytes, 0, length);
+        }
+    }
+
+    /**
+     * Finish the computation and reset the hasher, so it can be reused.
+     *
+     * @return the hash.
+     */
+    byte[] digest();
+
+    /**
+     * Discard all bytes fed.
+     */
+    void reset();
+
+    /**
+     * Get the length of the hash.
+     *
+     * @return length in bytes.
+     */
+    int getDigestLength();
+}
@@ -0,0 +1,411 @@
+package com.keuin.kbackupfabric.util.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pure Java implementation of the 128-bit XXH3 hash function (XXH3_128bits, seed 0, default secret).
+ * It is a fast non-cryptographic hash, only suitable when the files are trusted.
+ * The digest is the canonical (big-endian, high half first) representation.
+ * Not thread-safe.
+ */
+public class Xxh3Hasher128 implements StreamingHasher {
+
+    private static final long PRIME32_1 = 0x9E3779B1L;
+    private static final long PRIME32_2 = 0x85EBCA77L;
+    private static final long PRIME32_3 = 0xC2B2AE3DL;
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+    private static final long PRIME_MX1 = 0x165667919E3779F9L;
+    private static final long PRIME_MX2 = 0x9FB21C651E98DF25L;
+
+    private static final byte[] SECRET = {
+            (byte) 0xb8, (byte) 0xfe, (byte) 0x6c, (byte) 0x39, (byte) 0x23, (byte) 0xa4, (byte) 0x4b, (byte) 0xbe,
+            (byte) 0x7c, (byte) 0x01, (byte) 0x81, (byte) 0x2c, (byte) 0xf7, (byte) 0x21, (byte) 0xad, (byte) 0x1c,
+            (byte) 0xde, (byte) 0xd4, (byte) 0x6d, (byte) 0xe9, (byte) 0x83, (byte) 0x90, (byte) 0x97, (byte) 0xdb,
+            (byte) 0x72, (byte) 0x40, (byte) 0xa4, (byte) 0xa4, (byte) 0xb7, (byte) 0xb3, (byte) 0x67, (byte) 0x1f,
+            (byte) 0xcb, (byte) 0x79, (byte) 0xe6, (byte) 0x4e, (byte) 0xcc, (byte) 0xc0, (byte) 0xe5, (byte) 0x78,
+            (byte) 0x82, (byte) 0x5a, (byte) 0xd0, (byte) 0x7d, (byte) 0xcc, (byte) 0xff, (byte) 0x72, (byte) 0x21,
+            (byte) 0xb8, (byte) 0x08, (byte) 0x46, (byte) 0x74, (byte) 0xf7, (byte) 0x43, (byte) 0x24, (byte) 0x8e,
+            (byte) 0xe0, (byte) 0x35, (byte) 0x90, (byte) 0xe6, (byte) 0x81, (byte) 0x3a, (byte) 0x26, (byte) 0x4c,
+            (byte) 0x3c, (byte) 0x28, (byte) 0x52, (byte) 0xbb, (byte) 0x91, (byte) 0xc3, (byte) 0x00, (byte) 0xcb,
+            (byte) 0x88, (byte) 0xd0, (byte) 0x65, (byte) 0x8b, (byte) 0x1b, (byte) 0x53, (byte) 0x2e, (byte) 0xa3,
+            (byte) 0x71, (byte) 0x64, (byte) 0x48, (byte) 0x97, (byte) 0xa2, (byte) 0x0d, (byte) 0xf9, (byte) 0x4e,
+            (byte) 0x38, (byte) 0x19, (byte) 0xef, (byte) 0x46, (byte) 0xa9, (byte) 0xde, (byte) 0xac, (byte) 0xd8,
+            (byte) 0xa8, (byte) 0xfa, (byte) 0x76, (byte) 0x3f, (byte) 0xe3, (byte) 0x9c, (byte) 0x34, (byte) 0x3f,
+            (byte) 0xf9, (byte) 0xdc, (byte) 0xbb, (byte) 0xc7, (byte) 0xc7, (byte) 0x0b, (byte) 0x4f, (byte) 0x1d,
+            (byte) 0x8a, (byte) 0x51, (byte) 0xe0, (byte) 0x4b, (byte) 0xcd, (byte) 0xb4, (byte) 0x59, (byte) 0x31,
+            (byte) 0xc8, (byte) 0x9f, (byte) 0x7e, (byte) 0xc9, (byte) 0xd9, (byte) 0x78, (byte) 0x73, (byte) 0x64,
+            (byte) 0xea, (byte) 0xc5, (byte) 0xac, (byte) 0x83, (byte) 0x34, (byte) 0xd3, (byte) 0xeb, (byte) 0xc3,
+            (byte) 0xc5, (byte) 0x81, (byte) 0xa0, (byte) 0xff, (byte) 0xfa, (byte) 0x13, (byte) 0x63, (byte) 0xeb,
+            (byte) 0x17, (byte) 0x0d, (byte) 0xdd, (byte) 0x51, (byte) 0xb7, (byte) 0xf0, (byte) 0xda, (byte) 0x49,
+            (byte) 0xd3, (byte) 0x16, (byte) 0x55, (byte) 0x26, (byte) 0x29, (byte) 0xd4, (byte) 0x68, (byte) 0x9e,
+            (byte) 0x2b, (byte) 0x16, (byte) 0xbe, (byte) 0x58, (byte) 0x7d, (byte) 0x47, (byte) 0xa1, (byte) 0xfc,
+            (byte) 0x8f, (byte) 0xf8, (byte) 0xb8, (byte) 0xd1, (byte) 0x7a, (byte) 0xd0, (byte) 0x31, (byte) 0xce,
+            (byte) 0x45, (byte) 0xcb, (byte) 0x3a, (byte) 0x8f, (byte) 0x95, (byte) 0x16, (byte) 0x04, (byte) 0x28,
+            (byte) 0xaf, (byte) 0xd7, (byte) 0xfb, (byte) 0xca, (byte) 0xbb, (byte) 0x4b, (byte) 0x40, (byte) 0x7e,
+    };
+
+    private static final int STRIPE_LEN = 64;
+    private static final int STRIPES_PER_BLOCK = (SECRET.length - STRIPE_LEN) / 8;
+    private static final int MIDSIZE_MAX = 240;
+    // keys are read from the secret as 64-bit words, so cache them
+    private static final long[] SECRET_WORDS = new long[SECRET.length - 7];
+
+    static {
+        for (int i = 0; i < SECRET_WORDS.length; i++)
+            SECRET_WORDS[i] = readLong(SECRET, i);
+    }
+
+    private final long[] acc = new long[8];
+    private int stripesInBlock;
+    private long totalLength;
+    // input is buffered, a stripe is only consumed when it is known not to be the last one
+    private final byte[] buffer = new byte[STRIPE_LEN * 4];
+    private final ByteBuffer bufferView = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+    private int bufferedLength;
+    // the last consumed stripe, part of which may be needed by the final stripe
+    private final byte[] lastStripe = new byte[STRIPE_LEN];
+
+    public Xxh3Hasher128() {
+        reset();
+    }
+
+    @Override
+    public void update(byte[] input, int offset, int length) {
+        update(ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN), offset, length);
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+        // read the buffer in place, this is zero-copy for direct and mapped buffers
+        int length = buffer.remaining();
+        update(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN), buffer.position(), length);
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Feed bytes with absolute indices in a little-endian buffer.
+     */
+    private void update(ByteBuffer input, int offset, int length) {
+        totalLength += length;
+        while (length > 0) {
+            if (bufferedLength == buffer.length) {
+                consumeStripes(bufferView, 0, buffer.length / STRIPE_LEN);
+                System.arraycopy(buffer, buffer.length - STRIPE_LEN, lastStripe, 0, STRIPE_LEN);
+                bufferedLength = 0;
+            }
+            if (bufferedLength == 0 && length > buffer.length) {
+                // fast path: consume the input in place, keeping at least one byte for the buffer
+                int stripes = (length - 1) / STRIPE_LEN;
+                consumeStripes(input, offset, stripes);
+                int consumed = stripes * STRIPE_LEN;
+                copy(input, offset + consumed - STRIPE_LEN, lastStripe, 0, STRIPE_LEN);
+                offset += consumed;
+                length -= consumed;
+                continue;
+            }
+            int take = Math.min(buffer.length - bufferedLength, length);
+            copy(input, offset, buffer, bufferedLength, take);
+            bufferedLength += take;
+            offset += take;
+            length -= take;
+        }
+    }
+
+    private static void copy(ByteBuffer source, int index, byte[] destination, int offset, int length) {
+        if (source.hasArray()) {
+            System.arraycopy(source.array(), source.arrayOffset() + index, destination, offset, length);
+        } else {
+            for (int i = 0; i < length; i++)
+                destination[offset + i] = source.get(index + i);
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        long low, high;
+        if (totalLength <= MIDSIZE_MAX) {
+            int length = bufferedLength;
+            if (length <= 16) {
+                long[] h = hashLength0To16(buffer, length);
+                low = h[0];
+                high = h[1];
+            } else if (length <= 128) {
+                long[] h = hashLength17To128(buffer, length);
+                low = h[0];
+                high = h[1];
+            } else {
+                long[] h = hashLength129To240(buffer, length);
+                low = h[0];
+                high = h[1];
+            }
+        } else {
+            consumeStripes(bufferView, 0, (bufferedLength - 1) / STRIPE_LEN);
+            byte[] last = new byte[STRIPE_LEN];
+            if (bufferedLength >= STRIPE_LEN) {
+                System.arraycopy(buffer, bufferedLength - STRIPE_LEN, last, 0, STRIPE_LEN);
+            } else {
+                int fromHistory = STRIPE_LEN - bufferedLength;
+                System.arraycopy(lastStripe, STRIPE_LEN - fromHistory, last, 0, fromHistory);
+                System.arraycopy(buffer, 0, last, fromHistory, bufferedLength);
+            }
+            accumulateStripe(acc, last, 0, SECRET.length - STRIPE_LEN - 7);
+            low = mergeAccumulators(acc, 11, totalLength * PRIME64_1);
+            high = mergeAccumulators(acc, SECRET.length - STRIPE_LEN - 11, ~(totalLength * PRIME64_2));
+        }
+        reset();
+        byte[] hash = new byte[16];
+        writeLongBigEndian(hash, 0, high);
+        writeLongBigEndian(hash, 8, low);
+        return hash;
+    }
+
+    @Override
+    public void reset() {
+        acc[0] = PRIME32_3;
+        acc[1] = PRIME64_1;
+        acc[2] = PRIME64_2;
+        acc[3] = PRIME64_3;
+        acc[4] = PRIME64_4;
+        acc[5] = PRIME32_2;
+        acc[6] = PRIME64_5;
+        acc[7] = PRIME32_1;
+        stripesInBlock = 0;
+        totalLength = 0;
+        bufferedLength = 0;
+    }
+
+    @Override
+    public int getDigestLength() {
+        return 16;
+    }
+
+    private void consumeStripes(ByteBuffer in, int offset, int stripes) {
+        // the hot loop: keep the accumulators in locals, and read the input as little-endian words
+        long a0 = acc[0], a1 = acc[1], a2 = acc[2], a3 = acc[3], a4 = acc[4], a5 = acc[5], a6 = acc[6], a7 = acc[7];
+        int stripe = stripesInBlock;
+        for (int i = 0, p = offset; i < stripes; i++, p += STRIPE_LEN) {
+            final int key = stripe * 8;
+            long v, k;
+            v = in.getLong(p);
+            k = v ^ SECRET_WORDS[key + 0];
+            a1 += v;
+            a0 += (k & 0xFFFFFFFFL) * (k >>> 32);
+            v = in.getLong(p + 8);
+            k = v ^ SECRET_WORDS[key + 8];
+            a0 += v;
+            a1 += (k & 0xFFFFFFFFL) * (k >>> 32);
+            v = in.getLong(p + 16);
+            k = v ^ SECRET_WORDS[key + 16];
+            a3 += v;
+            a2 += (k & 0xFFFFFFFFL) * (k >>> 32);
+            v = in.getLong(p + 24);
+            k = v ^ SECRET_WORDS[key + 24];
+            a2 += v;
+            a3 += (k & 0xFFFFFFFFL) * (k >>> 32);
+            v = in.getLong(p + 32);
+            k = v ^ SECRET_WORDS[key + 32];
+            a5 += v;
+            a4 += (k & 0xFFFFFFFFL) * (k >>> 32);
+            v = in.getLong(p + 40);
+            k = v ^ SECRET_WORDS[key + 40];
+            a4 += v;
+            a5 += (k & 0xFFFFFFFFL) * (k >>> 32);
+            v = in.getLong(p + 48);
+            k = v ^ SECRET_WORDS[key + 48];
+            a7 += v;
+            a6 += (k & 0xFFFFFFFFL) * (k >>> 32);
+            v = in.getLong(p + 56);
+            k = v ^ SECRET_WORDS[key + 56];
+            a6 += v;
+            a7 += (k & 0xFFFFFFFFL) * (k >>> 32);
+            if (++stripe == STRIPES_PER_BLOCK) {
+                a0 = scramble(a0, 0);
+                a1 = scramble(a1, 1);
+                a2 = scramble(a2, 2);
+                a3 = scramble(a3, 3);
+                a4 = scramble(a4, 4);
+                a5 = scramble(a5, 5);
+                a6 = scramble(a6, 6);
+                a7 = scramble(a7, 7);
+                stripe = 0;
+            }
+        }
+        stripesInBlock = stripe;
+        acc[0] = a0;
+        acc[1] = a1;
+        acc[2] = a2;
+        acc[3] = a3;
+        acc[4] = a4;
+        acc[5] = a5;
+        acc[6] = a6;
+        acc[7] = a7;
+    }
+
+    private static void accumulateStripe(long[] acc, byte[] input, int offset, int secretOffset) {
+        for (int i = 0; i < 8; i++) {
+            long value = readLong(input, offset + i * 8);
+            long key = value ^ SECRET_WORDS[secretOffset + i * 8];
+            acc[i ^ 1] += value;
+            acc[i] += (key & 0xFFFFFFFFL) * (key >>> 32);
+        }
+    }
+
+    private static long scramble(long value, int lane) {
+        value ^= value >>> 47;
+        value ^= SECRET_WORDS[SECRET.length - STRIPE_LEN + lane * 8];
+        return value * PRIME32_1;
+    }
+
+    private static long mergeAccumulators(long[] acc, int secretOffset, long start) {
+        long result = start;
+        for (int i = 0; i < 4; i++) {
+            result += multiplyFold64(acc[2 * i] ^ SECRET_WORDS[secretOffset + 16 * i],
+                    acc[2 * i + 1] ^ SECRET_WORDS[secretOffset + 16 * i + 8]);
+        }
+        return avalanche(result);
+    }
+
+    private static long[] hashLength0To16(byte[] input, int length) {
+        if (length > 8) {
+            long bitflipLow = SECRET_WORDS[32] ^ SECRET_WORDS[40];
+            long bitflipHigh = SECRET_WORDS[48] ^ SECRET_WORDS[56];
+            long inputLow = readLong(input, 0);
+            long inputHigh = readLong(input, length - 8);
+            long x = inputLow ^ inputHigh ^ bitflipLow;
+            long mLow = x * PRIME64_1;
+            long mHigh = unsignedMultiplyHigh(x, PRIME64_1);
+            mLow += (long) (length - 1) << 54;
+            inputHigh ^= bitflipHigh;
+            mHigh += inputHigh + (inputHigh & 0xFFFFFFFFL) * (PRIME32_2 - 1);
+            mLow ^= Long.reverseBytes(mHigh);
+            long hLow = mLow * PRIME64_2;
+            long hHigh = unsignedMultiplyHigh(mLow, PRIME64_2) + mHigh * PRIME64_2;
+            return new long[]{avalanche(hLow), avalanche(hHigh)};
+        }
+        if (length >= 4) {
+            long inputLow = readInt(input, 0);
+            long inputHigh = readInt(input, length - 4);
+            long input64 = inputLow + (inputHigh << 32);
+            long bitflip = SECRET_WORDS[16] ^ SECRET_WORDS[24];
+            long keyed = input64 ^ bitflip;
+            long multiplier = PRIME64_1 + ((long) length << 2);
+            long mLow = keyed * multiplier;
+            long mHigh = unsignedMultiplyHigh(keyed, multiplier);
+            mHigh += mLow << 1;
+            mLow ^= mHigh >>> 3;
+            mLow ^= mLow >>> 35;
+            mLow *= PRIME_MX2;
+            mLow ^= mLow >>> 28;
+            return new long[]{mLow, avalanche(mHigh)};
+        }
+        if (length > 0) {
+            int c1 = input[0] & 0xFF;
+            int c2 = input[length >> 1] & 0xFF;
+            int c3 = input[length - 1] & 0xFF;
+            int combinedLow = (c1 << 16) | (c2 << 24) | c3 | (length << 8);
+            int combinedHigh = Integer.rotateLeft(Integer.reverseBytes(combinedLow), 13);
+            long bitflipLow = readInt(SECRET, 0) ^ readInt(SECRET, 4);
+            long bitflipHigh = readInt(SECRET, 8) ^ readInt(SECRET, 12);
+            return new long[]{xxh64Avalanche((combinedLow & 0xFFFFFFFFL) ^ bitflipLow),
+                    xxh64Avalanche((combinedHigh & 0xFFFFFFFFL) ^ bitflipHigh)};
+        }
+        return new long[]{xxh64Avalanche(SECRET_WORDS[64] ^ SECRET_WORDS[72]),
+                xxh64Avalanche(SECRET_WORDS[80] ^ SECRET_WORDS[88])};
+    }
+
+    private static long[] hashLength17To128(byte[] input, int length) {
+        long[] acc = {length * PRIME64_1, 0};
+        if (length > 32) {
+            if (length > 64) {
+                if (length > 96)
+                    mix32(acc, input, 48, length - 64, 96);
+                mix32(acc, input, 32, length - 48, 64);
+            }
+            mix32(acc, input, 16, length - 32, 32);
+        }
+        mix32(acc, input, 0, length - 16, 0);
+        return finish128(acc, length);
+    }
+
+    private static long[] hashLength129To240(byte[] input, int length) {
+        long[] acc = {length * PRIME64_1, 0};
+        for (int i = 32; i < 160; i += 32)
+            mix32(acc, input, i - 32, i - 16, i - 32);
+        acc[0] = avalanche(acc[0]);
+        acc[1] = avalanche(acc[1]);
+        for (int i = 160; i <= length; i += 32)
+            mix32(acc, input, i - 32, i - 16, 3 + i - 160);
+        mix32(acc, input, length - 16, length - 32, 136 - 17 - 16);
+        return finish128(acc, length);
+    }
+
+    private static long[] finish128(long[] acc, int length) {
+        long low = acc[0] + acc[1];
+        long high = acc[0] * PRIME64_1 + acc[1] * PRIME64_4 + length * PRIME64_2;
+        return new long[]{avalanche(low), -avalanche(high)};
+    }
+
+    private static void mix32(long[] acc, byte[] input, int offset1, int offset2, int secretOffset) {
+        acc[0] += mix16(input, offset1, secretOffset);
+        acc[0] ^= readLong(input, offset2) + readLong(input, offset2 + 8);
+        acc[1] += mix16(input, offset2, secretOffset + 16);
+        acc[1] ^= readLong(input, offset1) + readLong(input, offset1 + 8);
+    }
+
+    private static long mix16(byte[] input, int offset, int secretOffset) {
+        return multiplyFold64(readLong(input, offset) ^ SECRET_WORDS[secretOffset],
+                readLong(input, offset + 8) ^ SECRET_WORDS[secretOffset + 8]);
+    }
+
+    private static long multiplyFold64(long a, long b) {
+        return (a * b) ^ unsignedMultiplyHigh(a, b);
+    }
+
+    private static long unsignedMultiplyHigh(long a, long b) {
+        // Math.multiplyHigh is not available on Java 8
+        long aLow = a & 0xFFFFFFFFL, aHigh = a >>> 32;
+        long bLow = b & 0xFFFFFFFFL, bHigh = b >>> 32;
+        long lowLow = aLow * bLow;
+        long highLow = aHigh * bLow;
+        long lowHigh = aLow * bHigh;
+        long cross = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + lowHigh;
+        return aHigh * bHigh + (highLow >>> 32) + (cross >>> 32);
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 37;
+        h *= PRIME_MX1;
+        return h ^ (h >>> 32);
+    }
+
+    private static long xxh64Avalanche(long h) {
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        return h ^ (h >>> 32);
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        return (b[offset] & 0xFFL) | (b[offset + 1] & 0xFFL) << 8 | (b[offset + 2] & 0xFFL) << 16
+                | (b[offset + 3] & 0xFFL) << 24 | (b[offset + 4] & 0xFFL) << 32 | (b[offset + 5] & 0xFFL) << 40
+                | (b[offset + 6] & 0xFFL) << 48 | (b[offset + 7] & 0xFFL) << 56;
+    }
+
+    private static long readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFFL) | (b[offset + 1] & 0xFFL) << 8 | (b[offset + 2] & 0xFFL) << 16
+                | (b[offset + 3] & 0xFFL) << 24;
+    }
+
+    private static void writeLongBigEndian(byte[] b, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            b[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
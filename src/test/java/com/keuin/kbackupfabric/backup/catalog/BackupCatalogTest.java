@@ -0,0 +1,174 @@
+package com.keuin.kbackupfabric.backup.catalog;
+
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
+import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupInfoSerializer;
+import com.keuin.kbackupfabric.backup.incremental.serializer.SavedIncrementalBackup;
+import com.keuin.kbackupfabric.backup.name.IncrementalBackupFileNameEncoder;
+import com.keuin.kbackupfabric.backup.name.PrimitiveBackupFileNameEncoder;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BackupCatalogTest {
+
+    private static final File testRoot = new File("testfile/BackupCatalogTest");
+    private static final File backupDirectory = new File(testRoot, "backups");
+    private static final LocalDateTime OLDER = LocalDateTime.of(2021, 3, 1, 12, 0, 0);
+    private static final LocalDateTime NEWER = LocalDateTime.of(2021, 3, 2, 12, 0, 0);
+
+    @Before
+    public void initialize() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+        assertTrue(backupDirectory.mkdirs());
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+    }
+
+    private static BackupCatalog newCatalog() {
+        return new BackupCatalog(backupDirectory, BackupCatalog.getCatalogFile(backupDirectory));
+    }
+
+    private static String writeZip(String name, LocalDateTime time, int length) throws IOException {
+        String fileName = PrimitiveBackupFileNameEncoder.INSTANCE.encode(name, time);
+        Files.write(new File(backupDirectory, fileName).toPath(), new byte[length]);
+        return fileName;
+    }
+
+    private static String writeIndex(String name, LocalDateTime time, long totalSize) throws IOException {
+        String fileName = IncrementalBackupFileNameEncoder.INSTANCE.encode(name, time);
+        IncBackupInfoSerializer.toFile(new File(backupDirectory, fileName), SavedIncrementalBackup.newLatest(
+                new ObjectCollection2("world", Collections.emptySet(), Collections.emptyMap()),
+                name, time.atZone(ZoneId.systemDefault()), totalSize, 0, 0, 0));
+        return fileName;
+    }
+
+    /**
+     * Move modification times of the directory and all files into the past, so the catalog trusts them.
+     */
+    private static void age(long millis) {
+        for (File file : backupDirectory.listFiles())
+            assertTrue(file.setLastModified(millis));
+        assertTrue(backupDirectory.setLastModified(millis));
+    }
+
+    /**
+     * Overwrite a file without changing its size and modification time, which the catalog cannot notice.
+     */
+    private static void corruptSilently(String fileName) throws IOException {
+        File file = new File(backupDirectory, fileName);
+        long lastModified = file.lastModified();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.write(new byte[8]);
+        }
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        String zip = writeZip("zip", OLDER, 10);
+        String index = writeIndex("incremental", NEWER, 12345);
+        Files.write(new File(backupDirectory, "readme.txt").toPath(), new byte[1]);
+        Files.write(new File(backupDirectory, "invalid.zip").toPath(), new byte[1]);
+
+        List<BackupCatalogEntry> entries = newCatalog().getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(index, entries.get(0).getFileName());
+        assertEquals("incremental", entries.get(0).getName());
+        assertEquals(NEWER, entries.get(0).getCreationTime());
+        assertEquals(12345, entries.get(0).getSizeBytes());
+        assertTrue(entries.get(0).isIncremental());
+        assertEquals(zip, entries.get(1).getFileName());
+        assertEquals("zip", entries.get(1).getName());
+        assertEquals(OLDER, entries.get(1).getCreationTime());
+        assertEquals(10, entries.get(1).getSizeBytes());
+        assertFalse(entries.get(1).isIncremental());
+    }
+
+    @Test
+    public void testUnchangedFilesAreNotRead() throws IOException {
+        String index = writeIndex("incremental", NEWER, 1);
+        BackupCatalog catalog = newCatalog();
+        age(System.currentTimeMillis() - 60000);
+        assertEquals(1, catalog.getEntries().size());
+
+        corruptSilently(index);
+        assertEquals(1, catalog.getEntries().size());
+
+        // a new file changes the directory, but the old one still looks unchanged
+        String zip = writeZip("zip", OLDER, 1);
+        assertTrue(new File(backupDirectory, zip).setLastModified(System.currentTimeMillis() - 50000));
+        assertTrue(backupDirectory.setLastModified(System.currentTimeMillis() - 50000));
+        assertEquals(2, catalog.getEntries().size());
+
+        assertTrue(new File(backupDirectory, index).setLastModified(System.currentTimeMillis() - 40000));
+        assertTrue(backupDirectory.setLastModified(System.currentTimeMillis() - 40000));
+        List<BackupCatalogEntry> entries = catalog.getEntries();
+        assertEquals(1, entries.size());
+        assertEquals(zip, entries.get(0).getFileName());
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        String index = writeIndex("incremental", NEWER, 1);
+        writeZip("zip", OLDER, 1);
+        age(System.currentTimeMillis() - 60000);
+        List<BackupCatalogEntry> entries = newCatalog().getEntries();
+        assertEquals(2, entries.size());
+        assertTrue(BackupCatalog.getCatalogFile(backupDirectory).isFile());
+
+        // the index is not read again, its entry comes from the catalog file
+        corruptSilently(index);
+        assertEquals(entries, newCatalog().getEntries());
+
+        File catalogFile = BackupCatalog.getCatalogFile(backupDirectory);
+        byte[] data = Files.readAllBytes(catalogFile.toPath());
+        data[data.length / 2] ^= 1;
+        Files.write(catalogFile.toPath(), data);
+        entries = newCatalog().getEntries();
+        assertEquals(1, entries.size());
+        assertFalse(entries.get(0).isIncremental());
+    }
+
+    @Test
+    public void testPutAndRemove() throws IOException {
+        BackupCatalog catalog = newCatalog();
+        assertTrue(catalog.getEntries().isEmpty());
+
+        String zip = writeZip("zip", OLDER, 100);
+        catalog.put(zip);
+        assertEquals(1, catalog.getEntries().size());
+        assertEquals(100, catalog.getEntries().get(0).getSizeBytes());
+
+        // rewritten after being listed
+        writeZip("zip", OLDER, 200);
+        catalog.put(zip);
+        assertEquals(200, catalog.getEntries().get(0).getSizeBytes());
+        assertEquals(catalog.getEntries(), newCatalog().getEntries());
+
+        assertTrue(new File(backupDirectory, zip).delete());
+        catalog.remove(zip);
+        assertTrue(catalog.getEntries().isEmpty());
+        assertTrue(newCatalog().getEntries().isEmpty());
+    }
+
+    @Test
+    public void testSharedInstance() {
+        assertSame(BackupCatalog.forDirectory(backupDirectory),
+                BackupCatalog.forDirectory(new File(testRoot, "./backups")));
+    }
+}
@@ -0,0 +1,103 @@
+package com.keuin.kbackupfabric.backup.incremental;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.ChunkListIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CompactObjectCollectionTest {
+
+    private static SingleHashIdentifier identifier(IdentifierType type, int seed) {
+        byte[] hash = new byte[type.getHashLength()];
+        new Random(seed).nextBytes(hash);
+        return type.fromHash(hash);
+    }
+
+    private static ObjectCollection2 collection() {
+        Set<ObjectElement> elements = new HashSet<>();
+        elements.add(new ObjectElement("level.dat", identifier(IdentifierType.SHA256, 1)));
+        elements.add(new ObjectElement("b3.dat", identifier(IdentifierType.BLAKE3, 2)));
+        elements.add(new ObjectElement("x3.dat", identifier(IdentifierType.XXH3_128, 3)));
+        elements.add(new ObjectElement("r.0.0.mca", new ChunkListIdentifier("C2",
+                Arrays.asList(identifier(IdentifierType.SHA256, 4), identifier(IdentifierType.SHA256, 5)),
+                Arrays.asList(4096L, 8192L))));
+        ObjectCollection2 region = new ObjectCollection2("region", Collections.singleton(
+                new ObjectElement("r.0.1.mca", identifier(IdentifierType.SHA256, 6))), Collections.emptyMap());
+        ObjectCollection2 empty = new ObjectCollection2("data", Collections.emptySet(), Collections.emptyMap());
+        Map<String, ObjectCollection2> subCollections = new HashMap<>();
+        subCollections.put("region", region);
+        subCollections.put("data", empty);
+        return new ObjectCollection2("world", elements, subCollections);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        ObjectCollection2 collection = collection();
+        CompactObjectCollection compact = CompactObjectCollection.of(collection);
+        assertEquals(collection, compact.toObjectCollection());
+        assertEquals(compact, CompactObjectCollection.of(compact.toObjectCollection()));
+        assertEquals(compact.hashCode(), CompactObjectCollection.of(collection).hashCode());
+        assertNotEquals(compact, CompactObjectCollection.of(collection.getSubCollection("region")));
+    }
+
+    @Test
+    public void testLookup() {
+        ObjectCollection2 collection = collection();
+        CompactObjectCollection compact = CompactObjectCollection.of(collection);
+        assertEquals(Arrays.asList("b3.dat", "level.dat", "r.0.0.mca", "x3.dat"), compact.getElementNames());
+        for (ObjectElement element : collection.getElementSet()) {
+            int index = compact.indexOfElement(element.getName());
+            assertEquals(element.getIdentifier(), compact.getIdentifier(index));
+            assertEquals(element, compact.getElement(element.getName()));
+        }
+        assertNull(compact.getElement("missing"));
+        assertTrue(compact.indexOfElement("missing") < 0);
+        assertEquals(new HashSet<>(compact.getElements()), collection.getElementSet());
+
+        assertEquals(2, compact.getSubCollections().size());
+        assertEquals("data", compact.getSubCollections().get(0).getName());
+        assertEquals(collection.getSubCollection("region"), compact.getSubCollection("region").toObjectCollection());
+        assertNull(compact.getSubCollection("missing"));
+
+        List<ObjectIdentifier> identifiers = new ArrayList<>();
+        compact.forEachIdentifier(identifiers::add);
+        assertEquals(5, identifiers.size());
+    }
+
+    @Test
+    public void testViewsAreReadOnly() {
+        CompactObjectCollection compact = CompactObjectCollection.of(collection());
+        try {
+            compact.getElementNames().set(0, "other");
+            fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+        try {
+            compact.getSubCollections().clear();
+            fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+        try {
+            collection().getElementSet().clear();
+            fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+    }
+
+    @Test
+    public void testConflictingNames() {
+        CompactObjectCollection.Builder builder = new CompactObjectCollection.Builder("world")
+                .addElement("a", identifier(IdentifierType.SHA256, 1))
+                .addElement("a", identifier(IdentifierType.SHA256, 2));
+        try {
+            builder.build();
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+}
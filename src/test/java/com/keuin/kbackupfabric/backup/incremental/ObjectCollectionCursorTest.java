@@ -0,0 +1,144 @@
+package com.keuin.kbackupfabric.backup.incremental;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ObjectCollectionCursorTest {
+
+    private static ObjectElement element(String name) {
+        byte[] hash = new byte[IdentifierType.SHA256.getHashLength()];
+        new Random(name.hashCode()).nextBytes(hash);
+        return new ObjectElement(name, IdentifierType.SHA256.fromHash(hash));
+    }
+
+    private static ObjectCollection2 collection(String name, List<String> elementNames, ObjectCollection2... subCollections) {
+        Set<ObjectElement> elements = new HashSet<>();
+        elementNames.forEach(elementName -> elements.add(element(elementName)));
+        Map<String, ObjectCollection2> subCollectionMap = new HashMap<>();
+        for (ObjectCollection2 subCollection : subCollections)
+            subCollectionMap.put(subCollection.getName(), subCollection);
+        return new ObjectCollection2(name, elements, subCollectionMap);
+    }
+
+    /**
+     * A chain of nested directories deeper than the initial stack, each with one file.
+     */
+    private static ObjectCollection2 deepCollection(int depth) {
+        ObjectCollection2 collection = collection("d" + depth, Collections.singletonList("f" + depth));
+        for (int i = depth - 1; i >= 0; i--)
+            collection = collection("d" + i, Collections.singletonList("f" + i), collection);
+        return collection;
+    }
+
+    @Test
+    public void testPaths() {
+        ObjectCollection2 root = collection("world", Arrays.asList("level.dat", "session.lock"),
+                collection("region", Arrays.asList("r.0.0.mca", "r.0.1.mca")),
+                collection("DIM-1", Collections.emptyList(),
+                        collection("region", Collections.singletonList("r.0.0.mca"))),
+                collection("empty", Collections.emptyList()));
+        Map<String, Integer> paths = new HashMap<>();
+        List<Integer> depths = new ArrayList<>();
+        ObjectCollectionCursor cursor = new ObjectCollectionCursor(root);
+        while (cursor.next()) {
+            assertNotNull(cursor.getCollection().getElement(cursor.getElement().getName()));
+            paths.put(cursor.getRelativePath(), cursor.getDepth());
+            depths.add(cursor.getDepth());
+        }
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("level.dat", 0);
+        expected.put("session.lock", 0);
+        expected.put("region/r.0.0.mca", 1);
+        expected.put("region/r.0.1.mca", 1);
+        expected.put("DIM-1/region/r.0.0.mca", 2);
+        assertEquals(expected, paths);
+        // elements of a collection come first
+        assertEquals(Arrays.asList(0, 0), depths.subList(0, 2));
+
+        assertFalse(cursor.next());
+        try {
+            cursor.getElement();
+            fail();
+        } catch (NoSuchElementException ignored) {
+        }
+    }
+
+    @Test
+    public void testDeepTree() {
+        List<String> paths = new ArrayList<>();
+        deepCollection(100).forEachElement((element, cursor) -> paths.add(cursor.getRelativePath()));
+        assertEquals(101, paths.size());
+        assertEquals("f0", paths.get(0));
+        assertTrue(paths.get(100).startsWith("d1/d2/"));
+        assertTrue(paths.get(100).endsWith("/d100/f100"));
+    }
+
+    @Test
+    public void testEmptyTree() {
+        ObjectCollection2 root = collection("world", Collections.emptyList(), collection("empty", Collections.emptyList()));
+        assertFalse(new ObjectCollectionCursor(root).next());
+        assertFalse(new ObjectCollectionIterator(root).hasNext());
+    }
+
+    @Test
+    public void testSpliterator() {
+        List<ObjectCollection2> dimensions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            List<ObjectCollection2> directories = new ArrayList<>();
+            for (int j = 0; j < 4; j++) {
+                List<String> names = new ArrayList<>();
+                for (int k = 0; k < 50; k++)
+                    names.add("r." + k + ".mca");
+                directories.add(collection("dir" + j, names));
+            }
+            dimensions.add(collection("DIM" + i, Collections.singletonList("level.dat"),
+                    directories.toArray(new ObjectCollection2[0])));
+        }
+        ObjectCollection2 root = collection("world", Collections.singletonList("level.dat"),
+                dimensions.toArray(new ObjectCollection2[0]));
+
+        List<ObjectElement> expected = new ArrayList<>();
+        new ObjectCollectionIterator(root).forEachRemaining(expected::add);
+        assertEquals(1 + 5 * (1 + 4 * 50), expected.size());
+
+        List<ObjectElement> sequential = new ArrayList<>();
+        ObjectCollectionSpliterator.stream(root, false).forEach(sequential::add);
+        assertEquals(expected, sequential);
+
+        Map<ObjectElement, Long> expectedCounts = new HashMap<>();
+        expected.forEach(element -> expectedCounts.merge(element, 1L, Long::sum));
+        Map<ObjectElement, Long> parallelCounts = new HashMap<>();
+        ObjectCollectionSpliterator.stream(root, true).collect(
+                Collectors.groupingByConcurrent(element -> element, Collectors.counting()))
+                .forEach(parallelCounts::put);
+        assertEquals(expectedCounts, parallelCounts);
+
+        // split down to single directories, nothing is lost or duplicated
+        Deque<Spliterator<ObjectElement>> pending = new ArrayDeque<>();
+        pending.add(new ObjectCollectionSpliterator(root));
+        int parts = 0;
+        long count = 0;
+        while (!pending.isEmpty()) {
+            Spliterator<ObjectElement> spliterator = pending.poll();
+            Spliterator<ObjectElement> split = spliterator.trySplit();
+            if (split != null) {
+                pending.add(spliterator);
+                pending.add(split);
+                continue;
+            }
+            ++parts;
+            long[] elements = {0};
+            spliterator.forEachRemaining(element -> ++elements[0]);
+            assertTrue(elements[0] <= 50);
+            count += elements[0];
+            assertEquals(0, spliterator.estimateSize());
+        }
+        assertEquals(expected.size(), count);
+        assertTrue(parts >= 20);
+    }
+}
@@ -1,10 +1,12 @@
 package com.keuin.kbackupfabric.backup.incremental;
 
 import com.keuin.kbackupfabric.backup.incremental.identifier.Sha256Identifier;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
 
 import static org.junit.Assert.*;
@@ -128,4 +130,42 @@ public class ObjectCollectionFactoryTest {
             fail();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testManyDirectories() throws IOException {
+        // many small directories, which used to be hashed by a single thread each
+        final File testRoot = new File("./testfile/ObjectCollectionFactoryTest_many");
+        try {
+            Random random = new Random(6);
+            for (int i = 0; i < 30; i++) {
+                File directory = new File(testRoot, "d" + i + "/sub" + (i % 3));
+                assertTrue(directory.isDirectory() || directory.mkdirs());
+                for (int j = 0; j < i % 7; j++) {
+                    byte[] content = new byte[random.nextInt(50000)];
+                    random.nextBytes(content);
+                    Files.write(new File(directory, "f" + j).toPath(), content);
+                }
+            }
+            ObjectCollection2 expected = new ObjectCollectionFactory<>(Sha256Identifier.getFactory(), 1, 0)
+                    .fromDirectory(testRoot);
+            for (int threads : new int[]{2, 4, 8}) {
+                assertEquals(expected, new ObjectCollectionFactory<>(Sha256Identifier.getFactory(), threads, 0)
+                        .fromDirectory(testRoot));
+            }
+
+            // a failure in any worker is reported
+            try {
+                new ObjectCollectionFactory<>(file -> {
+                    if (file.getName().equals("f3"))
+                        throw new IOException("test");
+                    return Sha256Identifier.fromFile(file);
+                }, 4, 0).fromDirectory(testRoot);
+                fail();
+            } catch (IOException e) {
+                assertEquals("test", e.getMessage());
+            }
+        } finally {
+            FileUtils.deleteDirectory(testRoot);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.keuin.kbackupfabric.backup.incremental.cache;
+
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionFactory;
+import com.keuin.kbackupfabric.backup.incremental.identifier.Sha256Identifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.junit.Assert.*;
+
+public class FileFingerprintCacheTest {
+
+    private final File testRoot = new File("testfile/FileFingerprintCacheTest");
+    private final File levelRoot = new File(testRoot, "level");
+    private final File cacheFile = new File(testRoot, "fingerprints");
+
+    @Before
+    public void initialize() throws IOException {
+        if (testRoot.exists())
+            forceDelete(testRoot);
+        assertTrue(new File(levelRoot, "sub").mkdirs());
+        for (String name : new String[]{"a", "b", "sub/c", "sub/d"})
+            writeFile(new File(levelRoot, name), name);
+    }
+
+    @After
+    public void clean() throws IOException {
+        if (testRoot.exists())
+            forceDelete(testRoot);
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(content.getBytes());
+        }
+        // pretend the file was written long ago, so the cache entry will not be considered racy
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis() - 3600 * 1000));
+    }
+
+    private ObjectCollection2 scan(FileFingerprintCache cache) throws IOException {
+        return new ObjectCollectionFactory<>(Sha256Identifier.getFactory(), 1, 0, cache).fromDirectory(levelRoot);
+    }
+
+    @Test
+    public void testHitAndMiss() throws IOException {
+        FileFingerprintCache cache = FileFingerprintCache.load(cacheFile);
+        ObjectCollection2 col1 = scan(cache);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        cache.save(cacheFile);
+
+        cache = FileFingerprintCache.load(cacheFile);
+        ObjectCollection2 col2 = scan(cache);
+        assertEquals(4, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+        assertEquals(col1, col2);
+        cache.save(cacheFile);
+
+        writeFile(new File(levelRoot, "sub/c"), "changed");
+        cache = FileFingerprintCache.load(cacheFile);
+        ObjectCollection2 col3 = scan(cache);
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertNotEquals(col1, col3);
+        assertEquals(scan(null), col3);
+    }
+
+    @Test
+    public void testRacyEntryIsNotTrusted() throws IOException {
+        // a file modified right before hashing may be modified again without changing its mtime
+        assertTrue(new File(levelRoot, "a").setLastModified(System.currentTimeMillis()));
+        FileFingerprintCache cache = FileFingerprintCache.empty();
+        scan(cache);
+        cache.save(cacheFile);
+        cache = FileFingerprintCache.load(cacheFile);
+        scan(cache);
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testBrokenCacheFile() throws IOException {
+        writeFile(cacheFile, "not a cache");
+        FileFingerprintCache cache = FileFingerprintCache.load(cacheFile);
+        scan(cache);
+        assertEquals(4, cache.getMissCount());
+    }
+}
@@ -0,0 +1,121 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionFactory;
+import com.keuin.kbackupfabric.backup.incremental.manager.IncCopyResult;
+import com.keuin.kbackupfabric.backup.incremental.manager.IncrementalBackupStorageManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.junit.Assert.*;
+
+public class AnvilRegionIdentifierProviderTest {
+
+    private final File testRoot = new File("testfile/AnvilRegionIdentifierProviderTest");
+    private final File levelRoot = new File(testRoot, "level");
+    private final File baseRoot = new File(testRoot, "base");
+    private final File restoreRoot = new File(testRoot, "restore");
+    private final Random random = new Random(42);
+
+    @Before
+    public void initialize() throws IOException {
+        if (testRoot.exists())
+            forceDelete(testRoot);
+        assertTrue(levelRoot.mkdirs());
+    }
+
+    @After
+    public void clean() throws IOException {
+        if (testRoot.exists())
+            forceDelete(testRoot);
+    }
+
+    /**
+     * Make a region file with chunks at given (sector offset, sector count).
+     */
+    private byte[] makeRegion(int[][] chunks, int totalSectors) {
+        ByteBuffer buffer = ByteBuffer.allocate(totalSectors * 4096);
+        byte[] random = new byte[totalSectors * 4096];
+        this.random.nextBytes(random);
+        buffer.put(random);
+        for (int i = 0; i < 1024; i++)
+            buffer.putInt(i * 4, 0);
+        for (int i = 0; i < chunks.length; i++)
+            buffer.putInt(i * 4, (chunks[i][0] << 8) | chunks[i][1]);
+        return buffer.array();
+    }
+
+    @Test
+    public void testSplitRegion() throws IOException {
+        File region = new File(levelRoot, "r.0.0.mca");
+        // chunk 0 at sector 2 (1 sector), chunk 1 at sector 5 (2 sectors), chunk 2 at sector 3 (1 sector). Gap at sector 4, tail at 7
+        Files.write(region.toPath(), makeRegion(new int[][]{{2, 1}, {5, 2}, {3, 1}}, 8));
+        ObjectIdentifier identifier = new AnvilRegionIdentifierProvider(Sha256Identifier.getFactory()).fromFile(region);
+        assertTrue(identifier instanceof ChunkListIdentifier);
+        ChunkListIdentifier chunkList = (ChunkListIdentifier) identifier;
+        // header, chunk@2, chunk@3, gap@4, chunk@5, tail@7
+        assertEquals(6, chunkList.getChunkCount());
+        assertEquals(region.length(), chunkList.getTotalLength());
+        assertEquals(8192, chunkList.getChunkLength(0));
+        assertEquals(8192, chunkList.getChunkLength(4));
+    }
+
+    @Test
+    public void testNonRegionAndMalformedFiles() throws IOException {
+        AnvilRegionIdentifierProvider provider = new AnvilRegionIdentifierProvider(Sha256Identifier.getFactory());
+        File other = new File(levelRoot, "level.dat");
+        Files.write(other.toPath(), new byte[]{1, 2, 3});
+        assertEquals(Sha256Identifier.fromFile(other), provider.fromFile(other));
+
+        File empty = new File(levelRoot, "r.1.1.mca");
+        Files.write(empty.toPath(), new byte[0]);
+        assertEquals(Sha256Identifier.fromFile(empty), provider.fromFile(empty));
+
+        // overlapping chunks
+        File overlapping = new File(levelRoot, "r.2.2.mca");
+        Files.write(overlapping.toPath(), makeRegion(new int[][]{{2, 2}, {3, 1}}, 4));
+        assertEquals(Sha256Identifier.fromFile(overlapping), provider.fromFile(overlapping));
+    }
+
+    @Test
+    public void testOnlyChangedChunksAreCopied() throws IOException {
+        File region = new File(levelRoot, "r.0.0.mca");
+        byte[] content = makeRegion(new int[][]{{2, 1}, {3, 1}, {4, 2}}, 6);
+        Files.write(region.toPath(), content);
+
+        ObjectCollectionFactory<ObjectIdentifier> factory =
+                new ObjectCollectionFactory<>(new AnvilRegionIdentifierProvider(Sha256Identifier.getFactory()), 1, 0);
+        IncrementalBackupStorageManager manager = new IncrementalBackupStorageManager(baseRoot.toPath());
+        ObjectCollection2 col1 = factory.fromDirectory(levelRoot);
+        IncCopyResult result1 = manager.addObjectCollection(col1, levelRoot);
+        assertNotNull(result1);
+        assertEquals(content.length, result1.getCopiedBytes());
+
+        // modify one byte in chunk 1
+        content[3 * 4096 + 100] ^= 0x55;
+        Files.write(region.toPath(), content);
+        ObjectCollection2 col2 = factory.fromDirectory(levelRoot);
+        IncCopyResult result2 = manager.addObjectCollection(col2, levelRoot);
+        assertNotNull(result2);
+        assertEquals(4096, result2.getCopiedBytes());
+        assertTrue(manager.contains(col1));
+        assertTrue(manager.contains(col2));
+
+        manager.restoreObjectCollection(col2, restoreRoot);
+        assertArrayEquals(content, Files.readAllBytes(new File(restoreRoot, region.getName()).toPath()));
+
+        // chunks shared with col2 must survive
+        manager.deleteObjectCollection(col1, Collections.singleton(col2));
+        assertTrue(manager.contains(col2));
+        assertFalse(manager.contains(col1));
+    }
+}
@@ -0,0 +1,101 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.junit.Assert.*;
+
+public class ContentDefinedChunkerTest {
+
+    private final File testRoot = new File("testfile/ContentDefinedChunkerTest");
+
+    @After
+    public void clean() throws IOException {
+        if (testRoot.exists())
+            forceDelete(testRoot);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static List<Integer> split(ContentDefinedChunker chunker, byte[] data) {
+        List<Integer> lengths = new ArrayList<>();
+        int offset = 0;
+        while (offset < data.length) {
+            int length = chunker.nextChunkLength(data, offset, data.length - offset);
+            lengths.add(length);
+            offset += length;
+        }
+        return lengths;
+    }
+
+    @Test
+    public void testChunkSizeBounds() {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(8192);
+        byte[] data = randomBytes(4 * 1024 * 1024, 1);
+        List<Integer> lengths = split(chunker, data);
+        for (int i = 0; i < lengths.size() - 1; i++) {
+            assertTrue(lengths.get(i) >= chunker.getMinSize());
+            assertTrue(lengths.get(i) <= chunker.getMaxSize());
+        }
+        double average = 1.0 * data.length / lengths.size();
+        assertTrue("average chunk size " + average, average > 8192 / 2.0 && average < 8192 * 2.0);
+
+        // all-zero data has no boundaries, so every chunk is maximal
+        assertEquals(chunker.getMaxSize(), (int) split(chunker, new byte[chunker.getMaxSize() * 3]).get(0));
+    }
+
+    @Test
+    public void testInsertionOnlyAffectsNearbyChunks() throws IOException {
+        assertTrue(testRoot.mkdirs());
+        byte[] original = randomBytes(8 * 1024 * 1024, 2);
+        byte[] modified = new byte[original.length + 100];
+        System.arraycopy(original, 0, modified, 0, 1024 * 1024);
+        System.arraycopy(randomBytes(100, 3), 0, modified, 1024 * 1024, 100);
+        System.arraycopy(original, 1024 * 1024, modified, 1024 * 1024 + 100, original.length - 1024 * 1024);
+
+        File file1 = new File(testRoot, "1"), file2 = new File(testRoot, "2");
+        Files.write(file1.toPath(), original);
+        Files.write(file2.toPath(), modified);
+        ContentDefinedChunkingIdentifierProvider provider = new ContentDefinedChunkingIdentifierProvider(
+                Sha256Identifier.getFactory(), new ContentDefinedChunker(16384), 1024);
+        ChunkListIdentifier id1 = (ChunkListIdentifier) provider.fromFile(file1);
+        ChunkListIdentifier id2 = (ChunkListIdentifier) provider.fromFile(file2);
+        assertEquals(original.length, id1.getTotalLength());
+        assertEquals(modified.length, id2.getTotalLength());
+
+        Set<ObjectIdentifier> shared = new HashSet<>(id1.getChunks());
+        shared.retainAll(id2.getChunks());
+        assertTrue("shared " + shared.size() + " of " + id1.getChunkCount(), shared.size() >= id1.getChunkCount() - 3);
+
+        // small files are not chunked
+        File small = new File(testRoot, "small");
+        Files.write(small.toPath(), randomBytes(1000, 4));
+        assertEquals(Sha256Identifier.fromFile(small), provider.fromFile(small));
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testThroughput() {
+        byte[] data = randomBytes(64 * 1024 * 1024, 5);
+        for (int averageSize : new int[]{4096, 16384, 65536, 262144, 1048576}) {
+            ContentDefinedChunker chunker = new ContentDefinedChunker(averageSize);
+            split(chunker, data); // warm up
+            long start = System.nanoTime();
+            int chunks = split(chunker, data).size();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("CDC average %7d B: %4d MB/s, %5d chunks, real average %d B%n",
+                    averageSize, (int) (data.length / 1048576.0 / seconds), chunks, data.length / chunks);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import com.keuin.kbackupfabric.util.hash.StreamingHasher;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.junit.Assert.*;
+
+public class HashingEngineTest {
+
+    private final File testRoot = new File("testfile/HashingEngineTest");
+
+    @After
+    public void clean() throws IOException {
+        if (testRoot.exists())
+            forceDelete(testRoot);
+    }
+
+    private List<File> createFiles(int count, int maxSize) throws IOException {
+        Files.createDirectories(testRoot.toPath());
+        Random random = new Random(count);
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] content = new byte[random.nextInt(maxSize)];
+            random.nextBytes(content);
+            File file = new File(testRoot, "f" + i);
+            Files.write(file.toPath(), content);
+            files.add(file);
+        }
+        return files;
+    }
+
+    @Test
+    public void testConsistentWithHasher() throws IOException {
+        // small buffer, so files are read in many rounds
+        HashingEngine engine = new HashingEngine(4096, -1);
+        HashingEngine mappingEngine = new HashingEngine(4096, 0);
+        for (File file : createFiles(20, 100000)) {
+            byte[] content = Files.readAllBytes(file.toPath());
+            for (IdentifierType type : IdentifierType.values()) {
+                StreamingHasher hasher = type.newHasher();
+                hasher.update(content, 0, content.length);
+                byte[] expected = type.toIdentifierHash(hasher.digest(), content.length);
+                assertArrayEquals(expected, engine.hash(type, file));
+                assertArrayEquals(expected, mappingEngine.hash(type, file));
+            }
+        }
+        assertEquals(20 * IdentifierType.values().length, mappingEngine.getMappedFileCount());
+        assertEquals(0, engine.getMappedFileCount());
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        HashingEngine engine = new HashingEngine(1000, -1);
+        File file = createFiles(1, 100000).get(0);
+        byte[] content = Files.readAllBytes(file.toPath());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            byte[] digest = engine.hashRange(IdentifierType.BLAKE3, channel, 100, 5000);
+            assertArrayEquals(engine.hashBytes(IdentifierType.BLAKE3, content, 100, 5000), digest);
+            try {
+                engine.hashRange(IdentifierType.BLAKE3, channel, content.length - 10, 20);
+                fail();
+            } catch (IOException ignored) {
+            }
+            // the failed range must not affect the next one
+            assertArrayEquals(digest, engine.hashRange(IdentifierType.BLAKE3, channel, 100, 5000));
+        }
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        HashingEngine engine = new HashingEngine(64 * 1024, -1);
+        List<File> files = createFiles(2000, 4096);
+        for (int round = 0; round < 3; round++) {
+            // the first round warms up the JIT
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            long allocated = getAllocatedBytes(threadBean);
+            for (File file : files)
+                engine.hash(IdentifierType.SHA256, file);
+            long perFile = (getAllocatedBytes(threadBean) - allocated) / files.size();
+            if (allocated >= 0)
+                System.out.printf("Round %d: %d byte(s) allocated for each file%n", round, perFile);
+            if (allocated >= 0 && round > 0)
+                assertTrue("too much garbage: " + perFile, perFile < 16 * 1024);
+        }
+        assertEquals(6000, engine.getHashedFileCount());
+        assertEquals(1, engine.getBufferAllocationCount());
+        assertEquals(1, engine.getHasherAllocationCount());
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean threadBean) {
+        // only available on HotSpot
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled())
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,103 @@
+package com.keuin.kbackupfabric.backup.incremental.identifier;
+
+import com.keuin.kbackupfabric.util.hash.StreamingHasher;
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.apache.commons.io.FileUtils.forceDelete;
+import static org.junit.Assert.*;
+
+public class IdentifierTypeTest {
+
+    private final File testRoot = new File("testfile/IdentifierTypeTest");
+
+    @After
+    public void clean() throws IOException {
+        if (testRoot.exists())
+            forceDelete(testRoot);
+    }
+
+    private File createFile(String name, byte[] content) throws IOException {
+        Files.createDirectories(testRoot.toPath());
+        File file = new File(testRoot, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    @Test
+    public void testStorageObjectLoader() throws IOException {
+        byte[] content = new byte[3000];
+        new Random(1).nextBytes(content);
+        File file = createFile("a", content);
+        for (IdentifierType type : IdentifierType.values()) {
+            SingleHashIdentifier identifier = type.fromFile(file);
+            assertTrue(identifier.getIdentification().startsWith(type.getMarker() + "-"));
+            assertEquals(identifier, StorageObjectLoader.asIdentifier(new File(identifier.getIdentification())));
+            assertEquals(type, IdentifierType.fromMarker(type.getMarker()));
+        }
+        assertNull(StorageObjectLoader.asIdentifier(new File("S2-00")));
+        assertNull(StorageObjectLoader.asIdentifier(new File("XX-" + Sha256Identifier.fromFile(file).getIdentification().substring(3))));
+        assertNull(StorageObjectLoader.asIdentifier(new File("kbackup_base.properties")));
+    }
+
+    @Test
+    public void testSha256Compatible() throws IOException {
+        File file = createFile("a", "KBackup".getBytes());
+        assertEquals(Sha256Identifier.fromFile(file), IdentifierType.SHA256.fromFile(file));
+    }
+
+    @Test
+    public void testXxh3ContainsLength() throws IOException {
+        File file = createFile("a", new byte[1234]);
+        String identification = IdentifierType.XXH3_128.fromFile(file).getIdentification();
+        assertTrue(identification.endsWith("00000000000004D2"));
+    }
+
+    @Test
+    public void testFileRange() throws IOException {
+        byte[] content = new byte[5000];
+        new Random(2).nextBytes(content);
+        File file = createFile("a", content);
+        byte[] range = new byte[2000];
+        System.arraycopy(content, 1000, range, 0, range.length);
+        File rangeFile = createFile("b", range);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (IdentifierType type : IdentifierType.values()) {
+                assertEquals(type.fromFile(rangeFile), type.fromFileRange(channel, 1000, 2000));
+            }
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testThroughput() {
+        // single thread, so the numbers are MB/s per core
+        byte[] data = new byte[8 * 1024 * 1024];
+        new Random(3).nextBytes(data);
+        for (IdentifierType type : IdentifierType.values()) {
+            StreamingHasher hasher = type.newHasher();
+            for (int i = 0; i < 10; i++) { // warm up, so the JIT compiles the hot loops
+                hasher.update(data, 0, data.length);
+                hasher.digest();
+            }
+            int rounds = 10;
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                hasher.update(ByteBuffer.wrap(data));
+                hasher.digest();
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("%-8s (%s): %5d MB/s per core%n", type, type.getMarker(),
+                    (long) data.length * rounds * 1000 / Math.max(nanos, 1));
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package com.keuin.kbackupfabric.backup.incremental.manager;
 
+import com.keuin.kbackupfabric.backup.incremental.CompactObjectCollection;
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionFactory;
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionIterator;
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
 import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
 import com.keuin.kbackupfabric.backup.incremental.identifier.Sha256Identifier;
+import com.keuin.kbackupfabric.backup.incremental.serializer.IncBackupInfoSerializer;
+import com.keuin.kbackupfabric.backup.incremental.serializer.SavedIncrementalBackup;
+import com.keuin.kbackupfabric.util.RateLimiter;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,15 +17,20 @@ import org.junit.Test;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZonedDateTime;
 import java.util.*;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class IncrementalBackupStorageManagerTest {
 
@@ -91,6 +101,26 @@ public class IncrementalBackupStorageManagerTest {
         return sb.toString();
     }
 
+    private static Set<ObjectIdentifier> getObjects(ObjectCollection2 collection) {
+        Set<ObjectIdentifier> objects = new HashSet<>();
+        new ObjectCollectionIterator(collection).forEachRemaining(ele -> objects.add(ele.getIdentifier()));
+        return objects;
+    }
+
+    private static BackupCollectionSource singleBackup(ObjectCollection2 collection) {
+        return new BackupCollectionSource() {
+            @Override
+            public Set<String> getBackupNames() {
+                return Collections.singleton("backup");
+            }
+
+            @Override
+            public ObjectCollection2 getObjectCollection(String backupName) {
+                return collection;
+            }
+        };
+    }
+
     @Before
     public void initialize() throws IOException {
         // init directory structure
@@ -130,6 +160,285 @@ public class IncrementalBackupStorageManagerTest {
                 ele -> assertFalse(manager.contains(ele.getIdentifier())));
     }
 
+    @Test
+    public void testMixedIdentifierTypes() throws IOException {
+        IncrementalBackupStorageManager manager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        assertEquals(IdentifierType.SHA256, manager.getProperties().getIdentifierType());
+        ObjectCollection2 col = new ObjectCollectionFactory<>(Sha256Identifier::fromFile,
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col, new File(srcRoot));
+
+        // switch the base to another hash function, old objects are still valid
+        manager.setProperties(manager.getProperties().withIdentifierType(IdentifierType.BLAKE3));
+        assertEquals(IdentifierType.BLAKE3, manager.getProperties().getIdentifierType());
+        ObjectCollection2 col2 = new ObjectCollectionFactory<>(IdentifierType.BLAKE3.getFactory(),
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col2, new File(srcRoot));
+        assertTrue(manager.contains(col));
+        assertTrue(manager.contains(col2));
+
+        manager.deleteObjectCollection(col, Collections.singleton(col2));
+        assertTrue(manager.contains(col2));
+        new ObjectCollectionIterator(col).forEachRemaining(
+                ele -> assertFalse(manager.contains(ele.getIdentifier())));
+        assertTrue(new File(destRoot, StorageBaseProperties.FILE_NAME).isFile());
+    }
+
+    private static StorageBaseProperties loadProperties(String content) throws IOException {
+        Path base = new File(destRoot).toPath();
+        Files.createDirectories(base);
+        Files.write(base.resolve(StorageBaseProperties.FILE_NAME), content.getBytes(StandardCharsets.ISO_8859_1));
+        return StorageBaseProperties.load(base);
+    }
+
+    @Test
+    public void testPropertiesFile() throws IOException {
+        assertFalse(loadProperties("").isRegionChunking());
+        assertTrue(loadProperties("regionChunking=true\n").isRegionChunking());
+        StorageBaseProperties chunking = loadProperties("chunkingMinFileSize=1048576\nchunkingAverageSize=16384\n");
+        assertEquals(1048576, chunking.getChunkingMinFileSize());
+        assertEquals(16384, chunking.getChunkingAverageSize());
+        assertEquals(-1, loadProperties("").getChunkingMinFileSize());
+        assertEquals(1, loadProperties("").getIndexCheckpointInterval());
+        assertEquals(10, loadProperties("indexCheckpointInterval=10\n").getIndexCheckpointInterval());
+        assertFalse(loadProperties("").isParanoidHashing());
+        assertTrue(loadProperties("paranoidHashing=TRUE\n").isParanoidHashing());
+        assertTrue(loadProperties("").isSinglePassCopy());
+        assertFalse(loadProperties("singlePassCopy=false\n").isSinglePassCopy());
+        StorageBaseProperties copy = loadProperties("copyThreads=1\ncopyBytesInFlight=1048576\n");
+        assertEquals(1, copy.getCopyThreads());
+        assertEquals(1048576, copy.getCopyBytesInFlight());
+        for (String invalid : Arrays.asList("regionChunking=yes", "chunkingMinFileSize=-2", "chunkingAverageSize=1000",
+                "chunkingAverageSize=128", "packLimit=-1", "scrubPart=x", "indexCheckpointInterval=0",
+                "paranoidHashing=1", "singlePassCopy=off",
+                "copyThreads=0", "copyBytesInFlight=-1", "copyBytesInFlight=4294967296")) {
+            try {
+                loadProperties(invalid + "\n");
+                fail(invalid);
+            } catch (IOException ignored) {
+            }
+        }
+
+        StorageBaseProperties properties = StorageBaseProperties.DEFAULT.withRegionChunking(true)
+                .withContentDefinedChunking(0, 4096).withIndexCheckpointInterval(5).withParanoidHashing(true)
+                .withSinglePassCopy(false).withParallelCopy(2, 1024);
+        properties.save(new File(destRoot).toPath());
+        assertEquals(properties, StorageBaseProperties.load(new File(destRoot).toPath()));
+    }
+
+    @Test
+    public void testInitializeProperties() throws IOException {
+        // a base written by an older version keeps writing raw objects
+        Path legacyBase = new File(testRoot, "legacy").toPath();
+        Files.createDirectories(legacyBase);
+        Files.write(legacyBase.resolve(getRandomString(64)), new byte[1]);
+        IncrementalBackupStorageManager legacyManager = new IncrementalBackupStorageManager(legacyBase);
+        assertFalse(legacyManager.initializeProperties());
+        assertEquals(StorageBaseProperties.DEFAULT, legacyManager.getProperties());
+        assertEquals(ObjectCodec.RAW, legacyManager.getProperties().getCodec());
+        assertEquals(0, legacyManager.getProperties().getPackLimit());
+
+        // a new base compresses them
+        Path newBase = new File(testRoot, "new").toPath();
+        IncrementalBackupStorageManager newManager = new IncrementalBackupStorageManager(newBase);
+        assertTrue(newManager.initializeProperties());
+        assertEquals(StorageBaseProperties.NEW_BASE, newManager.getProperties());
+        assertEquals(ObjectCodec.DEFLATE, newManager.getProperties().getCodec());
+        assertFalse(newManager.initializeProperties());
+
+        // an explicit codec is kept
+        assertEquals(ObjectCodec.DEFLATE, loadProperties("codec=deflate\n").getCodec());
+        assertEquals(ObjectCodec.RAW, loadProperties("layout=flat\n").getCodec());
+    }
+
+    @Test
+    public void testStoringIdentifierProvider() throws IOException {
+        IncrementalBackupStorageManager manager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        ObjectCollection2 col = new ObjectCollectionFactory<>(manager.getStoringIdentifierProvider(IdentifierType.SHA256),
+                4, 0)
+                .fromDirectory(new File(srcRoot));
+        // objects are stored while hashing, with the same identifiers
+        assertTrue(manager.contains(col));
+        new ObjectCollectionIterator(col).forEachRemaining(
+                ele -> assertEquals(files.get(ele.getName()), ele.getIdentifier()));
+        IncCopyResult result = manager.addObjectCollection(col, new File(srcRoot));
+        assertNotNull(result);
+        // files with the same content are stored only once
+        assertEquals(new HashSet<>(files.values()).size(), result.getCopiedFiles());
+        assertEquals(0, manager.discardObjectsStoredInAdvance());
+
+        // existing objects are neither replaced nor counted as copied
+        ObjectCollection2 col2 = new ObjectCollectionFactory<>(manager.getStoringIdentifierProvider(IdentifierType.SHA256),
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        result = manager.addObjectCollection(col2, new File(srcRoot));
+        assertNotNull(result);
+        assertEquals(0, result.getCopiedFiles());
+
+        // objects of an aborted backup are discarded
+        // (longer than other files, so the content is new)
+        File newFile = new File(srcRoot, getRandomString(20));
+        Files.write(newFile.toPath(), getRandomString(100).getBytes());
+        ObjectIdentifier identifier = Sha256Identifier.fromFile(newFile);
+        new ObjectCollectionFactory<>(manager.getStoringIdentifierProvider(IdentifierType.SHA256),
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        assertTrue(manager.contains(identifier));
+        assertEquals(1, manager.discardObjectsStoredInAdvance());
+        assertFalse(manager.contains(identifier));
+        manager.deleteTemporaryFiles();
+        assertTrue(manager.contains(col));
+    }
+
+    @Test
+    public void testParallelCopy() throws IOException {
+        ObjectCollection2 col = new ObjectCollectionFactory<>(Sha256Identifier::fromFile,
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        IncrementalBackupStorageManager serialManager =
+                new IncrementalBackupStorageManager(new File(destRoot, "serial").toPath());
+        IncCopyResult expected = serialManager.addObjectCollection(col, new File(srcRoot));
+        assertNotNull(expected);
+
+        // files with the same content are copied once, no matter how many copies run at the same time
+        for (int threads : new int[]{2, 8}) {
+            IncrementalBackupStorageManager manager =
+                    new IncrementalBackupStorageManager(new File(destRoot, "parallel" + threads).toPath());
+            assertEquals(expected, manager.addObjectCollection(col, new File(srcRoot), threads, 2));
+            assertTrue(manager.contains(col));
+            assertEquals(new IncCopyResult(expected.getTotalFiles(), 0, 0, expected.getTotalBytes()),
+                    manager.addObjectCollection(col, new File(srcRoot), threads, 2));
+        }
+    }
+
+    @Test
+    public void testReshard() throws IOException {
+        ObjectCollection2 col = new ObjectCollectionFactory<>(Sha256Identifier::fromFile,
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        IncrementalBackupStorageManager manager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        // small objects are not packed, so they are files to be moved
+        manager.setProperties(manager.getProperties().withPackLimit(0));
+        IncCopyResult result = manager.addObjectCollection(col, new File(srcRoot));
+        assertNotNull(result);
+
+        // objects are moved into shards
+        assertEquals(result.getCopiedFiles(), manager.reshard(StorageLayout.SHARDED));
+        assertEquals(StorageLayout.SHARDED, manager.getProperties().getLayout());
+        String identification = col.getElementSet().iterator().next().getIdentifier().getIdentification();
+        assertFalse(new File(destRoot, identification).exists());
+        assertTrue(new File(destRoot, identification.substring(3, 5) + "/" + identification.substring(5, 7)
+                + "/" + identification).isFile());
+        IncrementalBackupStorageManager reloadedManager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        assertTrue(reloadedManager.contains(col));
+
+        // new objects are placed in shards, restoring finds objects in any layout
+        for (int i = 0; i < 20; i++) {
+            String fileName = getRandomString(20);
+            files.put(fileName, addFile(fileName));
+        }
+        ObjectCollection2 col2 = new ObjectCollectionFactory<>(Sha256Identifier::fromFile,
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        reloadedManager.addObjectCollection(col2, new File(srcRoot));
+        File restoreRoot = new File(testRoot, "restore");
+        assertEquals(files.size(), reloadedManager.restoreObjectCollection(col2, restoreRoot));
+        for (Map.Entry<String, ObjectIdentifier> entry : files.entrySet())
+            assertEquals(entry.getValue(), Sha256Identifier.fromFile(new File(restoreRoot, entry.getKey())));
+
+        // back to the flat layout, shard directories are removed
+        reloadedManager.reshard(StorageLayout.FLAT);
+        assertTrue(reloadedManager.contains(col2));
+        File[] directories = new File(destRoot).listFiles(File::isDirectory);
+        assertNotNull(directories);
+        for (File directory : directories)
+            assertTrue(directory.getName(), directory.getName().length() > 2);
+    }
+
+    @Test
+    public void testPackedObjects() throws IOException {
+        IncrementalBackupStorageManager manager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        // packs cannot be read by older versions, so bases created by them never get packed objects
+        assertEquals(0, manager.getProperties().getPackLimit());
+        assertTrue(manager.initializeProperties());
+        StorageBaseProperties properties = manager.getProperties();
+        assertTrue(properties.getPackLimit() > 0);
+        manager.setProperties(properties.withPackLimit(0));
+        ObjectCollection2 col = new ObjectCollectionFactory<>(Sha256Identifier::fromFile,
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col, new File(srcRoot));
+
+        // new small objects are packed
+        manager.setProperties(properties);
+        List<String> newFiles = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String fileName = getRandomString(20);
+            Files.write(new File(srcRoot, fileName).toPath(), getRandomString(100).getBytes());
+            newFiles.add(fileName);
+        }
+        ObjectCollection2 col2 = new ObjectCollectionFactory<>(Sha256Identifier::fromFile,
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col2, new File(srcRoot), 4, 1024);
+        assertTrue(manager.contains(col2));
+        File packDirectory = new File(destRoot, "packs");
+        File[] indexes = packDirectory.listFiles((dir, name) -> name.endsWith(".idx"));
+        assertNotNull(indexes);
+        assertEquals(1, indexes.length);
+        for (String fileName : newFiles) {
+            String identification = Sha256Identifier.fromFile(new File(srcRoot, fileName)).getIdentification();
+            assertFalse(new File(destRoot, identification).exists());
+        }
+
+        // deleted packed objects are gone, also for other managers
+        for (String fileName : newFiles.subList(0, 10))
+            assertTrue(new File(srcRoot, fileName).delete());
+        ObjectCollection2 col3 = new ObjectCollectionFactory<>(Sha256Identifier::fromFile,
+                1, 1)
+                .fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col3, new File(srcRoot));
+        manager.deleteObjectCollection(col2, Collections.singleton(col3));
+        Set<ObjectIdentifier> deletedObjects = getObjects(col2);
+        deletedObjects.removeAll(getObjects(col3));
+        assertEquals(10, deletedObjects.size());
+        IncrementalBackupStorageManager reloadedManager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        for (ObjectIdentifier identifier : deletedObjects)
+            assertFalse(reloadedManager.contains(identifier));
+        assertTrue(reloadedManager.contains(col3));
+
+        // repacking drops deleted objects, and packs loose objects
+        RepackResult result = reloadedManager.repack(singleBackup(col3));
+        assertEquals(getObjects(col3).size(), result.getPackedObjects());
+        assertEquals(getObjects(col3).size() - 10, result.getLooseObjects());
+        assertTrue(result.getReclaimedBytes() > 0);
+        for (ObjectIdentifier identifier : getObjects(col3))
+            assertFalse(new File(destRoot, identifier.getIdentification()).exists());
+        String[] packFiles = packDirectory.list();
+        assertNotNull(packFiles);
+        assertEquals(2, packFiles.length); // the pack and its index
+
+        IncrementalBackupStorageManager restoringManager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        File restoreRoot = new File(testRoot, "restore");
+        restoringManager.restoreObjectCollection(col3, restoreRoot);
+        new ObjectCollectionIterator(col3).forEachRemaining(ele -> {
+            try {
+                assertEquals(ele.getIdentifier(), Sha256Identifier.fromFile(new File(restoreRoot, ele.getName())));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
     @Test
     public void testDeleteNone() throws IOException {
         ObjectCollection2 col = new ObjectCollectionFactory<>(Sha256Identifier::fromFile,
@@ -198,4 +507,243 @@ public class IncrementalBackupStorageManagerTest {
         manager.deleteObjectCollection(col2, Collections.singleton(col));
         assertTrue(manager.contains(col));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDeleteWithReferenceIndex() throws IOException {
+        Map<String, ObjectCollection2> backups = new HashMap<>();
+        int[] loads = new int[]{0};
+        BackupCollectionSource source = new BackupCollectionSource() {
+            @Override
+            public Set<String> getBackupNames() {
+                return new HashSet<>(backups.keySet());
+            }
+
+            @Override
+            public ObjectCollection2 getObjectCollection(String backupName) throws IOException {
+                ++loads[0];
+                ObjectCollection2 collection = backups.get(backupName);
+                if (collection == null)
+                    throw new IOException("no such backup " + backupName);
+                return collection;
+            }
+        };
+        ObjectCollectionFactory<Sha256Identifier> factory =
+                new ObjectCollectionFactory<>(Sha256Identifier::fromFile, 1, 1);
+        IncrementalBackupStorageManager manager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+
+        // backups saved before the index exists
+        ObjectCollection2 col1 = factory.fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col1, new File(srcRoot));
+        manager.addBackupReferences("b1", col1);
+        backups.put("b1", col1);
+        randomlyDeleteFiles(25);
+        for (int i = 0; i < 50; i++) {
+            String fileName = getRandomString(20);
+            files.put(fileName, addFile(fileName));
+        }
+        ObjectCollection2 col2 = factory.fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col2, new File(srcRoot));
+        manager.addBackupReferences("b2", col2);
+        backups.put("b2", col2);
+
+        // the first deletion builds the index from the remaining backups
+        Set<ObjectIdentifier> unique = getObjects(col1);
+        unique.removeAll(getObjects(col2));
+        backups.remove("b1");
+        assertEquals(unique.size(), manager.deleteObjectCollection("b1", col1, source));
+        assertEquals(1, loads[0]);
+        assertTrue(manager.contains(col2));
+        unique.forEach(id -> assertFalse(manager.contains(id)));
+
+        // later backups are recorded, so no backup is loaded
+        for (int i = 0; i < 50; i++) {
+            String fileName = getRandomString(20);
+            files.put(fileName, addFile(fileName));
+        }
+        ObjectCollection2 col3 = factory.fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col3, new File(srcRoot));
+        manager.addBackupReferences("b3", col3);
+        backups.put("b3", col3);
+        IncrementalBackupStorageManager reloaded =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        backups.remove("b2");
+        reloaded.deleteObjectCollection("b2", col2, source);
+        assertEquals(1, loads[0]);
+        assertTrue(reloaded.contains(col3));
+
+        // a backup missing in the index is counted before deleting
+        for (int i = 0; i < 50; i++) {
+            String fileName = getRandomString(20);
+            files.put(fileName, addFile(fileName));
+        }
+        ObjectCollection2 col4 = factory.fromDirectory(new File(srcRoot));
+        reloaded.addObjectCollection(col4, new File(srcRoot));
+        backups.put("b4", col4);
+        backups.remove("b3");
+        reloaded.deleteObjectCollection("b3", col3, source);
+        assertEquals(2, loads[0]);
+        assertTrue(reloaded.contains(col4));
+    }
+
+    @Test
+    public void testCollectGarbage() throws IOException {
+        ObjectCollectionFactory<Sha256Identifier> factory =
+                new ObjectCollectionFactory<>(Sha256Identifier::fromFile, 1, 1);
+        IncrementalBackupStorageManager manager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        ObjectCollection2 col1 = factory.fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col1, new File(srcRoot));
+        BackupCollectionSource source = new BackupCollectionSource() {
+            @Override
+            public Set<String> getBackupNames() {
+                return Collections.singleton("b1");
+            }
+
+            @Override
+            public ObjectCollection2 getObjectCollection(String backupName) {
+                return col1;
+            }
+        };
+
+        // objects of backups which were never saved, packed and loose in shards
+        for (int i = 0; i < 30; i++) {
+            String fileName = getRandomString(20);
+            files.put(fileName, addFile(fileName));
+        }
+        ObjectCollection2 col2 = factory.fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col2, new File(srcRoot));
+        manager.setProperties(manager.getProperties().withPackLimit(0).withLayout(StorageLayout.SHARDED));
+        for (int i = 0; i < 30; i++) {
+            String fileName = getRandomString(20);
+            files.put(fileName, addFile(fileName));
+        }
+        ObjectCollection2 col3 = factory.fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col3, new File(srcRoot));
+        File temporaryFile = new File(destRoot, "incoming/leftover");
+        Files.createDirectories(temporaryFile.getParentFile().toPath());
+        try (FileOutputStream fos = new FileOutputStream(temporaryFile)) {
+            fos.write(new byte[10]);
+        }
+        Set<ObjectIdentifier> unreachable = getObjects(col2);
+        unreachable.addAll(getObjects(col3));
+        unreachable.removeAll(getObjects(col1));
+
+        // a dry run deletes nothing
+        GarbageCollectionResult result = manager.collectGarbage(source, true, 4, RateLimiter.unlimited());
+        assertEquals(getObjects(col1).size(), result.getReachableObjects());
+        assertEquals(unreachable.size(), result.getUnreachableObjects());
+        assertEquals(0, result.getFailedObjects());
+        assertTrue(result.getReclaimedBytes() >= 10);
+        assertTrue(manager.contains(col3));
+        assertTrue(temporaryFile.exists());
+
+        IncrementalBackupStorageManager reloaded =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        assertEquals(result, reloaded.collectGarbage(source, false, 4, RateLimiter.unlimited()));
+        assertTrue(reloaded.contains(col1));
+        unreachable.forEach(id -> assertFalse(reloaded.contains(id)));
+        assertFalse(temporaryFile.exists());
+        assertEquals(0, reloaded.collectGarbage(source, false, 4, RateLimiter.unlimited()).getUnreachableObjects());
+        File restoreRoot = new File(testRoot, "restore");
+        assertEquals(col1.getElementMap().size(), reloaded.restoreObjectCollection(col1, restoreRoot));
+    }
+
+    @Test
+    public void testBackupCollectionSourceFromDirectory() throws IOException {
+        ObjectCollection2 col = new ObjectCollectionFactory<>(Sha256Identifier::fromFile, 1, 1)
+                .fromDirectory(new File(srcRoot));
+        File indexDirectory = new File(testRoot, "backups");
+        assertTrue(indexDirectory.mkdir());
+        File indexFile = new File(indexDirectory, "b1.kbi");
+        IncBackupInfoSerializer.toFile(indexFile, SavedIncrementalBackup.newLatest(col, "b1", ZonedDateTime.now(),
+                0, 0, 0, 0));
+        Files.write(new File(indexDirectory, "other.txt").toPath(), new byte[1]);
+
+        BackupCollectionSource source = BackupCollectionSource.fromDirectory(indexDirectory);
+        assertEquals(Collections.singleton("b1.kbi"), source.getBackupNames());
+        assertEquals(col, source.getObjectCollection("b1.kbi"));
+        assertEquals(CompactObjectCollection.of(col), source.getCompactObjectCollection("b1.kbi"));
+        assertEquals(indexFile.length(), source.getSize("b1.kbi"));
+        assertEquals(getObjects(col), IncrementalBackupStorageManager.getStoredObjects(
+                source.getCompactObjectCollection("b1.kbi")));
+    }
+
+    @Test
+    public void testScrub() throws IOException {
+        ObjectCollectionFactory<Sha256Identifier> factory =
+                new ObjectCollectionFactory<>(Sha256Identifier::fromFile, 1, 1);
+        IncrementalBackupStorageManager manager =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        assertTrue(manager.initializeProperties()); // small objects are packed
+        ObjectCollection2 col1 = factory.fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col1, new File(srcRoot));
+        manager.setProperties(manager.getProperties().withPackLimit(0));
+        String looseFileName = getRandomString(20);
+        try (FileOutputStream fos = new FileOutputStream(new File(srcRoot, looseFileName))) {
+            fos.write(getRandomString(1000).getBytes());
+        }
+        ObjectCollection2 col2 = factory.fromDirectory(new File(srcRoot));
+        manager.addObjectCollection(col2, new File(srcRoot));
+        Map<String, ObjectCollection2> backups = new HashMap<>();
+        backups.put("b1", col1);
+        backups.put("b2", col2);
+        BackupCollectionSource source = new BackupCollectionSource() {
+            @Override
+            public Set<String> getBackupNames() {
+                return backups.keySet();
+            }
+
+            @Override
+            public ObjectCollection2 getObjectCollection(String backupName) {
+                return backups.get(backupName);
+            }
+        };
+
+        // parts cover all objects
+        ScrubResult full = manager.scrub(0, 1, source, 4, RateLimiter.unlimited());
+        assertEquals(getObjects(col2).size(), full.getCheckedObjects());
+        assertTrue(full.getCorruptedObjects().isEmpty());
+        int checkedObjects = 0;
+        long checkedBytes = 0;
+        for (int part = 0; part < 4; part++) {
+            ScrubResult result = manager.scrub(part, 4, source, 2, RateLimiter.unlimited());
+            checkedObjects += result.getCheckedObjects();
+            checkedBytes += result.getCheckedBytes();
+        }
+        assertEquals(full.getCheckedObjects(), checkedObjects);
+        assertEquals(full.getCheckedBytes(), checkedBytes);
+
+        // damage a loose object and the last object of the pack
+        ObjectIdentifier looseObject = col2.getElementMap().get(looseFileName).getIdentifier();
+        File looseFile = new File(destRoot, looseObject.getIdentification());
+        assertTrue(looseFile.isFile());
+        byte[] data = Files.readAllBytes(looseFile.toPath());
+        data[data.length - 1] ^= 1;
+        Files.write(looseFile.toPath(), data);
+        File[] packFiles = new File(destRoot, "packs").listFiles((dir, name) -> name.endsWith(".pack"));
+        assertNotNull(packFiles);
+        assertEquals(1, packFiles.length);
+        data = Files.readAllBytes(packFiles[0].toPath());
+        data[data.length - 1] ^= 1;
+        Files.write(packFiles[0].toPath(), data);
+
+        ScrubResult result = new IncrementalBackupStorageManager(new File(destRoot).toPath())
+                .scrub(0, 1, source, 4, RateLimiter.unlimited());
+        assertEquals(full.getCheckedObjects(), result.getCheckedObjects());
+        assertEquals(2, result.getCorruptedObjects().size());
+        assertEquals(Collections.singleton("b2"), result.getCorruptedObjects().get(looseObject));
+        assertEquals(new TreeSet<>(backups.keySet()), result.getAffectedBackups());
+        String[] quarantined = new File(destRoot, "quarantine").list();
+        assertNotNull(quarantined);
+        assertEquals(2, quarantined.length);
+
+        // the corrupted objects are gone, so they are stored again by the next backup
+        IncrementalBackupStorageManager reloaded =
+                new IncrementalBackupStorageManager(new File(destRoot).toPath());
+        result.getCorruptedObjects().keySet().forEach(id -> assertFalse(reloaded.contains(id)));
+        reloaded.addObjectCollection(col2, new File(srcRoot));
+        assertTrue(reloaded.scrub(0, 1, source, 4, RateLimiter.unlimited()).getCorruptedObjects().isEmpty());
+        assertTrue(reloaded.contains(col2));
+    }
+}
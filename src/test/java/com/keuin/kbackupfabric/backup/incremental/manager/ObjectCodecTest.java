@@ -0,0 +1,134 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ObjectCodecTest {
+
+    private static final File testRoot = new File("testfile/ObjectCodecTest");
+    private static final int[] sizes = {0, 5, 9, 100, ObjectWriter.PROBE_SIZE - 1, ObjectWriter.PROBE_SIZE,
+            ObjectWriter.PROBE_SIZE + 1, 300 * 1024};
+
+    @Before
+    public void initialize() {
+        assertTrue(testRoot.isDirectory() || testRoot.mkdirs());
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+    }
+
+    private static byte[] newData(Random random, int size, String kind) {
+        byte[] data = new byte[size];
+        switch (kind) {
+            case "random":
+                random.nextBytes(data);
+                break;
+            case "text":
+                for (int i = 0; i < size; i++)
+                    data[i] = (byte) ('a' + random.nextInt(4));
+                break;
+            case "magic":
+                random.nextBytes(data);
+                System.arraycopy(ObjectCodec.DEFLATE.getHeader(), 0, data, 0, Math.min(size, ObjectCodec.HEADER_LENGTH));
+                break;
+        }
+        return data;
+    }
+
+    private static Path encode(byte[] data, ObjectCodec codec, boolean transfer) throws IOException {
+        Path source = new File(testRoot, "source").toPath();
+        Path object = new File(testRoot, "object").toPath();
+        Files.write(source, data);
+        Files.deleteIfExists(object);
+        try (FileChannel destination = FileChannel.open(object, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+             ObjectWriter writer = new ObjectWriter(destination, codec)) {
+            if (transfer) {
+                try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                    writer.transferFrom(channel, 0, data.length);
+                }
+            } else {
+                // uneven slices, like reads of a channel
+                for (int position = 0, slice = 1; position < data.length; position += slice, slice = slice * 3 + 1) {
+                    int length = Math.min(slice, data.length - position);
+                    assertEquals(length, writer.write(ByteBuffer.wrap(data, position, length)));
+                }
+            }
+        }
+        return object;
+    }
+
+    private static byte[] decode(Path object) throws IOException {
+        Path target = new File(testRoot, "target").toPath();
+        Files.deleteIfExists(target);
+        try (FileChannel destination = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            long length = ObjectReader.copy(object, destination);
+            assertEquals(destination.size(), length);
+        }
+        return Files.readAllBytes(target);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(11);
+        for (ObjectCodec codec : ObjectCodec.values()) {
+            for (String kind : new String[]{"random", "text", "magic"}) {
+                for (int size : sizes) {
+                    byte[] data = newData(random, size, kind);
+                    for (boolean transfer : new boolean[]{false, true}) {
+                        String message = codec + " " + kind + " " + size + (transfer ? " transfer" : " write");
+                        Path object = encode(data, codec, transfer);
+                        assertArrayEquals(message, data, decode(object));
+                        byte[] stored = Files.readAllBytes(object);
+                        if (kind.equals("random")) {
+                            // incompressible data is stored as it is
+                            assertArrayEquals(message, data, stored);
+                        } else if (kind.equals("text") && codec != ObjectCodec.RAW && size >= 1000) {
+                            assertTrue(message, stored.length < size / 2);
+                        } else if (kind.equals("magic") && size >= ObjectCodec.HEADER_LENGTH && codec == ObjectCodec.RAW) {
+                            // escaped, so it is not mistaken for an encoded object
+                            assertEquals(message, size + ObjectCodec.HEADER_LENGTH, stored.length);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptedObject() throws IOException {
+        byte[] data = newData(new Random(12), 200 * 1024, "text");
+        Path object = encode(data, ObjectCodec.DEFLATE, false);
+        byte[] stored = Files.readAllBytes(object);
+        Files.write(object, Arrays.copyOf(stored, stored.length / 2));
+        try {
+            decode(object);
+            fail();
+        } catch (IOException expected) {
+            // truncated
+        }
+        stored[ObjectCodec.HEADER_LENGTH - 1] = 99;
+        Files.write(object, stored);
+        try {
+            decode(object);
+            fail();
+        } catch (IOException expected) {
+            // unknown codec
+        }
+    }
+}
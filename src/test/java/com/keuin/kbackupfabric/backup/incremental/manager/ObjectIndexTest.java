@@ -0,0 +1,77 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ObjectIndexTest {
+
+    private static SingleHashIdentifier randomIdentifier(Random random, IdentifierType type, boolean colliding) {
+        byte[] digest = new byte[type == IdentifierType.XXH3_128 ? 16 : 32];
+        random.nextBytes(digest);
+        if (colliding) {
+            // same leading bytes, so all of them are placed in the same probe sequence
+            digest[0] = digest[1] = digest[2] = digest[3] = 7;
+        }
+        return type.fromDigest(digest, random.nextInt(1000));
+    }
+
+    @Test
+    public void testAddRemove() {
+        Random random = new Random(9);
+        ObjectIndex index = new ObjectIndex();
+        Set<SingleHashIdentifier> expected = new HashSet<>();
+        List<SingleHashIdentifier> identifiers = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            IdentifierType type = IdentifierType.values()[i % IdentifierType.values().length];
+            SingleHashIdentifier identifier = randomIdentifier(random, type, i % 10 == 0);
+            identifiers.add(identifier);
+            assertEquals(expected.add(identifier), index.add(identifier));
+        }
+        assertFalse(index.add(identifiers.get(0)));
+
+        // remove in random order, checking all remaining entries are still found
+        Collections.shuffle(identifiers, random);
+        for (int i = 0; i < identifiers.size(); i += 2) {
+            assertTrue(index.remove(identifiers.get(i)));
+            assertFalse(index.remove(identifiers.get(i)));
+            expected.remove(identifiers.get(i));
+        }
+        assertEquals(expected.size(), index.size());
+        for (SingleHashIdentifier identifier : identifiers)
+            assertEquals(expected.contains(identifier), index.contains(identifier));
+        assertFalse(index.contains(randomIdentifier(random, IdentifierType.SHA256, true)));
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        File base = new File("testfile/ObjectIndexTest");
+        try {
+            assertEquals(0, ObjectIndex.load(base.toPath()).size());
+            assertTrue(base.mkdirs());
+            Random random = new Random(10);
+            List<SingleHashIdentifier> identifiers = new ArrayList<>();
+            for (IdentifierType type : IdentifierType.values()) {
+                SingleHashIdentifier identifier = randomIdentifier(random, type, false);
+                Files.write(new File(base, identifier.getIdentification()).toPath(), new byte[0]);
+                identifiers.add(identifier);
+            }
+            Files.write(new File(base, StorageBaseProperties.FILE_NAME).toPath(), new byte[0]);
+
+            ObjectIndex index = ObjectIndex.load(base.toPath());
+            assertEquals(identifiers.size(), index.size());
+            for (SingleHashIdentifier identifier : identifiers)
+                assertTrue(index.contains(identifier));
+        } finally {
+            FileUtils.deleteDirectory(base);
+        }
+    }
+}
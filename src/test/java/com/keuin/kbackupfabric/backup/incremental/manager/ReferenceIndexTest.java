@@ -0,0 +1,120 @@
+package com.keuin.kbackupfabric.backup.incremental.manager;
+
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ReferenceIndexTest {
+
+    private static final File base = new File("testfile/ReferenceIndexTest");
+
+    @Before
+    public void initialize() throws IOException {
+        FileUtils.deleteDirectory(base);
+        assertTrue(base.mkdirs());
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(base);
+    }
+
+    private static List<ObjectIdentifier> randomObjects(Random random, int count) {
+        List<ObjectIdentifier> objects = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            IdentifierType type = IdentifierType.values()[i % IdentifierType.values().length];
+            byte[] hash = new byte[type.getHashLength()];
+            random.nextBytes(hash);
+            objects.add(type.fromHash(hash));
+        }
+        return objects;
+    }
+
+    private static final BackupCollectionSource emptySource = new BackupCollectionSource() {
+        @Override
+        public Set<String> getBackupNames() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public ObjectCollection2 getObjectCollection(String backupName) throws IOException {
+            throw new IOException("no such backup");
+        }
+    };
+
+    @Test
+    public void testLogReplay() throws IOException {
+        Random random = new Random(13);
+        List<ObjectIdentifier> shared = randomObjects(random, 10);
+        List<ObjectIdentifier> objects1 = new ArrayList<>(shared);
+        objects1.addAll(randomObjects(random, 5));
+        List<ObjectIdentifier> objects2 = new ArrayList<>(shared);
+        objects2.addAll(randomObjects(random, 5));
+
+        ReferenceIndex index = ReferenceIndex.load(base.toPath());
+        // nothing is recorded until the index is built
+        assertFalse(index.add("b1", objects1));
+        index.synchronize(emptySource);
+        assertTrue(index.add("b1", objects1));
+        assertFalse(index.add("b1", objects1));
+        assertTrue(index.add("b2", objects2));
+        assertEquals(2, index.getCount(shared.get(0)));
+        assertEquals(1, index.getCount(objects1.get(12)));
+
+        // an interrupted record is dropped
+        Path log = base.toPath().resolve(ReferenceIndex.LOG_FILE_NAME);
+        long logLength = Files.size(log);
+        Files.write(log, new byte[]{0, 0, 1, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+        ReferenceIndex reloaded = ReferenceIndex.load(base.toPath());
+        assertEquals(logLength, Files.size(log));
+        assertTrue(reloaded.contains("b1"));
+        assertTrue(reloaded.contains("b2"));
+        assertTrue(reloaded.remove("b1", objects1));
+        assertFalse(reloaded.remove("b1", objects1));
+        assertEquals(1, reloaded.getCount(shared.get(0)));
+        assertEquals(0, reloaded.getCount(objects1.get(12)));
+        assertEquals(1, reloaded.getCount(objects2.get(12)));
+
+        // the compacted log is not replayed again
+        reloaded.compact();
+        reloaded = ReferenceIndex.load(base.toPath());
+        assertFalse(reloaded.contains("b1"));
+        assertEquals(1, reloaded.getCount(shared.get(0)));
+        assertTrue(reloaded.remove("b2", objects2));
+        reloaded = ReferenceIndex.load(base.toPath());
+        assertEquals(0, reloaded.getCount(shared.get(0)));
+    }
+
+    @Test
+    public void testCorruptedSnapshot() throws IOException {
+        Random random = new Random(14);
+        ReferenceIndex index = ReferenceIndex.load(base.toPath());
+        index.synchronize(emptySource);
+        assertTrue(index.add("b1", randomObjects(random, 100)));
+        index.compact();
+        Path snapshot = base.toPath().resolve(ReferenceIndex.SNAPSHOT_FILE_NAME);
+        byte[] data = Files.readAllBytes(snapshot);
+        data[data.length / 2] ^= 1;
+        Files.write(snapshot, data);
+
+        // rebuilt from the backups which exist
+        ReferenceIndex reloaded = ReferenceIndex.load(base.toPath());
+        assertFalse(reloaded.contains("b1"));
+        reloaded.synchronize(emptySource);
+        assertFalse(reloaded.contains("b1"));
+        assertTrue(reloaded.add("b2", randomObjects(random, 1)));
+    }
+}
@@ -0,0 +1,406 @@
+package com.keuin.kbackupfabric.backup.incremental.serializer;
+
+import com.keuin.kbackupfabric.backup.incremental.CompactObjectCollection;
+import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
+import com.keuin.kbackupfabric.backup.incremental.ObjectElement;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ChunkListIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
+import com.keuin.kbackupfabric.backup.incremental.identifier.ObjectIdentifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IncBackupIndexFormatTest {
+
+    private static final File testRoot = new File("testfile/IncBackupIndexFormatTest");
+
+    @Before
+    public void initialize() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+        assertTrue(testRoot.mkdirs());
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+    }
+
+    private static SingleHashIdentifier randomIdentifier(Random random, IdentifierType type) {
+        byte[] hash = new byte[type.getHashLength()];
+        random.nextBytes(hash);
+        return type.fromHash(hash);
+    }
+
+    /**
+     * Build a world-like tree: dimensions with region directories of many files, some of them chunked.
+     */
+    private static ObjectCollection2 randomCollection(Random random, int regionsPerDirectory) {
+        Map<String, ObjectCollection2> dimensions = new HashMap<>();
+        for (String dimension : new String[]{"DIM-1", "DIM1", "region"}) {
+            Map<String, ObjectCollection2> directories = new HashMap<>();
+            for (String directoryName : new String[]{"region", "entities", "poi"}) {
+                Set<ObjectElement> elements = new HashSet<>();
+                for (int i = 0; i < regionsPerDirectory; i++) {
+                    String name = "r." + (i % 50 - 25) + "." + (i / 50 - 25) + ".mca";
+                    ObjectIdentifier identifier;
+                    if (i % 10 == 0) {
+                        List<SingleHashIdentifier> chunks = new ArrayList<>();
+                        List<Long> lengths = new ArrayList<>();
+                        int chunkCount = 1 + random.nextInt(8);
+                        for (int j = 0; j < chunkCount; j++) {
+                            chunks.add(randomIdentifier(random, IdentifierType.values()[j % IdentifierType.values().length]));
+                            lengths.add((long) random.nextInt(1 << 20));
+                        }
+                        identifier = new ChunkListIdentifier("C2", chunks, lengths);
+                    } else {
+                        identifier = randomIdentifier(random, IdentifierType.SHA256);
+                    }
+                    elements.add(new ObjectElement(name, identifier));
+                }
+                directories.put(directoryName, new ObjectCollection2(directoryName, elements, Collections.emptyMap()));
+            }
+            Set<ObjectElement> elements = Collections.singleton(
+                    new ObjectElement("level.dat", randomIdentifier(random, IdentifierType.SHA256)));
+            dimensions.put(dimension, new ObjectCollection2(dimension, elements, directories));
+        }
+        return new ObjectCollection2("world", Collections.emptySet(), dimensions);
+    }
+
+    private static SavedIncrementalBackup randomBackup(Random random, int regionsPerDirectory) {
+        ZonedDateTime time = ZonedDateTime.of(2021, 3, 28, 2, 30, 15, 123456789, ZoneId.of("Europe/Berlin"));
+        return SavedIncrementalBackup.newLatest(randomCollection(random, regionsPerDirectory), "名字 name",
+                time, 123456789012L, -1, 42, 10000);
+    }
+
+    private static byte[] write(SavedIncrementalBackup backup, boolean deflate) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        IncBackupIndexFormat.write(outputStream, backup, deflate);
+        return outputStream.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(16);
+        for (int regions : new int[]{0, 1, 100}) {
+            SavedIncrementalBackup backup = randomBackup(random, regions);
+            for (boolean deflate : new boolean[]{false, true}) {
+                byte[] data = write(backup, deflate);
+                assertEquals(backup, IncBackupIndexFormat.read(new ByteArrayInputStream(data)));
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptedIndex() throws IOException {
+        SavedIncrementalBackup backup = randomBackup(new Random(17), 20);
+        for (boolean deflate : new boolean[]{false, true}) {
+            byte[] data = write(backup, deflate);
+            for (int position : new int[]{30, data.length / 2, data.length - 1}) {
+                byte[] corrupted = Arrays.copyOf(data, data.length);
+                corrupted[position] ^= 0x10;
+                try {
+                    IncBackupIndexFormat.read(new ByteArrayInputStream(corrupted));
+                    fail("corruption at " + position + " is not detected");
+                } catch (IOException ignored) {
+                }
+            }
+            try {
+                IncBackupIndexFormat.read(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 3)));
+                fail("truncation is not detected");
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testReadMetadata() throws IOException {
+        SavedIncrementalBackup backup = randomBackup(new Random(20), 100);
+        IncBackupMetadata expected = IncBackupMetadata.of(backup, IncBackupIndexFormat.VERSION);
+        for (boolean deflate : new boolean[]{false, true}) {
+            byte[] data = write(backup, deflate);
+            assertEquals(expected, IncBackupIndexFormat.readMetadata(new ByteArrayInputStream(data)));
+            byte[] corrupted = Arrays.copyOf(data, data.length);
+            corrupted[30] ^= 0x10; // in the backup name
+            try {
+                IncBackupIndexFormat.readMetadata(new ByteArrayInputStream(corrupted));
+                fail("corrupted header is not detected");
+            } catch (IOException ignored) {
+            }
+        }
+
+        File binaryFile = new File(testRoot, "binary.kbi");
+        IncBackupInfoSerializer.toFile(binaryFile, backup);
+        assertEquals(expected, IncBackupInfoSerializer.metadataFromFile(binaryFile));
+        File legacyFile = new File(testRoot, "legacy.kbi");
+        IncBackupInfoSerializer.toLegacyFile(legacyFile, backup);
+        assertEquals(IncBackupMetadata.of(backup, IncBackupMetadata.LEGACY_FORMAT_VERSION),
+                IncBackupInfoSerializer.metadataFromFile(legacyFile));
+    }
+
+    @Test
+    public void testReadVersion1() throws IOException {
+        // version 1 is version 2 without the header checksum
+        SavedIncrementalBackup backup = randomBackup(new Random(21), 20);
+        byte[] data = write(backup, false);
+        ByteArrayInputStream in = new ByteArrayInputStream(data, IncBackupIndexFormat.MAGIC.length + 8, 4);
+        int headerEnd = IncBackupIndexFormat.MAGIC.length + 12 + new DataInputStream(in).readInt();
+        ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+        v1.write(data, 0, headerEnd);
+        v1.write(data, headerEnd + 4, data.length - headerEnd - 4);
+        byte[] v1Data = v1.toByteArray();
+        v1Data[IncBackupIndexFormat.MAGIC.length + 3] = 1;
+
+        assertEquals(backup, IncBackupIndexFormat.read(new ByteArrayInputStream(v1Data)));
+        assertEquals(IncBackupMetadata.of(backup, 1), IncBackupIndexFormat.readMetadata(new ByteArrayInputStream(v1Data)));
+    }
+
+    @Test
+    public void testMetadataReadsOnlyHeader() throws IOException {
+        SavedIncrementalBackup backup = randomBackup(new Random(21), 500);
+        File file = new File(testRoot, "backup.kbi");
+        IncBackupInfoSerializer.toFile(file, backup);
+        IncBackupMetadata expected = IncBackupInfoSerializer.metadataFromFile(file);
+
+        // the collection is cut off, which a listing never notices
+        File truncated = new File(testRoot, "truncated.kbi");
+        Files.write(truncated.toPath(), Arrays.copyOf(Files.readAllBytes(file.toPath()), 1024));
+        assertTrue(file.length() > 100 * truncated.length());
+        assertEquals(expected, IncBackupInfoSerializer.metadataFromFile(truncated));
+        try {
+            IncBackupInfoSerializer.fromFile(truncated);
+            fail();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testListingBenchmark() throws IOException {
+        SavedIncrementalBackup backup = randomBackup(new Random(22), 500);
+        File[] files = new File[100];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(testRoot, "backup" + i + ".kbi");
+            IncBackupInfoSerializer.toFile(files[i], backup);
+        }
+        for (int round = 0; round < 2; round++) { // the first round warms the JIT
+            long start = System.nanoTime();
+            for (File file : files)
+                IncBackupInfoSerializer.fromFile(file);
+            long fullTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (File file : files)
+                IncBackupInfoSerializer.metadataFromFile(file);
+            long metadataTime = System.nanoTime() - start;
+            if (round == 1) {
+                System.out.printf("listing %d backups: %.1f ms with full reads, %.1f ms with metadata reads%n",
+                        files.length, fullTime / 1e6, metadataTime / 1e6);
+                assertTrue(metadataTime < fullTime);
+            }
+        }
+    }
+
+    @Test
+    public void testReadCompact() throws IOException {
+        Random random = new Random(25);
+        for (int regions : new int[]{0, 1, 100}) {
+            SavedIncrementalBackup backup = randomBackup(random, regions);
+            for (boolean deflate : new boolean[]{false, true}) {
+                CompactObjectCollection collection = IncBackupIndexFormat.readCompact(
+                        new ByteArrayInputStream(write(backup, deflate)), null);
+                assertEquals(CompactObjectCollection.of(backup.getObjectCollection()), collection);
+                assertEquals(backup.getObjectCollection(), collection.toObjectCollection());
+            }
+        }
+
+        SavedIncrementalBackup parent = randomBackup(random, 100);
+        ObjectCollection2 child = mutate(parent.getObjectCollection(), random);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        IncBackupIndexFormat.writeDelta(outputStream, SavedIncrementalBackup.newLatest(child, "child",
+                parent.getBackupTime(), 1, 2, 3, 4), "parent.kbi", 1, parent.getObjectCollection(), false);
+        assertEquals(child, IncBackupIndexFormat.readCompact(new ByteArrayInputStream(outputStream.toByteArray()),
+                (parentFileName, chainLength) -> parent.getObjectCollection()).toObjectCollection());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testCompactFootprintBenchmark() throws IOException, InterruptedException {
+        File[] files = new File[30];
+        Random random = new Random(26);
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(testRoot, "backup" + i + ".kbi");
+            // not through the serializer, which would keep the trees in its cache
+            Files.write(files[i].toPath(), write(randomBackup(random, 500), false));
+        }
+
+        List<Object> held = new ArrayList<>();
+        long before = usedHeap();
+        for (File file : files)
+            held.add(IncBackupInfoSerializer.fromFile(file).getObjectCollection());
+        long fullBytes = usedHeap() - before;
+        held.clear();
+
+        before = usedHeap();
+        for (File file : files)
+            held.add(IncBackupInfoSerializer.compactCollectionFromFile(file));
+        long compactBytes = usedHeap() - before;
+        held.clear();
+
+        System.out.printf("holding %d backups: %.1f MiB as ObjectCollection2, %.1f MiB as CompactObjectCollection%n",
+                files.length, fullBytes / 1048576.0, compactBytes / 1048576.0);
+        assertTrue(compactBytes < fullBytes);
+    }
+
+    /**
+     * Change some files in one dimension, drop and add directories in another, and leave the third one alone.
+     */
+    private static ObjectCollection2 mutate(ObjectCollection2 world, Random random) {
+        Map<String, ObjectCollection2> dimensions = new HashMap<>(world.getSubCollectionMap());
+
+        ObjectCollection2 overworld = dimensions.get("region");
+        ObjectCollection2 regions = overworld.getSubCollection("region");
+        Map<String, ObjectElement> elements = new HashMap<>(regions.getElementMap());
+        Iterator<String> names = new TreeSet<>(elements.keySet()).iterator();
+        for (int i = 0; i < 3; i++)
+            elements.remove(names.next());
+        for (int i = 0; i < 5; i++) {
+            String name = names.next();
+            elements.put(name, new ObjectElement(name, randomIdentifier(random, IdentifierType.SHA256)));
+        }
+        elements.put("r.100.100.mca", new ObjectElement("r.100.100.mca", randomIdentifier(random, IdentifierType.SHA256)));
+        Map<String, ObjectCollection2> overworldDirectories = new HashMap<>(overworld.getSubCollectionMap());
+        overworldDirectories.put("region", new ObjectCollection2("region", new HashSet<>(elements.values()),
+                regions.getSubCollectionMap()));
+        dimensions.put("region", new ObjectCollection2("region", overworld.getElementSet(), overworldDirectories));
+
+        ObjectCollection2 nether = dimensions.get("DIM-1");
+        Map<String, ObjectCollection2> netherDirectories = new HashMap<>(nether.getSubCollectionMap());
+        netherDirectories.remove("poi");
+        netherDirectories.put("data", new ObjectCollection2("data", Collections.singleton(
+                new ObjectElement("raids.dat", randomIdentifier(random, IdentifierType.SHA256))), Collections.emptyMap()));
+        dimensions.put("DIM-1", new ObjectCollection2("DIM-1", Collections.emptySet(), netherDirectories));
+
+        return new ObjectCollection2(world.getName(), world.getElementSet(), dimensions);
+    }
+
+    @Test
+    public void testDeltaRoundTrip() throws IOException {
+        Random random = new Random(23);
+        SavedIncrementalBackup parent = randomBackup(random, 500);
+        SavedIncrementalBackup child = SavedIncrementalBackup.newLatest(mutate(parent.getObjectCollection(), random),
+                "child", parent.getBackupTime().plusHours(1), 1, 2, 3, 4);
+        assertNotEquals(parent.getObjectCollection(), child.getObjectCollection());
+
+        for (boolean deflate : new boolean[]{false, true}) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            IncBackupIndexFormat.writeDelta(outputStream, child, "parent.kbi", 2, parent.getObjectCollection(), deflate);
+            byte[] data = outputStream.toByteArray();
+            assertTrue(data.length * 50 < write(child, deflate).length);
+
+            assertEquals(child, IncBackupIndexFormat.read(new ByteArrayInputStream(data), (parentFileName, chainLength) -> {
+                assertEquals("parent.kbi", parentFileName);
+                assertEquals(2, chainLength);
+                return parent.getObjectCollection();
+            }));
+            IncBackupMetadata metadata = IncBackupIndexFormat.readMetadata(new ByteArrayInputStream(data));
+            assertEquals("parent.kbi", metadata.getParentFileName());
+            assertEquals(2, metadata.getChainLength());
+            assertEquals(IncBackupIndexFormat.DELTA_VERSION, metadata.getFormatVersion());
+
+            try {
+                IncBackupIndexFormat.read(new ByteArrayInputStream(data));
+                fail("delta index is read without its parent");
+            } catch (IOException ignored) {
+            }
+            try {
+                IncBackupIndexFormat.read(new ByteArrayInputStream(data), (parentFileName, chainLength) ->
+                        randomCollection(new Random(24), 10));
+                fail("wrong parent is not detected");
+            } catch (IOException ignored) {
+            }
+        }
+
+        // nothing changed
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        IncBackupIndexFormat.writeDelta(outputStream, parent, "parent.kbi", 1, parent.getObjectCollection(), false);
+        assertEquals(parent, IncBackupIndexFormat.read(new ByteArrayInputStream(outputStream.toByteArray()),
+                (parentFileName, chainLength) -> parent.getObjectCollection()));
+    }
+
+    @Test
+    public void testConvertLegacyIndex() throws IOException {
+        SavedIncrementalBackup backup = randomBackup(new Random(18), 100);
+        File file = new File(testRoot, "backup.kbi");
+        IncBackupInfoSerializer.toLegacyFile(file, backup);
+        long legacyLength = file.length();
+        assertEquals(backup, IncBackupInfoSerializer.fromFile(file));
+
+        assertTrue(IncBackupInfoSerializer.convertToLatest(file));
+        assertFalse(IncBackupInfoSerializer.convertToLatest(file));
+        assertEquals(backup, IncBackupInfoSerializer.fromFile(file));
+        assertTrue(file.length() < legacyLength);
+        assertFalse(new File(testRoot, "backup.kbi.tmp").exists());
+    }
+
+    @Test
+    public void testIndexSize() throws IOException {
+        // 3 dimensions * 3 directories * 2500 files, like a large world
+        SavedIncrementalBackup backup = randomBackup(new Random(19), 2500);
+        File[] files = writeIndexFiles(backup);
+        for (File file : files)
+            assertEquals(backup, IncBackupInfoSerializer.fromFile(file));
+        File legacyFile = files[0], rawFile = files[1], deflatedFile = files[2];
+        assertTrue(rawFile.length() * 2 < legacyFile.length());
+        assertTrue(deflatedFile.length() <= rawFile.length());
+    }
+
+    /**
+     * Write a backup as legacy, raw and deflated index.
+     */
+    private static File[] writeIndexFiles(SavedIncrementalBackup backup) throws IOException {
+        File legacyFile = new File(testRoot, "legacy.kbi");
+        IncBackupInfoSerializer.toLegacyFile(legacyFile, backup);
+        File rawFile = new File(testRoot, "raw.kbi");
+        IncBackupInfoSerializer.toFile(rawFile, backup);
+        File deflatedFile = new File(testRoot, "deflated.kbi");
+        try (OutputStream outputStream = new FileOutputStream(deflatedFile)) {
+            IncBackupIndexFormat.write(outputStream, backup, true);
+        }
+        return new File[]{legacyFile, rawFile, deflatedFile};
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testBenchmark() throws IOException {
+        SavedIncrementalBackup backup = randomBackup(new Random(19), 2500);
+        for (File file : writeIndexFiles(backup)) {
+            for (int i = 0; i < 3; i++)
+                IncBackupInfoSerializer.fromFile(file); // warm the JIT
+            long start = System.nanoTime();
+            int rounds = 5;
+            for (int i = 0; i < rounds; i++)
+                IncBackupInfoSerializer.fromFile(file);
+            System.out.printf("%-13s %9d bytes, %6.1f ms per read%n", file.getName(), file.length(),
+                    (System.nanoTime() - start) / 1e6 / rounds);
+        }
+    }
+}
@@ -2,15 +2,23 @@ package com.keuin.kbackupfabric.backup.incremental.serializer;
 
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollection2;
 import com.keuin.kbackupfabric.backup.incremental.ObjectCollectionFactory;
+import com.keuin.kbackupfabric.backup.incremental.ObjectElement;
+import com.keuin.kbackupfabric.backup.incremental.identifier.FileIdentifierProvider;
+import com.keuin.kbackupfabric.backup.incremental.identifier.IdentifierType;
 import com.keuin.kbackupfabric.backup.incremental.identifier.Sha256Identifier;
+import com.keuin.kbackupfabric.backup.incremental.identifier.SingleHashIdentifier;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.time.ZonedDateTime;
+import java.util.*;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class IncBackupInfoSerializerTest {
 
@@ -54,9 +62,19 @@ public class IncBackupInfoSerializerTest {
         testSerializationConsistency(8, 1000);
     }
 
+    @Test
+    public void testSerializationConsistencyMixedIdentifiers() throws IOException {
+        // a base may contain objects of all identifier types, after switching the hash function
+        FileIdentifierProvider<SingleHashIdentifier> provider = file -> IdentifierType.values()[
+                Math.floorMod(file.getName().hashCode(), IdentifierType.values().length)].fromFile(file);
+        testSerializationConsistency(new ObjectCollectionFactory<>(provider, 1, 0));
+    }
+
     public void testSerializationConsistency(int threads, int multiThreadThreshold) throws IOException {
-        ObjectCollectionFactory<Sha256Identifier> factory =
-                new ObjectCollectionFactory<>(Sha256Identifier.getFactory(), threads, multiThreadThreshold);
+        testSerializationConsistency(new ObjectCollectionFactory<>(Sha256Identifier.getFactory(), threads, multiThreadThreshold));
+    }
+
+    private void testSerializationConsistency(ObjectCollectionFactory<?> factory) throws IOException {
         ObjectCollection2 collection =
                 factory.fromDirectory(new File("./testfile/ObjectCollectionFactoryTest"));
         File file = new File("./testfile/serialized");
@@ -70,4 +88,85 @@ public class IncBackupInfoSerializerTest {
         assertEquals(backup, info);
     }
 
-}
\ No newline at end of file
+    private static SavedIncrementalBackup chainedBackup(int i) {
+        // every backup changes one file and adds another
+        Set<ObjectElement> elements = new HashSet<>();
+        for (int j = 0; j <= i; j++) {
+            byte[] hash = new byte[32];
+            hash[0] = (byte) j;
+            hash[1] = (byte) (j == i ? 1 : 0);
+            elements.add(new ObjectElement("file" + j, IdentifierType.SHA256.fromHash(hash)));
+        }
+        ObjectCollection2 region = new ObjectCollection2("region", elements, Collections.emptyMap());
+        return SavedIncrementalBackup.newLatest(new ObjectCollection2("world", Collections.emptySet(),
+                        Collections.singletonMap("region", region)),
+                "backup" + i, ZonedDateTime.now().withNano(0).plusMinutes(i), i, i, i, i);
+    }
+
+    @Test
+    public void testDeltaChain() throws IOException {
+        File directory = new File("./testfile/IncBackupInfoSerializerTest/chain");
+        File copy = new File("./testfile/IncBackupInfoSerializerTest/copy");
+        FileUtils.deleteDirectory(directory.getParentFile());
+        assertTrue(directory.mkdirs());
+        try {
+            List<SavedIncrementalBackup> backups = new ArrayList<>();
+            File parentFile = null;
+            for (int i = 0; i < 7; i++) {
+                SavedIncrementalBackup backup = chainedBackup(i);
+                backups.add(backup);
+                File file = new File(directory, i + ".kbi");
+                // full, delta, delta, full, ...
+                assertEquals(i % 3 != 0, IncBackupInfoSerializer.toFile(file, backup, parentFile, 3));
+                assertEquals(i % 3, IncBackupInfoSerializer.metadataFromFile(file).getChainLength());
+                parentFile = file;
+            }
+
+            // other paths, so nothing comes from the cache
+            FileUtils.copyDirectory(directory, copy);
+            for (int i = 6; i >= 0; i--)
+                assertEquals(backups.get(i), IncBackupInfoSerializer.fromFile(new File(copy, i + ".kbi")));
+
+            File middle = new File(copy, "4.kbi");
+            assertEquals(1, IncBackupInfoSerializer.detachChildren(middle));
+            Files.delete(middle.toPath());
+            assertFalse(IncBackupInfoSerializer.metadataFromFile(new File(copy, "5.kbi")).isDelta());
+            for (int i : new int[]{5, 6})
+                assertEquals(backups.get(i), IncBackupInfoSerializer.fromFile(new File(copy, i + ".kbi")));
+
+            // a child without its parent cannot be read
+            Files.delete(new File(directory, "1.kbi").toPath());
+            FileUtils.deleteDirectory(copy);
+            FileUtils.copyDirectory(directory, copy);
+            try {
+                IncBackupInfoSerializer.fromFile(new File(copy, "2.kbi"));
+                fail("missing parent is not detected");
+            } catch (IOException ignored) {
+            }
+        } finally {
+            FileUtils.deleteDirectory(directory.getParentFile());
+        }
+    }
+
+    @Test
+    public void testDeltaLoopIsRejected() throws IOException {
+        File directory = new File("./testfile/IncBackupInfoSerializerTest/loop");
+        FileUtils.deleteDirectory(directory);
+        assertTrue(directory.mkdirs());
+        try {
+            SavedIncrementalBackup backup = chainedBackup(1);
+            for (String[] names : new String[][]{{"a.kbi", "b.kbi"}, {"b.kbi", "a.kbi"}}) {
+                try (OutputStream outputStream = new FileOutputStream(new File(directory, names[0]))) {
+                    IncBackupIndexFormat.writeDelta(outputStream, backup, names[1], 1, backup.getObjectCollection(), false);
+                }
+            }
+            try {
+                IncBackupInfoSerializer.fromFile(new File(directory, "a.kbi"));
+                fail("loop of delta indexes is not detected");
+            } catch (IOException ignored) {
+            }
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+}
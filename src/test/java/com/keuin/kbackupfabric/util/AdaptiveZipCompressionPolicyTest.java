@@ -0,0 +1,193 @@
+package com.keuin.kbackupfabric.util;
+
+import com.keuin.kbackupfabric.exception.ZipUtilException;
+import com.keuin.kbackupfabric.metadata.BackupMetadata;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveZipCompressionPolicyTest {
+
+    private static final File testRoot = new File("testfile/AdaptiveZipCompressionPolicyTest");
+    private static final File zipFile = new File(testRoot, "test.zip");
+    private final ZipCompressionPolicy policy = AdaptiveZipCompressionPolicy.INSTANCE;
+
+    @Before
+    public void initialize() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+        assertTrue(testRoot.mkdirs());
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+    }
+
+    /**
+     * Uncompressed NBT-like data, with many repeated tag names.
+     */
+    private static byte[] nbtLike(Random random, int length) {
+        String[] names = {"Pos", "Motion", "Rotation", "Health", "id", "Count", "Slot", "Inventory", "Items"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 64);
+        while (out.size() < length) {
+            byte[] name = names[random.nextInt(names.length)].getBytes(StandardCharsets.US_ASCII);
+            out.write(10);
+            out.write(0);
+            out.write(name.length);
+            out.write(name, 0, name.length);
+            for (int i = 0; i < 4; i++)
+                out.write(random.nextInt(4));
+        }
+        return Arrays.copyOf(out.toByteArray(), length);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length + 64];
+        int length = 0;
+        while (!deflater.finished())
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(out)) {
+            gzipOutputStream.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A region file: a location table, then zlib-compressed chunks padded to 4 KiB sectors.
+     *
+     * @param fill how full the sectors are, about. Small chunks leave more padding.
+     */
+    private static byte[] regionLike(Random random, int chunks, double fill) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = new byte[8192];
+        for (int i = 0; i < chunks; i++)
+            ByteBuffer.wrap(header, i * 4, 4).putInt(((2 + i * 3) << 8) | 3);
+        out.write(header, 0, header.length);
+        for (int i = 0; i < chunks; i++) {
+            // random data keeps the compressed chunks incompressible, as real ones are
+            byte[] chunk = new byte[(int) (4096 * 3 * fill) - 5];
+            random.nextBytes(chunk);
+            ByteBuffer.wrap(chunk, 0, 5).putInt(chunk.length - 4).put((byte) 2);
+            out.write(chunk, 0, chunk.length);
+            out.write(new byte[4096 * 3 - chunk.length], 0, 4096 * 3 - chunk.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testChooseLevel() throws IOException {
+        Random random = new Random(31);
+        byte[] nbt = nbtLike(random, 100000);
+        assertEquals(AdaptiveZipCompressionPolicy.STRONG_LEVEL, policy.chooseLevel("data/raids.dat", nbt, nbt.length));
+        byte[] gzipped = gzip(nbt);
+        assertEquals(Deflater.NO_COMPRESSION, policy.chooseLevel("level.dat", gzipped, gzipped.length));
+        byte[] zlib = deflate(nbt);
+        assertEquals(Deflater.NO_COMPRESSION, policy.chooseLevel("chunk.bin", zlib, zlib.length));
+        byte[] full = regionLike(random, 64, 1);
+        assertEquals(Deflater.NO_COMPRESSION, policy.chooseLevel("region/r.0.0.mca", full, full.length));
+        byte[] padded = regionLike(random, 64, 0.6);
+        assertEquals(AdaptiveZipCompressionPolicy.FAST_LEVEL, policy.chooseLevel("region/r.0.1.mca", padded, padded.length));
+        assertEquals(Deflater.NO_COMPRESSION, policy.chooseLevel("empty", new byte[0], 0));
+        byte[] tiny = "{}".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(Deflater.NO_COMPRESSION, policy.chooseLevel("tiny.json", tiny, tiny.length));
+    }
+
+    @Test
+    public void testReport() throws IOException {
+        Random random = new Random(32);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("level.dat", gzip(nbtLike(random, 10000)));
+        entries.put("data/raids.dat", nbtLike(random, 200000));
+        entries.put("region/r.0.0.mca", regionLike(random, 100, 0.6));
+        ZipCompressionReport report = write(entries, policy, 2);
+        assertEquals(1, report.getEntryCount(Deflater.NO_COMPRESSION));
+        assertEquals(1, report.getEntryCount(AdaptiveZipCompressionPolicy.FAST_LEVEL));
+        assertEquals(1, report.getEntryCount(AdaptiveZipCompressionPolicy.STRONG_LEVEL));
+        assertEquals(entries.get("level.dat").length, report.getInputBytes(Deflater.NO_COMPRESSION));
+        assertEquals(entries.get("level.dat").length, report.getOutputBytes(Deflater.NO_COMPRESSION));
+        assertEquals(entries.values().stream().mapToLong(data -> data.length).sum(), report.getTotalInputBytes());
+        assertTrue(report.getOutputBytes(AdaptiveZipCompressionPolicy.STRONG_LEVEL) * 5 < 200000);
+        assertTrue(report.getTotalCpuNanos() >= report.getSamplingCpuNanos());
+        assertTrue(report.toString(), report.toString().startsWith("Stored: 1 file(s)"));
+    }
+
+    @Test
+    public void testBackupZipPolicy() throws IOException, ZipUtilException {
+        Random random = new Random(34);
+        File level = new File(testRoot, "level");
+        assertTrue(level.mkdirs());
+        Files.write(new File(level, "level.dat").toPath(), gzip(nbtLike(random, 10000)));
+        Files.write(new File(level, "raids.dat").toPath(), nbtLike(random, 100000));
+
+        // the fast level for everything, unless the adaptive policy is asked for
+        ZipCompressionReport report = ZipUtil.makeBackupZip(level.getAbsolutePath(), testRoot.getAbsolutePath(),
+                "fixed.zip", new BackupMetadata(1, "fixed"));
+        assertEquals(3, report.getEntryCount(Deflater.BEST_SPEED)); // with the metadata
+        report = ZipUtil.makeBackupZip(level.getAbsolutePath(), testRoot.getAbsolutePath(), "adaptive.zip",
+                new BackupMetadata(1, "adaptive"), policy, 2);
+        assertEquals(1, report.getEntryCount(Deflater.NO_COMPRESSION));
+        assertEquals(1, report.getEntryCount(AdaptiveZipCompressionPolicy.STRONG_LEVEL));
+    }
+
+    private static ZipCompressionReport write(Map<String, byte[]> entries, ZipCompressionPolicy policy, int threads)
+            throws IOException {
+        ParallelZipWriter writer = new ParallelZipWriter(zipFile, policy, threads);
+        try {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet())
+                writer.putBytes(entry.getKey(), 0, entry.getValue());
+        } finally {
+            writer.close();
+        }
+        // complete only after the central directory is written
+        return writer.getReport();
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testPolicyBenchmark() throws IOException {
+        Random random = new Random(33);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 12; i++)
+            entries.put("region/r." + i + ".mca", regionLike(random, 256, i % 3 == 0 ? 1 : 0.5 + random.nextDouble() / 2));
+        for (int i = 0; i < 200; i++)
+            entries.put("playerdata/" + i + ".dat", gzip(nbtLike(random, 4096 + random.nextInt(8192))));
+        for (int i = 0; i < 20; i++)
+            entries.put("data/" + i + ".dat", nbtLike(random, 65536 + random.nextInt(65536)));
+
+        System.out.println("zip policies on a world-like corpus:");
+        for (ZipCompressionPolicy candidate : Arrays.asList(ZipCompressionPolicy.fixed(Deflater.BEST_SPEED),
+                ZipCompressionPolicy.fixed(Deflater.DEFAULT_COMPRESSION), policy)) {
+            ZipCompressionReport report = write(entries, candidate, 1);
+            System.out.printf("  %s: %d bytes, %.3fs CPU%n", candidate == policy ? "adaptive" : "fixed",
+                    report.getTotalOutputBytes(), report.getTotalCpuNanos() / 1e9);
+            System.out.println("    " + report);
+        }
+    }
+}
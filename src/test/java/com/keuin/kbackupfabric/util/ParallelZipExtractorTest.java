@@ -0,0 +1,229 @@
+package com.keuin.kbackupfabric.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ParallelZipExtractorTest {
+
+    private static final File testRoot = new File("testfile/ParallelZipExtractorTest");
+    private static final File zipFile = new File(testRoot, "test.zip");
+    private static final File destination = new File(testRoot, "extracted");
+
+    @Before
+    public void initialize() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+        assertTrue(testRoot.mkdirs());
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+    }
+
+    private static Map<String, byte[]> sampleEntries(Random random, int regionFiles, int regionSize) {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("level.dat", new byte[]{1, 2, 3});
+        entries.put("empty", new byte[0]);
+        entries.put("data/raids.dat", new byte[1000]);
+        for (int i = 0; i < regionFiles; i++) {
+            byte[] region = new byte[regionSize];
+            // half random, so inflating costs about as much as for real region files
+            for (int j = 0; j < region.length / 2; j++)
+                region[j] = (byte) random.nextInt();
+            entries.put("DIM-1/region/r." + i + ".mca", region);
+        }
+        return entries;
+    }
+
+    private static void writeArchive(Map<String, byte[]> entries) throws IOException {
+        try (ParallelZipWriter writer = new ParallelZipWriter(zipFile, Deflater.BEST_SPEED, 2)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet())
+                writer.putBytes(entry.getKey(), 0, entry.getValue());
+        }
+    }
+
+    private static void assertExtracted(Map<String, byte[]> entries) throws IOException {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet())
+            assertArrayEquals(entry.getKey(), entry.getValue(),
+                    Files.readAllBytes(new File(destination, entry.getKey()).toPath()));
+    }
+
+    @Test
+    public void testExtract() throws IOException {
+        Map<String, byte[]> entries = sampleEntries(new Random(41), 5, 300000);
+        writeArchive(entries);
+        for (int threads : new int[]{1, 3}) {
+            FileUtils.deleteDirectory(destination);
+            ParallelZipExtractor.Result result = new ParallelZipExtractor(zipFile, threads).extractTo(destination);
+            assertExtracted(entries);
+            assertEquals(entries.size(), result.getFiles());
+            assertEquals(2, result.getDirectories()); // data, DIM-1/region
+            assertEquals(entries.values().stream().mapToLong(data -> data.length).sum(), result.getBytes());
+        }
+    }
+
+    @Test
+    public void testOverwriteAndDirectoryEntries() throws IOException {
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            zipOutputStream.putNextEntry(new ZipEntry("empty-dir/"));
+            zipOutputStream.closeEntry();
+            zipOutputStream.putNextEntry(new ZipEntry("a/b.txt"));
+            zipOutputStream.write(new byte[]{7});
+            zipOutputStream.closeEntry();
+        }
+        File existing = new File(destination, "a/b.txt");
+        assertTrue(existing.getParentFile().mkdirs());
+        Files.write(existing.toPath(), new byte[100]);
+
+        ParallelZipExtractor.Result result = new ParallelZipExtractor(zipFile, 2).extractTo(destination);
+        assertArrayEquals(new byte[]{7}, Files.readAllBytes(existing.toPath()));
+        assertTrue(new File(destination, "empty-dir").isDirectory());
+        assertEquals(1, result.getFiles());
+        assertEquals(2, result.getDirectories());
+    }
+
+    @Test
+    public void testEntryOutsideOfDestination() throws IOException {
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            zipOutputStream.putNextEntry(new ZipEntry("../evil.txt"));
+            zipOutputStream.write(new byte[]{1});
+            zipOutputStream.closeEntry();
+        }
+        try {
+            new ParallelZipExtractor(zipFile, 2).extractTo(destination);
+            fail();
+        } catch (IOException ignored) {
+        }
+        assertFalse(new File(testRoot, "evil.txt").exists());
+    }
+
+    /**
+     * Relative paths of all files and directories under the destination, with '/' as separator.
+     */
+    private static Set<String> listDestination() throws IOException {
+        Path root = destination.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(path -> !path.equals(root))
+                    .map(path -> root.relativize(path).toString().replace(File.separatorChar, '/'))
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    private static void write(String name, byte[] data) throws IOException {
+        File file = new File(destination, name);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        Files.write(file.toPath(), data);
+    }
+
+    @Test
+    public void testDifferential() throws IOException {
+        Map<String, byte[]> entries = sampleEntries(new Random(43), 4, 100000);
+        writeArchive(entries);
+
+        // r.0 is unchanged, r.1 has the same size but differs, r.2 differs in size, r.3 is missing
+        write("DIM-1/region/r.0.mca", entries.get("DIM-1/region/r.0.mca"));
+        File unchanged = new File(destination, "DIM-1/region/r.0.mca");
+        assertTrue(unchanged.setLastModified(1000000000000L));
+        byte[] changed = entries.get("DIM-1/region/r.1.mca").clone();
+        changed[changed.length - 1] ^= 1;
+        write("DIM-1/region/r.1.mca", changed);
+        write("DIM-1/region/r.2.mca", new byte[10]);
+        // not in the archive
+        write("session.lock", new byte[1]);
+        write("DIM1/region/r.0.mca", new byte[10]);
+        write("DIM1/data/raids.dat", new byte[10]);
+        // a directory where the archive has a file
+        write("level.dat/inner", new byte[10]);
+
+        ParallelZipExtractor.Result result = new ParallelZipExtractor(zipFile, 2).extractDifferentialTo(destination);
+        assertExtracted(entries);
+        assertEquals(1, result.getUnchangedFiles());
+        assertEquals(4, result.getDeletedFiles());
+        assertEquals(entries.size() - 1, result.getFiles());
+        // the unchanged file is neither read from the archive nor written
+        assertEquals(entries.values().stream().mapToLong(data -> data.length).sum()
+                - entries.get("DIM-1/region/r.0.mca").length, result.getBytes());
+        assertEquals(1000000000000L, unchanged.lastModified());
+        Set<String> expected = new HashSet<>(entries.keySet());
+        expected.addAll(Arrays.asList("data", "DIM-1", "DIM-1/region"));
+        assertEquals(expected, listDestination());
+
+        // nothing left to do
+        result = new ParallelZipExtractor(zipFile, 2).extractDifferentialTo(destination);
+        assertEquals(0, result.getFiles());
+        assertEquals(0, result.getBytes());
+        assertEquals(entries.size(), result.getUnchangedFiles());
+        assertEquals(0, result.getDeletedFiles());
+        assertEquals(expected, listDestination());
+    }
+
+    @Test
+    public void testDifferentialIntoMissingDirectory() throws IOException {
+        Map<String, byte[]> entries = sampleEntries(new Random(44), 1, 1000);
+        writeArchive(entries);
+        ParallelZipExtractor.Result result = new ParallelZipExtractor(zipFile, 1).extractDifferentialTo(destination);
+        assertExtracted(entries);
+        assertEquals(entries.size(), result.getFiles());
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testDifferentialBenchmark() throws IOException {
+        Map<String, byte[]> entries = sampleEntries(new Random(45), 40, 2 * 1024 * 1024);
+        writeArchive(entries);
+        new ParallelZipExtractor(zipFile, 1).extractTo(destination); // warm up
+        List<String> regions = new ArrayList<>();
+        for (String name : entries.keySet()) {
+            if (name.endsWith(".mca"))
+                regions.add(name);
+        }
+        System.out.println("full vs differential restore, 10% of region files changed:");
+        for (boolean differential : new boolean[]{false, true}) {
+            for (int i = 0; i < regions.size(); i += 10)
+                write(regions.get(i), new byte[1]);
+            long start = System.nanoTime();
+            ParallelZipExtractor.Result result;
+            if (differential) {
+                result = new ParallelZipExtractor(zipFile, 2).extractDifferentialTo(destination);
+            } else {
+                FileUtils.deleteDirectory(destination);
+                result = new ParallelZipExtractor(zipFile, 2).extractTo(destination);
+            }
+            System.out.printf("  %s: %.3fs, %s%n", differential ? "differential" : "full",
+                    (System.nanoTime() - start) / 1e9, result);
+        }
+        assertExtracted(entries);
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testThroughputBenchmark() throws IOException {
+        Map<String, byte[]> entries = sampleEntries(new Random(42), 24, 2 * 1024 * 1024);
+        writeArchive(entries);
+        System.out.printf("unzip throughput on %d core(s):%n", Runtime.getRuntime().availableProcessors());
+        new ParallelZipExtractor(zipFile, 1).extractTo(destination); // warm up
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            FileUtils.deleteDirectory(destination);
+            ParallelZipExtractor.Result result = new ParallelZipExtractor(zipFile, threads).extractTo(destination);
+            System.out.printf("  %d thread(s): %s%n", threads, result);
+        }
+        assertExtracted(entries);
+    }
+}
@@ -0,0 +1,259 @@
+package com.keuin.kbackupfabric.util;
+
+import com.keuin.kbackupfabric.exception.ZipUtilException;
+import com.keuin.kbackupfabric.metadata.BackupMetadata;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class ParallelZipWriterTest {
+
+    private static final File testRoot = new File("testfile/ParallelZipWriterTest");
+    private static final File zipFile = new File(testRoot, "test.zip");
+
+    @Before
+    public void initialize() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+        assertTrue(testRoot.mkdirs());
+    }
+
+    @After
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(testRoot);
+    }
+
+    /**
+     * Text-like data which compresses to about a third, with repetitions far apart as in region files.
+     */
+    private static byte[] compressibleData(Random random, int length) {
+        String[] words = new String[512];
+        for (int i = 0; i < words.length; i++)
+            words[i] = Long.toString(random.nextLong() & Long.MAX_VALUE, 36 - random.nextInt(10));
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 32);
+        while (out.size() < length) {
+            byte[] word = words[random.nextInt(words.length)].getBytes(StandardCharsets.US_ASCII);
+            out.write(word, 0, word.length);
+            out.write(' ');
+        }
+        return Arrays.copyOf(out.toByteArray(), length);
+    }
+
+    private static Map<String, byte[]> sampleEntries() {
+        Random random = new Random(27);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("empty", new byte[0]);
+        entries.put("level.dat", compressibleData(random, 100));
+        entries.put("region/r.0.0.mca", compressibleData(random, ParallelZipWriter.BLOCK_SIZE));
+        entries.put("region/r.0.1.mca", compressibleData(random, ParallelZipWriter.BLOCK_SIZE * 5 / 2));
+        byte[] noise = new byte[ParallelZipWriter.BLOCK_SIZE + 1];
+        random.nextBytes(noise);
+        entries.put("DIM-1/region/noise.mca", noise);
+        entries.put("名字.txt", compressibleData(random, 10));
+        return entries;
+    }
+
+    private static void writeEntries(Map<String, byte[]> entries, int threads, long zip64Threshold) throws IOException {
+        writeEntries(entries, ZipCompressionPolicy.fixed(Deflater.BEST_SPEED), threads, zip64Threshold);
+    }
+
+    private static void writeEntries(Map<String, byte[]> entries, ZipCompressionPolicy policy, int threads,
+                                     long zip64Threshold) throws IOException {
+        try (ParallelZipWriter writer = new ParallelZipWriter(zipFile, policy, threads, zip64Threshold)) {
+            int i = 0;
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                // half of them from files, to read in blocks
+                if (i++ % 2 == 0) {
+                    writer.putBytes(entry.getKey(), System.currentTimeMillis(), entry.getValue());
+                } else {
+                    File file = new File(testRoot, "source" + i);
+                    Files.write(file.toPath(), entry.getValue());
+                    writer.putFile(entry.getKey(), file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the archive through its central directory and as a stream, the latter checks sizes and CRC of each entry.
+     */
+    private static void assertArchive(Map<String, byte[]> expected) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                try (InputStream inputStream = zip.getInputStream(entry)) {
+                    entries.put(entry.getName(), IOUtils.toByteArray(inputStream));
+                }
+            }
+        }
+        assertEquals(expected.keySet(), entries.keySet());
+        for (String name : expected.keySet())
+            assertArrayEquals(name, expected.get(name), entries.get(name));
+
+        int count = 0;
+        try (ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(zipFile)))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                assertArrayEquals(entry.getName(), expected.get(entry.getName()), IOUtils.toByteArray(zipInputStream));
+                ++count;
+            }
+        }
+        assertEquals(expected.size(), count);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Map<String, byte[]> entries = sampleEntries();
+        for (int threads : new int[]{1, 4}) {
+            writeEntries(entries, threads, Long.MAX_VALUE);
+            assertArchive(entries);
+        }
+    }
+
+    @Test
+    public void testBlocksDoNotCostMuchRatio() throws IOException {
+        byte[] data = compressibleData(new Random(28), ParallelZipWriter.BLOCK_SIZE * 8);
+        writeEntries(Collections.singletonMap("data", data), 4, Long.MAX_VALUE);
+        long parallelLength = zipFile.length();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[data.length];
+        long singleStreamLength = 0;
+        while (!deflater.finished())
+            singleStreamLength += deflater.deflate(buffer);
+        deflater.end();
+        assertTrue(parallelLength + " vs " + singleStreamLength, parallelLength < singleStreamLength * 1.01 + 256);
+    }
+
+    @Test
+    public void testZip64Entries() throws IOException {
+        Map<String, byte[]> entries = sampleEntries();
+        writeEntries(entries, 4, 0);
+        assertArchive(entries);
+    }
+
+    @Test
+    public void testStoredEntries() throws IOException {
+        Map<String, byte[]> entries = sampleEntries();
+        ZipCompressionPolicy policy = (name, head, length) ->
+                name.contains("region") ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION;
+        for (long zip64Threshold : new long[]{Long.MAX_VALUE, 0}) {
+            writeEntries(entries, policy, 4, zip64Threshold);
+            assertArchive(entries);
+            try (ZipFile zip = new ZipFile(zipFile)) {
+                for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                    ZipEntry entry = e.nextElement();
+                    assertEquals(entry.getName(), entry.getName().contains("region") ? ZipEntry.STORED : ZipEntry.DEFLATED,
+                            entry.getMethod());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testZip64EntryCount() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 70000; i++)
+            entries.put("f" + i, new byte[]{(byte) i});
+        writeEntries(entries, 2, Long.MAX_VALUE);
+        assertArchive(entries);
+    }
+
+    @Test
+    public void testFailedArchiveIsNotFinished() throws IOException {
+        ParallelZipWriter writer = new ParallelZipWriter(zipFile, Deflater.BEST_SPEED, 2);
+        writer.putBytes("a", 0, new byte[10]);
+        // nothing is written for a file which cannot be opened
+        try {
+            writer.putFile("missing", new File(testRoot, "missing"));
+            fail();
+        } catch (FileNotFoundException ignored) {
+        }
+        writer.putBytes("b", 0, new byte[10]);
+
+        InputStream failingStream = new InputStream() {
+            private int remaining = ParallelZipWriter.BLOCK_SIZE + 10;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0)
+                    throw new IOException("disk error");
+                --remaining;
+                return 0;
+            }
+        };
+        try {
+            writer.put("failing", 0, ParallelZipWriter.BLOCK_SIZE * 2, failingStream);
+            fail();
+        } catch (IOException ignored) {
+        }
+        try {
+            writer.putBytes("c", 0, new byte[10]);
+            fail();
+        } catch (IOException ignored) {
+        }
+        writer.close();
+        try {
+            new ZipFile(zipFile).close();
+            fail("archive has a central directory");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void testBackupZip() throws IOException, ZipUtilException {
+        File level = new File(testRoot, "world");
+        Map<String, byte[]> entries = sampleEntries();
+        // file names are limited to the platform charset
+        entries.keySet().removeIf(name -> !StandardCharsets.US_ASCII.newEncoder().canEncode(name));
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            File file = new File(level, entry.getKey());
+            assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+            Files.write(file.toPath(), entry.getValue());
+        }
+        Files.write(new File(level, "session.lock").toPath(), new byte[1]);
+        ZipUtil.makeBackupZip(level.getAbsolutePath(), testRoot.getAbsolutePath(), "backup.zip", new BackupMetadata(1, "name"),
+                Deflater.BEST_SPEED, 4);
+
+        File restored = new File(testRoot, "restored");
+        ZipUtil.unzip(new File(testRoot, "backup.zip").getPath(), restored.getPath(), false);
+        assertTrue(new File(restored, BackupMetadata.metadataFileName).isFile());
+        assertFalse(new File(restored, "session.lock").exists());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet())
+            assertArrayEquals(entry.getValue(), Files.readAllBytes(new File(restored, entry.getKey()).toPath()));
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void testThroughputBenchmark() throws IOException {
+        Random random = new Random(29);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 24; i++)
+            entries.put("region/r." + i + ".mca", compressibleData(random, 2 * 1024 * 1024 + random.nextInt(1024)));
+        long totalBytes = entries.values().stream().mapToLong(data -> data.length).sum();
+        System.out.printf("zip throughput on %d core(s):%n", Runtime.getRuntime().availableProcessors());
+        writeEntries(entries, 1, Long.MAX_VALUE); // warm up
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            long start = System.nanoTime();
+            writeEntries(entries, threads, Long.MAX_VALUE);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("  %d thread(s): %.1f MiB/s%n", threads, totalBytes / 1048576.0 / seconds);
+        }
+        assertArchive(entries);
+    }
+}
@@ -0,0 +1,31 @@
+package com.keuin.kbackupfabric.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testRate() throws IOException {
+        RateLimiter limiter = new RateLimiter(200);
+        long start = System.nanoTime();
+        // the first second is a burst, the rest takes 1.5s
+        for (int i = 0; i < 5; i++)
+            limiter.acquire(100);
+        limiter.acquire(0);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue("took " + seconds + "s", seconds >= 1.3 && seconds < 3);
+    }
+
+    @Test
+    public void testUnlimited() throws IOException {
+        RateLimiter limiter = RateLimiter.unlimited();
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++)
+            limiter.acquire(Long.MAX_VALUE / 2);
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+    }
+}
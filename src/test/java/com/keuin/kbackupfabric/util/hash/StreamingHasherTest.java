@@ -0,0 +1,125 @@
+package com.keuin.kbackupfabric.util.hash;
+
+import com.keuin.kbackupfabric.util.BytesUtil;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class StreamingHasherTest {
+
+    private static final int[] LENGTHS = {0, 1, 3, 4, 8, 9, 16, 17, 128, 129, 240, 241, 1023, 1024, 1025, 2048, 2049, 8193, 102400};
+
+    // BLAKE3 of bytes (i % 251), from the reference implementation
+    private static final String[] BLAKE3_VECTORS = {
+            "AF1349B9F5F9A1A6A0404DEA36DCC9499BCB25C9ADC112B7CC9A93CAE41F3262",
+            "2D3ADEDFF11B61F14C886E35AFA036736DCD87A74D27B5C1510225D0F592E213",
+            "E1BE4D7A8AB5560AA4199EEA339849BA8E293D55CA0A81006726D184519E647F",
+            "F30F5AB28FE047904037F77B6DA4FEA1E27241C5D132638D8BEDCE9D40494F32",
+            "2351207D04FC16ADE43CCAB08600939C7C1FA70A5C0AACA76063D04C3228EAEB",
+            "A0FC27E5D7318B723207637BDEEBA4F7DCB22F7F9EC3E8B6F3588DDCD4FDF861",
+            "A6A492965517A830CB75FDB713465AA465F2F098233896FEA44C1D98268BF9E3",
+            "8462AA7BE93B09FDA7B93CF9F9CDDB703F6DD2CC0C8EDD5F9EEE092EDF8ABF0C",
+            "F17E570564B26578C33BB7F44643F539624B05DF1A76C81F30ACD548C44B45EF",
+            "683AAAE9F3C5BA37EAAF072AED0F9E30BAC0865137BAE68B1FDE4CA2AEBDCB12",
+            "45E1A0DC23DBE51733D7269A3C0F519C2A63B0718835B2B537677EBA734DB0D8",
+            "749B36AE651C22E8567DB692A6876E0CA4FD3DAEB7AA8FA3AB2F642CCC69A8F6",
+            "10108970EEDA3EB932BAAC1428C7A2163B0E924C9A9E25B35BBA72B28F70BD11",
+            "42214739F095A406F3FC83DEB889744AC00DF831C10DAA55189B5D121C855AF7",
+            "D00278AE47EB27B34FAECF67B4FE263F82D5412916C1FFD97C8CB7FB814B8444",
+            "E776B6028C7CD22A4D0BA182A8BF62205D2EF576467E838ED6F2529B85FBA24A",
+            "5F4D72F40D7A5F82B15CA2B2E44B1DE3C2EF86C426C95C1AF0B6879522563030",
+            "BAB6C09CB8CE8CF459261398D2E7AEF35700BF488116CEB94A36D0F5F1B7BC3B",
+            "BC3E3D41A1146B069ABFFAD3C0D44860CF664390AFCE4D9661F7902E7943E085",
+    };
+
+    // XXH3-128 (canonical form) of bytes (i % 251), from the reference implementation
+    private static final String[] XXH3_VECTORS = {
+            "99AA06D3014798D86001C324468D497F",
+            "A6CD5E9392000F6AC44BDFF4074EECDB",
+            "E3B55F57945A17CF5F4299FC161C9CBB",
+            "EB70BF5FC779E9E6A6111D53E80A3DB5",
+            "E1E4432A62217FE4CFD50C61C8BB98C1",
+            "16C769D83E4AEBCE907931979DCA3746",
+            "72950631827607E2842812CC870DCAE2",
+            "685BC458B37D057FC06E233DF7729217",
+            "14792FC3AF88DC6C05321A0B64D67B41",
+            "DD5E74AC6B45F54EBC30B63382B09A3B",
+            "65B5BE86DA5540E7C92B68E16F83BBB6",
+            "1DA1CB61BCB8A2A102E8CD95421C6D02",
+            "4325711B0ED4D742D3D91D80AC495685",
+            "D0AC1F7B93BF57B9E5D78BAFA45B2AA5",
+            "2882EBCA04EC915CE95C42288F28186E",
+            "A5141EFEDFEFC1AF25339063DB861586",
+            "39A54BC93F74921B6C9600C0E506E2AE",
+            "EAA446AA30F78391D6735A2B792CF505",
+            "ECD387D36185351B1428E17F1CAC2837",
+    };
+
+    private static byte[] input(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (i % 251);
+        return bytes;
+    }
+
+    private static void testVectors(StreamingHasher hasher, String[] vectors) {
+        for (int i = 0; i < LENGTHS.length; i++) {
+            byte[] data = input(LENGTHS[i]);
+            hasher.update(data, 0, data.length);
+            assertEquals("length " + LENGTHS[i], vectors[i], BytesUtil.bytesToHex(hasher.digest()));
+        }
+    }
+
+    private static void testSplitUpdates(StreamingHasher hasher) {
+        Random random = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            byte[] data = new byte[random.nextInt(20000)];
+            random.nextBytes(data);
+            hasher.update(data, 0, data.length);
+            byte[] expected = hasher.digest();
+
+            int offset = 0;
+            while (offset < data.length) {
+                int length = Math.min(data.length - offset, random.nextBoolean() ? random.nextInt(70) : random.nextInt(3000));
+                if (random.nextBoolean()) {
+                    hasher.update(data, offset, length);
+                } else {
+                    ByteBuffer direct = ByteBuffer.allocateDirect(length);
+                    direct.put(data, offset, length).flip();
+                    hasher.update(direct);
+                }
+                offset += length;
+            }
+            assertArrayEquals("length " + data.length, expected, hasher.digest());
+        }
+    }
+
+    @Test
+    public void testBlake3Vectors() {
+        testVectors(new Blake3Hasher(), BLAKE3_VECTORS);
+    }
+
+    @Test
+    public void testXxh3Vectors() {
+        testVectors(new Xxh3Hasher128(), XXH3_VECTORS);
+    }
+
+    @Test
+    public void testBlake3SplitUpdates() {
+        testSplitUpdates(new Blake3Hasher());
+    }
+
+    @Test
+    public void testXxh3SplitUpdates() {
+        testSplitUpdates(new Xxh3Hasher128());
+    }
+
+    @Test
+    public void testMessageDigestSplitUpdates() {
+        testSplitUpdates(MessageDigestHasher.getInstance("SHA-256"));
+    }
+}